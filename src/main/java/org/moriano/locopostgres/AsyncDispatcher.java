@@ -0,0 +1,429 @@
+package org.moriano.locopostgres;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the queries of {@link LocoConnection#queryAsync(String, Object...)} and {@link LocoConnection#query}.
+ *
+ * A query is written to the server as soon as it is submitted, whatever the state of the ones before it, and goes to
+ * the back of the pending queue. The server answers queries in the order it gets them, so the packets that arrive
+ * always belong to the query at the head of the queue: the event loop tells us whenever something arrives (see
+ * {@link EventLoopChannel#setListener(Runnable)}) and, on its I/O thread, we hand every complete packet to that
+ * query until its READY_FOR_QUERY, then move on to the next one. No thread waits for the server at any point.
+ *
+ * Reading and writing are independent, so while a big query is being written the answers of the previous ones keep
+ * being read, and neither side can fill up waiting for the other.
+ *
+ * The regular JDBC methods read from the server themselves, so they cannot run while asynchronous queries are still
+ * in flight, and no query can be sent while they are waiting for their own answers. The first thing a JDBC method
+ * writes claims the connection for its thread: the queries in flight are waited for first, and the ones other
+ * threads submit afterwards wait until the JDBC thread read everything it asked for, see {@link #claimForJdbc()}.
+ *
+ * This is also what lets many threads share the connection (see {@link LocoConnection#query}): any thread can submit
+ * a query, the write lock keeps its packets together, and the pending queue, which needs no lock, routes each answer
+ * back to the query it belongs to in the order they were sent. The thread then parks until its query is over. With
+ * the selector transport the I/O thread reads the answers and wakes it up. With the other transports there is no I/O
+ * thread, so one of the waiting threads reads for all of them: whoever takes the read lock reads every answer until
+ * its own is complete, waking up the owners of the queries before it as it goes, and then wakes up the owner of the
+ * next pending query to take over, see {@link #await(AsyncQuery)}.
+ */
+final class AsyncDispatcher {
+    private static final Logger log = LogManager.getLogger(AsyncDispatcher.class);
+
+    /**
+     * How long a parked thread waits before looking again whether it can go on, in case the wake up it expected never
+     * came. Nobody should rely on this, it only bounds the damage of a missed wake up.
+     */
+    private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LocoNetwork locoNetwork;
+
+    /**
+     * Whether the I/O thread of an event loop reads the answers, see {@link #onInboundData()}. Otherwise the threads
+     * waiting for them do.
+     */
+    private final boolean eventLoop;
+
+    /**
+     * The queries sent whose answer did not fully arrive yet, in the order they were sent
+     */
+    private final Queue<AsyncQuery> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Held while reading from the server. Nobody holding it ever waits for the I/O thread, so the I/O thread can
+     * always take it.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    /**
+     * Signalled when the last pending query finishes
+     */
+    private final Condition idle = this.readLock.newCondition();
+
+    /**
+     * Held while writing a query, so its packets are never mixed with the ones of another
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Signalled when a JDBC thread gives the connection back, see {@link #releaseJdbc()}
+     */
+    private final Condition jdbcDone = this.writeLock.newCondition();
+
+    /**
+     * The thread using the connection through the regular JDBC methods, null if none. No query is sent meanwhile.
+     */
+    private volatile Thread jdbcOwner;
+
+    /**
+     * Why the connection cannot be used anymore, null while it can
+     */
+    private volatile SQLException failure;
+
+    /**
+     * @param locoNetwork
+     * @param eventLoop whether the connection uses the selector transport, whose I/O thread calls
+     *                  {@link #onInboundData()}
+     */
+    AsyncDispatcher(LocoNetwork locoNetwork, boolean eventLoop) {
+        this.locoNetwork = locoNetwork;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Sends the given query, with a Parse of the unnamed statement so it does not depend on anything sent before it
+     * @param sql the query, with $n placeholders
+     * @param parameters
+     * @param rowHandler where the rows go, null to keep them in memory
+     * @return the future completed once the whole answer arrived
+     * @throws SQLException if the query cannot be sent, the connection is then broken
+     */
+    CompletableFuture<LocoAsyncResult> submit(String sql, LocoParameters parameters, LocoRowHandler rowHandler)
+            throws SQLException {
+        if (!this.eventLoop) {
+            // Nobody would read the answer until some thread waits for it
+            throw new SQLFeatureNotSupportedException("Asynchronous queries need the " +
+                    LocoNetwork.TRANSPORT_SELECTOR + " transport, see the " + LocoProperty.TRANSPORT.getName() +
+                    " property");
+        }
+        AsyncQuery query = new AsyncQuery(this.locoNetwork, rowHandler, null);
+        this.send(query, sql, parameters);
+        return query.getFuture();
+    }
+
+    /**
+     * Sends the given query and waits for its answer, see {@link #submit}. Any number of threads can call this at
+     * the same time.
+     * @param sql the query, with $n placeholders
+     * @param parameters
+     * @return the result of the query
+     * @throws SQLException the error of the query, or if it cannot be sent
+     */
+    LocoAsyncResult query(String sql, LocoParameters parameters) throws SQLException {
+        AsyncQuery query = new AsyncQuery(this.locoNetwork, null, Thread.currentThread());
+        this.send(query, sql, parameters);
+        return this.await(query);
+    }
+
+    private void send(AsyncQuery query, String sql, LocoParameters parameters) throws SQLException {
+        this.writeLock.lock();
+        try {
+            this.awaitJdbcDone();
+        } catch (SQLException e) {
+            this.writeLock.unlock();
+            throw e;
+        }
+        try {
+            this.checkFailure();
+            this.locoNetwork.checkNoPipeline();
+            // A regular result set still streaming its rows has to get out of the way of our answers
+            this.locoNetwork.bufferActiveResultSet();
+            PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+            packetWriter.writeParse(sql, null, parameters.getObjectIds());
+            packetWriter.writeBind(null, null, parameters, null);
+            packetWriter.writeDescribe('P', null);
+            packetWriter.writeExecute(null, 0);
+            packetWriter.writeSync();
+            // Queued before it is written, its answer cannot arrive before it is in the queue
+            this.pending.add(query);
+            this.locoNetwork.flush();
+        } catch (SQLException e) {
+            this.failAll(e);
+            throw e;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Parks the current thread until the given query is over. Without an event loop, the thread reads the answers
+     * itself if nobody else is doing it.
+     * @param query a query sent by this thread
+     * @return its result
+     * @throws SQLException its error
+     */
+    private LocoAsyncResult await(AsyncQuery query) throws SQLException {
+        boolean interrupted = false;
+        while (!query.isDone()) {
+            if (!this.eventLoop && this.readLock.tryLock()) {
+                try {
+                    this.readUntilDone(query);
+                } finally {
+                    this.readLock.unlock();
+                }
+                // Whoever waits for the next query reads from now on
+                AsyncQuery next = this.pending.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.getWaiter());
+                }
+            } else {
+                // Woken up by whoever reads our answer, or by the reader before us once it is done
+                LockSupport.parkNanos(this, RECHECK_NANOS);
+                /*
+                The query cannot be abandoned halfway, its answer is coming anyway and has to be read before the ones
+                after it. We keep waiting and leave the interrupt for the caller to see.
+                 */
+                interrupted |= Thread.interrupted();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return query.getResult();
+    }
+
+    /**
+     * Reads from the server, blocking, until the given query is over. The read lock must be held.
+     */
+    private void readUntilDone(AsyncQuery query) {
+        while (!query.isDone()) {
+            AsyncQuery head = this.pending.peek();
+            Packet packet;
+            try {
+                packet = this.locoNetwork.readFromServer();
+            } catch (SQLException e) {
+                this.failAll(e);
+                return;
+            }
+            this.handle(head, packet);
+        }
+    }
+
+    /**
+     * Reads from the server, blocking, until no query is pending, handing the answers to their queries and waking up
+     * the threads waiting for them. The read lock must be held.
+     */
+    private void readUntilIdle() {
+        AsyncQuery head;
+        while ((head = this.pending.peek()) != null) {
+            Packet packet;
+            try {
+                packet = this.locoNetwork.readFromServer();
+            } catch (SQLException e) {
+                this.failAll(e);
+                return;
+            }
+            this.handle(head, packet);
+        }
+    }
+
+    /**
+     * Runs on the I/O thread whenever something arrives from the server
+     */
+    void onInboundData() {
+        this.readLock.lock();
+        try {
+            this.drain();
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+
+    /**
+     * Hands every complete packet received to the query it belongs to, without waiting for more
+     */
+    private void drain() {
+        AsyncQuery query;
+        while ((query = this.pending.peek()) != null) {
+            Packet packet;
+            try {
+                packet = this.locoNetwork.pollFromServer();
+            } catch (SQLException e) {
+                this.failAll(e);
+                return;
+            }
+            if (packet == null) {
+                return;
+            }
+            this.handle(query, packet);
+        }
+    }
+
+    /**
+     * Hands the packet to the query at the head of the queue, which moves on to the next one once it is over. The
+     * read lock must be held.
+     */
+    private void handle(AsyncQuery head, Packet packet) {
+        if (head.onPacket(packet)) {
+            this.pending.poll();
+            if (this.pending.isEmpty()) {
+                this.idle.signalAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every query sent has its answer, so the connection can be used to read from the server again.
+     * With the selector transport the I/O thread reads the answers meanwhile. With the others the current thread
+     * reads them itself, the threads waiting for them could not while it holds the read lock.
+     * @throws SQLException
+     */
+    void awaitIdle() throws SQLException {
+        if (this.readLock.isHeldByCurrentThread()) {
+            // A row handler using the connection, it would wait for itself
+            throw new SQLException("The connection cannot be used from a row handler");
+        }
+        this.readLock.lock();
+        try {
+            if (!this.eventLoop) {
+                this.readUntilIdle();
+            }
+            while (!this.pending.isEmpty()) {
+                this.idle.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the asynchronous queries", e);
+        } finally {
+            this.readLock.unlock();
+        }
+        this.checkFailure();
+    }
+
+    /**
+     * Claims the connection for the current thread, which is about to write packets of its own through the regular
+     * JDBC methods and read their answers. The queries in flight are waited for (and, without an event loop, read)
+     * first, and the ones submitted afterwards by other threads wait until {@link #releaseJdbc()}, which
+     * {@link LocoNetwork} calls once this thread read every answer it asked for and left no result set streaming.
+     *
+     * Nothing to do if the thread already has the connection, or if it is the dispatcher itself writing a query or
+     * reading answers.
+     * @throws SQLException if the connection broke while waiting for the queries in flight
+     */
+    void claimForJdbc() throws SQLException {
+        Thread current = Thread.currentThread();
+        if (this.jdbcOwner == current || this.writeLock.isHeldByCurrentThread() ||
+                this.readLock.isHeldByCurrentThread()) {
+            return;
+        }
+        this.writeLock.lock();
+        try {
+            this.awaitIdle();
+            this.jdbcOwner = current;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    boolean isJdbcOwner() {
+        return this.jdbcOwner == Thread.currentThread();
+    }
+
+    /**
+     * Gives the connection back after {@link #claimForJdbc()}, called by the thread that claimed it. The threads
+     * waiting to send are signalled if the write lock is free right now, otherwise they see it on their next look.
+     */
+    void releaseJdbc() {
+        this.jdbcOwner = null;
+        if (this.writeLock.tryLock()) {
+            try {
+                this.jdbcDone.signalAll();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits, with the write lock held, until no other thread has the connection claimed. A claim left behind by a
+     * thread that died is dropped, nobody would ever release it.
+     * @throws SQLException if interrupted, nothing was sent then
+     */
+    private void awaitJdbcDone() throws SQLException {
+        Thread owner;
+        while ((owner = this.jdbcOwner) != null && owner != Thread.currentThread()) {
+            if (!owner.isAlive()) {
+                this.jdbcOwner = null;
+                return;
+            }
+            try {
+                this.jdbcDone.await(RECHECK_NANOS, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the connection", e);
+            }
+        }
+    }
+
+    /**
+     * The connection is about to be closed, nothing else can be sent. Called before the transport is closed, so the
+     * queries in flight fail with this rather than with whatever error their reader gets then.
+     */
+    void beginClose() {
+        this.setFailure(new SQLException("The connection was closed"));
+    }
+
+    /**
+     * Fails every query still waiting for its answer, once the transport is closed. Whoever was reading stopped then,
+     * so the read lock is free.
+     */
+    void close() {
+        this.failAll(new SQLException("The connection was closed"));
+    }
+
+    private void setFailure(SQLException e) {
+        synchronized (this) {
+            if (this.failure != null) {
+                return;
+            }
+            this.failure = e;
+        }
+        log.debug("No more asynchronous queries on this connection", e);
+    }
+
+    /**
+     * The connection broke, whatever was pending will never get its answer
+     */
+    private void failAll(SQLException e) {
+        this.setFailure(e);
+        e = this.failure;
+        this.readLock.lock();
+        try {
+            AsyncQuery query;
+            while ((query = this.pending.poll()) != null) {
+                query.fail(e);
+            }
+            this.idle.signalAll();
+        } finally {
+            this.readLock.unlock();
+        }
+    }
+
+    private void checkFailure() throws SQLException {
+        SQLException failure = this.failure;
+        if (failure != null) {
+            throw new SQLException("The connection is broken: " + failure.getMessage(), failure);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.moriano.locopostgres;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A query sent by {@link AsyncDispatcher} that is waiting for its results.
+ *
+ * Each query is a Parse, Bind, Describe, Execute and Sync of its own, so it ends with its own READY_FOR_QUERY and an
+ * error in it does not affect the ones sent after it. The packets the server answers with are handed to
+ * {@link #onPacket(Packet)} as they arrive, on the I/O thread of the connection, and once the READY_FOR_QUERY comes
+ * the future is completed. Never on the I/O thread though: whatever the application chained to the future runs on
+ * the common {@link ForkJoinPool}, so it can use the connection, or even block for a moment, without stalling every
+ * other connection of the event loop. That pool rather than the default executor of CompletableFuture, which on a
+ * single core machine starts a new thread for every future.
+ *
+ * Queries sent by {@link AsyncDispatcher#query} have a thread waiting for them instead of a future: the result is
+ * left in the query and that thread is woken up, see {@link #isDone()}.
+ */
+final class AsyncQuery {
+
+    private final LocoNetwork locoNetwork;
+    private final CompletableFuture<LocoAsyncResult> future = new CompletableFuture<>();
+
+    /**
+     * Where the rows go as they arrive, null to keep them in memory
+     */
+    private final LocoRowHandler rowHandler;
+
+    /**
+     * The thread waiting for the result, null if the result goes to the future
+     */
+    private final Thread waiter;
+
+    /**
+     * The result for the waiting thread once the query is over, or its SQLException
+     */
+    private volatile Object outcome;
+
+    private LocoRowDescription rowDescription;
+
+    /**
+     * The rows kept in memory, or the result set the row handler sees each row through
+     */
+    private ArrayDeque<Packet> rows;
+    private LocoResultSet resultSet;
+
+    private String commandTag;
+    private long rowCount;
+    private SQLException error;
+
+    /**
+     * @param locoNetwork
+     * @param rowHandler where the rows go, null to keep them in memory
+     * @param waiter the thread that waits for the result, null to complete the future instead
+     */
+    AsyncQuery(LocoNetwork locoNetwork, LocoRowHandler rowHandler, Thread waiter) {
+        this.locoNetwork = locoNetwork;
+        this.rowHandler = rowHandler;
+        this.waiter = waiter;
+    }
+
+    CompletableFuture<LocoAsyncResult> getFuture() {
+        return future;
+    }
+
+    Thread getWaiter() {
+        return waiter;
+    }
+
+    /**
+     * Whether the waiting thread can take the result with {@link #getResult()}
+     * @return
+     */
+    boolean isDone() {
+        return this.outcome != null;
+    }
+
+    /**
+     * The result for the waiting thread
+     * @return
+     * @throws SQLException the error of the query
+     */
+    LocoAsyncResult getResult() throws SQLException {
+        Object outcome = this.outcome;
+        if (outcome instanceof SQLException) {
+            throw (SQLException) outcome;
+        }
+        return (LocoAsyncResult) outcome;
+    }
+
+    /**
+     * Handles the next packet of the answer to this query
+     * @param packet
+     * @return true once the READY_FOR_QUERY that ends the query was read, the future is then completed
+     */
+    boolean onPacket(Packet packet) {
+        switch (packet.getPacketType()) {
+            case BACKEND_ROW_DESCRIPTION:
+                this.rowDescription = new LocoRowDescription(packet);
+                this.rows = new ArrayDeque<>();
+                this.resultSet = LocoResultSet.fromRows(this.locoNetwork, this.rowDescription, this.rows);
+                break;
+            case BACKEND_DATA_ROW:
+                if (this.rowHandler == null) {
+                    this.rows.add(packet.detach());
+                } else if (this.error == null) {
+                    try {
+                        this.resultSet.positionOn(packet);
+                        this.rowHandler.onRow(this.resultSet);
+                    } catch (SQLException e) {
+                        this.error = e;
+                    } catch (RuntimeException e) {
+                        this.error = new SQLException("The row handler failed", e);
+                    }
+                }
+                break;
+            case BACKEND_COMMAND_COMPLETE:
+                CommandComplete commandComplete = CommandComplete.fromCommandCompletePacket(packet);
+                this.commandTag = commandComplete.getTag();
+                this.rowCount = commandComplete.getRowCount();
+                break;
+            case BACKEND_ERROR_RESPONSE:
+                // The server skips the rest of the query, the READY_FOR_QUERY still comes
+                this.error = ErrorResponse.fromErrorResponsePacket(packet).toSQLException();
+                break;
+            case BACKEND_READY_FOR_QUERY:
+                this.complete();
+                return true;
+            default:
+                // PARSE_COMPLETE, BIND_COMPLETE, NO_DATA, EMPTY_QUERY_RESPONSE, notices...
+                break;
+        }
+        return false;
+    }
+
+    private void complete() {
+        SQLException error = this.error;
+        LocoAsyncResult result = new LocoAsyncResult(this.rowHandler == null ? this.resultSet : null,
+                this.commandTag, this.rowCount);
+        if (this.waiter != null) {
+            this.wakeWaiter(error != null ? error : result);
+            return;
+        }
+        ForkJoinPool.commonPool().execute(() -> {
+            if (error != null) {
+                this.future.completeExceptionally(error);
+            } else {
+                this.future.complete(result);
+            }
+        });
+    }
+
+    /**
+     * Fails the query without waiting for its answer, the connection broke
+     * @param e
+     */
+    void fail(SQLException e) {
+        if (this.waiter != null) {
+            this.wakeWaiter(e);
+            return;
+        }
+        ForkJoinPool.commonPool().execute(() -> this.future.completeExceptionally(e));
+    }
+
+    private void wakeWaiter(Object outcome) {
+        this.outcome = outcome;
+        LockSupport.unpark(this.waiter);
+    }
+}
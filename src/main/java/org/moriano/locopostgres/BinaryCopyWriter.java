@@ -0,0 +1,402 @@
+package org.moriano.locopostgres;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+/**
+ * Writes typed rows to a COPY ... FROM STDIN (FORMAT binary), get one from
+ * {@link LocoCopyManager#copyInBinary(String)}.
+ *
+ * With the text format every value has to be formatted (and escaped) by us and parsed back by the server. In binary
+ * format an int8 is just its 8 bytes, a timestamp the number of microseconds since 2000-01-01 and so on, so both
+ * sides skip that work and loads go about twice as fast. The data is
+ *
+ * the signature PGCOPY\n\377\r\n\0, an int32 with flags and an int32 with the length of an extension area (both 0)
+ * for each row: an int16 with the number of fields, then for each field an int32 with its length (-1 for NULL)
+ *      followed by that many bytes in the binary format of its type (see the *send functions of the postgres source)
+ * an int16 -1 that ends the data
+ *
+ * The values are encoded straight into the send buffer of the connection, inside a CopyData packet which is sent
+ * each time it reaches 64KiB (always at the end of a row), so writing a row allocates nothing and the memory used
+ * does not depend on the number of rows. Every time we send, we check whether the server already rejected the data.
+ *
+ * Nothing tells the server the type of each field, it reads them with the type of their column. Each value must be
+ * written with the method of the type of its column (writeInt for an int4, writeLong for an int8...), otherwise the
+ * server complains about an incorrect binary data format.
+ *
+ * The connection cannot be used for anything else until {@link #finish()} or {@link #cancel()} is called. Closing
+ * the writer without finishing it cancels the COPY.
+ *
+ * <pre>
+ * try (BinaryCopyWriter writer = copyManager.copyInBinary("COPY people(id, name) FROM STDIN (FORMAT binary)")) {
+ *     for (Person person : people) {
+ *         writer.startRow(2);
+ *         writer.writeLong(person.getId());
+ *         writer.writeString(person.getName());
+ *     }
+ *     long rows = writer.finish();
+ * }
+ * </pre>
+ */
+public class BinaryCopyWriter implements AutoCloseable {
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+    private static final int NUMERIC_POSITIVE = 0x0000;
+    private static final int NUMERIC_NEGATIVE = 0x4000;
+    private static final BigInteger NUMERIC_BASE = BigInteger.valueOf(10000);
+
+    private final LocoCopyManager copyManager;
+    private final PacketWriter packetWriter;
+
+    /**
+     * Fields still to be written in the current row
+     */
+    private int pendingFields = 0;
+
+    /**
+     * Whether the COPY is still going, false once finished, cancelled or failed
+     */
+    private boolean active = true;
+
+    /**
+     * The base 10000 digits of the numeric being written, least significant first, reused for every numeric
+     */
+    private short[] numericDigits = new short[16];
+
+    BinaryCopyWriter(LocoCopyManager copyManager, PacketWriter packetWriter) {
+        this.copyManager = copyManager;
+        this.packetWriter = packetWriter;
+        this.packetWriter.startMessage((byte) 'd');
+        this.packetWriter.writeBytes(SIGNATURE);
+        this.packetWriter.writeInt32(0);
+        this.packetWriter.writeInt32(0);
+    }
+
+    /**
+     * Starts a new row, which must be followed by exactly fieldCount values
+     * @param fieldCount the number of columns of the COPY
+     * @throws SQLException if the server already rejected the data, or the previous row is not complete
+     */
+    public void startRow(int fieldCount) throws SQLException {
+        this.checkActive();
+        if (this.pendingFields != 0) {
+            throw new SQLException("The previous row is missing " + this.pendingFields + " fields");
+        }
+        if (this.packetWriter.position() >= LocoNetwork.SEND_BUFFER_FLUSH_THRESHOLD) {
+            this.packetWriter.endMessage();
+            try {
+                this.copyManager.sendCopyData();
+            } catch (SQLException e) {
+                this.active = false;
+                throw e;
+            }
+            this.packetWriter.startMessage((byte) 'd');
+        }
+        this.packetWriter.writeInt16(fieldCount);
+        this.pendingFields = fieldCount;
+    }
+
+    public void writeNull() throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(-1);
+    }
+
+    /**
+     * A bool column
+     */
+    public void writeBoolean(boolean value) throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(1);
+        this.packetWriter.writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * An int2 column
+     */
+    public void writeShort(short value) throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(2);
+        this.packetWriter.writeInt16(value);
+    }
+
+    /**
+     * An int4 column
+     */
+    public void writeInt(int value) throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(4);
+        this.packetWriter.writeInt32(value);
+    }
+
+    /**
+     * An int8 column
+     */
+    public void writeLong(long value) throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(8);
+        this.packetWriter.writeInt64(value);
+    }
+
+    /**
+     * A float4 column
+     */
+    public void writeFloat(float value) throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(4);
+        this.packetWriter.writeInt32(Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * A float8 column
+     */
+    public void writeDouble(double value) throws SQLException {
+        this.startField();
+        this.packetWriter.writeInt32(8);
+        this.packetWriter.writeInt64(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * A text, varchar or char column (the binary format of those is the UTF-8 text itself). A null is written as
+     * NULL.
+     */
+    public void writeString(String value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.startField();
+        int lengthPosition = this.packetWriter.position();
+        this.packetWriter.writeInt32(0);
+        int length = this.packetWriter.writeUtf8(value);
+        this.packetWriter.writeInt32At(lengthPosition, length);
+    }
+
+    /**
+     * A bytea column. A null is written as NULL.
+     */
+    public void writeBytes(byte[] value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.startField();
+        this.packetWriter.writeInt32(value.length);
+        this.packetWriter.writeBytes(value);
+    }
+
+    /**
+     * A uuid column, sent as its 16 bytes. A null is written as NULL.
+     */
+    public void writeUuid(UUID value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.startField();
+        this.packetWriter.writeInt32(16);
+        this.packetWriter.writeInt64(value.getMostSignificantBits());
+        this.packetWriter.writeInt64(value.getLeastSignificantBits());
+    }
+
+    /**
+     * A date column, sent as the number of days since 2000-01-01. A null is written as NULL.
+     */
+    public void writeDate(LocalDate value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.startField();
+        this.packetWriter.writeInt32(4);
+        this.packetWriter.writeInt32((int) (value.toEpochDay() - BinaryDecoder.POSTGRES_EPOCH_DATE.toEpochDay()));
+    }
+
+    /**
+     * A time column, sent as the number of microseconds since midnight (rounded, as the server does when it parses a
+     * time). A null is written as NULL.
+     */
+    public void writeTime(LocalTime value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.startField();
+        this.packetWriter.writeInt32(8);
+        this.packetWriter.writeInt64((value.toNanoOfDay() + 500) / 1000);
+    }
+
+    /**
+     * A timestamp column, sent as the number of microseconds since 2000-01-01 00:00:00. A null is written as NULL.
+     */
+    public void writeTimestamp(LocalDateTime value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.writeMicros(value.toEpochSecond(ZoneOffset.UTC), value.getNano());
+    }
+
+    /**
+     * A timestamptz column, sent as the number of microseconds since 2000-01-01 00:00:00 UTC. A null is written as
+     * NULL.
+     */
+    public void writeTimestamptz(Instant value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        this.writeMicros(value.getEpochSecond(), value.getNano());
+    }
+
+    /**
+     * A timestamptz column. A null is written as NULL.
+     */
+    public void writeTimestamptz(OffsetDateTime value) throws SQLException {
+        this.writeTimestamptz(value == null ? null : value.toInstant());
+    }
+
+    /**
+     * Postgres only keeps microseconds, the nanoseconds are rounded like the server does when it parses a timestamp
+     */
+    private void writeMicros(long epochSeconds, int nanos) throws SQLException {
+        long seconds = epochSeconds - BinaryDecoder.POSTGRES_EPOCH_SECONDS;
+        long micros = Math.addExact(Math.multiplyExact(seconds, 1_000_000L), (nanos + 500) / 1000);
+        this.startField();
+        this.packetWriter.writeInt32(8);
+        this.packetWriter.writeInt64(micros);
+    }
+
+    /**
+     * A numeric column. A null is written as NULL.
+     *
+     * A numeric is sent as
+     *
+     * int16 number of base 10000 digits that follow
+     * int16 weight, the power of 10000 of the first digit
+     * int16 sign, positive (0x0000) or negative (0x4000)
+     * int16 display scale, the number of decimal digits to show
+     * int16[] the base 10000 digits
+     *
+     * The digits are aligned on the decimal point, so we first pad the unscaled value with zeros up to a scale that
+     * is a multiple of 4. Then it is just a matter of splitting it in groups of 4 decimal digits.
+     */
+    public void writeBigDecimal(BigDecimal value) throws SQLException {
+        if (value == null) {
+            this.writeNull();
+            return;
+        }
+        int displayScale = Math.max(0, value.scale());
+        BigInteger unscaled = value.setScale(displayScale).unscaledValue().abs();
+        int paddedScale = (displayScale + 3) / 4 * 4;
+        if (paddedScale > displayScale) {
+            unscaled = unscaled.multiply(BigInteger.TEN.pow(paddedScale - displayScale));
+        }
+
+        int digitCount = 0;
+        if (unscaled.bitLength() < 63) {
+            long remaining = unscaled.longValue();
+            while (remaining != 0) {
+                this.addNumericDigit(digitCount++, (short) (remaining % 10000));
+                remaining /= 10000;
+            }
+        } else {
+            BigInteger remaining = unscaled;
+            while (remaining.signum() != 0) {
+                BigInteger[] quotientAndRemainder = remaining.divideAndRemainder(NUMERIC_BASE);
+                this.addNumericDigit(digitCount++, quotientAndRemainder[1].shortValue());
+                remaining = quotientAndRemainder[0];
+            }
+        }
+        int weight = digitCount - 1 - paddedScale / 4;
+
+        // The server keeps no trailing zero digits, those are implied by the weight
+        int firstDigit = 0;
+        while (firstDigit < digitCount && this.numericDigits[firstDigit] == 0) {
+            firstDigit++;
+        }
+        int sentDigits = digitCount - firstDigit;
+
+        this.startField();
+        this.packetWriter.writeInt32(8 + 2 * sentDigits);
+        this.packetWriter.writeInt16(sentDigits);
+        this.packetWriter.writeInt16(sentDigits == 0 ? 0 : weight);
+        this.packetWriter.writeInt16(value.signum() < 0 ? NUMERIC_NEGATIVE : NUMERIC_POSITIVE);
+        this.packetWriter.writeInt16(displayScale);
+        for (int i = digitCount - 1; i >= firstDigit; i--) {
+            this.packetWriter.writeInt16(this.numericDigits[i]);
+        }
+    }
+
+    private void addNumericDigit(int idx, short digit) {
+        if (idx == this.numericDigits.length) {
+            short[] bigger = new short[idx * 2];
+            System.arraycopy(this.numericDigits, 0, bigger, 0, idx);
+            this.numericDigits = bigger;
+        }
+        this.numericDigits[idx] = digit;
+    }
+
+    private void startField() throws SQLException {
+        if (this.pendingFields == 0 || !this.active) {
+            this.checkActive();
+            throw new SQLException("The row has no more fields, call startRow first");
+        }
+        this.pendingFields--;
+    }
+
+    private void checkActive() throws SQLException {
+        if (!this.active) {
+            throw new SQLException("The COPY is already over");
+        }
+    }
+
+    /**
+     * Sends the rest of the data and ends the COPY
+     * @return the number of rows copied
+     * @throws SQLException if the server rejects the data, or the last row is not complete
+     */
+    public long finish() throws SQLException {
+        this.checkActive();
+        if (this.pendingFields != 0) {
+            throw new SQLException("The last row is missing " + this.pendingFields + " fields");
+        }
+        this.active = false;
+        this.packetWriter.writeInt16(-1);
+        this.packetWriter.endMessage();
+        return this.copyManager.endCopyIn();
+    }
+
+    /**
+     * Aborts the COPY, the server discards every row written so far
+     * @throws SQLException
+     */
+    public void cancel() throws SQLException {
+        if (this.active) {
+            this.active = false;
+            this.packetWriter.endMessage();
+            this.copyManager.failCopyIn("COPY cancelled by the client");
+        }
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Cancels the COPY unless it was finished
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        this.cancel();
+    }
+}
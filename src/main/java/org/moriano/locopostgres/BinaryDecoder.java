@@ -0,0 +1,295 @@
+package org.moriano.locopostgres;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+/**
+ * Decodes column values sent by the server in binary format.
+ *
+ * The extended protocol lets us ask for each result column in binary format, see
+ * {@link PacketWriter#writeBind}. We do so for the types listed in {@link Oid#hasBinaryDecoder(int)}: an int8 then
+ * travels as 8 bytes we can read with a single getLong instead of up to 20 digits we need to parse, a timestamp as
+ * the number of microseconds since 2000-01-01 and so on.
+ *
+ * The binary formats are described (only) in the postgres source code, see the *send functions of each type, for
+ * example int8send or numeric_send.
+ *
+ * Users can still call getString on a binary column, {@link #toText} formats the value exactly as the server would
+ * have done for the text format.
+ */
+public class BinaryDecoder {
+
+    /**
+     * Postgres counts dates and timestamps from 2000-01-01 rather than from the unix epoch
+     */
+    static final LocalDate POSTGRES_EPOCH_DATE = LocalDate.of(2000, 1, 1);
+    static final long POSTGRES_EPOCH_SECONDS = 946684800L;
+
+    private static final int NUMERIC_POSITIVE = 0x0000;
+    private static final int NUMERIC_NEGATIVE = 0x4000;
+    private static final int NUMERIC_NAN = 0xC000;
+    private static final int NUMERIC_POSITIVE_INFINITY = 0xD000;
+    private static final int NUMERIC_NEGATIVE_INFINITY = 0xF000;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinaryDecoder() {
+    }
+
+    public static boolean decodeBool(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) != 0;
+    }
+
+    /**
+     * Decodes an int2, int4 or int8 value
+     */
+    public static long decodeInteger(int oid, ByteBuffer buffer, int offset) throws SQLException {
+        switch (oid) {
+            case Oid.INT2:
+                return buffer.getShort(offset);
+            case Oid.INT4:
+                return buffer.getInt(offset);
+            case Oid.INT8:
+                return buffer.getLong(offset);
+            default:
+                throw new SQLException("The type with oid " + oid + " is not a binary integer");
+        }
+    }
+
+    /**
+     * Decodes a numeric value.
+     *
+     * A numeric is sent as
+     *
+     * int16 number of base 10000 digits that follow
+     * int16 weight, the power of 10000 of the first digit
+     * int16 sign, see the NUMERIC_* constants
+     * int16 display scale, the number of decimal digits to show
+     * int16[] the base 10000 digits
+     *
+     * NaN and infinity cannot be represented as a BigDecimal, so they raise a SQLException.
+     */
+    public static BigDecimal decodeNumeric(ByteBuffer buffer, int offset) throws SQLException {
+        int numberOfDigits = buffer.getShort(offset) & 0xFFFF;
+        int weight = buffer.getShort(offset + 2);
+        int sign = buffer.getShort(offset + 4) & 0xFFFF;
+        int displayScale = buffer.getShort(offset + 6) & 0xFFFF;
+
+        if (sign != NUMERIC_POSITIVE && sign != NUMERIC_NEGATIVE) {
+            throw new SQLException("The numeric value " + numericSpecialValue(sign) +
+                    " cannot be represented as a BigDecimal");
+        }
+        if (numberOfDigits == 0) {
+            return BigDecimal.valueOf(0, displayScale);
+        }
+
+        /*
+        Put all the base 10000 digits together into an unscaled integer, the value is that integer times
+        10000^(weight - numberOfDigits + 1). Up to 4 digits fit in a long.
+         */
+        BigDecimal result;
+        int scale = 4 * (numberOfDigits - weight - 1);
+        if (numberOfDigits <= 4) {
+            long unscaled = 0;
+            for (int i = 0; i < numberOfDigits; i++) {
+                unscaled = unscaled * 10000 + buffer.getShort(offset + 8 + 2 * i);
+            }
+            result = BigDecimal.valueOf(sign == NUMERIC_NEGATIVE ? -unscaled : unscaled, scale);
+        } else {
+            BigInteger unscaled = BigInteger.ZERO;
+            BigInteger base = BigInteger.valueOf(10000);
+            for (int i = 0; i < numberOfDigits; i++) {
+                unscaled = unscaled.multiply(base).add(BigInteger.valueOf(buffer.getShort(offset + 8 + 2 * i)));
+            }
+            result = new BigDecimal(sign == NUMERIC_NEGATIVE ? unscaled.negate() : unscaled, scale);
+        }
+        // Digits beyond the display scale are always zero, this simply pads or trims those zeros
+        return result.setScale(displayScale, RoundingMode.DOWN);
+    }
+
+    /**
+     * Decodes a date, returns null for the special values infinity and -infinity
+     */
+    public static LocalDate decodeDate(ByteBuffer buffer, int offset) {
+        int days = buffer.getInt(offset);
+        if (days == Integer.MAX_VALUE || days == Integer.MIN_VALUE) {
+            return null;
+        }
+        return POSTGRES_EPOCH_DATE.plusDays(days);
+    }
+
+    /**
+     * Decodes a timestamp without time zone, returns null for the special values infinity and -infinity
+     */
+    public static LocalDateTime decodeTimestamp(ByteBuffer buffer, int offset) {
+        long micros = buffer.getLong(offset);
+        if (micros == Long.MAX_VALUE || micros == Long.MIN_VALUE) {
+            return null;
+        }
+        long seconds = Math.floorDiv(micros, 1_000_000L) + POSTGRES_EPOCH_SECONDS;
+        int nanos = (int) Math.floorMod(micros, 1_000_000L) * 1000;
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    /**
+     * Decodes a timestamp with time zone, returns null for the special values infinity and -infinity
+     */
+    public static Instant decodeTimestamptz(ByteBuffer buffer, int offset) {
+        long micros = buffer.getLong(offset);
+        if (micros == Long.MAX_VALUE || micros == Long.MIN_VALUE) {
+            return null;
+        }
+        long seconds = Math.floorDiv(micros, 1_000_000L) + POSTGRES_EPOCH_SECONDS;
+        int nanos = (int) Math.floorMod(micros, 1_000_000L) * 1000;
+        return Instant.ofEpochSecond(seconds, nanos);
+    }
+
+    public static UUID decodeUuid(ByteBuffer buffer, int offset) {
+        return new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+    }
+
+    /**
+     * Formats a binary value the same way the server formats it in text format (with the default ISO DateStyle).
+     *
+     * @param oid the type of the value, it must be one of those in {@link Oid#hasBinaryDecoder(int)}
+     * @param timeZone the TimeZone of the session, used for timestamps with time zone
+     */
+    public static String toText(int oid, ByteBuffer buffer, int offset, int length, ZoneId timeZone)
+            throws SQLException {
+        switch (oid) {
+            case Oid.BOOL:
+                return decodeBool(buffer, offset) ? "t" : "f";
+            case Oid.INT2:
+            case Oid.INT4:
+            case Oid.INT8:
+                return Long.toString(decodeInteger(oid, buffer, offset));
+            case Oid.NUMERIC:
+                int sign = buffer.getShort(offset + 4) & 0xFFFF;
+                if (sign != NUMERIC_POSITIVE && sign != NUMERIC_NEGATIVE) {
+                    return numericSpecialValue(sign);
+                }
+                return decodeNumeric(buffer, offset).toPlainString();
+            case Oid.UUID:
+                return decodeUuid(buffer, offset).toString();
+            case Oid.BYTEA:
+                StringBuilder hex = new StringBuilder(2 + length * 2).append("\\x");
+                for (int i = 0; i < length; i++) {
+                    byte value = buffer.get(offset + i);
+                    hex.append(HEX_DIGITS[(value >> 4) & 0xF]).append(HEX_DIGITS[value & 0xF]);
+                }
+                return hex.toString();
+            case Oid.DATE:
+                int days = buffer.getInt(offset);
+                if (days == Integer.MAX_VALUE) {
+                    return "infinity";
+                } else if (days == Integer.MIN_VALUE) {
+                    return "-infinity";
+                }
+                LocalDate date = decodeDate(buffer, offset);
+                return formatDate(new StringBuilder(), date).append(date.getYear() <= 0 ? " BC" : "").toString();
+            case Oid.TIMESTAMP:
+                LocalDateTime timestamp = decodeTimestamp(buffer, offset);
+                if (timestamp == null) {
+                    return buffer.getLong(offset) > 0 ? "infinity" : "-infinity";
+                }
+                StringBuilder result = formatDateTime(new StringBuilder(), timestamp);
+                return result.append(timestamp.getYear() <= 0 ? " BC" : "").toString();
+            case Oid.TIMESTAMPTZ:
+                Instant instant = decodeTimestamptz(buffer, offset);
+                if (instant == null) {
+                    return buffer.getLong(offset) > 0 ? "infinity" : "-infinity";
+                }
+                ZonedDateTime zoned = instant.atZone(timeZone == null ? ZoneOffset.UTC : timeZone);
+                StringBuilder zonedResult = formatDateTime(new StringBuilder(), zoned.toLocalDateTime());
+                formatOffset(zonedResult, zoned.getOffset().getTotalSeconds());
+                return zonedResult.append(zoned.getYear() <= 0 ? " BC" : "").toString();
+            default:
+                throw new SQLException("There is no binary decoder for the type with oid " + oid);
+        }
+    }
+
+    private static String numericSpecialValue(int sign) {
+        if (sign == NUMERIC_NAN) {
+            return "NaN";
+        } else if (sign == NUMERIC_POSITIVE_INFINITY) {
+            return "Infinity";
+        } else if (sign == NUMERIC_NEGATIVE_INFINITY) {
+            return "-Infinity";
+        }
+        return "unknown numeric sign " + sign;
+    }
+
+    /**
+     * Formats a date as yyyy-mm-dd, years before year 1 are shown as positive years, the caller appends " BC"
+     */
+    private static StringBuilder formatDate(StringBuilder result, LocalDate date) {
+        int year = date.getYear();
+        appendPadded(result, year <= 0 ? 1 - year : year, 4);
+        result.append('-');
+        appendPadded(result, date.getMonthValue(), 2);
+        result.append('-');
+        appendPadded(result, date.getDayOfMonth(), 2);
+        return result;
+    }
+
+    /**
+     * Formats a timestamp as yyyy-mm-dd hh:mm:ss followed by the fraction of the second, if any, without trailing
+     * zeros
+     */
+    private static StringBuilder formatDateTime(StringBuilder result, LocalDateTime dateTime) {
+        formatDate(result, dateTime.toLocalDate()).append(' ');
+        appendPadded(result, dateTime.getHour(), 2);
+        result.append(':');
+        appendPadded(result, dateTime.getMinute(), 2);
+        result.append(':');
+        appendPadded(result, dateTime.getSecond(), 2);
+        int micros = dateTime.getNano() / 1000;
+        if (micros != 0) {
+            int digits = 6;
+            while (micros % 10 == 0) {
+                micros /= 10;
+                digits--;
+            }
+            result.append('.');
+            appendPadded(result, micros, digits);
+        }
+        return result;
+    }
+
+    /**
+     * Formats an offset as +hh, adding :mm and :ss only when they are not zero
+     */
+    private static void formatOffset(StringBuilder result, int offsetSeconds) {
+        result.append(offsetSeconds < 0 ? '-' : '+');
+        int absolute = Math.abs(offsetSeconds);
+        appendPadded(result, absolute / 3600, 2);
+        int minutes = (absolute / 60) % 60;
+        int seconds = absolute % 60;
+        if (minutes != 0 || seconds != 0) {
+            result.append(':');
+            appendPadded(result, minutes, 2);
+        }
+        if (seconds != 0) {
+            result.append(':');
+            appendPadded(result, seconds, 2);
+        }
+    }
+
+    private static void appendPadded(StringBuilder result, int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            result.append('0');
+        }
+        result.append(digits);
+    }
+}
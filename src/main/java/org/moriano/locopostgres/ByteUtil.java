@@ -35,6 +35,17 @@ public class ByteUtil {
         return ByteBuffer.wrap(bytes).getInt();
     }
 
+    /**
+     * Gets an Int32 from the 4 bytes of the array that start at the given offset
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    public static int getInt32(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+                ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
 
     /**
      * Returns a 0x00 terminated string. This is useful as the postgres protocol terminates strings with the
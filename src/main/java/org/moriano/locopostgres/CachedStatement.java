@@ -0,0 +1,143 @@
+package org.moriano.locopostgres;
+
+import java.util.Arrays;
+
+/**
+ * A server side prepared statement, created with a Parse packet under a name we generate (S_1, S_2...) and kept
+ * by the {@link StatementCache} of the connection.
+ *
+ * The types of the parameters are part of what the server prepared, so the same sql executed with different
+ * parameter types (for instance setInt and later setLong) needs a different prepared statement.
+ */
+public class CachedStatement {
+
+    private final String name;
+    private final String sql;
+    private final int[] parameterTypes;
+    private final long estimatedSize;
+
+    /**
+     * Whether the Parse packet for this statement was already sent, later executions only need Bind and Execute
+     */
+    private boolean parsed = false;
+
+    /**
+     * False once the statement is evicted from the cache, a Close packet has been (or is about to be) sent for it
+     */
+    private boolean live = true;
+
+    /**
+     * Whether we know the shape of the result of this statement, once we do there is no need to ask the server to
+     * describe it again
+     */
+    private boolean described = false;
+
+    /**
+     * The description of the result, with the formats of {@link #resultFormatCodes} already applied. Null for
+     * statements that return no rows.
+     */
+    private LocoRowDescription rowDescription;
+
+    /**
+     * The format we ask the server to use for each result column
+     */
+    private int[] resultFormatCodes;
+
+    /**
+     * The {@link LocoNetwork#getDateTimeSettings()} of the session when the result formats were chosen, dates and
+     * timestamps are only requested in binary for some time zones and date styles
+     */
+    private long dateTimeSettings;
+
+    CachedStatement(String name, String sql, int[] parameterTypes, long estimatedSize) {
+        this.name = name;
+        this.sql = sql;
+        this.parameterTypes = parameterTypes.clone();
+        this.estimatedSize = estimatedSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public int[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    /**
+     * A rough estimate of the memory the server uses for this statement, see {@link StatementCache}
+     * @return
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public boolean isParsed() {
+        return parsed;
+    }
+
+    void markParsed() {
+        this.parsed = true;
+    }
+
+    public boolean isDescribed() {
+        return described;
+    }
+
+    /**
+     * The description of the result of this statement, null if it returns no rows or has not been described yet
+     * @return
+     */
+    public LocoRowDescription getRowDescription() {
+        return rowDescription;
+    }
+
+    public int[] getResultFormatCodes() {
+        return resultFormatCodes;
+    }
+
+    public long getDateTimeSettings() {
+        return dateTimeSettings;
+    }
+
+    /**
+     * Records the shape of the result of this statement
+     * @param rowDescription the description with the result formats applied, null if the statement returns no rows
+     * @param resultFormatCodes
+     * @param dateTimeSettings
+     */
+    void describe(LocoRowDescription rowDescription, int[] resultFormatCodes, long dateTimeSettings) {
+        this.described = true;
+        this.rowDescription = rowDescription;
+        this.resultFormatCodes = resultFormatCodes;
+        this.dateTimeSettings = dateTimeSettings;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    void markEvicted() {
+        this.live = false;
+    }
+
+    /**
+     * Whether this statement can run the given sql with parameters of the given types
+     */
+    boolean matches(String sql, int[] parameterTypes) {
+        return this.live && this.sql.equals(sql) && Arrays.equals(this.parameterTypes, parameterTypes);
+    }
+
+    @Override
+    public String toString() {
+        return "CachedStatement{" +
+                "name='" + name + '\'' +
+                ", sql='" + sql + '\'' +
+                ", parameterTypes=" + Arrays.toString(parameterTypes) +
+                '}';
+    }
+}
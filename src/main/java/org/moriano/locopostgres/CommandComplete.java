@@ -24,6 +24,7 @@ import java.util.Arrays;
 public final class CommandComplete {
 
     private final String rawData;
+    private final String tag;
     private final int insertedRows;
     private final int deletedRows;
     private final int updatedRows;
@@ -31,6 +32,7 @@ public final class CommandComplete {
     private final int movedRows;
     private final int fetchedRows;
     private final int copiedRows;
+    private final long rowCount;
 
     private CommandComplete(Packet packet) {
         /*
@@ -38,22 +40,32 @@ public final class CommandComplete {
         and the int32 indicating its size
          */
         this.rawData = new String(Arrays.copyOfRange(packet.getPacketContents(), 5, packet.getPacketContents().length-1));
-        this.insertedRows = this.rawData.contains("INSERT") ? Integer.valueOf(this.rawData.substring("INSERT".length()+3)) : 0;
-        this.deletedRows = this.rawData.contains("DELETE") ? Integer.valueOf(this.rawData.substring("DELETE".length()+3)) : 0;
-        this.updatedRows = this.rawData.contains("UPDATE") ? Integer.valueOf(this.rawData.substring("UPDATE".length()+3)) : 0;
-        if (this.rawData.contains("SELECT") || this.rawData.contains("CREATE TABLE AS")) {
-            if (this.rawData.contains("SELECT")) {
-                this.retrievedRows = Integer.valueOf(this.rawData.substring("SELECT".length()+1));
-            } else {
-                this.retrievedRows = Integer.valueOf(this.rawData.substring("CREATE TABLE AS".length()+1));
-            }
-        } else {
-            this.retrievedRows = 0;
-        }
 
-        this.movedRows = this.rawData.contains("MOVE") ? Integer.valueOf(this.rawData.substring("MOVE".length()+1)) : 0;
-        this.fetchedRows = this.rawData.contains("FETCH") ? Integer.valueOf(this.rawData.substring("FETCH".length()+1)) : 0;
-        this.copiedRows = this.rawData.contains("COPY") ? Integer.valueOf(this.rawData.substring("COPY".length()+1)) : 0;
+        /*
+        The tag is the first word, the number of rows (if any) is always the last one. Notice that commands like
+        CREATE TABLE have no number at all, and CREATE TABLE AS reports itself as SELECT.
+         */
+        int firstSpace = this.rawData.indexOf(' ');
+        int lastSpace = this.rawData.lastIndexOf(' ');
+        this.tag = firstSpace == -1 ? this.rawData : this.rawData.substring(0, firstSpace);
+        this.rowCount = lastSpace == -1 ? 0 : parseRows(this.rawData.substring(lastSpace + 1));
+        int rows = (int) Math.min(this.rowCount, Integer.MAX_VALUE);
+
+        this.insertedRows = this.tag.equals("INSERT") ? rows : 0;
+        this.deletedRows = this.tag.equals("DELETE") ? rows : 0;
+        this.updatedRows = this.tag.equals("UPDATE") || this.tag.equals("MERGE") ? rows : 0;
+        this.retrievedRows = this.tag.equals("SELECT") ? rows : 0;
+        this.movedRows = this.tag.equals("MOVE") ? rows : 0;
+        this.fetchedRows = this.tag.equals("FETCH") ? rows : 0;
+        this.copiedRows = this.tag.equals("COPY") ? rows : 0;
+    }
+
+    private static long parseRows(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     public static CommandComplete fromCommandCompletePacket(Packet packet) {
@@ -64,6 +76,22 @@ public final class CommandComplete {
         return new CommandComplete(packet);
     }
 
+    /**
+     * The command that completed, like INSERT or SELECT
+     * @return
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * The number of rows inserted, updated or deleted by the command. This is what JDBC calls the update count.
+     * @return
+     */
+    public int getAffectedRows() {
+        return this.insertedRows + this.updatedRows + this.deletedRows;
+    }
+
     public int getInsertedRows() {
         return insertedRows;
     }
@@ -91,4 +119,13 @@ public final class CommandComplete {
     public int getCopiedRows() {
         return copiedRows;
     }
+
+    /**
+     * The number of rows reported by the server, whatever the command. Unlike the other getters this one is not
+     * capped to an int, a COPY can easily go over two billion rows.
+     * @return
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
 }
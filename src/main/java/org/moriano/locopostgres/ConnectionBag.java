@@ -0,0 +1,200 @@
+package org.moriano.locopostgres;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Where a {@link LocoDataSource} keeps its connections, a concurrent bag in the style of HikariCP.
+ *
+ * Borrowing and giving back never take a lock, entries are taken by compare and set on their state (see
+ * {@link PoolEntry}) and a connection is looked for in three places, from the cheapest to the most expensive:
+ *
+ * 1. The thread local list of the connections the current thread gave back. A thread that borrows and gives back a
+ * connection for every request gets the same one over and over, usually without ever touching memory another thread
+ * writes to.
+ * 2. The shared list of every connection. A copy on write list: it only changes when a connection is created or
+ * removed, which is rare, so reading it is a plain array scan.
+ * 3. A handoff queue. When every connection is in use the thread waits there, and whoever gives a connection back
+ * while someone is waiting hands it over directly instead of keeping it in its thread local list.
+ *
+ * The same entry can be in the shared list, in several thread local lists and in the handoff queue at once, the
+ * compare and set decides who gets it.
+ */
+final class ConnectionBag {
+
+    /**
+     * How many connections each thread remembers having given back
+     */
+    private static final int THREAD_LOCAL_ENTRIES = 16;
+
+    /**
+     * How long a waiting thread stays in the handoff queue before looking at the shared list again, in case a
+     * connection became free or room was made for a new one without anybody handing it over
+     */
+    private static final long RESCAN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * What the bag calls when no connection is free, so the pool creates one for the thread asking for it
+     */
+    @FunctionalInterface
+    interface EntryCreator {
+
+        /**
+         * @return a new entry in use by the current thread, already added to the bag, or null if the pool is full
+         * @throws SQLException if the connection cannot be created
+         */
+        PoolEntry create() throws SQLException;
+    }
+
+    private final CopyOnWriteArrayList<PoolEntry> shared = new CopyOnWriteArrayList<>();
+
+    /**
+     * Weak references, so the connections a thread remembers can be garbage collected once they are removed from the
+     * pool, even if the thread never borrows again
+     */
+    private final ThreadLocal<List<WeakReference<PoolEntry>>> threadLocal =
+            ThreadLocal.withInitial(() -> new ArrayList<>(THREAD_LOCAL_ENTRIES));
+
+    private final SynchronousQueue<PoolEntry> handoffQueue = new SynchronousQueue<>(true);
+
+    /**
+     * How many threads are looking for a connection past their thread local list
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Takes a free connection, creating one if there is none and the pool is not full, or waiting for one otherwise
+     * @param timeoutNanos how long to wait
+     * @param creator
+     * @return the entry, now in use by the current thread, or null if none became free in time
+     * @throws SQLException if a connection had to be created and it could not be, or if the thread is interrupted
+     */
+    PoolEntry borrow(long timeoutNanos, EntryCreator creator) throws SQLException {
+        List<WeakReference<PoolEntry>> local = this.threadLocal.get();
+        for (int i = local.size() - 1; i >= 0; i--) {
+            PoolEntry entry = local.remove(i).get();
+            if (entry != null && entry.take()) {
+                return entry;
+            }
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        // Counted before looking at the shared list, so a connection given back meanwhile is handed over to us
+        this.waiters.incrementAndGet();
+        try {
+            while (true) {
+                PoolEntry entry = this.takeShared();
+                if (entry != null) {
+                    return entry;
+                }
+                /*
+                Not counted while connecting, otherwise whoever gives a connection back would keep trying to hand it
+                over to us for as long as the handshake takes. Something given back meanwhile stays in the shared
+                list, hence the second look at it.
+                 */
+                this.waiters.decrementAndGet();
+                PoolEntry created;
+                try {
+                    created = creator.create();
+                } finally {
+                    this.waiters.incrementAndGet();
+                }
+                if (created != null) {
+                    return created;
+                }
+                entry = this.takeShared();
+                if (entry != null) {
+                    return entry;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                entry = this.handoffQueue.poll(Math.min(remaining, RESCAN_NANOS), TimeUnit.NANOSECONDS);
+                if (entry != null && entry.take()) {
+                    return entry;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        } finally {
+            this.waiters.decrementAndGet();
+        }
+    }
+
+    private PoolEntry takeShared() {
+        for (PoolEntry entry : this.shared) {
+            if (entry.take()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives back an entry the current thread borrowed, handing it over to a waiting thread if there is any
+     * @param entry
+     */
+    void requite(PoolEntry entry) {
+        entry.release();
+        for (int i = 0; this.waiters.get() > 0; i++) {
+            if (!entry.isNotInUse() || this.handoffQueue.offer(entry)) {
+                // Taken by a waiting thread, or by someone scanning the shared list
+                return;
+            }
+            // Nobody is polling the queue right now, the waiting thread is probably still scanning
+            if ((i & 0xff) == 0xff) {
+                LockSupport.parkNanos(10_000);
+            } else {
+                Thread.yield();
+            }
+        }
+        List<WeakReference<PoolEntry>> local = this.threadLocal.get();
+        if (local.size() < THREAD_LOCAL_ENTRIES) {
+            local.add(new WeakReference<>(entry));
+        }
+    }
+
+    /**
+     * Adds a new entry. A free one is handed over to a waiting thread if there is any, or left for it to find in the
+     * shared list if it is not polling the handoff queue in time.
+     * @param entry
+     */
+    void add(PoolEntry entry) {
+        this.shared.add(entry);
+        for (int i = 0; i < 1000 && this.waiters.get() > 0 && entry.isNotInUse(); i++) {
+            if (this.handoffQueue.offer(entry)) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Removes an entry already marked as removed
+     * @param entry
+     */
+    void remove(PoolEntry entry) {
+        this.shared.remove(entry);
+    }
+
+    /**
+     * Every entry, as of now
+     * @return
+     */
+    List<PoolEntry> entries() {
+        return new ArrayList<>(this.shared);
+    }
+
+    int getWaiters() {
+        return this.waiters.get();
+    }
+}
@@ -0,0 +1,117 @@
+package org.moriano.locopostgres;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * An object representation of the BACKEND_ERROR_RESPONSE packet.
+ *
+ * The packet is a list of fields, each of them being a single byte identifying the field followed by a String with
+ * its value. A zero byte ends the list. The fields we care about are
+ *
+ * - S the severity (ERROR, FATAL or PANIC), localized
+ * - V the severity, never localized (only sent by servers 9.6 and later)
+ * - C the SQLSTATE code, like 42P01 for a table that does not exist
+ * - M the message
+ * - D the detail, optional
+ * - H the hint, optional
+ *
+ * See https://www.postgresql.org/docs/current/protocol-error-fields.html for the whole list.
+ */
+public final class ErrorResponse {
+
+    private String severity;
+    private String sqlState;
+    private String message;
+    private String detail;
+    private String hint;
+
+    private ErrorResponse(Packet packet) {
+        ByteBuffer buffer = packet.getBuffer();
+        int idx = packet.getOffset() + 5;
+        int end = packet.getOffset() + packet.getLength();
+        while (idx < end && buffer.get(idx) != 0) {
+            byte field = buffer.get(idx++);
+            int valueStart = idx;
+            while (idx < end && buffer.get(idx) != 0) {
+                idx++;
+            }
+            byte[] raw = new byte[idx - valueStart];
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] = buffer.get(valueStart + i);
+            }
+            String value = new String(raw, StandardCharsets.UTF_8);
+            idx++;
+
+            switch (field) {
+                case 'V':
+                    this.severity = value;
+                    break;
+                case 'S':
+                    if (this.severity == null) {
+                        this.severity = value;
+                    }
+                    break;
+                case 'C':
+                    this.sqlState = value;
+                    break;
+                case 'M':
+                    this.message = value;
+                    break;
+                case 'D':
+                    this.detail = value;
+                    break;
+                case 'H':
+                    this.hint = value;
+                    break;
+                default:
+                    // Not interesting for us
+            }
+        }
+    }
+
+    public static ErrorResponse fromErrorResponsePacket(Packet packet) {
+        if (packet.getPacketType() != PacketType.BACKEND_ERROR_RESPONSE) {
+            throw new RuntimeException("Ouch! you tried to created an error response from the incorrect type " +
+                    "of packet! packet was " + packet);
+        }
+        return new ErrorResponse(packet);
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+
+    public String getSqlState() {
+        return sqlState;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public String getHint() {
+        return hint;
+    }
+
+    /**
+     * The error as a SQLException, the message looks like the one printed by psql
+     * @return
+     */
+    public SQLException toSQLException() {
+        StringBuilder result = new StringBuilder();
+        result.append(this.severity).append(": ").append(this.message);
+        if (this.detail != null) {
+            result.append("\n  Detail: ").append(this.detail);
+        }
+        if (this.hint != null) {
+            result.append("\n  Hint: ").append(this.hint);
+        }
+        return new SQLException(result.toString(), this.sqlState);
+    }
+}
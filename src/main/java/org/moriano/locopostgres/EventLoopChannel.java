@@ -0,0 +1,262 @@
+package org.moriano.locopostgres;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection socket owned by one of the threads of a {@link LocoEventLoop}.
+ *
+ * The I/O thread reads whatever the server sends into the inbound buffer of the channel, and whoever uses the
+ * connection takes it from there with {@link #read(ByteBuffer)}, waiting only when there is nothing yet. The inbound
+ * buffer is bounded: once it is full the I/O thread stops reading from this socket (it stops being interested in
+ * OP_READ) until the connection takes some of it, so a connection that is slow consuming a big result set leaves the
+ * rest of the result in the kernel and in the server, it never makes the driver buffer the whole thing.
+ *
+ * Writes are done straight from the thread that uses the connection, the socket is non blocking so they only wait
+ * (for the I/O thread to see the socket writable) when the kernel send buffer is full.
+ *
+ * Nobody has to wait for the data either: a listener (see {@link #setListener(Runnable)}) is told on the I/O thread
+ * every time something arrives, which is how the asynchronous queries of {@link AsyncDispatcher} make progress.
+ */
+final class EventLoopChannel {
+
+    /**
+     * The size of the inbound buffer of each connection, once it is full we stop reading from the socket
+     */
+    static final int INBOUND_BUFFER_SIZE = 32 * 1024;
+
+    private final SocketChannel channel;
+    private final LocoEventLoop.Worker worker;
+
+    /**
+     * What the I/O thread read and the connection has not taken yet, always in write mode: the data goes from 0 to
+     * position
+     */
+    private final ByteBuffer inbound = ByteBuffer.allocateDirect(INBOUND_BUFFER_SIZE);
+
+    /**
+     * Runs on the I/O thread after each read and when the channel fails, null if nobody listens
+     */
+    private volatile Runnable listener;
+
+    /*
+     * The fields below are guarded by this, the I/O thread notifies whenever one of them changes
+     */
+    private SelectionKey key;
+    private boolean readPaused;
+    private boolean writable;
+    private boolean closed;
+    private Exception failure;
+
+    EventLoopChannel(SocketChannel channel, LocoEventLoop.Worker worker) {
+        this.channel = channel;
+        this.worker = worker;
+        this.worker.execute(this::register);
+    }
+
+    /**
+     * Runs on the I/O thread
+     */
+    private void register() {
+        try {
+            SelectionKey key = this.channel.register(this.worker.getSelector(), SelectionKey.OP_READ, this);
+            synchronized (this) {
+                this.key = key;
+                this.notifyAll();
+            }
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Waits until the I/O thread took the channel
+     * @throws IOException
+     */
+    synchronized void awaitRegistration() throws IOException {
+        while (this.key == null) {
+            this.checkFailure();
+            this.await();
+        }
+    }
+
+    /**
+     * The listener told about everything that arrives, it runs on the I/O thread so it must never block
+     * @param listener
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs on the I/O thread when the socket has data
+     * @throws IOException
+     */
+    void onReadable() throws IOException {
+        synchronized (this) {
+            int read = this.channel.read(this.inbound);
+            if (read < 0) {
+                this.closed = true;
+                this.key.cancel();
+            } else if (!this.inbound.hasRemaining()) {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+                this.readPaused = true;
+            }
+            this.notifyAll();
+        }
+        this.notifyListener();
+    }
+
+    private void notifyListener() {
+        Runnable listener = this.listener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs on the I/O thread when the socket can take more data, after {@link #write(ByteBuffer)} found it full
+     */
+    synchronized void onWritable() {
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+        this.writable = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Runs on the I/O thread when reading or writing the socket failed, whoever waits on the connection gets the error
+     * @param e
+     */
+    void fail(Exception e) {
+        synchronized (this) {
+            this.failure = e;
+            if (this.key != null) {
+                this.key.cancel();
+            }
+            this.notifyAll();
+        }
+        this.notifyListener();
+    }
+
+    /**
+     * Moves what the I/O thread read into the given buffer, waiting until there is something
+     * @param target
+     * @return how many bytes were moved, -1 if the server closed the connection
+     * @throws IOException
+     */
+    synchronized int read(ByteBuffer target) throws IOException {
+        while (this.inbound.position() == 0) {
+            this.checkFailure();
+            if (this.closed) {
+                return -1;
+            }
+            this.await();
+        }
+        return this.take(target);
+    }
+
+    /**
+     * Moves what the I/O thread read into the given buffer, without waiting
+     * @param target
+     * @return how many bytes were moved, 0 if there were none, -1 if the server closed the connection
+     * @throws IOException
+     */
+    synchronized int readNow(ByteBuffer target) throws IOException {
+        if (this.inbound.position() == 0) {
+            this.checkFailure();
+            return this.closed ? -1 : 0;
+        }
+        return this.take(target);
+    }
+
+    private int take(ByteBuffer target) {
+        this.inbound.flip();
+        int length = Math.min(this.inbound.remaining(), target.remaining());
+        int limit = this.inbound.limit();
+        this.inbound.limit(this.inbound.position() + length);
+        target.put(this.inbound);
+        this.inbound.limit(limit);
+        this.inbound.compact();
+
+        if (this.readPaused) {
+            this.readPaused = false;
+            this.worker.execute(() -> this.addInterest(SelectionKey.OP_READ));
+        }
+        return length;
+    }
+
+    /**
+     * Writes the whole given buffer, waiting for the socket to be writable whenever the kernel does not take it all
+     * @param source
+     * @throws IOException
+     */
+    void write(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            this.channel.write(source);
+            if (source.hasRemaining()) {
+                this.awaitWritable();
+            }
+        }
+    }
+
+    private synchronized void awaitWritable() throws IOException {
+        this.writable = false;
+        this.worker.execute(() -> this.addInterest(SelectionKey.OP_WRITE));
+        while (!this.writable) {
+            this.checkFailure();
+            if (this.closed) {
+                throw new ClosedChannelException();
+            }
+            this.await();
+        }
+    }
+
+    /**
+     * Runs on the I/O thread
+     */
+    private synchronized void addInterest(int operation) {
+        if (this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() | operation);
+        }
+    }
+
+    /**
+     * Gives the channel back to the I/O thread and closes it
+     * @throws IOException
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        this.worker.execute(() -> {
+            synchronized (this) {
+                if (this.key != null) {
+                    this.key.cancel();
+                }
+            }
+        });
+        this.channel.close();
+    }
+
+    private void checkFailure() throws IOException {
+        if (this.failure instanceof IOException) {
+            throw (IOException) this.failure;
+        } else if (this.failure != null) {
+            throw new IOException(this.failure);
+        }
+    }
+
+    private void await() throws IOException {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server");
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.moriano.locopostgres;
+
+import java.sql.ResultSet;
+
+/**
+ * What a query sent with {@link LocoConnection#queryAsync(String, Object...)} or
+ * {@link LocoConnection#query(String, Object...)} gives back once it is over.
+ *
+ * The rows, if the query returns any, are already in memory: the result set does not need the connection, it can be
+ * read from any thread while the connection runs other queries. Queries whose rows went to a {@link LocoRowHandler}
+ * have no result set, only the number of rows.
+ */
+public final class LocoAsyncResult {
+
+    private final ResultSet resultSet;
+    private final String commandTag;
+    private final long rowCount;
+
+    LocoAsyncResult(ResultSet resultSet, String commandTag, long rowCount) {
+        this.resultSet = resultSet;
+        this.commandTag = commandTag;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * The rows of the query, null if it does not return rows (an UPDATE, for instance) or if they went to a
+     * {@link LocoRowHandler}
+     * @return
+     */
+    public ResultSet getResultSet() {
+        return resultSet;
+    }
+
+    /**
+     * The tag of the command that was executed (SELECT, INSERT...), null for an empty query
+     * @return
+     */
+    public String getCommandTag() {
+        return commandTag;
+    }
+
+    /**
+     * The number of rows the server reported for the command: returned by a SELECT, inserted by an INSERT...
+     * @return
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+}
@@ -1,16 +1,40 @@
 package org.moriano.locopostgres;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.sql.*;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The LocoPostgres implementation of a JDBC Connection
  */
 public class LocoConnection implements Connection {
+    private static final Logger log = LogManager.getLogger(LocoConnection.class);
+
+    /**
+     * Closes the connections that do not answer their validation in time, see {@link #isValid(long)}. Its one thread
+     * is only started the first time a validation has a timeout, and it only ever wakes up when one runs out.
+     */
+    private static final ScheduledThreadPoolExecutor VALIDATION_TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "loco-validation-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Almost every timer is cancelled, do not keep them around until they would have gone off
+        VALIDATION_TIMER.setRemoveOnCancelPolicy(true);
+    }
 
     /**
      * The object in charge of controlling the network connnections between client and server
@@ -27,11 +51,47 @@ public class LocoConnection implements Connection {
      */
     private final List<ParameterStatus> parameterStatusList;
 
+    /**
+     * The server side prepared statements of this connection
+     */
+    private final StatementCache statementCache;
+
+    /**
+     * Whether the queries of our Statements read their rows from a cursor, see {@link LocoProperty#USE_CURSOR_FETCH}
+     */
+    private final boolean useCursorFetch;
+
+    /**
+     * The approximate size in bytes of each batch of rows fetched from a cursor
+     */
+    private final int cursorFetchBatchBytes;
+
+    /**
+     * Whether batches of single row inserts run as multi row inserts
+     */
+    private final boolean rewriteBatchedInserts;
 
-    public LocoConnection(LocoNetwork locoNetwork, BackendKeyData backendKeyData, List<ParameterStatus> parameterStatusList) {
+    /**
+     * Batches of plain inserts with more entries than this run as a COPY, zero when they never do
+     */
+    private final int batchCopyThreshold;
+
+    private LocoCopyManager copyManager;
+
+    private volatile boolean closed = false;
+
+    public LocoConnection(LocoNetwork locoNetwork, BackendKeyData backendKeyData,
+                          List<ParameterStatus> parameterStatusList, Properties properties) throws SQLException {
         this.locoNetwork = locoNetwork;
         this.backendKeyData = backendKeyData;
         this.parameterStatusList = parameterStatusList;
+        this.statementCache = new StatementCache(locoNetwork,
+                LocoProperty.PREPARED_STATEMENT_CACHE_QUERIES.getInt(properties),
+                LocoProperty.PREPARED_STATEMENT_CACHE_SIZE_MIB.getInt(properties) * 1024L * 1024L);
+        this.useCursorFetch = LocoProperty.USE_CURSOR_FETCH.getBoolean(properties);
+        this.cursorFetchBatchBytes = Math.max(1, LocoProperty.CURSOR_FETCH_BATCH_KIB.getInt(properties)) * 1024;
+        this.rewriteBatchedInserts = LocoProperty.REWRITE_BATCHED_INSERTS.getBoolean(properties);
+        this.batchCopyThreshold = Math.max(0, LocoProperty.BATCH_COPY_THRESHOLD.getInt(properties));
     }
 
     public BackendKeyData getBackendKeyData() {
@@ -42,14 +102,155 @@ public class LocoConnection implements Connection {
         return parameterStatusList;
     }
 
+    /**
+     * The cache of server side prepared statements, useful to check its hits, misses and evictions
+     * @return
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    public boolean isUseCursorFetch() {
+        return useCursorFetch;
+    }
+
+    public int getCursorFetchBatchBytes() {
+        return cursorFetchBatchBytes;
+    }
+
+    public boolean isRewriteBatchedInserts() {
+        return rewriteBatchedInserts;
+    }
+
+    public int getBatchCopyThreshold() {
+        return batchCopyThreshold;
+    }
+
+    /**
+     * The way to bulk load data with COPY ... FROM STDIN
+     * @return
+     */
+    public LocoCopyManager getCopyManager() {
+        if (this.copyManager == null) {
+            this.copyManager = new LocoCopyManager(this.locoNetwork);
+        }
+        return copyManager;
+    }
+
+    /**
+     * Runs the given query without waiting for its results. It is written to the server right away, even if the
+     * queries sent before it did not finish yet, and the server runs them in order.
+     *
+     * This is not part of JDBC and needs the selector transport (see {@link LocoProperty#TRANSPORT}): the I/O threads
+     * of the event loop read the results, no thread waits for them. The rows are kept in memory, see
+     * {@link LocoAsyncResult}. Regular JDBC calls can still be made on the connection, they wait for the asynchronous
+     * queries in flight first. Each query runs in its own implicit transaction unless a transaction block is open.
+     * @param sql the query, with ? placeholders as in a PreparedStatement. It cannot be a COPY
+     * @param parameters the values of the placeholders, of the types {@link PreparedStatement#setObject(int, Object)}
+     *                   takes
+     * @return a future completed with the results once they all arrived, or with the error of the query, on the
+     * common {@link java.util.concurrent.ForkJoinPool}
+     * @throws SQLException if the query cannot be sent
+     */
+    public CompletableFuture<LocoAsyncResult> queryAsync(String sql, Object... parameters) throws SQLException {
+        return this.queryAsync(sql, parameters == null ? Collections.emptyList() : Arrays.asList(parameters), null);
+    }
+
+    /**
+     * The same as {@link #queryAsync(String, Object...)}, but the rows are given to the handler as they arrive
+     * instead of being kept in memory
+     * @param sql
+     * @param parameters
+     * @param rowHandler where the rows go, null to keep them in memory
+     * @return a future completed once the query is over, its result has no result set
+     * @throws SQLException
+     */
+    public CompletableFuture<LocoAsyncResult> queryAsync(String sql, List<?> parameters, LocoRowHandler rowHandler)
+            throws SQLException {
+        LocoPreparedStatement statement = this.bind(sql, parameters);
+        return this.locoNetwork.getAsyncDispatcher().submit(statement.getParsedQuery().getSql(),
+                statement.getParameters(), rowHandler);
+    }
+
+    /**
+     * Runs the given query and waits for its results, and unlike everything else on a connection it can be called
+     * from any number of threads at the same time. This is the multiplexed mode: many threads share one physical
+     * connection, their queries are written one after the other without waiting for the ones before them, and each
+     * thread is woken up once the answer to its own query arrives, see {@link AsyncDispatcher}. Fifty threads doing
+     * short lookups then need one connection and one server backend instead of fifty.
+     *
+     * This is not part of JDBC and works with every transport. With the selector one, the I/O thread of the event
+     * loop reads the answers, with the others the waiting threads take turns to do it. Each query runs in its own
+     * implicit transaction, so the connection must be in auto commit and transaction control statements (BEGIN,
+     * SET, ...) have no place here: they would affect the queries of every other thread. Statements, result sets and
+     * the rest of the JDBC methods are still meant for one thread at a time, which can use them while other threads
+     * call this: a JDBC call waits for the multiplexed queries in flight before sending anything, and the queries
+     * sent meanwhile wait for it to read its answers. Its result sets then read all their rows right away, otherwise
+     * a result set left open would keep every other thread waiting.
+     * @param sql the query, with ? placeholders as in a PreparedStatement. It cannot be a COPY
+     * @param parameters the values of the placeholders, of the types {@link PreparedStatement#setObject(int, Object)}
+     *                   takes
+     * @return the results, with the rows in memory, see {@link LocoAsyncResult}
+     * @throws SQLException the error of the query, or if it cannot be sent
+     */
+    public LocoAsyncResult query(String sql, Object... parameters) throws SQLException {
+        LocoPreparedStatement statement = this.bind(sql,
+                parameters == null ? Collections.emptyList() : Arrays.asList(parameters));
+        return this.locoNetwork.getAsyncDispatcher().query(statement.getParsedQuery().getSql(),
+                statement.getParameters());
+    }
+
+    /**
+     * Binds the parameters of a query sent by the {@link AsyncDispatcher}
+     * @return a statement that only binds the parameters the same way a PreparedStatement does, it is never
+     * executed
+     */
+    private LocoPreparedStatement bind(String sql, List<?> parameters) throws SQLException {
+        LocoPreparedStatement statement = new LocoPreparedStatement(this.locoNetwork, sql, this);
+        if (statement.getParsedQuery().isCopy()) {
+            throw new SQLException("A COPY cannot run asynchronously, use the CopyManager instead");
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setObject(i + 1, parameters.get(i));
+        }
+        statement.getParameters().checkAllBound();
+        return statement;
+    }
+
+    /**
+     * Puts the connection in pipeline mode, see {@link LocoPipeline}. This is not part of JDBC, and the connection
+     * can be used for nothing else until the pipeline is closed.
+     * @return
+     * @throws SQLException
+     */
+    public LocoPipeline pipeline() throws SQLException {
+        return new LocoPipeline(this.locoNetwork, this);
+    }
+
     @Override
     public Statement createStatement() throws SQLException {
-        return new LocoStatement(this.locoNetwork, this);
+        return this.createStatement(this);
+    }
+
+    /**
+     * A statement whose getConnection returns the given connection rather than this one, see
+     * {@link LocoPooledConnection}
+     */
+    Statement createStatement(Connection owner) throws SQLException {
+        return new LocoStatement(this.locoNetwork, this, owner);
     }
 
     @Override
     public PreparedStatement prepareStatement(String s) throws SQLException {
-        return new LocoPreparedStatement(this.locoNetwork, s, null);
+        return this.prepareStatement(s, this);
+    }
+
+    /**
+     * A prepared statement whose getConnection returns the given connection rather than this one, see
+     * {@link LocoPooledConnection}
+     */
+    PreparedStatement prepareStatement(String s, Connection owner) throws SQLException {
+        return new LocoPreparedStatement(this.locoNetwork, s, this, owner);
     }
 
     @Override
@@ -84,13 +285,35 @@ public class LocoConnection implements Connection {
 
     @Override
     public void close() throws SQLException {
-        this.locoNetwork.sendPacketToServer(Packet.terminate());
-        this.locoNetwork.close();
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.locoNetwork.sendPacketToServer(Packet.terminate());
+        } finally {
+            // The Terminate cannot be sent if the connection is already broken, the socket still has to go
+            this.locoNetwork.close();
+        }
     }
 
     @Override
     public boolean isClosed() throws SQLException {
-        return false;
+        return this.closed;
+    }
+
+    /**
+     * Gets the connection ready for the next user of a {@link LocoDataSource}: a result set the last one left
+     * streaming is closed (see {@link LocoNetwork#closeActiveResultSet()}) and a transaction left open is rolled back
+     * @throws SQLException if the connection cannot be used anymore, in a pipeline that was never closed for instance
+     */
+    void resetForReuse() throws SQLException {
+        this.locoNetwork.closeActiveResultSet();
+        if (this.locoNetwork.isInTransaction()) {
+            this.locoNetwork.getPacketWriter().writeQuery("ROLLBACK");
+            this.locoNetwork.flush();
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+        }
     }
 
     @Override
@@ -243,9 +466,62 @@ public class LocoConnection implements Connection {
         return null;
     }
 
+    /**
+     * Checks the connection with an empty simple query, the cheapest round trip there is: the server answers with an
+     * EMPTY_QUERY_RESPONSE and a READY_FOR_QUERY without parsing or planning anything, and we send nothing but the 6
+     * bytes of the Query packet.
+     * @param i the timeout in seconds, zero for none
+     * @return
+     * @throws SQLException
+     */
     @Override
     public boolean isValid(int i) throws SQLException {
-        return false;
+        if (i < 0) {
+            throw new SQLException("The timeout cannot be negative");
+        }
+        return this.isValid(TimeUnit.SECONDS.toMillis(i));
+    }
+
+    /**
+     * {@link #isValid(int)} with the timeout in milliseconds.
+     *
+     * The transports have no read timeout of their own (a SocketChannel ignores SO_TIMEOUT), so the timeout is a timer
+     * instead: if the answer did not arrive in time the connection is closed, which makes the blocked read fail.
+     * Whatever the answer, a connection that timed out cannot be used anymore, it would get it as the answer to its
+     * next query.
+     * @param timeoutMillis zero for none
+     * @return
+     */
+    boolean isValid(long timeoutMillis) {
+        if (this.closed) {
+            return false;
+        }
+        ScheduledFuture<?> timer = null;
+        if (timeoutMillis > 0) {
+            timer = VALIDATION_TIMER.schedule(this::abortValidation, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        boolean valid;
+        try {
+            this.locoNetwork.releaseActiveResultSet();
+            this.locoNetwork.getPacketWriter().writeQuery("");
+            this.locoNetwork.flush();
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+            valid = true;
+        } catch (SQLException e) {
+            valid = false;
+        }
+        // If the timer already went off the connection is closing, even if the answer made it in time
+        return (timer == null || timer.cancel(false)) && valid;
+    }
+
+    /**
+     * Closes the connection from the timer of {@link #isValid(long)}, without the Terminate packet: the thread
+     * validating it is still using the send buffer
+     */
+    private void abortValidation() {
+        log.debug("The connection did not answer its validation in time, closing it");
+        this.closed = true;
+        this.locoNetwork.close();
     }
 
     @Override
@@ -305,11 +581,14 @@ public class LocoConnection implements Connection {
 
     @Override
     public <T> T unwrap(Class<T> aClass) throws SQLException {
-        return null;
+        if (aClass.isInstance(this)) {
+            return aClass.cast(this);
+        }
+        throw new SQLException("LocoConnection is not a wrapper for " + aClass.getName());
     }
 
     @Override
     public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-        return false;
+        return aClass.isInstance(this);
     }
 }
@@ -0,0 +1,310 @@
+package org.moriano.locopostgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.sql.SQLException;
+import java.util.Set;
+
+/**
+ * Bulk loads data with COPY ... FROM STDIN, by far the fastest way to get rows into postgres, and exports it with
+ * COPY ... TO STDOUT. Get one from {@link LocoConnection#getCopyManager()}.
+ *
+ * The COPY is sent as a simple query, the server answers with a BACKEND_COPY_IN_RESPONSE and from then on we send
+ * the data in CopyData packets, followed by a CopyDone. The server answers that with a COMMAND_COMPLETE holding the
+ * number of rows copied (COPY 1000000) and READY_FOR_QUERY. The data must be in the format the COPY asks for (text,
+ * csv or binary), we do not look at it at all: CopyData packets do not need to match rows, the server joins them.
+ *
+ * The input is never held in memory. Each CopyData packet is read from the input straight into the send buffer of
+ * the connection, as big as the buffer allows, and the buffer is written to the socket each time it fills up. So a
+ * load of any size takes a fixed 64KiB of memory and one socket write per 64KiB.
+ *
+ * If the server finds something wrong in the data (a row with the wrong number of columns, a duplicate key...) it
+ * sends the error right away and ignores the rest of the data. We check whether the server said something each time
+ * we write to the socket, so a bad row early in a huge load stops it early too. If reading the input fails we send
+ * a CopyFail, so the server discards whatever it got, and rethrow the error.
+ *
+ * COPY ... TO STDOUT goes the other way: the server answers with a BACKEND_COPY_OUT_RESPONSE and a CopyData packet
+ * per row, then a COPY_DONE, COMMAND_COMPLETE and READY_FOR_QUERY. The rows are written from the receive buffer of
+ * the connection straight to the target (see {@link LocoNetwork#readCopyData(OutputStream)}), so an export takes a
+ * fixed amount of memory too and goes as fast as the disk or the network behind the target.
+ */
+public class LocoCopyManager {
+
+    /**
+     * The space taken by the id byte and the length of a CopyData packet
+     */
+    private static final int COPY_DATA_HEADER = 5;
+
+    /**
+     * Below this many free bytes in the send buffer we rather send it than write a tiny CopyData packet
+     */
+    private static final int MIN_COPY_DATA = 8 * 1024;
+
+    private final LocoNetwork locoNetwork;
+
+    public LocoCopyManager(LocoNetwork locoNetwork) {
+        this.locoNetwork = locoNetwork;
+    }
+
+    /**
+     * Runs the given COPY ... FROM STDIN with the bytes of the given stream as its data. The stream is read until it
+     * ends, but not closed.
+     * @param sql a COPY ... FROM STDIN statement
+     * @param from the data, in the format the COPY expects
+     * @return the number of rows copied
+     * @throws SQLException if the server rejects the COPY or the data
+     * @throws IOException if reading the stream fails, the COPY is aborted then
+     */
+    public long copyIn(String sql, InputStream from) throws SQLException, IOException {
+        this.startCopy(sql, PacketType.BACKEND_COPY_IN_RESPONSE);
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        try {
+            while (packetWriter.writeCopyData(from, this.roomForCopyData()) != -1) {
+                // Each round reads as many bytes as fit in the send buffer
+            }
+        } catch (IOException | RuntimeException e) {
+            this.failCopyIn(e);
+            throw e;
+        }
+        return this.endCopyIn();
+    }
+
+    /**
+     * Runs the given COPY ... FROM STDIN with the bytes of the given channel as its data. The channel is read until
+     * it ends, but not closed. It must be in blocking mode.
+     * @param sql a COPY ... FROM STDIN statement
+     * @param from the data, in the format the COPY expects
+     * @return the number of rows copied
+     * @throws SQLException if the server rejects the COPY or the data
+     * @throws IOException if reading the channel fails, the COPY is aborted then
+     */
+    public long copyIn(String sql, ReadableByteChannel from) throws SQLException, IOException {
+        if (from instanceof SelectableChannel && !((SelectableChannel) from).isBlocking()) {
+            throw new SQLException("The channel to copy from must be in blocking mode");
+        }
+        this.startCopy(sql, PacketType.BACKEND_COPY_IN_RESPONSE);
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        try {
+            while (packetWriter.writeCopyData(from, this.roomForCopyData()) != -1) {
+                // Each round reads as many bytes as fit in the send buffer
+            }
+        } catch (IOException | RuntimeException e) {
+            this.failCopyIn(e);
+            throw e;
+        }
+        return this.endCopyIn();
+    }
+
+    /**
+     * Runs the given COPY ... FROM STDIN with the characters of the given reader as its data, sent as UTF-8 (the
+     * encoding the driver uses for everything). The reader is read until it ends, but not closed.
+     * @param sql a COPY ... FROM STDIN statement
+     * @param from the data, in the format the COPY expects
+     * @return the number of rows copied
+     * @throws SQLException if the server rejects the COPY or the data
+     * @throws IOException if reading fails, the COPY is aborted then
+     */
+    public long copyIn(String sql, Reader from) throws SQLException, IOException {
+        this.startCopy(sql, PacketType.BACKEND_COPY_IN_RESPONSE);
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        // A char takes up to 3 bytes in UTF-8, this many always fit in a send buffer
+        char[] chars = new char[(LocoNetwork.SEND_BUFFER_FLUSH_THRESHOLD - COPY_DATA_HEADER) / 3];
+        int pending = 0;
+        try {
+            int read;
+            while ((read = from.read(chars, pending, chars.length - pending)) != -1) {
+                int available = pending + read;
+                /*
+                A surrogate pair must be encoded as a whole, if the chunk ends in the middle of one the first half
+                waits for the next chunk
+                 */
+                int length = Character.isHighSurrogate(chars[available - 1]) ? available - 1 : available;
+                if (length > 0) {
+                    this.ensureRoom(length * 3);
+                    packetWriter.writeCopyData(CharBuffer.wrap(chars, 0, length));
+                }
+                pending = available - length;
+                if (pending > 0) {
+                    chars[0] = chars[length];
+                }
+            }
+            if (pending > 0) {
+                this.ensureRoom(3);
+                packetWriter.writeCopyData(CharBuffer.wrap(chars, 0, pending));
+            }
+        } catch (IOException | RuntimeException e) {
+            this.failCopyIn(e);
+            throw e;
+        }
+        return this.endCopyIn();
+    }
+
+    /**
+     * Starts the given COPY ... FROM STDIN (FORMAT binary) and returns the writer its rows are written with. The
+     * connection cannot be used for anything else until the writer is finished or cancelled.
+     * @param sql a COPY ... FROM STDIN (FORMAT binary) statement
+     * @return
+     * @throws SQLException if the server rejects the COPY, or it is not in binary format
+     * @throws IOException
+     */
+    public BinaryCopyWriter copyInBinary(String sql) throws SQLException, IOException {
+        Packet response = this.startCopy(sql, PacketType.BACKEND_COPY_IN_RESPONSE);
+        // The first byte of a COPY_IN_RESPONSE is the format of the COPY, 0 for text (or csv) and 1 for binary
+        if (response.getBuffer().get(response.getOffset() + 5) != 1) {
+            this.failCopyIn("Expected a COPY in binary format");
+            throw new SQLException("The COPY is not in binary format: " + sql);
+        }
+        return new BinaryCopyWriter(this, this.locoNetwork.getPacketWriter());
+    }
+
+    /**
+     * Runs the given COPY ... TO STDOUT and writes the data it produces to the given stream. The stream is neither
+     * flushed nor closed.
+     * @param sql a COPY ... TO STDOUT statement, usually COPY (a query) TO STDOUT
+     * @param to where the data goes, in the format the COPY asks for
+     * @return the number of rows copied
+     * @throws SQLException if the server rejects the COPY or it fails halfway
+     * @throws IOException if writing to the stream fails
+     */
+    public long copyOut(String sql, OutputStream to) throws SQLException, IOException {
+        this.startCopy(sql, PacketType.BACKEND_COPY_OUT_RESPONSE);
+        Packet end;
+        try {
+            end = this.locoNetwork.readCopyData(to);
+        } catch (IOException e) {
+            // The rest of the data was already skipped, only the end of the COPY is left
+            this.locoNetwork.waitUntilReadyForQuery();
+            throw e;
+        }
+        if (end.getPacketType() == PacketType.BACKEND_ERROR_RESPONSE) {
+            this.locoNetwork.raiseServerError(end);
+        }
+        Packet commandComplete = this.locoNetwork.readUntilPacketType(PacketType.BACKEND_COMMAND_COMPLETE);
+        long rows = CommandComplete.fromCommandCompletePacket(commandComplete).getRowCount();
+        this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+        return rows;
+    }
+
+    /**
+     * Runs the given COPY ... TO STDOUT and writes the data it produces to the given channel, which must be in
+     * blocking mode. The channel is not closed.
+     * @param sql a COPY ... TO STDOUT statement, usually COPY (a query) TO STDOUT
+     * @param to where the data goes, in the format the COPY asks for
+     * @return the number of rows copied
+     * @throws SQLException if the server rejects the COPY or it fails halfway
+     * @throws IOException if writing to the channel fails
+     */
+    public long copyOut(String sql, WritableByteChannel to) throws SQLException, IOException {
+        if (to instanceof SelectableChannel && !((SelectableChannel) to).isBlocking()) {
+            throw new SQLException("The channel to copy to must be in blocking mode");
+        }
+        // Writes straight from the receive buffer, the stream does not buffer anything
+        return this.copyOut(sql, Channels.newOutputStream(to));
+    }
+
+    /**
+     * Sends the COPY and waits until the server starts the expected kind of COPY. If it starts the other kind we
+     * get out of it before complaining, so the connection can still be used.
+     * @return the COPY_IN_RESPONSE or COPY_OUT_RESPONSE, a view over the receive buffer
+     */
+    private Packet startCopy(String sql, PacketType expectedResponse) throws SQLException, IOException {
+        this.locoNetwork.releaseActiveResultSet();
+        this.locoNetwork.getPacketWriter().writeQuery(sql);
+        this.locoNetwork.flush();
+        Packet response = this.locoNetwork.readUntilPacketTypes(Set.of(PacketType.BACKEND_COPY_IN_RESPONSE,
+                PacketType.BACKEND_COPY_OUT_RESPONSE, PacketType.BACKEND_READY_FOR_QUERY));
+        PacketType responseType = response.getPacketType();
+        if (responseType == expectedResponse) {
+            return response;
+        }
+        if (responseType == PacketType.BACKEND_COPY_IN_RESPONSE) {
+            this.locoNetwork.getPacketWriter().writeCopyFail("Expected a COPY ... TO STDOUT");
+            this.locoNetwork.flush();
+        } else if (responseType == PacketType.BACKEND_COPY_OUT_RESPONSE) {
+            this.locoNetwork.readCopyData(OutputStream.nullOutputStream());
+        }
+        if (responseType != PacketType.BACKEND_READY_FOR_QUERY) {
+            this.locoNetwork.waitUntilReadyForQuery();
+        }
+        throw new SQLException("The query is not a " + (expectedResponse == PacketType.BACKEND_COPY_IN_RESPONSE ?
+                "COPY ... FROM STDIN: " : "COPY ... TO STDOUT: ") + sql);
+    }
+
+    /**
+     * Makes sure the send buffer has room for a CopyData packet and returns how many bytes of data fit in it
+     */
+    private int roomForCopyData() throws SQLException {
+        this.ensureRoom(MIN_COPY_DATA);
+        return LocoNetwork.SEND_BUFFER_FLUSH_THRESHOLD - this.locoNetwork.getPacketWriter().position() -
+                COPY_DATA_HEADER;
+    }
+
+    /**
+     * Sends the send buffer if the given number of bytes of data (plus the header of their packet) do not fit in it
+     * anymore. Every time we send, we check whether the server already rejected the data.
+     */
+    private void ensureRoom(int dataBytes) throws SQLException {
+        int position = this.locoNetwork.getPacketWriter().position();
+        if (position + COPY_DATA_HEADER + dataBytes > LocoNetwork.SEND_BUFFER_FLUSH_THRESHOLD) {
+            this.sendCopyData();
+        }
+    }
+
+    /**
+     * Sends the CopyData packets written so far, and checks whether the server already rejected the data
+     */
+    void sendCopyData() throws SQLException {
+        this.locoNetwork.flush();
+        this.checkForServerError();
+    }
+
+    /**
+     * During a COPY FROM STDIN the server only talks to us if something went wrong, and then it ignores the rest of
+     * the data. There is no point in sending it.
+     */
+    private void checkForServerError() throws SQLException {
+        while (this.locoNetwork.checkIfServerHasData()) {
+            Packet serverPacket = this.locoNetwork.readFromServer();
+            if (serverPacket.getPacketType() == PacketType.BACKEND_ERROR_RESPONSE) {
+                this.locoNetwork.raiseServerError(serverPacket);
+            }
+            // Anything else, like a notice, can wait
+        }
+    }
+
+    /**
+     * Tells the server all the data was sent, and reads the number of rows it copied
+     */
+    long endCopyIn() throws SQLException {
+        this.locoNetwork.getPacketWriter().writeCopyDone();
+        this.locoNetwork.flush();
+        Packet commandComplete = this.locoNetwork.readUntilPacketType(PacketType.BACKEND_COMMAND_COMPLETE);
+        long rows = CommandComplete.fromCommandCompletePacket(commandComplete).getRowCount();
+        this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+        return rows;
+    }
+
+    /**
+     * Aborts the COPY because reading the input failed. The server answers the CopyFail with an error, which we
+     * skip: the error the caller cares about is the one of the input.
+     */
+    private void failCopyIn(Exception cause) throws SQLException {
+        this.failCopyIn("COPY aborted by the client: " + cause);
+    }
+
+    /**
+     * Aborts the COPY, the server discards all the data it got and answers with an error we skip
+     */
+    void failCopyIn(String message) throws SQLException {
+        this.locoNetwork.getPacketWriter().writeCopyFail(message);
+        this.locoNetwork.flush();
+        this.locoNetwork.waitUntilReadyForQuery();
+    }
+}
@@ -0,0 +1,246 @@
+package org.moriano.locopostgres;
+
+import java.sql.SQLException;
+
+/**
+ * A server side cursor a {@link LocoResultSet} reads its rows from, a batch at a time.
+ *
+ * This is the way to stream a huge result with the simple query protocol, which always sends every row of a query
+ * (and it is the way Redshift wants to be used, as it cannot suspend portals). Instead of the query itself we send
+ *
+ * BEGIN; DECLARE loco_cursor_1 CURSOR FOR the query; FETCH FORWARD 256 FROM loco_cursor_1
+ *
+ * in a single round trip, and once those rows have been read the result set sends FETCH FORWARD n FROM
+ * loco_cursor_1 again, until a FETCH brings fewer rows than asked. Then the cursor is closed, and the transaction
+ * committed if it was us who began it (a cursor only lives inside a transaction block). If the application is
+ * already inside a transaction block we use it and only CLOSE the cursor at the end.
+ *
+ * Unless the application sets a fetch size, the size of each FETCH adapts to the rows: we keep the average number of
+ * bytes of the rows we got so far, and ask for as many rows as fit in the configured batch size (see
+ * {@link LocoProperty#CURSOR_FETCH_BATCH_KIB}). Narrow rows come in big batches, so we do not pay a round trip for
+ * each handful of them, and wide rows in small ones, so we never hold too many of them.
+ *
+ * Only a single SELECT (or WITH, VALUES, TABLE) that does not write anything can be declared as a cursor, see
+ * {@link #canDeclare(String)}.
+ */
+public class LocoCursor {
+
+    /**
+     * The rows asked for in the first FETCH when there is no fetch size, before we know how wide the rows are
+     */
+    private static final int FIRST_FETCH_ROWS = 256;
+
+    private static final int MIN_FETCH_ROWS = 16;
+    private static final int MAX_FETCH_ROWS = 100_000;
+
+    /**
+     * The words that make a query that starts like a SELECT write something: a data modifying WITH (WITH d AS (DELETE
+     * ... RETURNING *) SELECT ...) or a SELECT INTO, which creates a table. Neither can be declared as a cursor.
+     */
+    private static final String[] WRITING_KEYWORDS = {"INSERT", "UPDATE", "DELETE", "MERGE", "INTO"};
+
+    private final String name;
+
+    /**
+     * Whether we sent the BEGIN, in which case we end the transaction too
+     */
+    private final boolean ownsTransaction;
+
+    /**
+     * The fetch size given by the application, zero means the batches adapt to the width of the rows
+     */
+    private int fetchSize;
+
+    /**
+     * How many bytes of rows each FETCH should bring when adapting
+     */
+    private final int batchBytes;
+
+    private long rowsReceived = 0;
+    private long bytesReceived = 0;
+
+    /**
+     * How many rows the FETCH in flight asked for, and how many of them arrived so far
+     */
+    private int batchRequested;
+    private int batchReceived;
+
+    public LocoCursor(String name, boolean ownsTransaction, int fetchSize, int batchBytes) {
+        this.name = name;
+        this.ownsTransaction = ownsTransaction;
+        this.fetchSize = fetchSize;
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Whether the given query can be declared as a cursor: a single statement that returns rows and writes nothing.
+     * Anything we are not sure about is not, those queries simply run the usual way: a semicolon that is not at the
+     * end, or any of the {@link #WRITING_KEYWORDS} outside of quoted text and comments, even if it turns out to be
+     * the name of a column.
+     * @param sql
+     * @return
+     */
+    public static boolean canDeclare(String sql) {
+        int start = ParsedQuery.skipWhitespaceAndComments(sql, 0);
+        int end = sql.length();
+        while (end > start && (Character.isWhitespace(sql.charAt(end - 1)) || sql.charAt(end - 1) == ';')) {
+            end--;
+        }
+        while (start < end && sql.charAt(start) == '(') {
+            start = ParsedQuery.skipWhitespaceAndComments(sql, start + 1);
+        }
+        if (!ParsedQuery.startsWithKeyword(sql, start, "SELECT") &&
+                !ParsedQuery.startsWithKeyword(sql, start, "WITH") &&
+                !ParsedQuery.startsWithKeyword(sql, start, "VALUES") &&
+                !ParsedQuery.startsWithKeyword(sql, start, "TABLE")) {
+            return false;
+        }
+        int idx = start;
+        while (idx < end) {
+            char current = sql.charAt(idx);
+            if (current == ';') {
+                return false;
+            }
+            if (Character.isJavaIdentifierStart(current) &&
+                    (idx == 0 || !Character.isJavaIdentifierPart(sql.charAt(idx - 1)))) {
+                for (String keyword : WRITING_KEYWORDS) {
+                    if (ParsedQuery.startsWithKeyword(sql, idx, keyword)) {
+                        return false;
+                    }
+                }
+                // The whole word, so a quote right after it (E'...') is still seen as the start of quoted text
+                while (idx + 1 < end && Character.isJavaIdentifierPart(sql.charAt(idx + 1))) {
+                    idx++;
+                }
+                idx++;
+            } else {
+                idx = ParsedQuery.skipToken(sql, idx);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The simple query that declares the cursor and fetches its first batch of rows
+     * @param sql the query of the cursor
+     * @param maxRows the maximum number of rows of the result, zero for no limit
+     * @return
+     */
+    public String declareQuery(String sql, int maxRows) {
+        StringBuilder result = new StringBuilder(sql.length() + 96);
+        if (this.ownsTransaction) {
+            result.append("BEGIN;");
+        }
+        int end = sql.length();
+        while (end > 0 && (Character.isWhitespace(sql.charAt(end - 1)) || sql.charAt(end - 1) == ';')) {
+            end--;
+        }
+        // The query may end with a -- comment, the semicolon goes in the next line
+        result.append("DECLARE ").append(this.name).append(" CURSOR FOR ").append(sql, 0, end).append("\n;");
+        this.appendFetch(result, this.limit(this.fetchSize > 0 ? this.fetchSize : FIRST_FETCH_ROWS, maxRows, 0));
+        return result.toString();
+    }
+
+    /**
+     * To be called for every DATA_ROW that arrives
+     * @param bytes the size of the packet
+     */
+    public void rowReceived(int bytes) {
+        this.batchReceived++;
+        this.rowsReceived++;
+        this.bytesReceived += bytes;
+    }
+
+    /**
+     * Whether the cursor may have more rows, which is the case while every FETCH brings as many rows as asked
+     * @return
+     */
+    public boolean mayHaveMoreRows() {
+        return this.batchReceived == this.batchRequested;
+    }
+
+    /**
+     * Sends the FETCH for the next batch of rows. The server answers with a ROW_DESCRIPTION, the rows and
+     * READY_FOR_QUERY.
+     * @param locoNetwork
+     * @param maxRows the maximum number of rows of the result, zero for no limit
+     * @param rowsRead the rows read so far
+     * @return false if no FETCH was sent because the maximum number of rows was already read
+     * @throws SQLException
+     */
+    public boolean fetchNext(LocoNetwork locoNetwork, int maxRows, int rowsRead) throws SQLException {
+        int rows = this.limit(this.nextFetchSize(), maxRows, rowsRead);
+        if (rows == 0) {
+            return false;
+        }
+        StringBuilder fetch = new StringBuilder(48);
+        this.appendFetch(fetch, rows);
+        locoNetwork.getPacketWriter().writeQuery(fetch.toString());
+        locoNetwork.flush();
+        return true;
+    }
+
+    /**
+     * The size of the next FETCH: the fetch size if there is one, otherwise as many rows as fit in the batch size
+     * given the average width of the rows we got so far
+     */
+    private int nextFetchSize() {
+        if (this.fetchSize > 0) {
+            return this.fetchSize;
+        }
+        if (this.rowsReceived == 0) {
+            return FIRST_FETCH_ROWS;
+        }
+        long averageRowBytes = Math.max(1, this.bytesReceived / this.rowsReceived);
+        long rows = this.batchBytes / averageRowBytes;
+        return (int) Math.max(MIN_FETCH_ROWS, Math.min(MAX_FETCH_ROWS, rows));
+    }
+
+    private int limit(int rows, int maxRows, int rowsRead) {
+        return maxRows > 0 ? Math.min(rows, maxRows - rowsRead) : rows;
+    }
+
+    private void appendFetch(StringBuilder target, int rows) {
+        this.batchRequested = rows;
+        this.batchReceived = 0;
+        target.append("FETCH FORWARD ").append(rows).append(" FROM ").append(this.name);
+    }
+
+    /**
+     * Closes the cursor, ending the transaction if we began it. The server must be ready for a query.
+     * @param locoNetwork
+     * @throws SQLException
+     */
+    public void close(LocoNetwork locoNetwork) throws SQLException {
+        // Committing closes the cursor too
+        locoNetwork.getPacketWriter().writeQuery(this.ownsTransaction ? "COMMIT" : "CLOSE " + this.name);
+        locoNetwork.flush();
+        locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+    }
+
+    /**
+     * After an error the transaction we began is useless, roll it back so the connection can be used again. A
+     * transaction of the application is left for the application to roll back, as with any other error.
+     * @param locoNetwork
+     * @throws SQLException
+     */
+    public void abort(LocoNetwork locoNetwork) throws SQLException {
+        if (this.ownsTransaction && locoNetwork.isInTransaction()) {
+            locoNetwork.getPacketWriter().writeQuery("ROLLBACK");
+            locoNetwork.flush();
+            locoNetwork.waitUntilReadyForQuery();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Changes the size of the following FETCHes, zero makes them adapt to the width of the rows
+     * @param fetchSize
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+}
@@ -0,0 +1,578 @@
+package org.moriano.locopostgres;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DataSource that keeps a pool of connections, so getting one takes microseconds instead of the TCP handshake,
+ * startup and authentication of {@link LocoDriver#connect} every time.
+ *
+ * The connections live in a {@link ConnectionBag}: borrowing and giving them back take no lock, and a thread usually
+ * gets back the same connection it used last. The pool starts with the first call to {@link #getConnection()} (or
+ * with {@link #start()}), which opens the minimum number of idle connections in parallel, and it creates more as
+ * they are needed, up to the maximum pool size. A thread that finds every connection in use waits for one to be
+ * given back, for at most the connection timeout.
+ *
+ * A background housekeeper retires the connections that reached their maximum lifetime and the ones idle for longer
+ * than the idle timeout (as long as there are more than the minimum), and opens new ones when there are fewer. Each
+ * connection gets its lifetime shortened by a random amount of up to 2.5%, so the connections opened together at
+ * startup are not all retired at once either. A connection idle for more than the validation interval is checked
+ * with an empty query before being handed out, see {@link LocoConnection#isValid(int)}.
+ *
+ * Connections given back are made ready for the next user: a result set still streaming is closed, skipping its
+ * rows, and a transaction left open is rolled back. The rest of their state (SET, prepared statements...) stays as
+ * it was.
+ *
+ * The settings are regular bean properties, set them before the pool starts:
+ *
+ * <pre>
+ * LocoDataSource dataSource = new LocoDataSource();
+ * dataSource.setUrl("jdbc:loco:postgresql://localhost:5432/db");
+ * dataSource.setProperties(properties);
+ * dataSource.setMaximumPoolSize(20);
+ * try (Connection connection = dataSource.getConnection()) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class LocoDataSource implements DataSource, AutoCloseable {
+    private static final Logger log = LogManager.getLogger(LocoDataSource.class);
+
+    /**
+     * How often the housekeeper runs, at most
+     */
+    private static final long HOUSEKEEPING_PERIOD_MILLIS = 30_000;
+
+    /**
+     * How many connections are opened at the same time, at most, when the pool fills up
+     */
+    private static final int MAX_PARALLEL_CONNECTS = 8;
+
+    /**
+     * The shortest time a connection gets to answer its validation, see {@link #validationTimeoutMillis(long)}
+     */
+    private static final long MIN_VALIDATION_TIMEOUT_MILLIS = 250;
+
+    private final LocoDriver driver = new LocoDriver();
+
+    private String url;
+    private Properties properties = new Properties();
+    private int maximumPoolSize = 10;
+    private int minimumIdle = -1;
+    private long connectionTimeoutMillis = 30_000;
+    private long maxLifetimeMillis = 30 * 60_000;
+    private long idleTimeoutMillis = 10 * 60_000;
+    private long validationIntervalMillis = 500;
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    private final ConnectionBag bag = new ConnectionBag();
+
+    /**
+     * The connections of the pool, including the ones being opened
+     */
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    private volatile boolean started = false;
+    private volatile boolean closed = false;
+
+    private ScheduledThreadPoolExecutor housekeeper;
+    private ThreadPoolExecutor connector;
+
+    /**
+     * Opens the connections of the pool, in parallel. Called by the first {@link #getConnection()} if it was not
+     * called before.
+     * @throws SQLException if not even one connection can be opened, the pool is closed then
+     */
+    public synchronized void start() throws SQLException {
+        if (this.started) {
+            return;
+        }
+        this.checkOpen();
+        if (this.url == null) {
+            throw new SQLException("The url of the data source is not set");
+        }
+        if (this.maximumPoolSize < 1) {
+            throw new SQLException("The maximum pool size must be at least 1, it is " + this.maximumPoolSize);
+        }
+        this.connector = new ThreadPoolExecutor(MAX_PARALLEL_CONNECTS, MAX_PARALLEL_CONNECTS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> this.daemonThread(runnable, "loco-pool-connector"));
+        this.connector.allowCoreThreadTimeOut(true);
+        this.housekeeper = new ScheduledThreadPoolExecutor(1,
+                runnable -> this.daemonThread(runnable, "loco-pool-housekeeper"));
+        try {
+            this.fill(true);
+        } catch (SQLException e) {
+            this.close();
+            throw e;
+        }
+        long period = Math.max(10, Math.min(HOUSEKEEPING_PERIOD_MILLIS,
+                Math.min(this.foreverIfZero(this.idleTimeoutMillis), this.foreverIfZero(this.maxLifetimeMillis)) / 2));
+        this.housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+        this.started = true;
+    }
+
+    private Thread daemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The value of a timeout where 0 means never
+     */
+    private long foreverIfZero(long millis) {
+        return millis <= 0 ? Long.MAX_VALUE : millis;
+    }
+
+    /**
+     * A connection of the pool, give it back by closing it
+     * @return
+     * @throws SQLException if no connection became free within the connection timeout (a
+     * {@link SQLTransientConnectionException} then) or a new one could not be opened
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!this.started) {
+            this.start();
+        }
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(this.connectionTimeoutMillis);
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            this.checkOpen();
+            PoolEntry entry = this.bag.borrow(deadline - System.nanoTime(), this::createForBorrower);
+            if (entry == null) {
+                throw new SQLTransientConnectionException("No connection became free in " +
+                        this.connectionTimeoutMillis + " ms, all " + this.totalConnections.get() + " are in use",
+                        "08001");
+            }
+            long now = System.nanoTime();
+            if (entry.isExpired(now)) {
+                this.evict(entry);
+                continue;
+            }
+            if (now - entry.getLastAccessed() > TimeUnit.MILLISECONDS.toNanos(this.validationIntervalMillis) &&
+                    !entry.getConnection().isValid(this.validationTimeoutMillis(deadline - now))) {
+                log.debug("A connection of the pool is broken, opening another one");
+                this.evict(entry);
+                continue;
+            }
+            return new LocoPooledConnection(this, entry);
+        }
+    }
+
+    /**
+     * How long the validation of a connection can take: whatever is left of the connection timeout, so a server that
+     * stopped answering does not keep the borrowing thread waiting forever, but never so little that a healthy
+     * connection is thrown away because the deadline was about to pass anyway
+     */
+    private long validationTimeoutMillis(long remainingNanos) {
+        return Math.max(MIN_VALIDATION_TIMEOUT_MILLIS, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+    }
+
+    @Override
+    public Connection getConnection(String user, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The connections of the pool all use the user of the data source");
+    }
+
+    /**
+     * Opens a connection for the thread borrowing it, if the pool is not full
+     */
+    private PoolEntry createForBorrower() throws SQLException {
+        if (!this.reserveSlot()) {
+            return null;
+        }
+        PoolEntry entry = this.open(PoolEntry.STATE_IN_USE);
+        this.bag.add(entry);
+        return entry;
+    }
+
+    /**
+     * Counts a connection about to be opened
+     * @return false if the pool is full
+     */
+    private boolean reserveSlot() {
+        while (true) {
+            int total = this.totalConnections.get();
+            if (total >= this.maximumPoolSize) {
+                return false;
+            }
+            if (this.totalConnections.compareAndSet(total, total + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Opens a connection whose slot was reserved, the slot is freed if it cannot be opened
+     */
+    private PoolEntry open(int state) throws SQLException {
+        try {
+            LocoConnection connection = (LocoConnection) this.driver.connect(this.url, this.properties);
+            long lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, this.maxLifetimeMillis));
+            if (lifetimeNanos > 0) {
+                // Up to 2.5% shorter, so the connections opened together are not all retired together
+                lifetimeNanos -= ThreadLocalRandom.current().nextLong(lifetimeNanos / 40 + 1);
+            }
+            return new PoolEntry(connection, state, lifetimeNanos);
+        } catch (SQLException | RuntimeException e) {
+            this.totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens connections, in parallel, until there are as many idle ones as the minimum
+     * @param failIfNone whether to throw if none could be opened
+     * @throws SQLException the error of the first connection that could not be opened
+     */
+    private void fill(boolean failIfNone) throws SQLException {
+        int minimumIdle = this.getEffectiveMinimumIdle();
+        int idle = 0;
+        for (PoolEntry entry : this.bag.entries()) {
+            if (entry.isNotInUse()) {
+                idle++;
+            }
+        }
+        List<Future<PoolEntry>> futures = new ArrayList<>();
+        for (int i = idle; i < minimumIdle && this.reserveSlot(); i++) {
+            futures.add(this.connector.submit(() -> {
+                PoolEntry entry = this.open(PoolEntry.STATE_NOT_IN_USE);
+                this.bag.add(entry);
+                if (this.closed && entry.reserveForRemoval()) {
+                    // Opened while the pool was being closed, after it closed the idle ones
+                    this.retire(entry);
+                }
+                return entry;
+            }));
+        }
+        SQLException error = null;
+        int opened = 0;
+        for (Future<PoolEntry> future : futures) {
+            try {
+                future.get();
+                opened++;
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof SQLException ? (SQLException) e.getCause() :
+                            new SQLException("Cannot open a connection", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while opening the connections of the pool", e);
+            }
+        }
+        if (error != null) {
+            if (failIfNone && opened == 0) {
+                throw error;
+            }
+            log.warn("Could only open " + opened + " of " + futures.size() + " connections", error);
+        }
+    }
+
+    /**
+     * Retires the connections that expired or were idle for too long, and opens new ones if there are fewer idle ones
+     * than the minimum
+     */
+    private void housekeep() {
+        try {
+            long now = System.nanoTime();
+            long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, this.idleTimeoutMillis));
+            int minimumIdle = this.getEffectiveMinimumIdle();
+            for (PoolEntry entry : this.bag.entries()) {
+                boolean expired = entry.isExpired(now);
+                boolean idleTooLong = idleTimeoutNanos > 0 && now - entry.getLastAccessed() > idleTimeoutNanos &&
+                        this.totalConnections.get() > minimumIdle;
+                // The ones in use that expired are retired when given back
+                if ((expired || idleTooLong) && entry.reserveForRemoval()) {
+                    log.debug("Retiring a connection of the pool, " + (expired ? "it expired" : "it was idle"));
+                    this.retire(entry);
+                }
+            }
+            if (!this.closed) {
+                this.fill(false);
+            }
+        } catch (Exception e) {
+            log.warn("The housekeeping of the pool failed", e);
+        }
+    }
+
+    /**
+     * Takes back a connection from a {@link LocoPooledConnection} being closed
+     * @param entry
+     */
+    void giveBack(PoolEntry entry) {
+        try {
+            // Closed through what unwrap returned, resetting it would not notice
+            if (entry.getConnection().isClosed()) {
+                throw new SQLException("The connection was closed while in use");
+            }
+            entry.getConnection().resetForReuse();
+        } catch (SQLException e) {
+            log.debug("A connection given back to the pool cannot be used anymore", e);
+            this.evict(entry);
+            return;
+        }
+        if (this.closed || entry.isExpired(System.nanoTime())) {
+            this.evict(entry);
+        } else {
+            this.bag.requite(entry);
+        }
+    }
+
+    /**
+     * Retires a connection the current thread has in use
+     * @param entry
+     */
+    void evict(PoolEntry entry) {
+        entry.markRemoved();
+        this.retire(entry);
+    }
+
+    /**
+     * Closes a connection already marked as removed
+     */
+    private void retire(PoolEntry entry) {
+        this.bag.remove(entry);
+        this.totalConnections.decrementAndGet();
+        try {
+            entry.getConnection().close();
+        } catch (SQLException e) {
+            log.debug("Could not close a connection of the pool", e);
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops the housekeeper. The connections in use are closed once they are given
+     * back.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        if (this.housekeeper != null) {
+            this.housekeeper.shutdownNow();
+        }
+        if (this.connector != null) {
+            this.connector.shutdownNow();
+        }
+        for (PoolEntry entry : this.bag.entries()) {
+            if (entry.reserveForRemoval()) {
+                this.retire(entry);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("The data source is closed");
+        }
+    }
+
+    private int getEffectiveMinimumIdle() {
+        return this.minimumIdle < 0 ? this.maximumPoolSize : Math.min(this.minimumIdle, this.maximumPoolSize);
+    }
+
+    /**
+     * How many connections the pool has, in use or not
+     * @return
+     */
+    public int getTotalConnections() {
+        return this.totalConnections.get();
+    }
+
+    /**
+     * How many connections of the pool are not in use
+     * @return
+     */
+    public int getIdleConnections() {
+        int idle = 0;
+        for (PoolEntry entry : this.bag.entries()) {
+            if (entry.isNotInUse()) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * How many threads are waiting for a connection
+     * @return
+     */
+    public int getThreadsAwaitingConnection() {
+        return this.bag.getWaiters();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The jdbc url of the connections, as given to {@link LocoDriver#connect}
+     * @param url
+     */
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    /**
+     * The properties of the connections (user, password, database, see {@link LocoProperty} for the rest), as given
+     * to {@link LocoDriver#connect}
+     * @param properties
+     */
+    public void setProperties(Properties properties) {
+        this.properties = properties;
+    }
+
+    public void setUser(String user) {
+        this.properties.setProperty("user", user);
+    }
+
+    public void setPassword(String password) {
+        this.properties.setProperty("password", password);
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    /**
+     * The maximum number of connections, 10 by default
+     * @param maximumPoolSize
+     */
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        this.maximumPoolSize = maximumPoolSize;
+    }
+
+    public int getMinimumIdle() {
+        return minimumIdle;
+    }
+
+    /**
+     * The minimum number of idle connections the housekeeper keeps, and how many are opened at startup. By default
+     * the same as the maximum pool size, a pool of fixed size.
+     * @param minimumIdle
+     */
+    public void setMinimumIdle(int minimumIdle) {
+        this.minimumIdle = minimumIdle;
+    }
+
+    public long getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    /**
+     * How long {@link #getConnection()} waits for a connection when all are in use, 30 seconds by default
+     * @param connectionTimeoutMillis
+     */
+    public void setConnectionTimeoutMillis(long connectionTimeoutMillis) {
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+    }
+
+    public long getMaxLifetimeMillis() {
+        return maxLifetimeMillis;
+    }
+
+    /**
+     * How long a connection is used before being replaced by a new one, minus up to 2.5% at random. 30 minutes by
+     * default, 0 keeps them forever.
+     * @param maxLifetimeMillis
+     */
+    public void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * How long a connection can stay idle before it is closed, when there are more than the minimum idle. 10 minutes
+     * by default, 0 never closes them.
+     * @param idleTimeoutMillis
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    /**
+     * Connections idle for longer than this are checked with an empty query before being handed out, 500 ms by
+     * default. Connections used more recently are assumed to work, the check would cost as much as a short query.
+     * @param validationIntervalMillis
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+        this.logWriter = printWriter;
+    }
+
+    @Override
+    public void setLoginTimeout(int i) throws SQLException {
+        this.loginTimeout = i;
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("LocoPostgres logs through log4j");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        if (aClass.isInstance(this)) {
+            return aClass.cast(this);
+        }
+        throw new SQLException("LocoDataSource is not a wrapper for " + aClass.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return aClass.isInstance(this);
+    }
+}
@@ -32,6 +32,7 @@ public class LocoDriver implements Driver {
         }
 
         Connection result = null;
+        properties = this.withUrlParameters(s, properties);
 
         /*
         As per doc, username and password might come from either the url or as a property. If present in
@@ -52,7 +53,7 @@ public class LocoDriver implements Driver {
 
         Packet startupPacket = Packet.startupMessage(user, database);
         try {
-            LocoNetwork locoNetwork = new LocoNetwork(host, port);
+            LocoNetwork locoNetwork = new LocoNetwork(host, port, properties);
 
 
             locoNetwork.sendPacketToServer(startupPacket);
@@ -109,7 +110,7 @@ public class LocoDriver implements Driver {
                          */
                         BackendDataAndParameterStatus backendDataAndParameterStatus = processPacketsAfterAuthenticationOK(locoNetwork);
 
-                        result = new LocoConnection(locoNetwork, backendDataAndParameterStatus.backendKeyData, backendDataAndParameterStatus.parameterStatuses);
+                        result = new LocoConnection(locoNetwork, backendDataAndParameterStatus.backendKeyData, backendDataAndParameterStatus.parameterStatuses, properties);
                     } else {
                         throw new SQLException("Something crashed!, packet was " + serverPacket);
                     }
@@ -150,7 +151,7 @@ public class LocoDriver implements Driver {
                          */
                         BackendDataAndParameterStatus backendDataAndParameterStatus = processPacketsAfterAuthenticationOK(locoNetwork);
 
-                        result = new LocoConnection(locoNetwork, backendDataAndParameterStatus.backendKeyData, backendDataAndParameterStatus.parameterStatuses);
+                        result = new LocoConnection(locoNetwork, backendDataAndParameterStatus.backendKeyData, backendDataAndParameterStatus.parameterStatuses, properties);
                     } else {
                         throw new SQLException("Something crashed!, packet was " + serverPacket);
                     }
@@ -219,7 +220,37 @@ public class LocoDriver implements Driver {
 
     @Override
     public DriverPropertyInfo[] getPropertyInfo(String s, Properties properties) throws SQLException {
-        return new DriverPropertyInfo[0];
+        Properties allProperties = this.withUrlParameters(s, properties);
+        LocoProperty[] locoProperties = LocoProperty.values();
+        DriverPropertyInfo[] result = new DriverPropertyInfo[locoProperties.length];
+        for (int i = 0; i < locoProperties.length; i++) {
+            result[i] = locoProperties[i].toDriverPropertyInfo(allProperties);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the given properties with the parameters of the url (anything after '?', in the form
+     * key=value separated by '&amp;') added on top, as url parameters take precedence over properties.
+     */
+    Properties withUrlParameters(String url, Properties properties) {
+        Properties result = new Properties();
+        if (properties != null) {
+            result.putAll(properties);
+        }
+        int parametersStart = url.indexOf('?');
+        if (parametersStart < 0) {
+            return result;
+        }
+        for (String parameter : url.substring(parametersStart + 1).split("&")) {
+            int equalsIdx = parameter.indexOf('=');
+            if (equalsIdx > 0) {
+                result.setProperty(parameter.substring(0, equalsIdx), parameter.substring(equalsIdx + 1));
+            } else if (!parameter.isEmpty()) {
+                result.setProperty(parameter, "");
+            }
+        }
+        return result;
     }
 
     @Override
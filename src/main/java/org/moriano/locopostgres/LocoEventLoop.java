@@ -0,0 +1,142 @@
+package org.moriano.locopostgres;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of I/O threads, each of them with a {@link Selector}, that own the sockets of the connections using
+ * the selector transport (see {@link LocoProperty#TRANSPORT}).
+ *
+ * With the other transports each connection has a blocking socket, and whoever uses the connection sits in a read of
+ * that socket while the server works. Here the sockets are non blocking and registered with one of the selectors of
+ * the loop (round robin), and a single I/O thread reads from every socket of its selector as data arrives, into the
+ * bounded inbound buffer of each connection (see {@link EventLoopChannel}). A few threads serve thousands of
+ * connections, and the connections themselves no longer need a thread to make progress, which is what the
+ * asynchronous API builds on.
+ *
+ * The loop is shared by every connection of the JVM, it is created by the first connection that uses it (with the
+ * number of threads that connection asks for, see {@link LocoProperty#EVENT_LOOP_THREADS}) and its threads are
+ * daemons, they never keep the JVM alive.
+ */
+final class LocoEventLoop {
+    private static final Logger log = LogManager.getLogger(LocoEventLoop.class);
+
+    private static LocoEventLoop shared;
+
+    private final Worker[] workers;
+
+    /**
+     * The worker the next connection goes to
+     */
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private LocoEventLoop(int threads) throws IOException {
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Worker(Selector.open());
+            Thread thread = new Thread(this.workers[i], "loco-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * The loop shared by every connection, created with the given number of threads if it does not exist yet
+     * @param threads the number of I/O threads, zero or less for one per two processors (at most 4)
+     * @return
+     * @throws IOException
+     */
+    static synchronized LocoEventLoop shared(int threads) throws IOException {
+        if (shared == null) {
+            if (threads <= 0) {
+                threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            }
+            shared = new LocoEventLoop(threads);
+        }
+        return shared;
+    }
+
+    /**
+     * Hands the given connected channel to one of the I/O threads, from now on that thread reads from it
+     * @param channel a connected channel, it is switched to non blocking
+     * @return the channel connections read from and write to
+     * @throws IOException
+     */
+    EventLoopChannel register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        Worker worker = this.workers[Math.floorMod(this.nextWorker.getAndIncrement(), this.workers.length)];
+        EventLoopChannel eventLoopChannel = new EventLoopChannel(channel, worker);
+        eventLoopChannel.awaitRegistration();
+        return eventLoopChannel;
+    }
+
+    /**
+     * One I/O thread with its selector. Anything that touches the selection keys (registering a channel, changing
+     * what we are interested in) runs on this thread as a task, so the selector is never shared.
+     */
+    static final class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Runs the given task on this I/O thread, as soon as the current select returns
+         * @param task
+         */
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        EventLoopChannel channel = (EventLoopChannel) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                channel.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                channel.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            channel.fail(e);
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    // Nothing a connection did should stop the thread every other connection depends on
+                    log.error("Unexpected error in the event loop", e);
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package org.moriano.locopostgres;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -35,7 +35,7 @@ public class LocoField {
     }
 
     public static List<LocoField> fromPacket(Packet packet, int numberOfFields) {
-        List<LocoField> results = new ArrayList<>();
+        List<LocoField> results = new ArrayList<>(numberOfFields);
         /*
         Packet contents are
 
@@ -47,61 +47,74 @@ public class LocoField {
         int32   typeModifyier
         int32   formatCode
          */
-        byte[] rawBytes = packet.getPacketContents();
+        ByteBuffer buffer = packet.getBuffer();
 
         /*
         The first byte we care about is 8 because
         1 byte for id
         4 bytes for packet size
         2 bytes for number of fields
+
+        The packet may be a view over the network buffer, so everything is read in place from it
          */
-        int firstRelevantByte = 7;
+        int byteIdx = packet.getOffset() + 7;
 
         for(int i = 0; i<numberOfFields; i++) {
-            List<Byte> fieldNameInBytes = new ArrayList<>();
-            int byteIdx = firstRelevantByte;
-            byte relevantByte = rawBytes[byteIdx]; // 0x07  0x24   0x40 0x60 0x7F
-            fieldNameInBytes.add(relevantByte);
-            do {
+            int nameStart = byteIdx;
+            while (buffer.get(byteIdx) != 0x00) {
                 byteIdx++;
-                relevantByte = rawBytes[byteIdx];
-                if (relevantByte != 0x00) {
-                    fieldNameInBytes.add(relevantByte);
-                }
-            } while(relevantByte != 0x00);
-            byteIdx++; //We move the cursor one position as we are not interested on byte 0x00
-            byte[] fieldNameArray = new byte[fieldNameInBytes.size()];
-            for(int aux = 0; aux<= fieldNameInBytes.size()-1; aux++) {
-                fieldNameArray[aux] = fieldNameInBytes.get(aux);
             }
-            String fieldName = new String(fieldNameArray, StandardCharsets.UTF_8);
+            String fieldName = readName(buffer, nameStart, byteIdx - nameStart);
+            byteIdx++; //We move the cursor one position as we are not interested on byte 0x00
 
-            int tableId = ByteUtil.getInt32(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+4));
-            byteIdx = byteIdx + 4; // 16469 0x4055
+            int tableId = buffer.getInt(byteIdx);
+            byteIdx = byteIdx + 4;
 
-            int columnNumber = ByteUtil.getInt16(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+2));
+            int columnNumber = buffer.getShort(byteIdx) & 0xFFFF;
             byteIdx = byteIdx + 2;
 
-            int dataTypeId = ByteUtil.getInt32(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+4));
+            int dataTypeId = buffer.getInt(byteIdx);
             byteIdx = byteIdx + 4;
 
-            int dataTypeSize = ByteUtil.getInt16(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+2));
+            int dataTypeSize = buffer.getShort(byteIdx) & 0xFFFF;
             byteIdx = byteIdx + 2;
 
-            int typeModifier = ByteUtil.getInt32(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+4));
+            int typeModifier = buffer.getInt(byteIdx);
             byteIdx = byteIdx + 4;
 
-            int formatCode = ByteUtil.getInt16(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+2));
+            int formatCode = buffer.getShort(byteIdx) & 0xFFFF;
             byteIdx = byteIdx + 2;
 
             results.add(new LocoField(fieldName, tableId, columnNumber, dataTypeId,
                     dataTypeSize, typeModifier, formatCode, i));
-
-            firstRelevantByte = byteIdx;
         }
         return results;
     }
 
+    private static String readName(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] raw = new byte[length];
+        for (int i = 0; i < length; i++) {
+            raw[i] = buffer.get(offset + i);
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A copy of this field that is sent in the given format, zero for text and one for binary
+     * @param newFormatCode
+     * @return
+     */
+    public LocoField withFormatCode(int newFormatCode) {
+        if (newFormatCode == this.formatCode) {
+            return this;
+        }
+        return new LocoField(this.name, this.columnObjectId, this.columnAttributeNumber, this.objectId,
+                this.dataTypeSize, this.typeModifyier, newFormatCode, this.fieldPosition);
+    }
+
     /**
      * As per the documentation. Zero means text, One means binary. In a RowDescription returned from the statement
      * variant of DESCRIBE, the format code is not yet known and will always be zero.
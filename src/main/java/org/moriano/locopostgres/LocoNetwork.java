@@ -6,9 +6,21 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 /**
@@ -21,26 +33,282 @@ import java.util.Set;
  * 4 bytes representing an int32 that specifies the length of the packet. This class uses that information
  * to understand how many more bytes we have to read from the server.
  *
+ * Reading from the server is buffered: rather than asking the socket for the id byte, then the length and then
+ * the contents of every single packet, we read as many bytes as the socket has available into a big receive
+ * buffer and then cut the packets out of it. A single read normally brings dozens of DATA_ROW packets, and the
+ * packets we return are views over the receive buffer (see {@link Packet#fromBuffer}), so no bytes are copied.
+ * The price to pay is that a packet returned by {@link #readFromServer()} is only valid until the next call.
+ *
+ * Writing is buffered too. Packets given to {@link #queuePacketToServer(Packet)} are kept in a send buffer that
+ * is written to the socket in one go when a SYNC or FLUSH packet is queued (these are the points where the server
+ * is expected to answer, see the extended query protocol). This way the PARSE, BIND, DESCRIBE, EXECUTE and SYNC
+ * packets of a prepared statement travel in a single write instead of five.
+ *
+ * The send buffer is a {@link PacketWriter}, hot paths encode their packets straight into it (see
+ * {@link #getPacketWriter()}) and then call {@link #flush()}, so sending a query does not allocate any Packet at all.
+ *
+ * There are three transports to choose from with {@link LocoProperty#TRANSPORT}. The default one uses the streams
+ * of a blocking {@link Socket} with heap buffers, the JDK copies the bytes between those and native memory on every
+ * read and write. The second one uses a blocking {@link SocketChannel} with direct buffers, so the kernel reads
+ * straight into the receive buffer. The third one hands a non blocking {@link SocketChannel} to the shared
+ * {@link LocoEventLoop}, whose I/O threads read it as data arrives, and this class then takes the bytes from the
+ * {@link EventLoopChannel} instead of from the socket. Packets are views over the receive buffer in every case, and
+ * everything that decodes them works with absolute positions on a {@link ByteBuffer}, so nothing else cares which
+ * transport is in use.
+ *
+ * Result sets stream their rows straight from the socket, so while one of them is being read nothing else can be
+ * sent to the server. The result set that is still reading is the active one (see {@link #setActiveResultSet}),
+ * and before any other query is sent {@link #releaseActiveResultSet()} makes it keep the rest of its rows in memory
+ * so the connection is free again.
+ *
  * This class is ready to log every packet that is sent and received to and from the server. The rationale to
  * log those packets is to facilitate the study of the protocol.
  */
 public class LocoNetwork {
     private static final Logger log = LogManager.getLogger(LocoNetwork.class);
+
+    /**
+     * The size the receive buffer starts with, this fits many regular rows per read
+     */
+    private static final int DEFAULT_RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * After the receive buffer grows to hold a very wide row we keep it big for a while, as wide rows usually come
+     * together. Once the buffer has been refilled this many times without needing the extra room, we go back to
+     * the default size so a single huge value does not pin memory for the lifetime of the connection.
+     */
+    private static final int REFILLS_BEFORE_SHRINKING = 64;
+
+    /**
+     * The size the send buffer starts with
+     */
+    private static final int DEFAULT_SEND_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Queued packets are written as soon as this many bytes are pending, even if no SYNC or FLUSH was queued, so
+     * we never hold big amounts of data in memory just to save a few writes.
+     */
+    static final int SEND_BUFFER_FLUSH_THRESHOLD = 64 * 1024;
+
+    /**
+     * The values of {@link LocoProperty#TRANSPORT}
+     */
+    static final String TRANSPORT_SOCKET = "socket";
+    static final String TRANSPORT_CHANNEL = "channel";
+    static final String TRANSPORT_SELECTOR = "selector";
+
     private Socket socket;
     private InputStream inputStream;
     private OutputStream outputStream;
+
+    /**
+     * The channel to the server when the transport is a channel, null when it is a socket
+     */
+    private SocketChannel channel;
+
+    /**
+     * The channel to the server when the transport is the event loop, null otherwise
+     */
+    private EventLoopChannel eventLoopChannel;
+
+    /**
+     * The pipeline the connection is in, null if it is in none, see {@link LocoPipeline}
+     */
+    private LocoPipeline pipeline;
+
+    /**
+     * Runs the queries of {@link LocoConnection#queryAsync}, null until the first one
+     */
+    private volatile AsyncDispatcher asyncDispatcher;
+
+    /**
+     * With a channel or the event loop, the direct buffer the packets of the packet writer are copied to before
+     * writing them
+     */
+    private ByteBuffer sendBuffer;
     private final String host;
     private final int port;
 
+    /**
+     * The buffer where bytes from the server land. The bytes in [receiveStart, receiveEnd) have been read from the
+     * socket but not yet returned as packets.
+     */
+    private ByteBuffer receiveBuffer;
+    private int receiveStart = 0;
+    private int receiveEnd = 0;
+
+    /**
+     * How many times we can still refill a receive buffer that has grown beyond its default size before shrinking it
+     */
+    private int refillsBeforeShrinking = 0;
+
+    /**
+     * Packets that have been queued but not yet written to the socket
+     */
+    private final PacketWriter packetWriter = new PacketWriter(DEFAULT_SEND_BUFFER_SIZE);
+
+    /**
+     * Packets in the packet writer before this position have already been logged
+     */
+    private int loggedPosition = 0;
+
+    /**
+     * The last value the server reported for each of its run-time parameters. The server sends a PARAMETER_STATUS
+     * packet for them during the startup and again whenever one of them changes (for example after a SET TIME ZONE)
+     */
+    private final Map<String, String> serverParameters = new HashMap<>();
+
+    /**
+     * The TimeZone parameter of the session as a ZoneId, null if Java does not know that zone
+     */
+    private ZoneId serverTimeZone;
+
+    /**
+     * Incremented whenever the TimeZone or the DateStyle of the session change, see {@link #getDateTimeSettings()}
+     */
+    private long dateTimeSettings = 0;
+
+    /**
+     * Whether the last packets we sent ended with a FLUSH instead of a SYNC. The server does not close the implicit
+     * transaction, nor send READY_FOR_QUERY, until it gets a SYNC, see {@link #flushWithoutSync()}
+     */
+    private boolean syncPending = false;
+
+    /**
+     * The result set still reading its rows from the server, if any
+     */
+    private LocoResultSet activeResultSet;
+
+    /**
+     * Used to give a different name to each portal and cursor we open
+     */
+    private long portalCounter = 0;
+
+    /**
+     * The transaction status reported by the last READY_FOR_QUERY packet: 'I' when idle, 'T' inside a transaction
+     * block and 'E' inside a failed transaction block
+     */
+    private char transactionStatus = 'I';
+
+    /**
+     * How many of the SYNC and simple QUERY packets we wrote already got their READY_FOR_QUERY, see
+     * {@link #isQuiescent()}
+     */
+    private long syncPointsAnswered = 0;
+
+    /**
+     * The prepared statements we sent a Close for, with the number of SYNC packets written before it. Once the
+     * READY_FOR_QUERY of that SYNC arrives the Close was either done or skipped, see {@link #closeStatement(String)}
+     */
+    private final LinkedHashMap<String, Long> closedStatements = new LinkedHashMap<>();
+
+    /**
+     * The Close packets the server skipped because of an error, waiting to be written again
+     */
+    private final List<String> skippedCloses = new ArrayList<>();
+
+    /**
+     * Whether the server sent an ERROR_RESPONSE since the last READY_FOR_QUERY
+     */
+    private boolean errorSinceSync = false;
+
     public LocoNetwork(String host, int port) throws IOException  {
+        this(host, port, null);
+    }
+
+    public LocoNetwork(String host, int port, Properties properties) throws IOException  {
 
-        socket = new Socket(host, port);
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
+        String transport = LocoProperty.TRANSPORT.get(properties);
+        if (transport.equalsIgnoreCase(TRANSPORT_CHANNEL)) {
+            this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+            this.channel.setOption(StandardSocketOptions.TCP_NODELAY, LocoProperty.TCP_NO_DELAY.getBoolean(properties));
+            this.sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_FLUSH_THRESHOLD);
+        } else if (transport.equalsIgnoreCase(TRANSPORT_SELECTOR)) {
+            String threads = LocoProperty.EVENT_LOOP_THREADS.get(properties);
+            LocoEventLoop eventLoop;
+            try {
+                eventLoop = LocoEventLoop.shared(Integer.parseInt(threads.trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException("The property " + LocoProperty.EVENT_LOOP_THREADS.getName() +
+                        " must be an integer, value was " + threads, e);
+            }
+            SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+            try {
+                socketChannel.setOption(StandardSocketOptions.TCP_NODELAY,
+                        LocoProperty.TCP_NO_DELAY.getBoolean(properties));
+                this.eventLoopChannel = eventLoop.register(socketChannel);
+            } catch (IOException | RuntimeException e) {
+                socketChannel.close();
+                throw e;
+            }
+            this.sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_FLUSH_THRESHOLD);
+        } else if (transport.equalsIgnoreCase(TRANSPORT_SOCKET)) {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(LocoProperty.TCP_NO_DELAY.getBoolean(properties));
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+        } else {
+            throw new IOException("Unknown transport " + transport + ", it must be " + TRANSPORT_SOCKET + ", " +
+                    TRANSPORT_CHANNEL + " or " + TRANSPORT_SELECTOR);
+        }
+        this.receiveBuffer = this.allocateReceiveBuffer(DEFAULT_RECEIVE_BUFFER_SIZE);
         this.host = host;
         this.port = port;
     }
 
+    private void trackParameterStatus(ParameterStatus parameterStatus) {
+        String previous = this.serverParameters.put(parameterStatus.getName(), parameterStatus.getValue());
+        if ((parameterStatus.getName().equals("TimeZone") || parameterStatus.getName().equals("DateStyle")) &&
+                !parameterStatus.getValue().equals(previous)) {
+            this.dateTimeSettings++;
+        }
+        if (parameterStatus.getName().equals("TimeZone")) {
+            try {
+                this.serverTimeZone = ZoneId.of(parameterStatus.getValue());
+            } catch (DateTimeException e) {
+                log.debug("The server time zone " + parameterStatus.getValue() + " is unknown to Java", e);
+                this.serverTimeZone = null;
+            }
+        }
+    }
+
+    /**
+     * The last value reported by the server for the given run-time parameter, like server_version or TimeZone
+     * @param name
+     * @return
+     */
+    public String getServerParameter(String name) {
+        return this.serverParameters.get(name);
+    }
+
+    /**
+     * The time zone of the session, null if the server uses a time zone Java does not know about
+     * @return
+     */
+    public ZoneId getServerTimeZone() {
+        return serverTimeZone;
+    }
+
+    /**
+     * Whether the session shows dates and timestamps in ISO format (like 2024-01-31 13:45:00), which is the only
+     * one {@link BinaryDecoder#toText} knows
+     * @return
+     */
+    public boolean isIsoDateStyle() {
+        String dateStyle = this.serverParameters.get("DateStyle");
+        return dateStyle == null || dateStyle.startsWith("ISO");
+    }
+
+    /**
+     * A number that changes whenever the TimeZone or the DateStyle of the session do (after a SET TIME ZONE or a SET
+     * DateStyle, for instance). The result formats chosen for a statement depend on both, so statements that keep
+     * them compare this with the value they were chosen under.
+     * @return
+     */
+    public long getDateTimeSettings() {
+        return dateTimeSettings;
+    }
+
     public String getHost() {
         return host;
     }
@@ -76,44 +344,701 @@ public class LocoNetwork {
         } catch (Exception e) {
             log.error("Could not close the socket!", e);
         }
+
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+            if (this.eventLoopChannel != null) {
+                this.eventLoopChannel.close();
+            }
+        } catch (Exception e) {
+            log.error("Could not close the channel!", e);
+        }
     }
 
+    /**
+     * Reads the next packet sent by the server.
+     *
+     * Watch out! the packet returned is a view over the receive buffer, it will be overwritten by the following
+     * reads. Use {@link Packet#detach()} if you need to keep it.
+     * @return
+     * @throws SQLException
+     */
     public Packet readFromServer() throws SQLException {
         try {
-            byte byteIdFromServer = inputStream.readNBytes(1)[0];
-            byte[] packetRawSize = inputStream.readNBytes(4);
-            int packetSize = ByteUtil.getInt32(packetRawSize) - 4;
-            byte[] packetContents = inputStream.readNBytes(packetSize);
-            byte[] fullServerPacket = ByteUtil.concat(new byte[]{byteIdFromServer}, packetRawSize, packetContents);
-            Packet serverPacket = Packet.fromBytes(fullServerPacket);
-            log.debug(serverPacket);
-            return serverPacket;
+            /*
+            Every backend packet is 1 id byte plus an int32 with the length of the packet (which includes the int32
+            itself but not the id byte)
+             */
+            this.ensureBuffered(5);
+            int packetSize = this.receiveBuffer.getInt(this.receiveStart + 1) + 1;
+            this.ensureBuffered(packetSize);
+            return this.takePacket(packetSize);
         } catch(IOException e) {
-            throw new SQLException(e);
+            throw this.connectionFailed(e);
+        }
+    }
+
+    /**
+     * Returns the next packet sent by the server if the event loop already received the whole of it, without waiting
+     * for it otherwise. This is how {@link AsyncDispatcher} reads, from the I/O thread of the connection.
+     *
+     * The same as {@link #readFromServer()}, the packet is a view over the receive buffer.
+     * @return the packet, or null if it did not fully arrive yet
+     * @throws SQLException
+     */
+    Packet pollFromServer() throws SQLException {
+        try {
+            if (!this.tryBuffered(5)) {
+                return null;
+            }
+            int packetSize = this.receiveBuffer.getInt(this.receiveStart + 1) + 1;
+            if (!this.tryBuffered(packetSize)) {
+                return null;
+            }
+            return this.takePacket(packetSize);
+        } catch(IOException e) {
+            throw this.connectionFailed(e);
+        }
+    }
+
+    private Packet takePacket(int packetSize) {
+        Packet serverPacket = Packet.fromBuffer(this.receiveBuffer, this.receiveStart, packetSize);
+        this.receiveStart += packetSize;
+        log.debug(serverPacket);
+        if (serverPacket.getPacketType() == PacketType.BACKEND_PARAMETER_STATUS) {
+            this.trackParameterStatus(serverPacket.getParameterStatus());
+        } else if (serverPacket.getPacketType() == PacketType.BACKEND_ERROR_RESPONSE) {
+            this.errorSinceSync = true;
+        } else if (serverPacket.getPacketType() == PacketType.BACKEND_READY_FOR_QUERY) {
+            this.transactionStatus = (char) this.receiveBuffer.get(serverPacket.getOffset() + 5);
+            // The one after the startup answers nothing we wrote
+            if (this.syncPointsAnswered < this.packetWriter.getSyncPoints()) {
+                this.syncPointsAnswered++;
+            }
+            this.checkClosedStatements();
+            this.errorSinceSync = false;
+            this.releaseIfQuiescent();
+        }
+        return serverPacket;
+    }
+
+    /**
+     * Whether the server answered everything we sent and nothing is left to read or to send: every SYNC and simple
+     * QUERY got its READY_FOR_QUERY, nothing waits in the send buffer, no result set is still reading its rows and
+     * the last packets were not sent with {@link #flushWithoutSync()}
+     * @return
+     */
+    boolean isQuiescent() {
+        return this.packetWriter.position() == 0 && !this.syncPending && this.activeResultSet == null &&
+                this.pipeline == null && this.syncPointsAnswered >= this.packetWriter.getSyncPoints();
+    }
+
+    /**
+     * Lets the multiplexed queries of other threads run again if the JDBC call of this thread is over, see
+     * {@link AsyncDispatcher#claimForJdbc()}
+     */
+    private void releaseIfQuiescent() {
+        if (this.isQuiescent()) {
+            this.releaseJdbcClaim();
+        }
+    }
+
+    /**
+     * Reads the CopyData packets of a COPY TO STDOUT and writes their contents to the given stream, until the server
+     * sends anything else (a COPY_DONE, or an ERROR_RESPONSE if the COPY fails halfway), which is returned. The
+     * packets the server can send at any time (a NOTICE_RESPONSE from a RAISE NOTICE in a function the COPY query
+     * calls, a PARAMETER_STATUS, a NOTIFICATION_RESPONSE) do not end the COPY, they are read and skipped the same
+     * way {@link #readUntilPacketType(PacketType)} skips them.
+     *
+     * The contents go from the receive buffer straight to the stream, they never become a Packet nor get logged,
+     * that would cost more than the export itself. A CopyData bigger than the receive buffer (a very wide row) is
+     * written in pieces as they arrive instead of growing the buffer, so the memory used does not depend on the data.
+     *
+     * If writing to the stream fails we keep reading (and dropping) the rest of the CopyData packets, as the server
+     * sends all of them anyway, and throw the error of the stream once they are over. The connection can then be used
+     * again once READY_FOR_QUERY is read.
+     * @param target where the contents of the CopyData packets go
+     * @return the first packet that is not a CopyData
+     * @throws SQLException if reading from the server fails
+     * @throws IOException if writing to the stream fails
+     */
+    public Packet readCopyData(OutputStream target) throws SQLException, IOException {
+        IOException targetError = null;
+        byte[] scratch = null;
+        try {
+            while (true) {
+                this.ensureBuffered(5);
+                byte packetType = this.receiveBuffer.get(this.receiveStart);
+                if (packetType == 'N' || packetType == 'S' || packetType == 'A') {
+                    // Read as a packet so it gets logged, and a PARAMETER_STATUS tracked
+                    this.readFromServer();
+                    continue;
+                }
+                if (packetType != 'd') {
+                    break;
+                }
+                int remaining = this.receiveBuffer.getInt(this.receiveStart + 1) - 4;
+                this.receiveStart += 5;
+                if (log.isDebugEnabled()) {
+                    log.debug("CopyData of " + remaining + " bytes");
+                }
+                while (remaining > 0) {
+                    this.ensureBuffered(1);
+                    int chunk = Math.min(remaining, this.receiveEnd - this.receiveStart);
+                    if (targetError == null) {
+                        try {
+                            if (this.receiveBuffer.hasArray()) {
+                                target.write(this.receiveBuffer.array(), this.receiveStart, chunk);
+                            } else {
+                                // A direct buffer has no array, its bytes go through a small one
+                                if (scratch == null) {
+                                    scratch = new byte[8 * 1024];
+                                }
+                                for (int done = 0; done < chunk; done += scratch.length) {
+                                    int length = Math.min(scratch.length, chunk - done);
+                                    this.copyReceived(this.receiveStart + done, scratch, length);
+                                    target.write(scratch, 0, length);
+                                }
+                            }
+                        } catch (IOException e) {
+                            targetError = e;
+                        }
+                    }
+                    this.receiveStart += chunk;
+                    remaining -= chunk;
+                }
+            }
+        } catch (IOException e) {
+            throw this.connectionFailed(e);
+        }
+        Packet serverPacket = this.readFromServer();
+        if (targetError != null) {
+            throw targetError;
+        }
+        return serverPacket;
+    }
+
+    /**
+     * Makes sure that at least #required bytes that have not been consumed yet are in the receive buffer, reading
+     * from the socket as needed. Each read asks for as many bytes as the buffer can hold, so the socket usually
+     * gives us many packets at once.
+     */
+    private void ensureBuffered(int required) throws IOException {
+        if (this.receiveEnd - this.receiveStart >= required) {
+            return;
+        }
+
+        this.makeRoomFor(required);
+
+        while (this.receiveEnd - this.receiveStart < required) {
+            int read = this.receive();
+            if (read < 0) {
+                throw new IOException("The server closed the connection");
+            }
+            this.receiveEnd += read;
+        }
+    }
+
+    /**
+     * The same as {@link #ensureBuffered(int)}, but only with what the event loop already received
+     * @return whether the receive buffer has #required bytes
+     */
+    private boolean tryBuffered(int required) throws IOException {
+        if (this.receiveEnd - this.receiveStart >= required) {
+            return true;
+        }
+
+        this.makeRoomFor(required);
+
+        while (this.receiveEnd - this.receiveStart < required) {
+            this.receiveBuffer.limit(this.receiveBuffer.capacity()).position(this.receiveEnd);
+            int read = this.eventLoopChannel.readNow(this.receiveBuffer);
+            if (read < 0) {
+                throw new IOException("The server closed the connection");
+            } else if (read == 0) {
+                return false;
+            }
+            this.receiveEnd += read;
+        }
+        return true;
+    }
+
+    /**
+     * Reads as many bytes as the socket has (blocking until there is at least one) into the free room of the
+     * receive buffer, after receiveEnd
+     * @return the number of bytes read, -1 if the server closed the connection
+     */
+    private int receive() throws IOException {
+        if (this.inputStream != null) {
+            byte[] raw = this.receiveBuffer.array();
+            return this.inputStream.read(raw, this.receiveEnd, raw.length - this.receiveEnd);
+        }
+        // Packets only ever use absolute positions, so the position and limit of the buffer are ours to move
+        this.receiveBuffer.limit(this.receiveBuffer.capacity()).position(this.receiveEnd);
+        if (this.eventLoopChannel != null) {
+            return this.eventLoopChannel.read(this.receiveBuffer);
+        }
+        return this.channel.read(this.receiveBuffer);
+    }
+
+    /**
+     * Copies received bytes, starting at the given position of the receive buffer, to the start of the array
+     */
+    private void copyReceived(int position, byte[] target, int length) {
+        if (this.receiveBuffer.hasArray()) {
+            System.arraycopy(this.receiveBuffer.array(), position, target, 0, length);
+        } else {
+            ByteBuffer duplicate = this.receiveBuffer.duplicate();
+            duplicate.limit(position + length).position(position);
+            duplicate.get(target, 0, length);
         }
     }
 
+    /**
+     * A receive buffer of the given size, direct when the transport is a channel
+     */
+    private ByteBuffer allocateReceiveBuffer(int capacity) {
+        return this.channel == null ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Makes sure that the receive buffer can hold #required bytes starting at receiveStart. The pending bytes are
+     * moved to the beginning of the buffer, and the buffer grows when a single packet does not fit on it.
+     */
+    private void makeRoomFor(int required) {
+        int pending = this.receiveEnd - this.receiveStart;
+        int capacity = this.receiveBuffer.capacity();
+
+        if (required > capacity) {
+            // A packet bigger than our buffer (a very wide row), grow to the next power of two that fits it
+            capacity = Integer.highestOneBit(required - 1) << 1;
+            this.refillsBeforeShrinking = REFILLS_BEFORE_SHRINKING;
+        } else if (capacity > DEFAULT_RECEIVE_BUFFER_SIZE && required <= DEFAULT_RECEIVE_BUFFER_SIZE &&
+                pending <= DEFAULT_RECEIVE_BUFFER_SIZE && --this.refillsBeforeShrinking <= 0) {
+            capacity = DEFAULT_RECEIVE_BUFFER_SIZE;
+        } else if (capacity - this.receiveStart >= required) {
+            // There is enough room after the pending bytes, no need to move anything
+            return;
+        }
+
+        ByteBuffer target = capacity == this.receiveBuffer.capacity() ? this.receiveBuffer :
+                this.allocateReceiveBuffer(capacity);
+        if (this.receiveBuffer.hasArray()) {
+            System.arraycopy(this.receiveBuffer.array(), this.receiveStart, target.array(), 0, pending);
+        } else {
+            ByteBuffer source = this.receiveBuffer.duplicate();
+            source.limit(this.receiveEnd).position(this.receiveStart);
+            if (target == this.receiveBuffer) {
+                source.compact();
+            } else {
+                target.clear();
+                target.put(source);
+            }
+        }
+        this.receiveBuffer = target;
+        this.receiveStart = 0;
+        this.receiveEnd = pending;
+    }
+
     public boolean checkIfServerHasData() {
+        if (this.receiveEnd > this.receiveStart) {
+            return true;
+        }
         try {
-            return this.inputStream.available() > 0;
+            if (this.inputStream != null) {
+                return this.inputStream.available() > 0;
+            }
+            if (this.eventLoopChannel != null) {
+                // The I/O thread already read whatever arrived, take it without waiting for more
+                this.makeRoomFor(1);
+                this.receiveBuffer.limit(this.receiveBuffer.capacity()).position(this.receiveEnd);
+                int read = this.eventLoopChannel.readNow(this.receiveBuffer);
+                if (read < 0) {
+                    return true;
+                }
+                this.receiveEnd += read;
+                return read > 0;
+            }
+            // A channel cannot tell how many bytes are waiting, but a read that does not block can
+            this.makeRoomFor(1);
+            this.channel.configureBlocking(false);
+            try {
+                int read = this.receive();
+                if (read < 0) {
+                    // The next read will complain about it
+                    return true;
+                }
+                this.receiveEnd += read;
+                return read > 0;
+            } finally {
+                this.channel.configureBlocking(true);
+            }
         } catch (IOException e) {
-            log.error("No available bytes from inputstream", e);
+            log.error("No available bytes from the server", e);
             return false;
         }
     }
 
+    /**
+     * Sends a packet to the server right away, along with any packet that was queued before it.
+     * @param packet
+     * @throws SQLException
+     */
     public void sendPacketToServer(Packet packet) throws SQLException {
+        this.queuePacketToServer(packet);
+        this.flush();
+    }
+
+    /**
+     * Queues a packet to be sent to the server. The packet is not written until a SYNC or FLUSH packet is queued,
+     * {@link #flush()} is called or too many bytes are pending.
+     * @param packet
+     * @throws SQLException
+     */
+    public void queuePacketToServer(Packet packet) throws SQLException {
+        if (packet.getPacketType() != PacketType.FRONTEND_TERMINATE) {
+            // Closing the connection does not wait for anybody, the queries in flight fail
+            this.claimForJdbc();
+            this.writeSkippedCloses();
+        }
         log.debug(packet);
+        this.packetWriter.writeBytes(packet.getPacketContents(), 0, packet.getLength());
+        this.loggedPosition = this.packetWriter.position();
+        if (packet.getPacketType() == PacketType.FRONTEND_SYNC || packet.getPacketType() == PacketType.FRONTEND_QUERY) {
+            this.packetWriter.countSyncPoint();
+        }
+
+        if (packet.getPacketType() == PacketType.FRONTEND_SYNC || packet.getPacketType() == PacketType.FRONTEND_FLUSH) {
+            this.flush();
+        } else {
+            this.flushIfNeeded();
+        }
+    }
+
+    /**
+     * The writer holding the packets that are waiting to be sent. Packets written here directly are sent on the
+     * next {@link #flush()}, callers that write a lot of them in a loop should call {@link #flushIfNeeded()} from
+     * time to time.
+     *
+     * When other threads share the connection through multiplexed queries, the calling thread gets the connection
+     * for itself until it read every answer to what it is about to write, see {@link AsyncDispatcher#claimForJdbc()}.
+     * @return
+     */
+    public PacketWriter getPacketWriter() throws SQLException {
+        this.claimForJdbc();
+        this.writeSkippedCloses();
+        return packetWriter;
+    }
+
+    /**
+     * Queues a Close packet for the given prepared statement, which travels to the server with the next round trip.
+     *
+     * After an error the server skips every packet up to the next SYNC, so a Close queued in the middle of a
+     * pipeline (a statement evicted from the {@link StatementCache} by one of the entries of a batch, for instance)
+     * can be lost if an earlier entry fails, and the statement would stay on the server until the connection ends.
+     * We remember each Close until the READY_FOR_QUERY of its SYNC arrives, and if there was an error in between we
+     * write it again with the next packets. The server may have closed it before the error, but closing a statement
+     * that does not exist is not an error, and the names are never reused.
+     * @param statementName
+     * @throws SQLException
+     */
+    public void closeStatement(String statementName) throws SQLException {
+        this.getPacketWriter().writeClose('S', statementName);
+        this.closedStatements.put(statementName, this.packetWriter.getSyncPoints());
+    }
+
+    private void checkClosedStatements() {
+        Iterator<Map.Entry<String, Long>> closed = this.closedStatements.entrySet().iterator();
+        while (closed.hasNext()) {
+            Map.Entry<String, Long> entry = closed.next();
+            if (entry.getValue() >= this.syncPointsAnswered) {
+                // This one goes before a SYNC the server did not answer yet, and so do the ones after it
+                break;
+            }
+            closed.remove();
+            if (this.errorSinceSync) {
+                this.skippedCloses.add(entry.getKey());
+            }
+        }
+    }
+
+    private void writeSkippedCloses() {
+        if (this.skippedCloses.isEmpty()) {
+            return;
+        }
+        for (String statementName : this.skippedCloses) {
+            this.packetWriter.writeClose('S', statementName);
+            this.closedStatements.put(statementName, this.packetWriter.getSyncPoints());
+        }
+        this.skippedCloses.clear();
+    }
+
+    /**
+     * The connection broke while reading or writing. A JDBC call will never finish reading its answers now, so it
+     * gives the connection back, and whoever sends a multiplexed query next gets the error too.
+     * @param e
+     * @return the exception to throw
+     */
+    private SQLException connectionFailed(IOException e) {
+        this.releaseJdbcClaim();
+        return new SQLException(e);
+    }
+
+    private void releaseJdbcClaim() {
+        AsyncDispatcher asyncDispatcher = this.asyncDispatcher;
+        if (asyncDispatcher != null && asyncDispatcher.isJdbcOwner()) {
+            asyncDispatcher.releaseJdbc();
+        }
+    }
+
+    private void claimForJdbc() throws SQLException {
+        AsyncDispatcher asyncDispatcher = this.asyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.claimForJdbc();
+        }
+    }
+
+    /**
+     * Flushes the queued packets if they are above the threshold, so we never hold big amounts of data in memory
+     * just to save a few writes.
+     * @throws SQLException
+     */
+    public void flushIfNeeded() throws SQLException {
+        if (this.packetWriter.position() >= SEND_BUFFER_FLUSH_THRESHOLD) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes every queued packet to the socket with a single write
+     * @throws SQLException
+     */
+    public void flush() throws SQLException {
+        int pending = this.packetWriter.position();
+        if (pending == 0) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            this.logPacketsWrittenDirectly();
+        }
         try {
-            outputStream.write(packet.getPacketContents());
+            if (this.outputStream != null) {
+                outputStream.write(this.packetWriter.getBuffer(), 0, pending);
+                outputStream.flush();
+            } else {
+                this.writeToChannel(this.packetWriter.getBuffer(), pending);
+            }
         } catch (IOException e) {
-            throw new SQLException(e);
+            throw this.connectionFailed(e);
+        } finally {
+            // Do not keep around a buffer that grew for a one-off huge packet
+            this.packetWriter.clear(SEND_BUFFER_FLUSH_THRESHOLD);
+            this.loggedPosition = 0;
         }
     }
 
+    /**
+     * Writes the given bytes to the channel, or to the event loop channel, through the direct send buffer. Writing a
+     * heap buffer would make the JDK copy it to a temporary direct one anyway, this way that buffer is always the
+     * same.
+     */
+    private void writeToChannel(byte[] bytes, int length) throws IOException {
+        for (int offset = 0; offset < length; ) {
+            int chunk = Math.min(this.sendBuffer.capacity(), length - offset);
+            this.sendBuffer.clear();
+            this.sendBuffer.put(bytes, offset, chunk).flip();
+            if (this.eventLoopChannel != null) {
+                // Non blocking underneath, the event loop channel waits until all of it is written
+                this.eventLoopChannel.write(this.sendBuffer);
+            } else {
+                while (this.sendBuffer.hasRemaining()) {
+                    this.channel.write(this.sendBuffer);
+                }
+            }
+            offset += chunk;
+        }
+    }
+
+    /**
+     * Sends the queued packets followed by a FLUSH. The server answers everything up to that point, but keeps the
+     * implicit transaction (and with it our portals) open, which is what lets a result set fetch its rows a few at a
+     * time. Someone has to call {@link #sync()} afterwards, otherwise the server never sends READY_FOR_QUERY.
+     * @throws SQLException
+     */
+    public void flushWithoutSync() throws SQLException {
+        this.packetWriter.writeFlush();
+        this.syncPending = true;
+        this.flush();
+    }
+
+    /**
+     * Sends a SYNC if the last packets were sent with {@link #flushWithoutSync()}, closing the implicit transaction
+     * so the server sends READY_FOR_QUERY
+     * @throws SQLException
+     */
+    public void sync() throws SQLException {
+        if (this.syncPending) {
+            this.packetWriter.writeSync();
+            this.syncPending = false;
+            this.flush();
+        }
+    }
+
+    /**
+     * A new name for a portal, unique within this connection
+     * @return
+     */
+    public String nextPortalName() {
+        return "P_" + (++this.portalCounter);
+    }
+
+    /**
+     * A new name for a cursor, unique within this connection
+     * @return
+     */
+    public String nextCursorName() {
+        return "loco_cursor_" + (++this.portalCounter);
+    }
+
+    /**
+     * Whether the session is inside a transaction block (even a failed one), according to the last READY_FOR_QUERY
+     * @return
+     */
+    public boolean isInTransaction() {
+        return this.transactionStatus != 'I';
+    }
+
+    /**
+     * Marks the given result set as the one reading from the server, or none if null.
+     *
+     * When other threads share the connection through multiplexed queries the result set reads all of its rows right
+     * away instead. They wait for every JDBC call to read its answers (see {@link AsyncDispatcher#claimForJdbc()}),
+     * a result set left half read would keep them waiting for as long as it stays open.
+     * @param locoResultSet
+     */
+    public void setActiveResultSet(LocoResultSet locoResultSet) {
+        if (locoResultSet != null && this.asyncDispatcher != null) {
+            this.activeResultSet = null;
+            locoResultSet.bufferRemainingRows();
+        } else {
+            this.activeResultSet = locoResultSet;
+        }
+        if (this.activeResultSet == null) {
+            this.releaseIfQuiescent();
+        }
+    }
+
+    public LocoResultSet getActiveResultSet() {
+        return activeResultSet;
+    }
+
+    /**
+     * Makes sure no result set is still reading from the server, so a new query can be sent. Must be called before
+     * sending anything that expects an answer.
+     *
+     * The rows the active result set did not read yet are kept in memory, so it can still be used afterwards. This
+     * is the common "run a query for each row of another query" case: the outer result set ends up in memory as it
+     * would with other drivers, the inner ones keep streaming.
+     *
+     * Asynchronous queries still waiting for their answers are waited for as well, see {@link AsyncDispatcher}.
+     * @throws SQLException if the connection is in a pipeline, nothing else can be sent until it is closed
+     */
+    public void releaseActiveResultSet() throws SQLException {
+        this.checkNoPipeline();
+        AsyncDispatcher asyncDispatcher = this.asyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.awaitIdle();
+        }
+        this.bufferActiveResultSet();
+    }
+
+    /**
+     * Like {@link #releaseActiveResultSet()}, but for a connection whose user is done with it: the active result set
+     * is closed instead, the rows it did not read yet are skipped as they arrive rather than kept in memory, and its
+     * portal (or cursor) is closed so the server does not even produce the ones it was not asked for yet
+     * @throws SQLException if the connection is in a pipeline
+     */
+    void closeActiveResultSet() throws SQLException {
+        this.checkNoPipeline();
+        AsyncDispatcher asyncDispatcher = this.asyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.awaitIdle();
+        }
+        LocoResultSet locoResultSet = this.activeResultSet;
+        if (locoResultSet != null) {
+            locoResultSet.close();
+        }
+    }
+
+    /**
+     * Throws if the connection is in a pipeline, whose results would get mixed with the ones of anything else sent
+     * @throws SQLException
+     */
+    void checkNoPipeline() throws SQLException {
+        if (this.pipeline != null) {
+            throw new SQLException("The connection is in a pipeline, close it before running anything else");
+        }
+    }
+
+    /**
+     * Enters or, if null, leaves the pipeline mode. The connection stays claimed for the thread in between, see
+     * {@link AsyncDispatcher#claimForJdbc()}.
+     * @param pipeline
+     * @throws SQLException
+     */
+    void setPipeline(LocoPipeline pipeline) throws SQLException {
+        if (pipeline != null) {
+            this.claimForJdbc();
+        }
+        this.pipeline = pipeline;
+        if (pipeline == null) {
+            this.releaseIfQuiescent();
+        }
+    }
+
+    /**
+     * The part of {@link #releaseActiveResultSet()} that keeps the rows of the active result set in memory
+     * @throws SQLException
+     */
+    void bufferActiveResultSet() throws SQLException {
+        if (this.activeResultSet != null) {
+            LocoResultSet locoResultSet = this.activeResultSet;
+            this.activeResultSet = null;
+            locoResultSet.bufferRemainingRows();
+            this.releaseIfQuiescent();
+        }
+    }
+
+    /**
+     * Packets encoded straight into the packet writer were never wrapped in a Packet, so they have not been logged
+     * yet. Cut them out of the writer and log them, the same way {@link #queuePacketToServer(Packet)} does.
+     */
+    private void logPacketsWrittenDirectly() {
+        byte[] buffer = this.packetWriter.getBuffer();
+        int position = this.loggedPosition;
+        int end = this.packetWriter.position();
+        while (position + 5 <= end) {
+            int packetSize = ByteUtil.getInt32(buffer, position + 1) + 1;
+            if (buffer[position] == 'd') {
+                // The data of a COPY, dumping it would take longer than sending it
+                log.debug("CopyData of " + (packetSize - 5) + " bytes");
+                position += packetSize;
+                continue;
+            }
+            byte[] contents = new byte[packetSize];
+            System.arraycopy(buffer, position, contents, 0, packetSize);
+            log.debug(new Packet(PacketType.frontendPacketTypeFromByte(buffer[position]), contents));
+            position += packetSize;
+        }
+        this.loggedPosition = end;
+    }
+
     public byte readOneByte() {
         try {
-            return this.inputStream.readNBytes(1)[0];
+            this.ensureBuffered(1);
+            return this.receiveBuffer.get(this.receiveStart++);
         } catch (IOException e) {
             throw new RuntimeException("Could not read from server!", e);
         }
@@ -121,7 +1046,11 @@ public class LocoNetwork {
 
     public byte[] readNBytes(int n) {
         try {
-            return this.inputStream.readNBytes(n);
+            this.ensureBuffered(n);
+            byte[] result = new byte[n];
+            this.copyReceived(this.receiveStart, result, n);
+            this.receiveStart += n;
+            return result;
         } catch (IOException e) {
             throw new RuntimeException("Could not read from server!", e);
         }
@@ -138,7 +1067,8 @@ public class LocoNetwork {
         Packet serverPacket = null;
         do {
             serverPacket = this.readFromServer();
-            backendPacketType = PacketType.backendPacketTypeFromByte(serverPacket.getPacketContents()[0]);
+            backendPacketType = serverPacket.getPacketType();
+            this.raiseIfError(serverPacket, packetType);
         } while (backendPacketType != packetType);
         return serverPacket;
     }
@@ -161,9 +1091,11 @@ public class LocoNetwork {
         Packet serverPacket = null;
         do {
             serverPacket = this.readFromServer();
-            backendPacketType = PacketType.backendPacketTypeFromByte(serverPacket.getPacketContents()[0]);
+            backendPacketType = serverPacket.getPacketType();
+            this.raiseIfError(serverPacket, packetType);
             if (packetTypesToIgnore.contains(backendPacketType)) {
-                receivedPackets.add(serverPacket);
+                // The packet is a view over the receive buffer, keep a copy as we are about to read more
+                receivedPackets.add(serverPacket.detach());
             }
         } while (backendPacketType != packetType);
         return serverPacket;
@@ -174,16 +1106,47 @@ public class LocoNetwork {
         Packet serverPacket = null;
         do {
             serverPacket = this.readFromServer();
-            backendPacketType = PacketType.backendPacketTypeFromByte(serverPacket.getPacketContents()[0]);
+            backendPacketType = serverPacket.getPacketType();
+            if (!packetTypes.contains(backendPacketType)) {
+                this.raiseIfError(serverPacket, null);
+            }
         } while (!packetTypes.contains(backendPacketType));
         return serverPacket;
     }
 
+    /**
+     * Throws the error sent by the server if the packet is a BACKEND_ERROR_RESPONSE we were not explicitly waiting
+     * for, see {@link #raiseServerError(Packet)}
+     */
+    private void raiseIfError(Packet serverPacket, PacketType expectedPacketType) throws SQLException {
+        if (serverPacket.getPacketType() == PacketType.BACKEND_ERROR_RESPONSE &&
+                expectedPacketType != PacketType.BACKEND_ERROR_RESPONSE) {
+            this.raiseServerError(serverPacket);
+        }
+    }
+
+    /**
+     * Throws the error contained in the given BACKEND_ERROR_RESPONSE packet as a SQLException.
+     *
+     * After an error the server skips everything we sent until the next SYNC (or the end of the simple query) and
+     * then sends READY_FOR_QUERY. We send that SYNC if it is still pending and read up to that point before throwing,
+     * so the connection can still be used for the next query.
+     * @param errorPacket
+     * @throws SQLException always
+     */
+    public void raiseServerError(Packet errorPacket) throws SQLException {
+        ErrorResponse errorResponse = ErrorResponse.fromErrorResponsePacket(errorPacket);
+        // If we did not send the SYNC yet the server would wait for it forever
+        this.sync();
+        this.waitUntilReadyForQuery();
+        throw errorResponse.toSQLException();
+    }
+
     public void waitUntilReadyForQuery() throws SQLException {
         PacketType backendPacketType = null;
         do {
             Packet serverPacket = this.readFromServer();
-            backendPacketType = PacketType.backendPacketTypeFromByte(serverPacket.getPacketContents()[0]);
+            backendPacketType = serverPacket.getPacketType();
         } while (backendPacketType != PacketType.BACKEND_READY_FOR_QUERY);
     }
 
@@ -192,16 +1155,44 @@ public class LocoNetwork {
         Packet serverPacket = null;
         do {
              serverPacket = this.readFromServer();
-            backendPacketType = PacketType.backendPacketTypeFromByte(serverPacket.getPacketContents()[0]);
+            backendPacketType = serverPacket.getPacketType();
         } while (backendPacketType != PacketType.BACKEND_ROW_DESCRIPTION);
         return serverPacket;
     }
 
+    /**
+     * The dispatcher of the asynchronous and multiplexed queries of this connection
+     * @return
+     */
+    synchronized AsyncDispatcher getAsyncDispatcher() {
+        if (this.asyncDispatcher == null) {
+            this.asyncDispatcher = new AsyncDispatcher(this, this.eventLoopChannel != null);
+            if (this.eventLoopChannel != null) {
+                this.eventLoopChannel.setListener(this.asyncDispatcher::onInboundData);
+            }
+        }
+        return this.asyncDispatcher;
+    }
+
     public void close() {
+        AsyncDispatcher asyncDispatcher = this.asyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.beginClose();
+        }
         try {
-            this.socket.close();
+            if (this.channel != null) {
+                this.channel.close();
+            } else if (this.eventLoopChannel != null) {
+                this.eventLoopChannel.close();
+            } else {
+                this.socket.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (asyncDispatcher != null) {
+            // After the transport, a thread blocked reading from it holds the read lock until then
+            asyncDispatcher.close();
+        }
     }
 }
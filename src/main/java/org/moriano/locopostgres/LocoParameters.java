@@ -0,0 +1,455 @@
+package org.moriano.locopostgres;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The values bound to the parameters ($1, $2...) of a prepared statement.
+ *
+ * Each parameter has a type (its object id, see {@link Oid}) which we declare in the Parse packet, so the server
+ * never has to guess it, and a value which is encoded straight into the Bind packet by
+ * {@link #writeValues(PacketWriter)}, no intermediate arrays of bytes are created.
+ *
+ * Fixed width types (bool, int2, int4, int8, float4, float8, date, timestamp) travel in binary format: an int8 is
+ * just its 8 bytes, cheaper to produce for us and cheaper to read for the server than its digits. These values are
+ * kept as a long, so setting them allocates nothing. bytea travels in binary too, as its binary format is the raw
+ * bytes. Everything else (text, numeric, time...) travels in text format.
+ */
+public class LocoParameters {
+
+    private static final int FORMAT_TEXT = 0;
+    private static final int FORMAT_BINARY = 1;
+
+    private final int[] objectIds;
+
+    /**
+     * The format of each parameter, text (0) or binary (1)
+     */
+    private final int[] formats;
+
+    /**
+     * The value of the fixed width parameters (a double is kept as its raw bits)
+     */
+    private final long[] primitiveValues;
+
+    /**
+     * The value of the variable width parameters, either a String or a byte[]
+     */
+    private final Object[] objectValues;
+
+    private final boolean[] nulls;
+    private final boolean[] bound;
+
+    public LocoParameters(int parameterCount) {
+        this.objectIds = new int[parameterCount];
+        this.formats = new int[parameterCount];
+        this.primitiveValues = new long[parameterCount];
+        this.objectValues = new Object[parameterCount];
+        this.nulls = new boolean[parameterCount];
+        this.bound = new boolean[parameterCount];
+    }
+
+    /**
+     * A copy of the current values, which is what a batch keeps for each of its entries
+     * @return
+     */
+    public LocoParameters copy() {
+        LocoParameters result = new LocoParameters(this.objectIds.length);
+        System.arraycopy(this.objectIds, 0, result.objectIds, 0, this.objectIds.length);
+        System.arraycopy(this.formats, 0, result.formats, 0, this.formats.length);
+        System.arraycopy(this.primitiveValues, 0, result.primitiveValues, 0, this.primitiveValues.length);
+        System.arraycopy(this.objectValues, 0, result.objectValues, 0, this.objectValues.length);
+        System.arraycopy(this.nulls, 0, result.nulls, 0, this.nulls.length);
+        System.arraycopy(this.bound, 0, result.bound, 0, this.bound.length);
+        return result;
+    }
+
+    /**
+     * The values of several entries of a batch one after the other, which are the parameters of the multi row insert
+     * they are folded into, see {@link ParsedQuery#getMultiRowSql(int)}
+     * @param entries the entries of the batch, all of them with the same number of parameters
+     * @param from the first entry to take
+     * @param count how many entries to take
+     * @return
+     */
+    public static LocoParameters concat(List<LocoParameters> entries, int from, int count) {
+        int width = entries.get(from).objectIds.length;
+        LocoParameters result = new LocoParameters(width * count);
+        for (int i = 0; i < count; i++) {
+            LocoParameters entry = entries.get(from + i);
+            int offset = i * width;
+            System.arraycopy(entry.objectIds, 0, result.objectIds, offset, width);
+            System.arraycopy(entry.formats, 0, result.formats, offset, width);
+            System.arraycopy(entry.primitiveValues, 0, result.primitiveValues, offset, width);
+            System.arraycopy(entry.objectValues, 0, result.objectValues, offset, width);
+            System.arraycopy(entry.nulls, 0, result.nulls, offset, width);
+            System.arraycopy(entry.bound, 0, result.bound, offset, width);
+        }
+        return result;
+    }
+
+    public int getParameterCount() {
+        return this.objectIds.length;
+    }
+
+    public void setNull(int parameterIndex, int oid) throws SQLException {
+        int idx = this.index(parameterIndex);
+        this.objectIds[idx] = oid;
+        this.formats[idx] = FORMAT_TEXT;
+        this.objectValues[idx] = null;
+        this.nulls[idx] = true;
+    }
+
+    public void setBoolean(int parameterIndex, boolean value) throws SQLException {
+        this.setPrimitive(parameterIndex, Oid.BOOL, value ? 1 : 0);
+    }
+
+    public void setShort(int parameterIndex, short value) throws SQLException {
+        this.setPrimitive(parameterIndex, Oid.INT2, value);
+    }
+
+    public void setInt(int parameterIndex, int value) throws SQLException {
+        this.setPrimitive(parameterIndex, Oid.INT4, value);
+    }
+
+    public void setLong(int parameterIndex, long value) throws SQLException {
+        this.setPrimitive(parameterIndex, Oid.INT8, value);
+    }
+
+    public void setFloat(int parameterIndex, float value) throws SQLException {
+        this.setPrimitive(parameterIndex, Oid.FLOAT4, Float.floatToRawIntBits(value));
+    }
+
+    public void setDouble(int parameterIndex, double value) throws SQLException {
+        this.setPrimitive(parameterIndex, Oid.FLOAT8, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * A date is sent as the number of days since 2000-01-01
+     */
+    public void setDate(int parameterIndex, LocalDate value) throws SQLException {
+        if (value == null) {
+            this.setNull(parameterIndex, Oid.DATE);
+            return;
+        }
+        this.setPrimitive(parameterIndex, Oid.DATE, value.toEpochDay() - BinaryDecoder.POSTGRES_EPOCH_DATE.toEpochDay());
+    }
+
+    /**
+     * A timestamp is sent as the number of microseconds since 2000-01-01 00:00:00. Postgres only keeps microseconds,
+     * the nanoseconds are rounded like the server does when it parses a timestamp.
+     */
+    public void setTimestamp(int parameterIndex, LocalDateTime value) throws SQLException {
+        if (value == null) {
+            this.setNull(parameterIndex, Oid.TIMESTAMP);
+            return;
+        }
+        long seconds = value.toEpochSecond(ZoneOffset.UTC) - BinaryDecoder.POSTGRES_EPOCH_SECONDS;
+        long micros = Math.addExact(Math.multiplyExact(seconds, 1_000_000L), (value.getNano() + 500) / 1000);
+        this.setPrimitive(parameterIndex, Oid.TIMESTAMP, micros);
+    }
+
+    public void setBytes(int parameterIndex, byte[] value) throws SQLException {
+        if (value == null) {
+            this.setNull(parameterIndex, Oid.BYTEA);
+            return;
+        }
+        int idx = this.index(parameterIndex);
+        this.objectIds[idx] = Oid.BYTEA;
+        this.formats[idx] = FORMAT_BINARY;
+        this.objectValues[idx] = value;
+        this.nulls[idx] = false;
+    }
+
+    /**
+     * Sets a parameter that travels in text format, the value is whatever the input function of the type accepts
+     * (for instance 12.50 for a numeric, or 10:15:00 for a time)
+     */
+    public void setText(int parameterIndex, int oid, String value) throws SQLException {
+        if (value == null) {
+            this.setNull(parameterIndex, oid);
+            return;
+        }
+        int idx = this.index(parameterIndex);
+        this.objectIds[idx] = oid;
+        this.formats[idx] = FORMAT_TEXT;
+        this.objectValues[idx] = value;
+        this.nulls[idx] = false;
+    }
+
+    private void setPrimitive(int parameterIndex, int oid, long value) throws SQLException {
+        int idx = this.index(parameterIndex);
+        this.objectIds[idx] = oid;
+        this.formats[idx] = FORMAT_BINARY;
+        this.primitiveValues[idx] = value;
+        this.objectValues[idx] = null;
+        this.nulls[idx] = false;
+    }
+
+    /**
+     * Parameters are numbered from 1, as everything in JDBC
+     */
+    private int index(int parameterIndex) throws SQLException {
+        if (parameterIndex < 1 || parameterIndex > this.objectIds.length) {
+            throw new SQLException("The parameter index is out of range: " + parameterIndex +
+                    ", number of parameters: " + this.objectIds.length);
+        }
+        this.bound[parameterIndex - 1] = true;
+        return parameterIndex - 1;
+    }
+
+    public void clear() {
+        for (int i = 0; i < this.objectIds.length; i++) {
+            this.objectIds[i] = Oid.UNSPECIFIED;
+            this.formats[i] = FORMAT_TEXT;
+            this.objectValues[i] = null;
+            this.nulls[i] = false;
+            this.bound[i] = false;
+        }
+    }
+
+    /**
+     * Makes sure every parameter has a value (which can be null), the server would reject the Bind otherwise
+     * @throws SQLException
+     */
+    public void checkAllBound() throws SQLException {
+        for (int i = 0; i < this.bound.length; i++) {
+            if (!this.bound[i]) {
+                throw new SQLException("No value specified for parameter " + (i + 1));
+            }
+        }
+    }
+
+    /**
+     * The object ids of the types of the parameters, as declared in the Parse packet
+     * @return
+     */
+    public int[] getObjectIds() {
+        return objectIds;
+    }
+
+    /**
+     * Writes the parameter format codes of the Bind packet. A single code applies to all the parameters, so that is
+     * what we send when all of them share the same format.
+     */
+    public void writeFormatCodes(PacketWriter packetWriter) {
+        int count = this.objectIds.length;
+        boolean allText = true;
+        boolean allBinary = true;
+        for (int i = 0; i < count; i++) {
+            boolean binary = this.formats[i] == FORMAT_BINARY;
+            allText &= !binary;
+            allBinary &= binary;
+        }
+        if (allText) {
+            packetWriter.writeInt16(0);
+        } else if (allBinary) {
+            packetWriter.writeInt16(1);
+            packetWriter.writeInt16(FORMAT_BINARY);
+        } else {
+            packetWriter.writeInt16(count);
+            for (int i = 0; i < count; i++) {
+                packetWriter.writeInt16(this.formats[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the number of parameters and, for each of them, the int32 with the length of its value followed by the
+     * value itself (-1 and no value for nulls)
+     */
+    public void writeValues(PacketWriter packetWriter) {
+        int count = this.objectIds.length;
+        packetWriter.writeInt16(count);
+        for (int i = 0; i < count; i++) {
+            if (this.nulls[i]) {
+                packetWriter.writeInt32(-1);
+                continue;
+            }
+            if (this.formats[i] == FORMAT_TEXT) {
+                // We only know how many bytes the text takes once it is encoded, the length is written afterwards
+                int lengthPosition = packetWriter.position();
+                packetWriter.writeInt32(0);
+                int length = packetWriter.writeUtf8((String) this.objectValues[i]);
+                packetWriter.writeInt32At(lengthPosition, length);
+                continue;
+            }
+            long value = this.primitiveValues[i];
+            switch (this.objectIds[i]) {
+                case Oid.BOOL:
+                    packetWriter.writeInt32(1);
+                    packetWriter.writeByte((int) value);
+                    break;
+                case Oid.INT2:
+                    packetWriter.writeInt32(2);
+                    packetWriter.writeInt16((int) value);
+                    break;
+                case Oid.INT4:
+                case Oid.FLOAT4:
+                case Oid.DATE:
+                    packetWriter.writeInt32(4);
+                    packetWriter.writeInt32((int) value);
+                    break;
+                case Oid.INT8:
+                case Oid.FLOAT8:
+                case Oid.TIMESTAMP:
+                    packetWriter.writeInt32(8);
+                    packetWriter.writeInt32((int) (value >>> 32));
+                    packetWriter.writeInt32((int) value);
+                    break;
+                default:
+                    // bytea, its binary format is simply the bytes
+                    byte[] bytes = (byte[]) this.objectValues[i];
+                    packetWriter.writeInt32(bytes.length);
+                    packetWriter.writeBytes(bytes);
+            }
+        }
+    }
+
+    /**
+     * Whether {@link #writeCopyValues(BinaryCopyWriter, int[])} can write these values to columns of the given types.
+     *
+     * The server reads the fields of a binary COPY with the type of their column, so each value must already be in
+     * the binary format of that type. That works when the value has the type of its column, or one the column type
+     * takes without loss (an int4 for an int8 column, a varchar for a text column...). Anything that an INSERT would
+     * have to convert in a way we cannot reproduce (a timestamp into a timestamptz, which depends on the time zone of
+     * the session, or a varchar into a json) is left to the INSERT.
+     * @param columnTypes the object id of the type of each column, see {@link Oid}
+     * @return
+     */
+    public boolean fitsCopyColumns(int[] columnTypes) {
+        for (int i = 0; i < this.objectIds.length; i++) {
+            if (this.nulls[i]) {
+                continue;
+            }
+            int oid = this.objectIds[i];
+            boolean fits;
+            switch (columnTypes[i]) {
+                case Oid.INT8:
+                    fits = oid == Oid.INT8 || oid == Oid.INT4 || oid == Oid.INT2;
+                    break;
+                case Oid.INT4:
+                    fits = oid == Oid.INT4 || oid == Oid.INT2;
+                    break;
+                case Oid.FLOAT8:
+                    fits = oid == Oid.FLOAT8 || oid == Oid.FLOAT4;
+                    break;
+                case Oid.NUMERIC:
+                    fits = oid == Oid.NUMERIC || oid == Oid.INT8 || oid == Oid.INT4 || oid == Oid.INT2;
+                    break;
+                case Oid.TEXT:
+                case Oid.VARCHAR:
+                case Oid.BPCHAR:
+                    fits = oid == Oid.VARCHAR || oid == Oid.TEXT;
+                    break;
+                case Oid.BOOL:
+                case Oid.INT2:
+                case Oid.FLOAT4:
+                case Oid.DATE:
+                case Oid.TIME:
+                case Oid.TIMESTAMP:
+                case Oid.UUID:
+                case Oid.BYTEA:
+                    fits = oid == columnTypes[i];
+                    break;
+                default:
+                    fits = false;
+            }
+            if (!fits) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes these values as the fields of a row of a binary COPY, each of them in the binary format of the type of
+     * its column. Only for columns that {@link #fitsCopyColumns(int[])}.
+     * @param writer where the row goes, it must have been started already
+     * @param columnTypes the object id of the type of each column, see {@link Oid}
+     * @throws SQLException
+     */
+    public void writeCopyValues(BinaryCopyWriter writer, int[] columnTypes) throws SQLException {
+        for (int i = 0; i < this.objectIds.length; i++) {
+            if (this.nulls[i]) {
+                writer.writeNull();
+                continue;
+            }
+            long value = this.primitiveValues[i];
+            switch (columnTypes[i]) {
+                case Oid.BOOL:
+                    writer.writeBoolean(value != 0);
+                    break;
+                case Oid.INT2:
+                    writer.writeShort((short) value);
+                    break;
+                case Oid.INT4:
+                case Oid.DATE:
+                    // A date is an int32 with the days since 2000-01-01, what we keep already
+                    writer.writeInt((int) value);
+                    break;
+                case Oid.INT8:
+                case Oid.TIMESTAMP:
+                    // Same for the microseconds since 2000-01-01 of a timestamp, an int64
+                    writer.writeLong(value);
+                    break;
+                case Oid.FLOAT4:
+                    writer.writeFloat(Float.intBitsToFloat((int) value));
+                    break;
+                case Oid.FLOAT8:
+                    writer.writeDouble(this.objectIds[i] == Oid.FLOAT4 ?
+                            Float.intBitsToFloat((int) value) : Double.longBitsToDouble(value));
+                    break;
+                case Oid.NUMERIC:
+                    writer.writeBigDecimal(this.objectIds[i] == Oid.NUMERIC ?
+                            new BigDecimal((String) this.objectValues[i]) : BigDecimal.valueOf(value));
+                    break;
+                case Oid.TIME:
+                    writer.writeTime(LocalTime.parse((String) this.objectValues[i]));
+                    break;
+                case Oid.UUID:
+                    writer.writeUuid(UUID.fromString((String) this.objectValues[i]));
+                    break;
+                case Oid.BYTEA:
+                    writer.writeBytes((byte[]) this.objectValues[i]);
+                    break;
+                default:
+                    // text, varchar and bpchar, whose binary format is the text itself
+                    writer.writeString((String) this.objectValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Only used for logging
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("LocoParameters{");
+        for (int i = 0; i < this.objectIds.length; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append('$').append(i + 1).append('=');
+            if (!this.bound[i]) {
+                result.append("<unset>");
+            } else if (this.nulls[i]) {
+                result.append("null");
+            } else if (this.objectValues[i] instanceof byte[]) {
+                result.append(new String((byte[]) this.objectValues[i], StandardCharsets.UTF_8));
+            } else if (this.objectValues[i] != null) {
+                result.append(this.objectValues[i]);
+            } else {
+                result.append(this.primitiveValues[i]);
+            }
+        }
+        return result.append('}').toString();
+    }
+}
@@ -0,0 +1,260 @@
+package org.moriano.locopostgres;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+
+/**
+ * An explicit pipeline on a connection, the way libpq does it, see {@link LocoConnection#pipeline()}.
+ *
+ * {@link #execute(String, Object...)} queues the Parse, Bind, Describe and Execute of a query without waiting for
+ * anything, and {@link #getResult()} gives the results back in the same order. Queries are sent as the send buffer
+ * fills up, and {@link #flush()} sends whatever is queued along with a FLUSH, so the server answers everything up to
+ * there without waiting for the rest. Fifty independent lookups then cost one round trip instead of fifty.
+ *
+ * {@link #sync()} sets a sync point. The queries between two sync points run in a single implicit transaction (unless
+ * a transaction block is open) and, as with any extended protocol query, after an error the server skips everything
+ * until the next sync point. The query that failed throws its error from {@link #getResult()}, and each query
+ * skipped after it throws an error with the state 25P02, in failed transaction. The queries after the sync point run
+ * normally.
+ *
+ * Watch out! The server does not read while it writes: a pipeline with many queries that return many rows should
+ * read some results before queuing more, otherwise both ends can end up waiting for the other to read. We read
+ * whatever results already arrived each time the send buffer is written, which is enough for the common case.
+ *
+ * While the pipeline is open the connection can be used for nothing else. {@link #close()} syncs whatever was not
+ * synced yet, drops the results nobody read and gives the connection back.
+ */
+public class LocoPipeline implements AutoCloseable {
+
+    private enum Entry {
+        QUERY, SYNC
+    }
+
+    private final LocoNetwork locoNetwork;
+    private final LocoConnection locoConnection;
+
+    /**
+     * What the server is going to answer, in order: the results of each query and the READY_FOR_QUERY of each sync
+     * point
+     */
+    private final ArrayDeque<Entry> expected = new ArrayDeque<>();
+
+    /**
+     * How many of the expected entries are queries
+     */
+    private int queriesExpected = 0;
+
+    /**
+     * Results read before the application asked for them, see {@link #readAhead()}. Each one is either a
+     * {@link LocoAsyncResult} or the SQLException of the query.
+     */
+    private final ArrayDeque<Object> readAhead = new ArrayDeque<>();
+
+    /**
+     * Whether a query failed and the server skips everything until the next sync point
+     */
+    private boolean aborted = false;
+
+    /**
+     * Whether queries were queued after the last sync point
+     */
+    private boolean syncPending = false;
+
+    /**
+     * Whether queries were queued after the last FLUSH or SYNC. The server keeps their results in its own buffer
+     * until it gets one of those, so we need to send a FLUSH before waiting for them.
+     */
+    private boolean flushPending = false;
+
+    private boolean closed = false;
+
+    LocoPipeline(LocoNetwork locoNetwork, LocoConnection locoConnection) throws SQLException {
+        this.locoNetwork = locoNetwork;
+        this.locoConnection = locoConnection;
+        this.locoNetwork.releaseActiveResultSet();
+        this.locoNetwork.setPipeline(this);
+    }
+
+    /**
+     * Queues the given query, it is sent once the send buffer fills up, or with {@link #flush()} or {@link #sync()}
+     * @param sql the query, with ? placeholders as in a PreparedStatement. It cannot be a COPY
+     * @param parameters the values of the placeholders, of the types {@link java.sql.PreparedStatement#setObject}
+     *                   takes
+     * @return this pipeline
+     * @throws SQLException
+     */
+    public LocoPipeline execute(String sql, Object... parameters) throws SQLException {
+        this.checkOpen();
+        // The statement only binds the parameters the same way a PreparedStatement does, it is never executed
+        LocoPreparedStatement statement = new LocoPreparedStatement(this.locoNetwork, sql, this.locoConnection);
+        ParsedQuery parsedQuery = statement.getParsedQuery();
+        if (parsedQuery.isCopy()) {
+            throw new SQLException("A COPY cannot run in a pipeline, use the CopyManager instead");
+        }
+        if (parameters != null) {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+        }
+        LocoParameters locoParameters = statement.getParameters();
+        locoParameters.checkAllBound();
+
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        packetWriter.writeParse(parsedQuery.getSql(), null, locoParameters.getObjectIds());
+        packetWriter.writeBind(null, null, locoParameters, null);
+        packetWriter.writeDescribe('P', null);
+        packetWriter.writeExecute(null, 0);
+        this.expected.add(Entry.QUERY);
+        this.queriesExpected++;
+        this.syncPending = true;
+        this.flushPending = true;
+        if (packetWriter.position() >= LocoNetwork.SEND_BUFFER_FLUSH_THRESHOLD) {
+            this.sendWithFlush();
+            this.readAhead();
+        }
+        return this;
+    }
+
+    /**
+     * Sends the queued queries followed by a FLUSH, so the server sends their results without waiting for a sync
+     * point
+     * @throws SQLException
+     */
+    public void flush() throws SQLException {
+        this.checkOpen();
+        this.sendWithFlush();
+    }
+
+    private void sendWithFlush() throws SQLException {
+        this.locoNetwork.getPacketWriter().writeFlush();
+        this.locoNetwork.flush();
+        this.flushPending = false;
+    }
+
+    /**
+     * Sets a sync point after the queued queries and sends them
+     * @throws SQLException
+     */
+    public void sync() throws SQLException {
+        this.checkOpen();
+        this.locoNetwork.getPacketWriter().writeSync();
+        this.expected.add(Entry.SYNC);
+        this.syncPending = false;
+        this.flushPending = false;
+        this.locoNetwork.flush();
+    }
+
+    /**
+     * The result of the next query, in the order they were queued, waiting for it if needed. Queries queued but not
+     * sent yet are sent first.
+     * @return the result, or null if every query queued already has its result
+     * @throws SQLException the error of the query, 25P02 if it was skipped because an earlier one failed
+     */
+    public LocoAsyncResult getResult() throws SQLException {
+        this.checkOpen();
+        Object outcome = this.readAhead.isEmpty() ? this.readNext() : this.readAhead.poll();
+        if (outcome instanceof SQLException) {
+            throw (SQLException) outcome;
+        }
+        return (LocoAsyncResult) outcome;
+    }
+
+    /**
+     * Reads the results that already arrived, so the server is not left waiting for us to read while we write
+     */
+    private void readAhead() throws SQLException {
+        while (this.queriesExpected > 0 && this.locoNetwork.checkIfServerHasData()) {
+            this.readAhead.add(this.readNext());
+        }
+    }
+
+    /**
+     * Reads the result of the next query from the server, going past the sync points before it
+     * @return its result, its SQLException, or null if no query is expected
+     */
+    private Object readNext() throws SQLException {
+        while (true) {
+            Entry entry = this.expected.poll();
+            if (entry == null) {
+                return null;
+            }
+            if (entry == Entry.SYNC) {
+                this.locoNetwork.waitUntilReadyForQuery();
+                this.aborted = false;
+                continue;
+            }
+            this.queriesExpected--;
+            if (this.flushPending) {
+                // What we are about to read might still be in our send buffer, or in the one of the server
+                this.sendWithFlush();
+            }
+            if (this.aborted) {
+                return new SQLException("Not executed, an earlier query of the pipeline failed", "25P02");
+            } else {
+                try {
+                    return this.readResult();
+                } catch (SQLException e) {
+                    this.aborted = true;
+                    return e;
+                }
+            }
+        }
+    }
+
+    private LocoAsyncResult readResult() throws SQLException {
+        LocoResultSet resultSet = null;
+        ArrayDeque<Packet> rows = null;
+        while (true) {
+            Packet packet = this.locoNetwork.readFromServer();
+            switch (packet.getPacketType()) {
+                case BACKEND_ROW_DESCRIPTION:
+                    rows = new ArrayDeque<>();
+                    resultSet = LocoResultSet.fromRows(this.locoNetwork, new LocoRowDescription(packet), rows);
+                    break;
+                case BACKEND_DATA_ROW:
+                    rows.add(packet.detach());
+                    break;
+                case BACKEND_COMMAND_COMPLETE:
+                    CommandComplete commandComplete = CommandComplete.fromCommandCompletePacket(packet);
+                    return new LocoAsyncResult(resultSet, commandComplete.getTag(), commandComplete.getRowCount());
+                case BACKEND_EMPTY_QUERY_RESPONSE:
+                    return new LocoAsyncResult(null, null, 0);
+                case BACKEND_ERROR_RESPONSE:
+                    throw ErrorResponse.fromErrorResponsePacket(packet).toSQLException();
+                default:
+                    // PARSE_COMPLETE, BIND_COMPLETE, NO_DATA, notices...
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Ends the pipeline: sets a sync point if there are queries after the last one, and reads and drops every result
+     * nobody asked for, so the connection can be used again
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            if (this.syncPending) {
+                this.sync();
+            }
+            while (!this.expected.isEmpty()) {
+                this.readNext();
+            }
+        } finally {
+            this.closed = true;
+            this.readAhead.clear();
+            this.locoNetwork.setPipeline(null);
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("The pipeline is closed");
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.moriano.locopostgres;
+
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * What {@link LocoDataSource#getConnection()} gives out: a handle on one of the connections of the pool, which goes
+ * back to the pool on {@link #close()} instead of being closed.
+ *
+ * Every method but close goes straight to the {@link LocoConnection} underneath, and fails once the handle is
+ * closed, so a connection given back cannot be used by mistake while someone else has it. The statements created
+ * here give this handle from their getConnection, not the connection underneath. The methods LocoPostgres
+ * adds to JDBC are reached with unwrap(LocoConnection.class), just keep in mind that closing what unwrap returns
+ * closes the physical connection for good.
+ */
+final class LocoPooledConnection implements Connection {
+
+    private final LocoDataSource dataSource;
+    private final PoolEntry entry;
+    private boolean closed = false;
+
+    LocoPooledConnection(LocoDataSource dataSource, PoolEntry entry) {
+        this.dataSource = dataSource;
+        this.entry = entry;
+    }
+
+    private LocoConnection connection() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("The connection is closed");
+        }
+        return this.entry.getConnection();
+    }
+
+    /**
+     * Gives the connection back to the pool
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.dataSource.giveBack(this.entry);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return this.closed;
+    }
+
+    @Override
+    public boolean isValid(int i) throws SQLException {
+        return !this.closed && this.entry.getConnection().isValid(i);
+    }
+
+    /**
+     * Closes the physical connection, it is not given back to the pool
+     * @param executor
+     * @throws SQLException
+     */
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.dataSource.evict(this.entry);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return this.connection().createStatement(this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s) throws SQLException {
+        return this.connection().prepareStatement(s, this);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s) throws SQLException {
+        return this.connection().prepareCall(s);
+    }
+
+    @Override
+    public String nativeSQL(String s) throws SQLException {
+        return this.connection().nativeSQL(s);
+    }
+
+    @Override
+    public void setAutoCommit(boolean b) throws SQLException {
+        this.connection().setAutoCommit(b);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return this.connection().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        this.connection().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        this.connection().rollback();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return this.connection().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean b) throws SQLException {
+        this.connection().setReadOnly(b);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return this.connection().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String s) throws SQLException {
+        this.connection().setCatalog(s);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return this.connection().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int i) throws SQLException {
+        this.connection().setTransactionIsolation(i);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return this.connection().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return this.connection().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        this.connection().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1) throws SQLException {
+        return this.connection().createStatement(i, i1);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
+        return this.connection().prepareStatement(s, i, i1);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s, int i, int i1) throws SQLException {
+        return this.connection().prepareCall(s, i, i1);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return this.connection().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        this.connection().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int i) throws SQLException {
+        this.connection().setHoldability(i);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return this.connection().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return this.connection().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String s) throws SQLException {
+        return this.connection().setSavepoint(s);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        this.connection().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        this.connection().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1, int i2) throws SQLException {
+        return this.connection().createStatement(i, i1, i2);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
+        return this.connection().prepareStatement(s, i, i1, i2);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s, int i, int i1, int i2) throws SQLException {
+        return this.connection().prepareCall(s, i, i1, i2);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i) throws SQLException {
+        return this.connection().prepareStatement(s, i);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
+        return this.connection().prepareStatement(s, ints);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
+        return this.connection().prepareStatement(s, strings);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return this.connection().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return this.connection().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return this.connection().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return this.connection().createSQLXML();
+    }
+
+    @Override
+    public void setClientInfo(String s, String s1) throws SQLClientInfoException {
+        if (this.closed) {
+            throw new SQLClientInfoException("The connection is closed", null);
+        }
+        this.entry.getConnection().setClientInfo(s, s1);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        if (this.closed) {
+            throw new SQLClientInfoException("The connection is closed", null);
+        }
+        this.entry.getConnection().setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String s) throws SQLException {
+        return this.connection().getClientInfo(s);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return this.connection().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String s, Object[] objects) throws SQLException {
+        return this.connection().createArrayOf(s, objects);
+    }
+
+    @Override
+    public Struct createStruct(String s, Object[] objects) throws SQLException {
+        return this.connection().createStruct(s, objects);
+    }
+
+    @Override
+    public void setSchema(String s) throws SQLException {
+        this.connection().setSchema(s);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return this.connection().getSchema();
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int i) throws SQLException {
+        this.connection().setNetworkTimeout(executor, i);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return this.connection().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        if (aClass.isInstance(this)) {
+            return aClass.cast(this);
+        }
+        return this.connection().unwrap(aClass);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return aClass.isInstance(this) || this.connection().isWrapperFor(aClass);
+    }
+}
@@ -1,13 +1,22 @@
 package org.moriano.locopostgres;
 
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.URL;
 import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * The implementation of the PreparedStatement interface.
@@ -16,118 +25,452 @@ import java.util.Set;
  * packets
  *
  * 1- Parse: A prepared query that may or may not contain parameters
- * 2- Bind: A packet specifying the number of parameters of the parse packet
+ * 2- Bind: A packet specifying the values of the parameters of the parse packet
  * 3- Portal Description
  * 4- Execute: An actual execution of the query (assuming that the query is correct, etc)
  * 5- Sync
+ *
+ * The query uses the JDBC placeholders (?), they are rewritten into the ones postgres understands ($1, $2...) by
+ * {@link ParsedQuery}. The values given to the setters are kept in a {@link LocoParameters} until the query is
+ * executed, their types are declared in the Parse packet and their values are encoded straight into the Bind one.
+ *
+ * The Parse packet is only sent the first time a query runs on the connection, the statement is prepared under a
+ * name and kept in the {@link StatementCache} of the connection. Later executions, even from other
+ * PreparedStatement objects with the same sql, go straight to Bind and Execute.
+ *
+ * With a fetch size (see {@link #setFetchSize(int)}) queries run on a named portal and the Sync is only sent once
+ * the result set has read all its rows, see {@link LocoResultSet}.
+ *
+ * Batches are pipelined, see {@link #executeBatch()}: a Bind and an Execute for each entry, and a single Sync at the
+ * end, so the whole batch takes about one round trip instead of one per entry.
  */
 public class LocoPreparedStatement implements PreparedStatement {
 
+    /**
+     * How many executions of a batch we send before reading the results of the previous ones, see
+     * {@link #executeBatch()}
+     */
+    private static final int BATCH_WINDOW = 256;
+
+    /**
+     * The most rows a batch folds into a single multi row insert, see {@link #foldedEntries(int)}. Beyond this the
+     * statements only get bigger, not faster.
+     */
+    private static final int MAX_REWRITTEN_ROWS = 256;
+
+    /**
+     * Whether the target of an insert is a table a COPY loads the same way, see {@link #executeBatchAsCopy()}. Only
+     * ordinary and partitioned tables without rules or row level security are, and only if none of the columns the
+     * insert gives a value ($2) is GENERATED ALWAYS.
+     */
+    private static final String COPY_TARGET_CHECK =
+            "SELECT c.relkind IN ('r', 'p') AND NOT c.relhasrules AND NOT c.relrowsecurity AND NOT EXISTS (" +
+                    "SELECT 1 FROM pg_attribute a WHERE a.attrelid = c.oid AND a.attidentity = 'a' " +
+                    "AND a.attname::text = ANY ($2::text[])) " +
+            "FROM pg_class c WHERE c.oid = to_regclass($1)";
+
+    /**
+     * The number of parameters in a Bind packet is an int16, so there cannot be more than this many
+     */
+    private static final int MAX_BIND_PARAMETERS = 65535;
+
     private LocoNetwork locoNetwork;
-    private String query;
+    private final ParsedQuery parsedQuery;
+    private final LocoParameters parameters;
     private LocoResultSet locoResultSet;
-    private String statementName;
-    private int availableParameters;
-    private final Packet parse;
-    public LocoPreparedStatement(LocoNetwork locoNetwork, String rawQuery, String statementName) throws SQLException {
-        this.locoNetwork = locoNetwork;
-        this.query = rawQuery;
-        this.statementName = statementName;
-        this.parse = Packet.parse(this.query, statementName);
+    private final StatementCache statementCache;
+
+    /**
+     * The server side statement used by the last execution, so we do not need to look it up in the cache again as
+     * long as the types of the parameters do not change
+     */
+    private CachedStatement cachedStatement;
 
+    /**
+     * Whether the Parse packet was sent as part of the current execution, see {@link #executionFailed}
+     */
+    private boolean parsedInThisExecution;
+
+    /**
+     * The number of rows affected by the last execution, -1 if it returned a result set
+     */
+    private int updateCount = -1;
+
+    /**
+     * The format we ask the server to use for each result column when the statement cache is disabled, see
+     * {@link #preferredResultFormats}. We only know the types of the columns after the first execution, so that one
+     * always uses text. Cached statements keep their own, see {@link CachedStatement#getResultFormatCodes()}.
+     */
+    private int[] resultFormatCodes;
+
+    /**
+     * The {@link LocoNetwork#getDateTimeSettings()} {@link #resultFormatCodes} were chosen under
+     */
+    private long resultFormatSettings;
+
+    /**
+     * How many rows are fetched from the server at a time, zero means all of them in one go
+     */
+    private int fetchSize = 0;
+
+    /**
+     * The maximum number of rows a result set can have, zero means no limit
+     */
+    private int maxRows = 0;
+
+    /**
+     * The portal the current execution reads its rows from, null if it was sent with a Sync
+     */
+    private String portalName;
+
+    /**
+     * The values of the parameters of each entry of the batch
+     */
+    private final List<LocoParameters> batch = new ArrayList<>();
+
+    /**
+     * Whether batches of single row inserts are executed as multi row inserts, see {@link #foldedEntries(int)}
+     */
+    private final boolean rewriteBatchedInserts;
+
+    /**
+     * Batches of a plain insert with more entries than this run as a COPY, see {@link #executeBatchAsCopy()}. Zero
+     * when they never do.
+     */
+    private final int batchCopyThreshold;
+
+    private final LocoConnection locoConnection;
+
+    /**
+     * What {@link #getConnection()} returns, see {@link LocoStatement#getConnection()}
+     */
+    private final Connection owner;
+
+    public LocoPreparedStatement(LocoNetwork locoNetwork, String rawQuery, LocoConnection locoConnection)
+            throws SQLException {
+        this(locoNetwork, rawQuery, locoConnection, locoConnection);
+    }
+
+    public LocoPreparedStatement(LocoNetwork locoNetwork, String rawQuery, LocoConnection locoConnection,
+                                 Connection owner) throws SQLException {
+        this.owner = owner;
+        this.locoNetwork = locoNetwork;
+        this.parsedQuery = ParsedQuery.parse(rawQuery);
+        this.parameters = new LocoParameters(this.parsedQuery.getParameterCount());
+        this.locoConnection = locoConnection;
+        this.statementCache = locoConnection.getStatementCache();
+        this.rewriteBatchedInserts = locoConnection.isRewriteBatchedInserts();
+        this.batchCopyThreshold = locoConnection.getBatchCopyThreshold();
     }
 
     @Override
     public ResultSet executeQuery() throws SQLException {
-        this.locoNetwork.sendPacketToServer(parse);
-        Packet bind = Packet.bind(null, this.statementName, 0, null);
-        this.locoNetwork.sendPacketToServer(bind);
-        Packet describe = Packet.describePortal(null);
-        this.locoNetwork.sendPacketToServer(describe);
+        if (!this.executeWithDescription()) {
+            throw new SQLException("No results were returned by the query.");
+        }
+        return this.locoResultSet;
+    }
 
-        Packet execute = Packet.execute(this.statementName);
-        this.locoNetwork.sendPacketToServer(execute);
-        this.locoNetwork.sendPacketToServer(Packet.sync());
-        Packet rowDescription = this.locoNetwork.readUntilPacketType(PacketType.BACKEND_ROW_DESCRIPTION);
-        LocoRowDescription locoRowDescription = new LocoRowDescription(rowDescription);
-        this.locoResultSet = new LocoResultSet(this.locoNetwork, locoRowDescription);
-        return locoResultSet;
+    /**
+     * Executes the query making sure we know the description of the result, so we know whether the query returns
+     * rows at all.
+     * @return true if the query returns rows, that is, if {@link #locoResultSet} is ready to be read
+     * @throws SQLException
+     */
+    private boolean executeWithDescription() throws SQLException {
+        boolean describing = this.sendExecution(true);
+        Packet description = null;
+        try {
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_BIND_COMPLETE);
+            if (describing) {
+                description = this.locoNetwork.readUntilPacketTypes(
+                        Set.of(PacketType.BACKEND_ROW_DESCRIPTION, PacketType.BACKEND_NO_DATA));
+            }
+        } catch (SQLException e) {
+            this.executionFailed(e);
+            throw e;
+        }
+
+        LocoRowDescription locoRowDescription;
+        if (!describing) {
+            // A statement we already described, the server sends the rows straight away
+            locoRowDescription = this.cachedStatement.getRowDescription();
+        } else if (description.getPacketType() == PacketType.BACKEND_NO_DATA) {
+            locoRowDescription = null;
+            if (this.cachedStatement != null) {
+                this.cachedStatement.describe(null, null, this.locoNetwork.getDateTimeSettings());
+            }
+        } else {
+            locoRowDescription = new LocoRowDescription(description);
+            this.rememberDescription(locoRowDescription);
+        }
+
+        if (locoRowDescription == null) {
+            // Something like an INSERT, there are no rows to read but there is an update count
+            this.locoResultSet = null;
+            this.updateCount = this.readUpdateCount();
+            return false;
+        }
+        this.locoResultSet = new LocoResultSet(this.locoNetwork, locoRowDescription, this.portalName, this.fetchSize,
+                this.maxRows);
+        this.updateCount = -1;
+        return true;
+    }
+
+    /**
+     * Chooses the result formats for the next executions based on the description the server just sent us. Cached
+     * statements keep the description itself too, with those formats applied, so the next executions neither ask
+     * for it nor parse it again.
+     */
+    private void rememberDescription(LocoRowDescription locoRowDescription) {
+        int[] formats = this.preferredResultFormats(locoRowDescription);
+        if (this.cachedStatement == null) {
+            this.resultFormatCodes = formats;
+            this.resultFormatSettings = this.locoNetwork.getDateTimeSettings();
+        } else {
+            this.cachedStatement.describe(locoRowDescription.withFormatCodes(formats), formats,
+                    this.locoNetwork.getDateTimeSettings());
+        }
     }
 
+    /**
+     * Sends the packets to execute the query with the current values of the parameters.
+     * @param needsDescription whether we need to know the description of the result. The server is only asked to
+     *                         describe it if it is not already known, without it the server sends the rows (if any)
+     *                         but not what their columns are
+     * @return whether the server was asked to describe the result
+     * @throws SQLException
+     */
+    private boolean sendExecution(boolean needsDescription) throws SQLException {
+        this.parameters.checkAllBound();
+        if (this.locoResultSet != null) {
+            // Executing the statement again closes its previous result set, whatever it did not read is discarded
+            this.locoResultSet.close();
+            this.locoResultSet = null;
+        }
+        this.locoNetwork.releaseActiveResultSet();
+
+        CachedStatement statement = this.lookupStatement(this.parameters.getObjectIds());
+        String statementName = statement == null ? null : statement.getName();
+        this.parsedInThisExecution = statement == null || !statement.isParsed();
+        boolean describe = needsDescription && (statement == null || !statement.isDescribed());
+        int[] formats = statement == null ? this.uncachedResultFormatCodes() : this.resultFormatCodesOf(statement);
+        // No point in a portal for something we know returns no rows
+        boolean returnsRows = describe || (needsDescription && statement.getRowDescription() != null);
+        this.portalName = this.fetchSize > 0 && returnsRows ? this.locoNetwork.nextPortalName() : null;
+
+        /*
+        All these packets are encoded straight into the send buffer and travel together when we flush after the
+        sync, the server does not answer anything until it gets the sync anyway
+         */
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        if (this.parsedInThisExecution) {
+            packetWriter.writeParse(this.parsedQuery.getSql(), statementName, this.parameters.getObjectIds());
+            if (statement != null) {
+                statement.markParsed();
+            }
+        }
+        packetWriter.writeBind(this.portalName, statementName, this.parameters, formats);
+        if (describe) {
+            packetWriter.writeDescribe('P', this.portalName);
+        }
+        if (this.portalName != null) {
+            int firstFetch = this.maxRows > 0 ? Math.min(this.fetchSize, this.maxRows) : this.fetchSize;
+            packetWriter.writeExecute(this.portalName, firstFetch);
+            this.locoNetwork.flushWithoutSync();
+        } else {
+            packetWriter.writeExecute(null, needsDescription ? this.maxRows : 0);
+            packetWriter.writeSync();
+            this.locoNetwork.flush();
+        }
+        return describe;
+    }
+
+    /**
+     * The result formats of a cached statement. They depend on the time zone and the date style of the session, if
+     * those changed since they were chosen (after a SET TIME ZONE or a SET DateStyle) they are chosen again from the
+     * description we keep.
+     */
+    private int[] resultFormatCodesOf(CachedStatement statement) {
+        long dateTimeSettings = this.locoNetwork.getDateTimeSettings();
+        LocoRowDescription locoRowDescription = statement.getRowDescription();
+        if (locoRowDescription != null && statement.getDateTimeSettings() != dateTimeSettings) {
+            int[] formats = this.preferredResultFormats(locoRowDescription);
+            statement.describe(locoRowDescription.withFormatCodes(formats), formats, dateTimeSettings);
+        }
+        return statement.getResultFormatCodes();
+    }
+
+    /**
+     * The result formats when the statement cache is disabled. We do not keep the description in that case, so if
+     * the time zone or the date style of the session changed we go back to text until the server describes the
+     * result again.
+     */
+    private int[] uncachedResultFormatCodes() {
+        if (this.resultFormatSettings != this.locoNetwork.getDateTimeSettings()) {
+            this.resultFormatCodes = null;
+        }
+        return this.resultFormatCodes;
+    }
+
+    /**
+     * The server side statement to execute with parameters of the given types, null if the statement cache is
+     * disabled, in which case the unnamed statement is used
+     */
+    private CachedStatement lookupStatement(int[] parameterTypes) throws SQLException {
+        if (!this.statementCache.isEnabled()) {
+            return null;
+        }
+        if (this.cachedStatement != null && this.cachedStatement.matches(this.parsedQuery.getSql(), parameterTypes)) {
+            this.statementCache.touch(this.cachedStatement);
+        } else {
+            this.cachedStatement = this.statementCache.get(this.parsedQuery.getSql(), parameterTypes);
+        }
+        return this.cachedStatement;
+    }
+
+    /**
+     * When an execution that included the Parse packet fails we do not know whether the server created the
+     * statement, so we drop it from the cache (and close it, just in case). The same goes for the errors that mean
+     * the server statement is gone (26000) or no longer valid (0A000, for instance "cached plan must not change
+     * result type" after an ALTER TABLE). Any other error, like a division by zero, leaves the statement as it was.
+     */
+    private void executionFailed(SQLException e) throws SQLException {
+        if (this.cachedStatement == null) {
+            return;
+        }
+        if (this.parsedInThisExecution || "26000".equals(e.getSQLState()) || "0A000".equals(e.getSQLState())) {
+            this.statementCache.invalidate(this.cachedStatement);
+            this.cachedStatement = null;
+        }
+    }
+
+    /**
+     * Reads until the end of the execution, returning the number of rows affected according to the COMMAND_COMPLETE
+     * packet
+     */
+    private int readUpdateCount() throws SQLException {
+        List<Packet> commandCompletes = new ArrayList<>(1);
+        try {
+            // The query may have been sent expecting rows, in which case the Sync is still pending
+            this.locoNetwork.sync();
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY,
+                    Set.of(PacketType.BACKEND_COMMAND_COMPLETE), commandCompletes);
+        } catch (SQLException e) {
+            this.executionFailed(e);
+            throw e;
+        }
+        if (commandCompletes.isEmpty()) {
+            return 0;
+        }
+        return CommandComplete.fromCommandCompletePacket(commandCompletes.get(0)).getAffectedRows();
+    }
+
+    /**
+     * Chooses binary format for every column whose type has a binary decoder (see {@link Oid#hasBinaryDecoder}),
+     * text for the rest. Dates and timestamps stay in text unless the session uses the ISO date style, and
+     * timestamps with time zone also if we do not know the time zone of the session, as we would not be able to
+     * print them the way the server does.
+     * @param locoRowDescription
+     * @return the format codes, or null if every column should use text
+     */
+    private int[] preferredResultFormats(LocoRowDescription locoRowDescription) {
+        boolean timeZoneKnown = this.locoNetwork.getServerTimeZone() != null;
+        boolean isoDateStyle = this.locoNetwork.isIsoDateStyle();
+        int[] formats = new int[locoRowDescription.getNumberOfFields()];
+        boolean anyBinary = false;
+        for (int i = 0; i < formats.length; i++) {
+            int oid = locoRowDescription.getFieldByPosition(i).getObjectId();
+            boolean dateTime = oid == Oid.DATE || oid == Oid.TIMESTAMP || oid == Oid.TIMESTAMPTZ;
+            if (Oid.hasBinaryDecoder(oid) && (!dateTime || isoDateStyle) && (oid != Oid.TIMESTAMPTZ || timeZoneKnown)) {
+                formats[i] = 1;
+                anyBinary = true;
+            }
+        }
+        return anyBinary ? formats : null;
+    }
 
     @Override
     public int executeUpdate() throws SQLException {
-        return 0;
+        this.sendExecution(false);
+        this.updateCount = this.readUpdateCount();
+        return this.updateCount;
     }
 
     @Override
     public void setNull(int i, int i1) throws SQLException {
-
+        this.parameters.setNull(i, Oid.fromSqlType(i1));
     }
 
     @Override
     public void setBoolean(int i, boolean b) throws SQLException {
-
+        this.parameters.setBoolean(i, b);
     }
 
     @Override
     public void setByte(int i, byte b) throws SQLException {
-
+        this.parameters.setShort(i, b);
     }
 
     @Override
     public void setShort(int i, short i1) throws SQLException {
-
+        this.parameters.setShort(i, i1);
     }
 
     @Override
     public void setInt(int i, int i1) throws SQLException {
-
+        this.parameters.setInt(i, i1);
     }
 
     @Override
     public void setLong(int i, long l) throws SQLException {
-
+        this.parameters.setLong(i, l);
     }
 
     @Override
     public void setFloat(int i, float v) throws SQLException {
-
+        this.parameters.setFloat(i, v);
     }
 
     @Override
     public void setDouble(int i, double v) throws SQLException {
-
+        this.parameters.setDouble(i, v);
     }
 
     @Override
     public void setBigDecimal(int i, BigDecimal bigDecimal) throws SQLException {
-
+        this.parameters.setText(i, Oid.NUMERIC, bigDecimal == null ? null : bigDecimal.toString());
     }
 
     @Override
     public void setString(int i, String s) throws SQLException {
-
+        this.parameters.setText(i, Oid.VARCHAR, s);
     }
 
     @Override
     public void setBytes(int i, byte[] bytes) throws SQLException {
-
+        this.parameters.setBytes(i, bytes);
     }
 
     @Override
     public void setDate(int i, Date date) throws SQLException {
-
+        this.parameters.setDate(i, date == null ? null : date.toLocalDate());
     }
 
     @Override
     public void setTime(int i, Time time) throws SQLException {
-
+        if (time == null) {
+            this.parameters.setNull(i, Oid.TIME);
+            return;
+        }
+        // toLocalTime drops the milliseconds
+        int millis = (int) Math.floorMod(time.getTime(), 1000L);
+        this.parameters.setText(i, Oid.TIME, time.toLocalTime().withNano(millis * 1_000_000).toString());
     }
 
     @Override
     public void setTimestamp(int i, Timestamp timestamp) throws SQLException {
-
+        this.parameters.setTimestamp(i, timestamp == null ? null : timestamp.toLocalDateTime());
     }
 
     @Override
@@ -153,27 +496,75 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public void clearParameters() throws SQLException {
-
+        this.parameters.clear();
     }
 
     @Override
     public void setObject(int i, Object o, int i1) throws SQLException {
-
+        if (o == null) {
+            this.setNull(i, i1);
+        } else {
+            this.setObject(i, o);
+        }
     }
 
     @Override
     public void setObject(int i, Object o) throws SQLException {
-
+        if (o == null) {
+            this.parameters.setNull(i, Oid.UNSPECIFIED);
+        } else if (o instanceof String) {
+            this.setString(i, (String) o);
+        } else if (o instanceof Integer) {
+            this.setInt(i, (Integer) o);
+        } else if (o instanceof Long) {
+            this.setLong(i, (Long) o);
+        } else if (o instanceof Short) {
+            this.setShort(i, (Short) o);
+        } else if (o instanceof Byte) {
+            this.setByte(i, (Byte) o);
+        } else if (o instanceof Boolean) {
+            this.setBoolean(i, (Boolean) o);
+        } else if (o instanceof Double) {
+            this.setDouble(i, (Double) o);
+        } else if (o instanceof Float) {
+            this.setFloat(i, (Float) o);
+        } else if (o instanceof BigDecimal) {
+            this.setBigDecimal(i, (BigDecimal) o);
+        } else if (o instanceof BigInteger) {
+            this.parameters.setText(i, Oid.NUMERIC, o.toString());
+        } else if (o instanceof byte[]) {
+            this.setBytes(i, (byte[]) o);
+        } else if (o instanceof Date) {
+            this.setDate(i, (Date) o);
+        } else if (o instanceof Time) {
+            this.setTime(i, (Time) o);
+        } else if (o instanceof Timestamp) {
+            this.setTimestamp(i, (Timestamp) o);
+        } else if (o instanceof LocalDate) {
+            this.parameters.setDate(i, (LocalDate) o);
+        } else if (o instanceof LocalDateTime) {
+            this.parameters.setTimestamp(i, (LocalDateTime) o);
+        } else if (o instanceof LocalTime) {
+            this.parameters.setText(i, Oid.TIME, o.toString());
+        } else if (o instanceof UUID) {
+            this.parameters.setText(i, Oid.UUID, o.toString());
+        } else if (o instanceof Character) {
+            this.setString(i, o.toString());
+        } else {
+            throw new SQLException("Cannot infer the SQL type to use for an instance of " + o.getClass().getName() +
+                    ". Use setObject() with an explicit Types value to specify the type to use.");
+        }
     }
 
     @Override
     public boolean execute() throws SQLException {
-        return false;
+        return this.executeWithDescription();
     }
 
     @Override
     public void addBatch() throws SQLException {
-
+        this.parameters.checkAllBound();
+        this.batch.add(this.parameters.copy());
     }
 
     @Override
@@ -223,7 +614,7 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public void setNull(int i, int i1, String s) throws SQLException {
-
+        this.setNull(i, i1);
     }
 
     @Override
@@ -243,7 +634,7 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public void setNString(int i, String s) throws SQLException {
-
+        this.setString(i, s);
     }
 
     @Override
@@ -278,7 +669,7 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public void setObject(int i, Object o, int i1, int i2) throws SQLException {
-
+        this.setObject(i, o, i1);
     }
 
     @Override
@@ -358,12 +749,20 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public int getMaxRows() throws SQLException {
-        return 0;
+        return this.maxRows;
     }
 
+    /**
+     * The limit travels in the Execute packet, so the server stops after that many rows
+     * @param i
+     * @throws SQLException
+     */
     @Override
     public void setMaxRows(int i) throws SQLException {
-
+        if (i < 0) {
+            throw new SQLException("The maximum number of rows must be zero or positive, it was " + i);
+        }
+        this.maxRows = i;
     }
 
     @Override
@@ -408,12 +807,12 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public ResultSet getResultSet() throws SQLException {
-        return null;
+        return this.locoResultSet;
     }
 
     @Override
     public int getUpdateCount() throws SQLException {
-        return 0;
+        return this.updateCount;
     }
 
     @Override
@@ -433,12 +832,15 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public void setFetchSize(int i) throws SQLException {
-
+        if (i < 0) {
+            throw new SQLException("The fetch size must be zero or positive, it was " + i);
+        }
+        this.fetchSize = i;
     }
 
     @Override
     public int getFetchSize() throws SQLException {
-        return 0;
+        return this.fetchSize;
     }
 
     @Override
@@ -458,17 +860,332 @@ public class LocoPreparedStatement implements PreparedStatement {
 
     @Override
     public void clearBatch() throws SQLException {
-
+        this.batch.clear();
     }
 
+    /**
+     * Executes every entry of the batch in a single pipeline.
+     *
+     * The statement is parsed once (or not at all if it is already in the statement cache), then a Bind and an
+     * Execute are sent for each entry and a single Sync at the end. We do not wait for the result of an entry before
+     * sending the next one, the server answers them in order with a BIND_COMPLETE and a COMMAND_COMPLETE each, which
+     * is where the update counts come from. A batch of 10000 inserts is a single round trip instead of 10000.
+     *
+     * We cannot simply send everything and then read: the server writes the results while it reads our packets, and
+     * if nobody reads them its socket buffer fills up and it stops reading, while we are blocked writing to it. So
+     * every BATCH_WINDOW executions we send a Flush, which makes the server send the results it has so far, and read
+     * the results of the window before. At most two windows of results are ever waiting, a few KiB.
+     *
+     * With {@link LocoProperty#REWRITE_BATCHED_INSERTS}, a single row INSERT ... VALUES (...) is executed as multi
+     * row inserts instead, see {@link #foldedEntries(int)}. Fewer, bigger statements save both the work the server
+     * does per statement and the packets of each execution.
+     *
+     * The whole batch runs in the implicit transaction that ends with the Sync, so if an entry fails none of them is
+     * applied. The server skips everything up to the Sync, and we throw a BatchUpdateException with the update counts
+     * of the entries before the failed execution.
+     * @return the update count of each entry
+     * @throws SQLException
+     */
     @Override
     public int[] executeBatch() throws SQLException {
-        return new int[0];
+        if (this.batch.isEmpty()) {
+            return new int[0];
+        }
+        if (this.locoResultSet != null) {
+            this.locoResultSet.close();
+            this.locoResultSet = null;
+        }
+        this.locoNetwork.releaseActiveResultSet();
+        this.updateCount = -1;
+        // Only the statements parsed in this pipeline are dropped if it fails, see parsedStatements
+        this.parsedInThisExecution = false;
+
+        if (this.batchCopyThreshold > 0 && this.batch.size() > this.batchCopyThreshold &&
+                this.parsedQuery.getCopySql() != null) {
+            int[] copyUpdateCounts = this.executeBatchAsCopy();
+            if (copyUpdateCounts != null) {
+                return copyUpdateCounts;
+            }
+        }
+
+        int[] updateCounts = new int[this.batch.size()];
+        /*
+        Each execution covers one entry, or several if they were folded into a multi row insert. These keep the first
+        entry and the number of entries of each execution sent, so we know where its update count goes
+         */
+        int[] executionFirstEntry = new int[this.batch.size()];
+        int[] executionEntries = new int[this.batch.size()];
+        int sent = 0;
+        int received = 0;
+        int nextEntry = 0;
+        boolean syncPending = false;
+        List<CachedStatement> parsedStatements = new ArrayList<>(1);
+        String unnamedStatementSql = null;
+        int[] unnamedStatementTypes = null;
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        try {
+            while (nextEntry < this.batch.size()) {
+                int entries = this.foldedEntries(nextEntry);
+                String sql;
+                LocoParameters parameters;
+                CachedStatement statement;
+                if (entries == 1) {
+                    sql = this.parsedQuery.getSql();
+                    parameters = this.batch.get(nextEntry);
+                    statement = this.lookupStatement(parameters.getObjectIds());
+                } else {
+                    sql = this.parsedQuery.getMultiRowSql(entries);
+                    parameters = LocoParameters.concat(this.batch, nextEntry, entries);
+                    statement = this.statementCache.get(sql, parameters.getObjectIds());
+                }
+                int[] parameterTypes = parameters.getObjectIds();
+                String statementName = statement == null ? null : statement.getName();
+                // The types of the parameters can change from one entry to the next (a null, for instance)
+                if (statement == null && (!sql.equals(unnamedStatementSql) ||
+                        !Arrays.equals(parameterTypes, unnamedStatementTypes))) {
+                    packetWriter.writeParse(sql, null, parameterTypes);
+                    unnamedStatementSql = sql;
+                    unnamedStatementTypes = parameterTypes;
+                } else if (statement != null && !statement.isParsed()) {
+                    packetWriter.writeParse(sql, statementName, parameterTypes);
+                    statement.markParsed();
+                    parsedStatements.add(statement);
+                }
+                packetWriter.writeBind(null, statementName, parameters, null);
+                packetWriter.writeExecute(null, 0);
+                executionFirstEntry[sent] = nextEntry;
+                executionEntries[sent] = entries;
+                nextEntry += entries;
+                sent++;
+
+                if (sent % BATCH_WINDOW == 0) {
+                    this.locoNetwork.flushWithoutSync();
+                    syncPending = true;
+                    while (sent - received > BATCH_WINDOW) {
+                        this.readBatchResult(updateCounts, executionFirstEntry[received], executionEntries[received]);
+                        received++;
+                    }
+                } else {
+                    this.locoNetwork.flushIfNeeded();
+                }
+            }
+            if (syncPending) {
+                this.locoNetwork.sync();
+            } else {
+                packetWriter.writeSync();
+                this.locoNetwork.flush();
+            }
+            while (received < sent) {
+                this.readBatchResult(updateCounts, executionFirstEntry[received], executionEntries[received]);
+                received++;
+            }
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+        } catch (SQLException e) {
+            // As with a single execution, statements parsed in the failed pipeline may not exist on the server
+            for (CachedStatement parsedStatement : parsedStatements) {
+                this.statementCache.invalidate(parsedStatement);
+            }
+            if (parsedStatements.contains(this.cachedStatement)) {
+                this.cachedStatement = null;
+            }
+            this.executionFailed(e);
+            int entriesDone = received < sent ? executionFirstEntry[received] : nextEntry;
+            throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(),
+                    Arrays.copyOf(updateCounts, entriesDone), e);
+        } finally {
+            this.batch.clear();
+        }
+        return updateCounts;
+    }
+
+    /**
+     * Executes the batch of a plain INSERT INTO t (a, b) VALUES (?, ?) as a COPY t (a, b) FROM STDIN (FORMAT binary),
+     * see {@link LocoProperty#BATCH_COPY_THRESHOLD}.
+     *
+     * A COPY skips most of what the server does for each executed statement, and loads rows several times faster
+     * than even a pipeline of inserts. The catch is that the server reads each field of a binary COPY with the type of
+     * its column, there is no implicit cast like in an INSERT. So we first ask the server for the types of the
+     * columns, by parsing the insert without declaring the types of its parameters: the server infers them from
+     * the columns, and a Describe tells us what it came up with. If every value can be written in the binary format
+     * of its column (see {@link LocoParameters#fitsCopyColumns(int[])}) the rows go to the COPY, otherwise the batch
+     * runs as inserts, as usual.
+     *
+     * Not every target of an insert behaves the same with a COPY: a view cannot be copied to at all, even if it takes
+     * inserts, a COPY ignores the rules of a table, refuses a table with row level security and happily writes the
+     * GENERATED ALWAYS identity columns an insert rejects. So the same round trip checks that the target is a table,
+     * maybe partitioned, without rules nor row level security, that none of the columns is an identity always, and
+     * anything else runs as inserts too, see {@link #describeCopyColumnTypes()}.
+     * Checking first matters, inside a transaction a failed COPY would leave nothing to fall back to.
+     *
+     * Like the batch, the COPY is all or nothing: if a row is rejected none of them is loaded.
+     * @return the update count of each entry, or null if the batch has to run as inserts
+     * @throws SQLException
+     */
+    private int[] executeBatchAsCopy() throws SQLException {
+        int entries = this.batch.size();
+        long rows;
+        try {
+            int[] columnTypes = this.describeCopyColumnTypes();
+            if (columnTypes == null) {
+                return null;
+            }
+            for (LocoParameters entry : this.batch) {
+                if (!entry.fitsCopyColumns(columnTypes)) {
+                    return null;
+                }
+            }
+            int columns = this.parsedQuery.getParameterCount();
+            try (BinaryCopyWriter writer = this.locoConnection.getCopyManager().copyInBinary(
+                    this.parsedQuery.getCopySql())) {
+                for (LocoParameters entry : this.batch) {
+                    writer.startRow(columns);
+                    entry.writeCopyValues(writer, columnTypes);
+                }
+                rows = writer.finish();
+            }
+        } catch (SQLException e) {
+            this.batch.clear();
+            throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), new int[0], e);
+        } catch (IOException e) {
+            this.batch.clear();
+            throw new BatchUpdateException(e.getMessage(), new int[0], e);
+        }
+        this.batch.clear();
+        // As with multi row inserts, a trigger may have skipped rows and then we cannot tell which
+        int[] updateCounts = new int[entries];
+        Arrays.fill(updateCounts, rows == entries ? 1 : SUCCESS_NO_INFO);
+        return updateCounts;
+    }
+
+    /**
+     * The types of the columns the parameters of this insert go to. The insert is parsed as the unnamed statement
+     * with the types of its parameters unspecified, so the server infers them from the columns, and described.
+     *
+     * In the same round trip we look the target up in pg_class, and its columns in pg_attribute, the name resolves
+     * the same way it does in the insert (search_path included) so it is the very same relation.
+     * @return the object id of the type of each column, see {@link Oid}, or null if the target is not a plain table
+     * @throws SQLException if the server rejects the insert
+     */
+    private int[] describeCopyColumnTypes() throws SQLException {
+        LocoParameters table = new LocoParameters(2);
+        table.setText(1, Oid.TEXT, this.parsedQuery.getCopyTable());
+        table.setText(2, Oid.TEXT, textArray(this.parsedQuery.getCopyColumns()));
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        packetWriter.writeParse(this.parsedQuery.getSql(), null, null);
+        packetWriter.writeDescribe('S', null);
+        packetWriter.writeParse(COPY_TARGET_CHECK, null, table.getObjectIds());
+        packetWriter.writeBind(null, null, table, null);
+        packetWriter.writeExecute(null, 0);
+        packetWriter.writeSync();
+        this.locoNetwork.flush();
+        Packet parameterDescription = this.locoNetwork.readUntilPacketType(PacketType.BACKEND_PARAMETER_DESCRIPTION);
+        int[] columnTypes = parameterDescription.getParameterTypes();
+        Packet check = this.locoNetwork.readUntilPacketTypes(
+                Set.of(PacketType.BACKEND_DATA_ROW, PacketType.BACKEND_COMMAND_COMPLETE));
+        // No row at all if the name does not resolve to a relation, which the insert just did, but just in case
+        boolean plainTable = check.getPacketType() == PacketType.BACKEND_DATA_ROW &&
+                "t".equals(LocoRow.fromPacket(check).getColumnAsString(0));
+        this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+        return plainTable ? columnTypes : null;
+    }
+
+    /**
+     * The text of an array literal holding the given values, {"a","b"}, each of them quoted so nothing in them is
+     * taken for the syntax of the array
+     * @param values
+     * @return
+     */
+    private static String textArray(String[] values) {
+        StringBuilder result = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append('"');
+            for (int j = 0; j < values[i].length(); j++) {
+                char current = values[i].charAt(j);
+                if (current == '"' || current == '\\') {
+                    result.append('\\');
+                }
+                result.append(current);
+            }
+            result.append('"');
+        }
+        return result.append('}').toString();
+    }
+
+    /**
+     * How many entries of the batch, starting at the given one, go into the next execution.
+     *
+     * Only when rewriting batched inserts, entries with the same types of parameters are folded into a multi row
+     * insert. The number of rows is always a power of two (a batch of 100 goes as 64 + 32 + 4), so each insert only
+     * ever becomes a handful of different statements, which the statement cache keeps prepared. The rows are capped
+     * by MAX_REWRITTEN_ROWS, and by the 65535 parameters a Bind packet can carry.
+     * @param firstEntry
+     * @return the number of entries, one if they are not folded
+     */
+    private int foldedEntries(int firstEntry) {
+        if (!this.rewriteBatchedInserts || !this.parsedQuery.isMultiRowInsertCompatible()) {
+            return 1;
+        }
+        int maxRows = Math.min(MAX_REWRITTEN_ROWS, MAX_BIND_PARAMETERS / this.parsedQuery.getParameterCount());
+        maxRows = Math.min(maxRows, this.batch.size() - firstEntry);
+        int[] parameterTypes = this.batch.get(firstEntry).getObjectIds();
+        int rows = 1;
+        while (rows < maxRows && Arrays.equals(parameterTypes, this.batch.get(firstEntry + rows).getObjectIds())) {
+            rows++;
+        }
+        return Integer.highestOneBit(rows);
+    }
+
+    /**
+     * Reads the result of the next execution of a batch, up to its COMMAND_COMPLETE, and sets the update counts of
+     * its entries. If the execution failed the server error is raised, once the server is ready for a query again.
+     *
+     * A multi row insert only tells us how many rows it inserted in total. When that is one per entry, as it should,
+     * each entry gets 1, otherwise (a trigger skipped some) we cannot tell which entry inserted what and they all
+     * get SUCCESS_NO_INFO.
+     * @param updateCounts the update counts of the whole batch
+     * @param firstEntry the first entry of the execution
+     * @param entries how many entries the execution covers
+     * @throws SQLException
+     */
+    private void readBatchResult(int[] updateCounts, int firstEntry, int entries) throws SQLException {
+        int rows = -1;
+        while (rows == -1) {
+            Packet serverPacket = this.locoNetwork.readFromServer();
+            PacketType packetType = serverPacket.getPacketType();
+            if (packetType == PacketType.BACKEND_COMMAND_COMPLETE) {
+                rows = CommandComplete.fromCommandCompletePacket(serverPacket).getAffectedRows();
+            } else if (packetType == PacketType.BACKEND_EMPTY_QUERY_RESPONSE) {
+                rows = 0;
+            } else if (packetType == PacketType.BACKEND_ERROR_RESPONSE) {
+                this.locoNetwork.raiseServerError(serverPacket);
+            }
+            // Anything else (PARSE_COMPLETE, BIND_COMPLETE, CLOSE_COMPLETE of an evicted statement...) is skipped
+        }
+        if (entries == 1) {
+            updateCounts[firstEntry] = rows;
+        } else {
+            Arrays.fill(updateCounts, firstEntry, firstEntry + entries, rows == entries ? 1 : SUCCESS_NO_INFO);
+        }
     }
 
     @Override
     public Connection getConnection() throws SQLException {
-        return null;
+        return this.owner;
+    }
+
+    ParsedQuery getParsedQuery() {
+        return parsedQuery;
+    }
+
+    /**
+     * The values given to the setters so far
+     * @return
+     */
+    LocoParameters getParameters() {
+        return parameters;
     }
 
     @Override
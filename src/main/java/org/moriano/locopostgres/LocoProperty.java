@@ -0,0 +1,134 @@
+package org.moriano.locopostgres;
+
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * The connection properties understood by LocoPostgres.
+ *
+ * Properties can be given either in the {@link Properties} passed to {@link LocoDriver#connect} or as parameters
+ * of the jdbc url, for example jdbc:loco:postgresql://localhost:5432/db?tcpNoDelay=false. When a property is
+ * present in both places, the url wins.
+ */
+public enum LocoProperty {
+
+    /**
+     * Whether to disable Nagle's algorithm on the socket. The driver already coalesces the packets of a round trip
+     * into a single write, so there is nothing to gain by letting the kernel delay them.
+     */
+    TCP_NO_DELAY("tcpNoDelay", "true", "Sets TCP_NODELAY on the socket to the server"),
+
+    /**
+     * How the connection talks to the server, see {@link LocoNetwork}: socket for the streams of a blocking socket
+     * with heap buffers, channel for a blocking SocketChannel with direct buffers, selector for a non blocking
+     * SocketChannel read by the I/O threads of the shared {@link LocoEventLoop}
+     */
+    TRANSPORT("transport", LocoNetwork.TRANSPORT_SOCKET,
+            "How to talk to the server, socket (blocking socket streams), channel (SocketChannel, direct buffers) " +
+                    "or selector (shared event loop)"),
+
+    /**
+     * How many I/O threads the shared {@link LocoEventLoop} runs, zero for one per two processors (at most 4). The
+     * loop is created by the first connection with the selector transport, the value given to later connections
+     * is ignored.
+     */
+    EVENT_LOOP_THREADS("eventLoopThreads", "0",
+            "The number of I/O threads of the event loop used by the selector transport, 0 picks it from the cores"),
+
+    /**
+     * How many server side prepared statements each connection keeps, see {@link StatementCache}. Zero disables
+     * them, every execution then parses its query again.
+     */
+    PREPARED_STATEMENT_CACHE_QUERIES("preparedStatementCacheQueries", "256",
+            "The maximum number of server side prepared statements cached per connection, 0 disables the cache"),
+
+    /**
+     * The estimated server memory, in MiB, the prepared statements of each connection can take, see
+     * {@link StatementCache}
+     */
+    PREPARED_STATEMENT_CACHE_SIZE_MIB("preparedStatementCacheSizeMiB", "5",
+            "The maximum estimated server memory in MiB taken by the cached prepared statements of a connection"),
+
+    /**
+     * Whether queries run through a {@link java.sql.Statement} read their rows from a cursor, a batch at a time, see
+     * {@link LocoCursor}. Meant for servers like Redshift, where the simple query protocol is the way to go and
+     * portals cannot be suspended.
+     */
+    USE_CURSOR_FETCH("useCursorFetch", "false",
+            "Reads the rows of the queries of a Statement from a cursor, a batch at a time"),
+
+    /**
+     * How many KiB of rows each FETCH of a cursor should bring, see {@link LocoCursor}
+     */
+    CURSOR_FETCH_BATCH_KIB("cursorFetchBatchKiB", "1024",
+            "The approximate size in KiB of each batch of rows fetched from a cursor when no fetch size is set"),
+
+    /**
+     * Whether batches of a single row INSERT ... VALUES (...) run as multi row inserts, see
+     * {@link LocoPreparedStatement#executeBatch()}. The update count of each entry is then 1 (or SUCCESS_NO_INFO
+     * when a multi row insert did not insert as many rows as entries) rather than what its own insert returned.
+     */
+    REWRITE_BATCHED_INSERTS("reWriteBatchedInserts", "false",
+            "Executes batches of single row inserts as multi row inserts"),
+
+    /**
+     * Batches of a plain INSERT INTO t (a, b) VALUES (?, ?) with more entries than this run as a binary COPY, see
+     * {@link LocoPreparedStatement#executeBatch()}. Every entry then gets an update count of 1. Zero, the default,
+     * never turns batches into a COPY.
+     */
+    BATCH_COPY_THRESHOLD("batchCopyThreshold", "0",
+            "Batches of plain inserts with more entries than this run as a binary COPY, 0 disables it");
+
+    private final String name;
+    private final String defaultValue;
+    private final String description;
+
+    LocoProperty(String name, String defaultValue, String description) {
+        this.name = name;
+        this.defaultValue = defaultValue;
+        this.description = description;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDefaultValue() {
+        return defaultValue;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the value of this property, or its default value if the property is not set
+     */
+    public String get(Properties properties) {
+        if (properties == null) {
+            return this.defaultValue;
+        }
+        return properties.getProperty(this.name, this.defaultValue);
+    }
+
+    public boolean getBoolean(Properties properties) {
+        return Boolean.parseBoolean(this.get(properties));
+    }
+
+    public int getInt(Properties properties) throws SQLException {
+        String value = this.get(properties);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("The property " + this.name + " must be an integer, value was " + value, e);
+        }
+    }
+
+    public DriverPropertyInfo toDriverPropertyInfo(Properties properties) {
+        DriverPropertyInfo result = new DriverPropertyInfo(this.name, this.get(properties));
+        result.description = this.description;
+        result.required = false;
+        return result;
+    }
+}
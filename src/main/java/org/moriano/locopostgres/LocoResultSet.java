@@ -4,29 +4,158 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayDeque;
 import java.util.Calendar;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * The class providing a a ResultSet implementation.
  *
  * In postgres when a query is executed, we need to first read
+ *
+ * Rows are read from the server as {@link #next()} is called, never all at once. By default the server sends every
+ * row in one go and the socket buffers hold whatever we did not read yet. With a fetch size (see
+ * {@link Statement#setFetchSize(int)}) the query runs on a named portal instead, and we ask the server for fetchSize
+ * rows at a time: an EXECUTE limited to that many rows, followed by a FLUSH so the implicit transaction (and the
+ * portal) stays open. After those rows the server sends BACKEND_PORTAL_SUSPENDED and {@link #next()} executes the
+ * portal again. This bounds how much of a huge result is on its way at any time, and the first rows can be
+ * processed before the query finishes. Once there are no more rows we close the portal and send the SYNC.
+ *
+ * The maximum number of rows (see {@link Statement#setMaxRows(int)}) limits the EXECUTE too, so the server never
+ * sends the rows we would drop.
+ *
+ * Result sets of a {@link Statement} can read their rows from a cursor instead, a batch at a time with FETCH, see
+ * {@link LocoCursor}.
+ *
+ * While a result set is reading from the server the connection cannot be used for anything else. If another query
+ * is sent before we are done, the rest of our rows are read into memory first, see {@link #bufferRemainingRows()}.
  */
 public class LocoResultSet implements ResultSet {
 
+    /**
+     * Dates and timestamps as the server sends them in text format with the ISO date style, like 2024-01-31,
+     * 2024-01-31 13:45:00.5 or 2024-01-31 13:45:00+01 for a timestamp with time zone
+     */
+    private static final DateTimeFormatter TEXT_DATE_TIME = new DateTimeFormatterBuilder()
+            .appendPattern("uuuu-MM-dd")
+            .optionalStart()
+            .appendPattern(" HH:mm:ss")
+            .optionalStart()
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .optionalEnd()
+            .optionalStart()
+            // Lenient, so the minutes and seconds are optional, the server only sends them when they are not zero
+            .parseLenient()
+            .appendOffset("+HH:mm:ss", "Z")
+            .parseStrict()
+            .optionalEnd()
+            .optionalEnd()
+            .toFormatter();
+
     private LocoNetwork locoNetwork;
     private LocoRowDescription locoRowDescription;
-    private Packet lastPacketFromServer;
     private boolean empty = false;
 
+    /**
+     * The row the result set is positioned on. The same LocoRow is reused for every row, see {@link LocoRow}
+     */
+    private final LocoRow currentRow = new LocoRow();
+    private boolean onRow = false;
+
+    /**
+     * Whether the server already told us there are no more rows, once this happens the READY_FOR_QUERY packet
+     * that ends the query has been consumed too
+     */
+    private boolean finished = false;
+
+    /**
+     * Whether the last column read was null, as required by {@link #wasNull()}
+     */
+    private boolean lastColumnWasNull = false;
+
+    /**
+     * The portal the rows are fetched from, null if the server sends all of them without waiting for us
+     */
+    private final String portalName;
+
+    /**
+     * How many rows we ask for each time the portal is executed, zero means all of them
+     */
+    private int fetchSize;
+
+    /**
+     * The maximum number of rows of this result set, zero means no limit
+     */
+    private final int maxRows;
+
+    private int rowsRead = 0;
+
+    /**
+     * The cursor the rows are fetched from, null if they do not come from one
+     */
+    private final LocoCursor cursor;
+
+    /**
+     * The rows read into memory by {@link #bufferRemainingRows()}, null while we still read from the server
+     */
+    private ArrayDeque<Packet> bufferedRows;
+
+    /**
+     * An error found while reading the rows into memory, thrown once the rows before it have been consumed
+     */
+    private SQLException bufferedError;
+
     public LocoResultSet(LocoNetwork locoNetwork, LocoRowDescription locoRowDescription) {
+        this(locoNetwork, locoRowDescription, null, 0, 0);
+    }
+
+    /**
+     * @param locoNetwork
+     * @param locoRowDescription
+     * @param portalName the portal the rows come from, if the query was sent with {@link LocoNetwork#flushWithoutSync()}
+     *                   so we can ask for more rows. Null if the query was sent with a SYNC
+     * @param fetchSize how many rows to ask for each time the portal is executed
+     * @param maxRows the limit on the number of rows the query was executed with, zero if none
+     */
+    public LocoResultSet(LocoNetwork locoNetwork, LocoRowDescription locoRowDescription, String portalName,
+                         int fetchSize, int maxRows) {
+        this(locoNetwork, locoRowDescription, portalName, null, fetchSize, maxRows);
+    }
+
+    /**
+     * A result set reading its rows from a cursor, the query declaring it has already been sent
+     * @param locoNetwork
+     * @param locoRowDescription
+     * @param cursor
+     * @param maxRows the limit on the number of rows, zero if none
+     */
+    public LocoResultSet(LocoNetwork locoNetwork, LocoRowDescription locoRowDescription, LocoCursor cursor,
+                         int maxRows) {
+        this(locoNetwork, locoRowDescription, null, cursor, 0, maxRows);
+    }
+
+    private LocoResultSet(LocoNetwork locoNetwork, LocoRowDescription locoRowDescription, String portalName,
+                          LocoCursor cursor, int fetchSize, int maxRows) {
         this.locoNetwork = locoNetwork;
         this.locoRowDescription = locoRowDescription;
+        this.portalName = portalName;
+        this.cursor = cursor;
+        this.fetchSize = fetchSize;
+        this.maxRows = maxRows;
         if (locoNetwork == null && locoRowDescription == null) {
             this.empty = true;
+        } else {
+            locoNetwork.setActiveResultSet(this);
         }
     }
 
@@ -34,47 +163,262 @@ public class LocoResultSet implements ResultSet {
         return new LocoResultSet(null, null);
     }
 
+    /**
+     * A result set over rows already read, it never reads from the server. The network is only used to know the
+     * time zone of the session.
+     * @param locoNetwork
+     * @param locoRowDescription
+     * @param rows detached DATA_ROW packets
+     * @return
+     */
+    static LocoResultSet fromRows(LocoNetwork locoNetwork, LocoRowDescription locoRowDescription,
+                                  ArrayDeque<Packet> rows) {
+        LocoResultSet resultSet = new LocoResultSet(null, null);
+        resultSet.empty = false;
+        resultSet.locoNetwork = locoNetwork;
+        resultSet.locoRowDescription = locoRowDescription;
+        resultSet.finished = true;
+        resultSet.bufferedRows = rows;
+        return resultSet;
+    }
+
+    /**
+     * Positions a result set made by {@link #fromRows} on the given row, which does not need to be detached as long
+     * as it is not used once the next one comes, see {@link LocoRowHandler}
+     * @param row
+     */
+    void positionOn(Packet row) throws SQLException {
+        this.currentRow.decode(row);
+        this.onRow = true;
+    }
+
     @Override
     public boolean next() throws SQLException {
-        if (this.empty) {
+        if (this.bufferedRows != null) {
+            return this.nextBufferedRow();
+        }
+        if (this.empty || this.finished) {
+            return false;
+        }
+        Packet row = this.readNextRow();
+        if (row == null) {
             return false;
         }
-        this.lastPacketFromServer = this.locoNetwork.readFromServer();
-        if (this.lastPacketFromServer.getPacketType() == PacketType.BACKEND_COMMAND_COMPLETE) {
+        // The row is decoded once here, getters read the columns in place
+        this.currentRow.decode(row);
+        this.onRow = true;
+        return true;
+    }
+
+    private boolean nextBufferedRow() throws SQLException {
+        Packet row = this.bufferedRows.poll();
+        if (row == null) {
+            this.onRow = false;
+            if (this.bufferedError != null) {
+                SQLException error = this.bufferedError;
+                this.bufferedError = null;
+                throw error;
+            }
             return false;
-        } else if (this.lastPacketFromServer.getPacketType() != PacketType.BACKEND_DATA_ROW) {
-            this.lastPacketFromServer = this.locoNetwork.readUntilPacketType(PacketType.BACKEND_DATA_ROW);
         }
+        this.currentRow.decode(row);
+        this.onRow = true;
         return true;
     }
 
+    /**
+     * Reads from the server until the next DATA_ROW, executing the portal again when it gets suspended.
+     * @return the DATA_ROW packet, or null if there are no more rows. In that case the READY_FOR_QUERY packet that
+     * ends the query has been consumed too, otherwise the next query on this connection would take it as its own
+     * answer
+     * @throws SQLException
+     */
+    private Packet readNextRow() throws SQLException {
+        while (true) {
+            Packet serverPacket = this.locoNetwork.readFromServer();
+            PacketType packetType = serverPacket.getPacketType();
+            if (packetType == PacketType.BACKEND_DATA_ROW) {
+                this.rowsRead++;
+                if (this.cursor != null) {
+                    this.cursor.rowReceived(serverPacket.getLength());
+                }
+                return serverPacket;
+            } else if (this.cursor != null) {
+                if (this.readFromCursor(serverPacket)) {
+                    return null;
+                }
+            } else if (packetType == PacketType.BACKEND_PORTAL_SUSPENDED) {
+                if (this.portalName != null && (this.maxRows == 0 || this.rowsRead < this.maxRows)) {
+                    this.fetchMoreRows();
+                } else {
+                    // We got as many rows as we wanted, the rest are never sent
+                    this.endOfRows();
+                    return null;
+                }
+            } else if (packetType == PacketType.BACKEND_COMMAND_COMPLETE ||
+                    packetType == PacketType.BACKEND_EMPTY_QUERY_RESPONSE) {
+                this.endOfRows();
+                return null;
+            } else if (packetType == PacketType.BACKEND_READY_FOR_QUERY) {
+                this.finish();
+                return null;
+            } else if (packetType == PacketType.BACKEND_ERROR_RESPONSE) {
+                // For instance a division by zero in the middle of the result
+                this.finish();
+                this.locoNetwork.raiseServerError(serverPacket);
+            }
+        }
+    }
+
+    /**
+     * Handles the packets of a cursor other than its rows. Each FETCH ends with a READY_FOR_QUERY, which is where we
+     * send the next FETCH, or close the cursor if it has no more rows (or we got as many as we wanted).
+     * @return true if there are no more rows
+     */
+    private boolean readFromCursor(Packet serverPacket) throws SQLException {
+        PacketType packetType = serverPacket.getPacketType();
+        if (packetType == PacketType.BACKEND_ERROR_RESPONSE) {
+            this.finish();
+            try {
+                this.locoNetwork.raiseServerError(serverPacket);
+            } finally {
+                this.cursor.abort(this.locoNetwork);
+            }
+        } else if (packetType == PacketType.BACKEND_READY_FOR_QUERY) {
+            if (this.cursor.mayHaveMoreRows() && this.cursor.fetchNext(this.locoNetwork, this.maxRows, this.rowsRead)) {
+                return false;
+            }
+            this.finish();
+            this.cursor.close(this.locoNetwork);
+            return true;
+        }
+        // Each FETCH describes its rows again, and ends with a COMMAND_COMPLETE, nothing to do with them
+        return false;
+    }
+
+    /**
+     * Executes the portal again for the next batch of rows, without exceeding the maximum number of rows
+     */
+    private void fetchMoreRows() throws SQLException {
+        int limit = this.fetchSize;
+        if (this.maxRows > 0) {
+            int remaining = this.maxRows - this.rowsRead;
+            limit = limit == 0 ? remaining : Math.min(limit, remaining);
+        }
+        this.locoNetwork.getPacketWriter().writeExecute(this.portalName, limit);
+        this.locoNetwork.flushWithoutSync();
+    }
+
+    /**
+     * No more rows will be read. If they came from our portal we close it and send the SYNC we still owe the
+     * server, then we skip whatever is still on its way until READY_FOR_QUERY. A cursor is closed after that.
+     */
+    private void endOfRows() throws SQLException {
+        this.finish();
+        if (this.portalName != null) {
+            this.locoNetwork.getPacketWriter().writeClose('P', this.portalName);
+            this.locoNetwork.sync();
+        }
+        if (this.cursor == null) {
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+            return;
+        }
+        try {
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+        } catch (SQLException e) {
+            this.cursor.abort(this.locoNetwork);
+            throw e;
+        }
+        this.cursor.close(this.locoNetwork);
+    }
+
+    private void finish() {
+        this.finished = true;
+        this.onRow = false;
+        if (this.locoNetwork != null && this.locoNetwork.getActiveResultSet() == this) {
+            this.locoNetwork.setActiveResultSet(null);
+        }
+    }
+
+    /**
+     * Reads every row we did not read yet into memory, so the connection can be used for another query while this
+     * result set is still open. The current row is copied too, as it points to the network buffer.
+     *
+     * Rows read this way lose the benefits of the fetch size, this only happens when the application sends another
+     * query on the same connection before it is done with this result set.
+     * @throws SQLException
+     */
+    void bufferRemainingRows() {
+        if (this.bufferedRows != null || this.empty) {
+            return;
+        }
+        boolean wasOnRow = this.onRow;
+        if (wasOnRow) {
+            this.currentRow.detach();
+        }
+        this.bufferedRows = new ArrayDeque<>();
+        if (!this.finished) {
+            try {
+                Packet row;
+                while ((row = this.readNextRow()) != null) {
+                    this.bufferedRows.add(row.detach());
+                }
+            } catch (SQLException e) {
+                // The connection is ready for the next query again, the error belongs to whoever reads these rows
+                this.bufferedError = e;
+            }
+        }
+        // Reading the rest of the rows does not move the application away from the row it is on
+        this.onRow = wasOnRow;
+    }
+
     @Override
     public void close() throws SQLException {
-        // Intentionally empty
+        if (this.bufferedRows != null) {
+            this.bufferedRows.clear();
+            this.bufferedError = null;
+            this.finish();
+            return;
+        }
+        /*
+        Rows nobody read are still on their way, skip them so the connection is ready for the next query. If they
+        come from a portal it is closed, so the server does not even produce the ones we did not ask for yet
+         */
+        if (!this.empty && !this.finished) {
+            this.endOfRows();
+        }
     }
 
     @Override
     public boolean wasNull() throws SQLException {
-        LocoRow locoRow = LocoRow.fromPacket(this.lastPacketFromServer);
-        int totalColumns = locoRow.getTotalColumns();
-        return this.getRawBytes(totalColumns) == null;
+        return this.lastColumnWasNull;
     }
 
     @Override
     public String getString(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        return rawData == null ? null : new String(rawData);
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        }
+        return this.columnAsText(column);
     }
 
     @Override
     public boolean getBoolean(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        if (rawData == null) {
+        int column = this.columnIndex(i);
+        int length = this.currentRow.getColumnLength(column);
+        LocoField binaryField = this.binaryField(column);
+        if (length == -1) {
             return false;
-        } else if (rawData.length > 1) {
-            throw new SQLException("The column cannot be represented as a boolean, value was " + new String(rawData));
+        } else if (binaryField != null && binaryField.getObjectId() == Oid.BOOL) {
+            return BinaryDecoder.decodeBool(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column));
+        } else if (binaryField != null) {
+            return this.columnAsText(column).equals("t");
+        } else if (length != 1) {
+            throw new SQLException("The column cannot be represented as a boolean, value was " +
+                    this.currentRow.getColumnAsString(column));
         } else {
-            char value = (char)rawData[0];
+            char value = (char)this.currentRow.getBuffer().get(this.currentRow.getColumnOffset(column));
             if (value == 't') {
                 return true;
             } else {
@@ -85,59 +429,86 @@ public class LocoResultSet implements ResultSet {
 
     @Override
     public byte getByte(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        return rawData == null ? 0 : rawData[0];
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return 0;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return (byte) this.binaryAsLong(column, binaryField, Byte.MIN_VALUE, Byte.MAX_VALUE, "byte");
+        }
+        return NumberParser.parseByte(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     @Override
     public short getShort(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        int power = 0;
-        short total = 0;
-        char[] chars = ByteUtil.asCharArray(rawData);
-        for (int idx = chars.length - 1; idx >= 0; idx--) {
-            total += Character.getNumericValue(chars[idx]) * Math.pow(10, power);
-            power++;
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return 0;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return (short) this.binaryAsLong(column, binaryField, Short.MIN_VALUE, Short.MAX_VALUE, "short");
         }
-        return total;
+        return NumberParser.parseShort(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     @Override
     public int getInt(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        int power = 0;
-        int total = 0;
-        char[] chars = ByteUtil.asCharArray(rawData);
-        for (int idx = chars.length - 1; idx >= 0; idx--) {
-            total += Character.getNumericValue(chars[idx]) * Math.pow(10, power);
-            power++;
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return 0;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return (int) this.binaryAsLong(column, binaryField, Integer.MIN_VALUE, Integer.MAX_VALUE, "int");
         }
-        return total;
+        return NumberParser.parseInt(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     @Override
     public long getLong(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        int power = 0;
-        long total = 0;
-        char[] chars = ByteUtil.asCharArray(rawData);
-        for (int idx = chars.length - 1; idx >= 0; idx--) {
-            total += Character.getNumericValue(chars[idx]) * Math.pow(10, power);
-            power++;
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return 0;
         }
-        return total;
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return this.binaryAsLong(column, binaryField, Long.MIN_VALUE, Long.MAX_VALUE, "long");
+        }
+        return NumberParser.parseLong(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     @Override
     public float getFloat(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        return Float.valueOf(new String(rawData));
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return 0;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return (float) this.binaryAsDouble(column, binaryField);
+        }
+        return NumberParser.parseFloat(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     @Override
     public double getDouble(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        return Double.valueOf(new String(rawData));
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return 0;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return this.binaryAsDouble(column, binaryField);
+        }
+        return NumberParser.parseDouble(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     /**
@@ -153,48 +524,80 @@ public class LocoResultSet implements ResultSet {
 
     @Override
     public byte[] getBytes(int i) throws SQLException {
-        byte[] rawBytes = this.getRawBytes(i);
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        }
         /*
         Notice! we cannot simply pass the bytes we read from the response as they are.
 
         IF they are stored as binary bytes then sure we can go ahead and return whatever is in the packet,
         otherwise we need to convert the byte type of postgres to the byte type of java
          */
-        LocoField locoField = this.locoRowDescription.getFieldByPosition(i);
+        LocoField locoField = this.locoRowDescription.getFieldByPosition(column);
+        ByteBuffer buffer = this.currentRow.getBuffer();
+        int offset = this.currentRow.getColumnOffset(column);
+        int length = this.currentRow.getColumnLength(column);
         if (locoField.isBinaryFormat()) {
-            return rawBytes;
+            return this.currentRow.getColumnValue(column);
         } else {
             /*
             Lets convert! Binary is expected to follow the format \xSOMEBYTES
              */
-            if (rawBytes[0] == '\\' && rawBytes[1] == 'x') {
+            if (length >= 2 && buffer.get(offset) == '\\' && buffer.get(offset + 1) == 'x') {
                 /*
                 Convert all bytes except the first two to hexadecimal. The way this works is that we will get the
                 actual bytes represented as hexadecimal values, this means that we will get things like
                 "F0" this means byte[0] is F and byte[1] is 0, we need to put this together as single java byte
                  */
-                byte[] result = new byte[(rawBytes.length-2)/2];
+                byte[] result = new byte[(length-2)/2];
                 int resultIdx = 0;
-                int rawIdx = 2;
-                while(rawIdx < rawBytes.length) {
-                    char upper = ByteUtil.asChar(rawBytes[rawIdx]);
+                int rawIdx = offset + 2;
+                while(resultIdx < result.length) {
+                    int upper = Character.digit(buffer.get(rawIdx), 16);
                     rawIdx++;
-                    char lower =  ByteUtil.asChar(rawBytes[rawIdx]);
+                    int lower = Character.digit(buffer.get(rawIdx), 16);
                     rawIdx++;
-                    String merged = new String(new char[]{upper, lower});
-                    result[resultIdx] = (byte)Integer.parseInt(merged, 16);
+                    result[resultIdx] = (byte)((upper << 4) | lower);
                     resultIdx++;
                 }
                 return result;
             } else {
-                return rawBytes;
+                return this.currentRow.getColumnValue(column);
             }
         }
     }
 
+    /**
+     * The date of a date or timestamp column. This used to live in getDate(String) while this overload returned null,
+     * now getDate(String) only looks up the position of the column and comes here, like the rest of the getters.
+     */
     @Override
     public Date getDate(int i) throws SQLException {
-        return null;
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            LocalDate localDate = this.binaryAsLocalDate(column, binaryField);
+            if (localDate != null) {
+                return Date.valueOf(localDate);
+            }
+        }
+        String raw = this.columnAsText(column);
+        /*
+        This method needs to deal with different cases, specifically it needs to deal with types
+        - Date: Where we receive a date in the form yyyy-mm-dd
+        - DateTime: where we receive a data and a time in the form of yyyy-dd-mm hh:mm:ss
+         */
+        if (raw.length() == 10) { // Assume we are dealing with yyyy-mm-dd
+            LocalDate localDate = LocalDate.parse(raw);
+            return new Date(localDate.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+
+        LocalDateTime localDateTime = LocalDateTime.parse(raw, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        return Date.valueOf(localDateTime.toLocalDate());
     }
 
     @Override
@@ -204,7 +607,17 @@ public class LocoResultSet implements ResultSet {
 
     @Override
     public Timestamp getTimestamp(int i) throws SQLException {
-        return null;
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        }
+        TemporalAccessor value = this.dateTimeValue(column);
+        if (value instanceof LocalDate) {
+            return Timestamp.valueOf(((LocalDate) value).atStartOfDay());
+        } else if (value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value);
+        }
+        return Timestamp.from(((OffsetDateTime) value).toInstant());
     }
 
     @Override
@@ -289,32 +702,22 @@ public class LocoResultSet implements ResultSet {
 
     @Override
     public Date getDate(String s) throws SQLException {
-        byte[] rawDate = this.getRawBytes(this.findColumnPosition(s));
-        /*
-        This method needs to deal with different cases, specifically it needs to deal with types
-        - Date: Where we receive a date in the form yyyy-mm-dd
-        - DateTime: where we receive a data and a time in the form of yyyy-dd-mm hh:mm:ss
-         */
-        String raw = new String(rawDate);
-        if (raw.length() == 10) { // Assume we are dealing with yyyy-mm-dd
-            LocalDate localDate = LocalDate.parse(raw);
-            return new Date(localDate.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
-        }
-
-        LocalDateTime localDateTime = LocalDateTime.parse(new String(rawDate), DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-        return Date.valueOf(localDateTime.toLocalDate());
+        return this.getDate(this.findColumnPosition(s));
     }
 
     @Override
     public Time getTime(String s) throws SQLException {
-        byte[] rawTime = this.getRawBytes(this.findColumnPosition(s));
-        Time result = Time.valueOf(LocalTime.parse(new String(rawTime)));
+        String rawTime = this.getString(this.findColumnPosition(s));
+        if (rawTime == null) {
+            return null;
+        }
+        Time result = Time.valueOf(LocalTime.parse(rawTime));
         return result;
     }
 
     @Override
     public Timestamp getTimestamp(String s) throws SQLException {
-        throw new SQLException("getTimestamp is not implemented!. Reveived value was " + s);
+        return this.getTimestamp(this.findColumnPosition(s));
     }
 
     @Override
@@ -356,19 +759,52 @@ public class LocoResultSet implements ResultSet {
         return null;
     }
 
+    /**
+     * The value of the column as the Java type the official driver uses for its type: Integer for int2 and int4,
+     * Timestamp for both kinds of timestamps and so on. Types we have no better mapping for are returned as String.
+     */
     @Override
     public Object getObject(int i) throws SQLException {
-        return null;
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        }
+        switch (this.locoRowDescription.getFieldByPosition(column).getObjectId()) {
+            case Oid.BOOL:
+                return this.getBoolean(i);
+            case Oid.INT2:
+            case Oid.INT4:
+                return this.getInt(i);
+            case Oid.INT8:
+                return this.getLong(i);
+            case Oid.FLOAT4:
+                return this.getFloat(i);
+            case Oid.FLOAT8:
+                return this.getDouble(i);
+            case Oid.NUMERIC:
+                return this.getBigDecimal(i);
+            case Oid.BYTEA:
+                return this.getBytes(i);
+            case Oid.DATE:
+                return this.getDate(i);
+            case Oid.TIMESTAMP:
+            case Oid.TIMESTAMPTZ:
+                return this.getTimestamp(i);
+            case Oid.UUID:
+                return this.uuidValue(column);
+            default:
+                return this.columnAsText(column);
+        }
     }
 
     @Override
     public Object getObject(String s) throws SQLException {
-        return null;
+        return this.getObject(this.findColumnPosition(s));
     }
 
     @Override
     public int findColumn(String s) throws SQLException {
-        return 0;
+        return this.findColumnPosition(s);
     }
 
     @Override
@@ -383,9 +819,16 @@ public class LocoResultSet implements ResultSet {
 
     @Override
     public BigDecimal getBigDecimal(int i) throws SQLException {
-        byte[] rawData = this.getRawBytes(i);
-        char[] chars = ByteUtil.asCharArray(rawData);
-        return new BigDecimal(chars);
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        }
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            return this.binaryAsBigDecimal(column, binaryField);
+        }
+        return NumberParser.parseBigDecimal(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column),
+                this.currentRow.getColumnLength(column));
     }
 
     @Override
@@ -463,14 +906,27 @@ public class LocoResultSet implements ResultSet {
         return 0;
     }
 
+    /**
+     * Changes how many rows are asked for the next time the portal is executed (or the next FETCH of the cursor).
+     * Only result sets that were created with a fetch size read their rows from a portal, for the rest this is
+     * just a hint we ignore.
+     * @param i
+     * @throws SQLException
+     */
     @Override
     public void setFetchSize(int i) throws SQLException {
-
+        if (i < 0) {
+            throw new SQLException("The fetch size must be zero or positive, it was " + i);
+        }
+        this.fetchSize = i;
+        if (this.cursor != null) {
+            this.cursor.setFetchSize(i);
+        }
     }
 
     @Override
     public int getFetchSize() throws SQLException {
-        return 0;
+        return this.fetchSize;
     }
 
     @Override
@@ -1098,14 +1554,38 @@ public class LocoResultSet implements ResultSet {
 
     }
 
+    /**
+     * Besides the types returned by {@link #getObject(int)}, dates and timestamps can be read as LocalDate,
+     * LocalDateTime, OffsetDateTime (always in UTC, as the official driver does) or Instant, and any column as
+     * String.
+     */
     @Override
     public <T> T getObject(int i, Class<T> aClass) throws SQLException {
-        return null;
+        if (aClass == null) {
+            throw new SQLException("The type to read the column as cannot be null");
+        }
+        int column = this.columnIndex(i);
+        if (this.currentRow.isNull(column)) {
+            return null;
+        } else if (aClass == String.class) {
+            return aClass.cast(this.columnAsText(column));
+        } else if (aClass == UUID.class) {
+            return aClass.cast(this.uuidValue(column));
+        } else if (aClass == LocalDate.class || aClass == LocalDateTime.class || aClass == OffsetDateTime.class ||
+                aClass == Instant.class) {
+            return aClass.cast(this.convertDateTime(column, this.dateTimeValue(column), aClass));
+        }
+        Object value = this.getObject(i);
+        if (!aClass.isInstance(value)) {
+            throw new SQLException("The column of type " + this.locoRowDescription.getFieldByPosition(column)
+                    .getObjectId() + " cannot be read as " + aClass.getName());
+        }
+        return aClass.cast(value);
     }
 
     @Override
     public <T> T getObject(String s, Class<T> aClass) throws SQLException {
-        return null;
+        return this.getObject(this.findColumnPosition(s), aClass);
     }
 
     @Override
@@ -1118,26 +1598,213 @@ public class LocoResultSet implements ResultSet {
         return false;
     }
 
-    private byte[] getRawBytes(String fieldName) throws SQLException {
-        LocoField locoField = this.locoRowDescription.getFieldByName(fieldName);
-        LocoRow locoRow = LocoRow.fromPacket(this.lastPacketFromServer);
-        byte[] rawData = locoRow.getColumnValues().get(locoField.getFieldPosition());
-        return rawData;
+    /**
+     * Checks that the result set is on a row and that the column exists, and remembers whether the column is null
+     * for {@link #wasNull()}.
+     * @param fieldPosition the 1-indexed position of the column, as JDBC uses
+     * @return the zero-indexed position of the column within the row
+     * @throws SQLException
+     */
+    private int columnIndex(int fieldPosition) throws SQLException {
+        if (!this.onRow) {
+            throw new SQLException("The result set is not positioned on a row, call next() first");
+        }
+        if (fieldPosition < 1 || fieldPosition > this.currentRow.getTotalColumns()) {
+            throw new SQLException("The column index is out of range: " + fieldPosition + ", number of columns: " +
+                    this.currentRow.getTotalColumns());
+        }
+        int column = fieldPosition - 1;
+        this.lastColumnWasNull = this.currentRow.isNull(column);
+        return column;
+    }
+
+    /**
+     * The field of the given column if the server sent it in binary format, null if it came in text format
+     * @param column zero-indexed position of the column
+     * @return
+     */
+    private LocoField binaryField(int column) {
+        LocoField locoField = this.locoRowDescription.getFieldByPosition(column);
+        return locoField.isBinaryFormat() ? locoField : null;
     }
 
-    private byte[] getRawBytes(int fieldPosition) throws SQLException {
-        LocoRow locoRow = LocoRow.fromPacket(this.lastPacketFromServer);
-         /*
-        We store our fields in a List, which is zero-indexed, however getting a value by an index is 1-indexed,
-        so we need to substract 1 to the parameter.
-         */
-        byte[] rawData = locoRow.getColumnValues().get(fieldPosition - 1);
-        return rawData;
+    /**
+     * The value of a column that is not null as text, as the server would have sent it in text format
+     * @param column zero-indexed position of the column
+     * @return
+     * @throws SQLException
+     */
+    private String columnAsText(int column) throws SQLException {
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField == null) {
+            return this.currentRow.getColumnAsString(column);
+        }
+        return BinaryDecoder.toText(binaryField.getObjectId(), this.currentRow.getBuffer(),
+                this.currentRow.getColumnOffset(column), this.currentRow.getColumnLength(column),
+                this.locoNetwork.getServerTimeZone());
+    }
+
+    /**
+     * Reads a binary column as an integer in the range [min, max]. Binary integers are read directly, any other type
+     * goes through its text representation.
+     */
+    private long binaryAsLong(int column, LocoField binaryField, long min, long max, String type)
+            throws SQLException {
+        int oid = binaryField.getObjectId();
+        long value;
+        if (oid == Oid.INT2 || oid == Oid.INT4 || oid == Oid.INT8) {
+            value = BinaryDecoder.decodeInteger(oid, this.currentRow.getBuffer(),
+                    this.currentRow.getColumnOffset(column));
+        } else {
+            ByteBuffer text = asAsciiBuffer(this.columnAsText(column));
+            value = NumberParser.parseLong(text, 0, text.limit());
+        }
+        if (value < min || value > max) {
+            throw new SQLException("The column cannot be represented as " + type + ", value was " + value);
+        }
+        return value;
+    }
+
+    private double binaryAsDouble(int column, LocoField binaryField) throws SQLException {
+        int oid = binaryField.getObjectId();
+        ByteBuffer buffer = this.currentRow.getBuffer();
+        int offset = this.currentRow.getColumnOffset(column);
+        if (oid == Oid.INT2 || oid == Oid.INT4 || oid == Oid.INT8) {
+            return BinaryDecoder.decodeInteger(oid, buffer, offset);
+        }
+        ByteBuffer text = asAsciiBuffer(this.columnAsText(column));
+        return NumberParser.parseDouble(text, 0, text.limit());
+    }
+
+    private BigDecimal binaryAsBigDecimal(int column, LocoField binaryField) throws SQLException {
+        int oid = binaryField.getObjectId();
+        ByteBuffer buffer = this.currentRow.getBuffer();
+        int offset = this.currentRow.getColumnOffset(column);
+        if (oid == Oid.NUMERIC) {
+            return BinaryDecoder.decodeNumeric(buffer, offset);
+        } else if (oid == Oid.INT2 || oid == Oid.INT4 || oid == Oid.INT8) {
+            return BigDecimal.valueOf(BinaryDecoder.decodeInteger(oid, buffer, offset));
+        }
+        ByteBuffer text = asAsciiBuffer(this.columnAsText(column));
+        return NumberParser.parseBigDecimal(text, 0, text.limit());
     }
 
+    /**
+     * Reads the date of a binary date or timestamp column, null if the column is of another type or it is one of the
+     * special values like infinity
+     */
+    private LocalDate binaryAsLocalDate(int column, LocoField binaryField) {
+        ByteBuffer buffer = this.currentRow.getBuffer();
+        int offset = this.currentRow.getColumnOffset(column);
+        switch (binaryField.getObjectId()) {
+            case Oid.DATE:
+                return BinaryDecoder.decodeDate(buffer, offset);
+            case Oid.TIMESTAMP:
+                LocalDateTime timestamp = BinaryDecoder.decodeTimestamp(buffer, offset);
+                return timestamp == null ? null : timestamp.toLocalDate();
+            case Oid.TIMESTAMPTZ:
+                Instant instant = BinaryDecoder.decodeTimestamptz(buffer, offset);
+                ZoneId timeZone = this.locoNetwork.getServerTimeZone();
+                return instant == null ? null : instant.atZone(timeZone == null ? ZoneOffset.UTC : timeZone)
+                        .toLocalDate();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads a uuid column, binary ones straight from their 16 bytes
+     */
+    private UUID uuidValue(int column) throws SQLException {
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null && binaryField.getObjectId() == Oid.UUID) {
+            return BinaryDecoder.decodeUuid(this.currentRow.getBuffer(), this.currentRow.getColumnOffset(column));
+        }
+        String text = this.columnAsText(column);
+        try {
+            return UUID.fromString(text);
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("The column cannot be represented as a UUID, value was " + text, e);
+        }
+    }
+
+    /**
+     * Reads a date or timestamp column as a LocalDate, a LocalDateTime or, for timestamps with time zone, an
+     * OffsetDateTime. Binary columns are decoded straight away, text ones are parsed, see {@link #TEXT_DATE_TIME}.
+     * Special values like infinity have no Java counterpart and fail.
+     */
+    private TemporalAccessor dateTimeValue(int column) throws SQLException {
+        LocoField binaryField = this.binaryField(column);
+        if (binaryField != null) {
+            ByteBuffer buffer = this.currentRow.getBuffer();
+            int offset = this.currentRow.getColumnOffset(column);
+            switch (binaryField.getObjectId()) {
+                case Oid.DATE:
+                    LocalDate date = BinaryDecoder.decodeDate(buffer, offset);
+                    if (date != null) {
+                        return date;
+                    }
+                    break;
+                case Oid.TIMESTAMP:
+                    LocalDateTime timestamp = BinaryDecoder.decodeTimestamp(buffer, offset);
+                    if (timestamp != null) {
+                        return timestamp;
+                    }
+                    break;
+                case Oid.TIMESTAMPTZ:
+                    Instant instant = BinaryDecoder.decodeTimestamptz(buffer, offset);
+                    if (instant != null) {
+                        return instant.atOffset(ZoneOffset.UTC);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        String text = this.columnAsText(column);
+        try {
+            return TEXT_DATE_TIME.parseBest(text, OffsetDateTime::from, LocalDateTime::from, LocalDate::from);
+        } catch (DateTimeParseException e) {
+            throw new SQLException("The column cannot be represented as a date or timestamp, value was " + text, e);
+        }
+    }
+
+    private Object convertDateTime(int column, TemporalAccessor value, Class<?> aClass) throws SQLException {
+        if (value instanceof LocalDate) {
+            if (aClass == LocalDate.class) {
+                return value;
+            } else if (aClass == LocalDateTime.class) {
+                return ((LocalDate) value).atStartOfDay();
+            }
+        } else if (value instanceof LocalDateTime) {
+            if (aClass == LocalDateTime.class) {
+                return value;
+            } else if (aClass == LocalDate.class) {
+                return ((LocalDateTime) value).toLocalDate();
+            }
+        } else if (aClass == OffsetDateTime.class) {
+            return ((OffsetDateTime) value).withOffsetSameInstant(ZoneOffset.UTC);
+        } else if (aClass == Instant.class) {
+            return ((OffsetDateTime) value).toInstant();
+        }
+        throw new SQLException("The column of type " + this.locoRowDescription.getFieldByPosition(column)
+                .getObjectId() + " cannot be read as " + aClass.getName());
+    }
+
+    private static ByteBuffer asAsciiBuffer(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The position (starting at 1, as JDBC wants) of the column with the given name, see
+     * {@link LocoRowDescription#findColumn(String)}
+     */
     private int findColumnPosition(String columnName) throws SQLException {
-        LocoField locoField = this.locoRowDescription.getFieldByName(columnName);
-        return locoField.getFieldPosition() + 1;
+        int position = this.locoRowDescription.findColumn(columnName);
+        if (position == -1) {
+            throw new SQLException("The column name " + columnName + " was not found in this ResultSet.", "42703");
+        }
+        return position + 1;
     }
 
 
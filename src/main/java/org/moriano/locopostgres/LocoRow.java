@@ -1,32 +1,62 @@
 package org.moriano.locopostgres;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  * Represents each of the Rows returned for a BACKEND_DATA_ROW packet
+ *
+ * A row does not copy the values of its columns. Decoding a packet only walks it once to find where each column
+ * starts and how long it is, and keeps that in two int arrays. Columns are then read in place from the packet
+ * buffer, see {@link #getBuffer()}, {@link #getColumnOffset(int)} and {@link #getColumnLength(int)}.
+ *
+ * The same LocoRow is meant to be reused for every row of a result set through {@link #decode(Packet)}, so reading
+ * a row allocates nothing unless it has more columns than any row before it. Keep in mind that the packet is usually
+ * a view over the network buffer, so a row is only valid until the next packet is read from the server.
  */
 public class LocoRow {
 
     private int totalColumns;
 
+    private ByteBuffer buffer;
+
+    /**
+     * Where the value of each column starts within {@link #buffer}
+     */
+    private int[] columnOffsets;
+
     /**
-     * The value of each column, notice that null columns will contain a null within the list.
+     * The length of the value of each column, null columns have a length of -1
      */
-    private List<byte[]> columnValues;
+    private int[] columnLengths;
 
-    private LocoRow(int totalColumns, List<byte[]> columnValues) {
-        this.columnValues = columnValues;
-        this.totalColumns = totalColumns;
+    /**
+     * Where the row starts and ends within {@link #buffer}, see {@link #detach()}
+     */
+    private int rowStart;
+    private int rowEnd;
+
+    public LocoRow() {
+        this.columnOffsets = new int[16];
+        this.columnLengths = new int[16];
     }
 
     public static LocoRow fromPacket(Packet rawPacket) throws SQLException {
+        LocoRow locoRow = new LocoRow();
+        locoRow.decode(rawPacket);
+        return locoRow;
+    }
+
+    /**
+     * Makes this row point to the columns of the given BACKEND_DATA_ROW packet
+     * @param rawPacket
+     * @throws SQLException
+     */
+    public void decode(Packet rawPacket) throws SQLException {
         if (rawPacket.getPacketType() != PacketType.BACKEND_DATA_ROW) {
             throw new SQLException("Trying to read backed data row from wrong packet! packet was " + rawPacket);
         }
-        List<byte[]> values = new ArrayList<>();
 
         /**
          * First byte is the id for the packet
@@ -37,29 +67,121 @@ public class LocoRow {
          *      -1 in which case a NULL column value is expected and no extra bytes follow
          *      N Bytes with the actual value of the column
          */
-        byte[] rawBytes = rawPacket.getPacketContents();
-        int numberOfColumns = ByteUtil.getInt16(Arrays.copyOfRange(rawBytes, 5, 7));
-        int byteIdx = 7;
-        for (int i = 0; i<numberOfColumns; i++) {
-            int columnSize = ByteUtil.getInt32(Arrays.copyOfRange(rawBytes, byteIdx, byteIdx+4));
+        ByteBuffer rawBuffer = rawPacket.getBuffer();
+        int packetOffset = rawPacket.getOffset();
+        int numberOfColumns = rawBuffer.getShort(packetOffset + 5) & 0xFFFF;
+        if (numberOfColumns > this.columnOffsets.length) {
+            this.columnOffsets = new int[numberOfColumns];
+            this.columnLengths = new int[numberOfColumns];
+        }
+
+        int byteIdx = packetOffset + 7;
+        for (int i = 0; i < numberOfColumns; i++) {
+            int columnSize = rawBuffer.getInt(byteIdx);
             byteIdx += 4;
-            if (columnSize == -1) {
-                values.add(null);
-            } else {
-                byte[] columnValue = Arrays.copyOfRange(rawBytes, byteIdx, byteIdx + columnSize);
+            this.columnOffsets[i] = byteIdx;
+            this.columnLengths[i] = columnSize;
+            if (columnSize > 0) {
                 byteIdx += columnSize;
-                values.add(columnValue);
             }
         }
 
-        return new LocoRow(numberOfColumns, values);
+        this.buffer = rawBuffer;
+        this.totalColumns = numberOfColumns;
+        this.rowStart = packetOffset;
+        this.rowEnd = byteIdx;
+    }
+
+    /**
+     * Makes this row keep its own copy of the bytes of its columns, so it stays valid after the packet it was
+     * decoded from is overwritten
+     */
+    public void detach() {
+        if (this.buffer == null) {
+            return;
+        }
+        byte[] copy = new byte[this.rowEnd - this.rowStart];
+        ByteBuffer duplicate = this.buffer.duplicate();
+        duplicate.position(this.rowStart);
+        duplicate.get(copy);
+        for (int i = 0; i < this.totalColumns; i++) {
+            this.columnOffsets[i] -= this.rowStart;
+        }
+        this.buffer = ByteBuffer.wrap(copy);
+        this.rowEnd -= this.rowStart;
+        this.rowStart = 0;
     }
 
     public int getTotalColumns() {
         return totalColumns;
     }
 
-    public List<byte[]> getColumnValues() {
-        return columnValues;
+    /**
+     * The buffer holding the values of the columns
+     * @return
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Where the value of the given column (zero indexed) starts within {@link #getBuffer()}
+     * @param column
+     * @return
+     */
+    public int getColumnOffset(int column) {
+        return this.columnOffsets[column];
+    }
+
+    /**
+     * The length in bytes of the value of the given column (zero indexed), -1 if the column is null
+     * @param column
+     * @return
+     */
+    public int getColumnLength(int column) {
+        return this.columnLengths[column];
+    }
+
+    public boolean isNull(int column) {
+        return this.columnLengths[column] == -1;
+    }
+
+    /**
+     * A copy of the value of the given column (zero indexed), null if the column is null
+     * @param column
+     * @return
+     */
+    public byte[] getColumnValue(int column) {
+        int length = this.columnLengths[column];
+        if (length == -1) {
+            return null;
+        }
+        byte[] result = new byte[length];
+        if (this.buffer.hasArray()) {
+            System.arraycopy(this.buffer.array(), this.buffer.arrayOffset() + this.columnOffsets[column], result, 0,
+                    length);
+        } else {
+            ByteBuffer duplicate = this.buffer.duplicate();
+            duplicate.position(this.columnOffsets[column]);
+            duplicate.get(result);
+        }
+        return result;
+    }
+
+    /**
+     * The value of the given column (zero indexed) as a String, null if the column is null
+     * @param column
+     * @return
+     */
+    public String getColumnAsString(int column) {
+        int length = this.columnLengths[column];
+        if (length == -1) {
+            return null;
+        }
+        if (this.buffer.hasArray()) {
+            return new String(this.buffer.array(), this.buffer.arrayOffset() + this.columnOffsets[column], length,
+                    StandardCharsets.UTF_8);
+        }
+        return new String(this.getColumnValue(column), StandardCharsets.UTF_8);
     }
 }
@@ -1,5 +1,6 @@
 package org.moriano.locopostgres;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -7,24 +8,117 @@ import java.util.List;
  *
  * This is done by having a {@link PacketType#BACKEND_ROW_DESCRIPTION} packet on it, using that we can
  * determine the number of fields (~columns) available as well as the type of each one of them.
+ *
+ * A description does not change once built, so prepared statements keep the description of their result and reuse
+ * it for every execution, see {@link CachedStatement#getRowDescription()}.
+ *
+ * Applications often read columns by name (rs.getString("name")), and they do it for every column of every row, so
+ * finding a column by its name must be cheap. When the description is built we also build a small open addressing
+ * hash table from the names of the columns to their positions, see {@link #findColumn(String)}. Looking a name up
+ * hashes it char by char and compares it in place, so it takes constant time and allocates nothing.
  */
 public class LocoRowDescription {
 
-    private Packet rowDescription;
     private int numberOfFields;
     private List<LocoField> fields;
 
+    /**
+     * The hash table of names, each slot holds the position of a field plus one, zero meaning an empty slot. Its
+     * length is a power of two at least twice the number of fields, so there is always an empty slot where a lookup
+     * of an unknown name stops, and collisions are rare.
+     */
+    private int[] nameIndex;
+
     public LocoRowDescription(Packet rowDescription) {
+        /*
+        The packet is usually a view over the network buffer that is about to be reused, the fields are read from
+        it right away and do not keep any reference to it
+         */
+        this.numberOfFields = rowDescription.getBuffer().getShort(rowDescription.getOffset() + 5) & 0xFFFF;
+        this.fields = LocoField.fromPacket(rowDescription, numberOfFields);
+        this.nameIndex = this.buildNameIndex();
+    }
 
-        this.rowDescription = rowDescription;
+    private LocoRowDescription(List<LocoField> fields, int[] nameIndex) {
+        this.numberOfFields = fields.size();
+        this.fields = fields;
+        this.nameIndex = nameIndex;
+    }
 
-        byte[] raws = this.rowDescription.getPacketContents();
-        this.numberOfFields = ByteUtil.getInt16(new byte[]{raws[5], raws[6]});
-        this.fields = LocoField.fromPacket(rowDescription, numberOfFields);
+    /**
+     * The same description, but with each field in the given format (zero for text, one for binary). This is what
+     * the server would describe if we asked for those formats in the Bind packet.
+     * @param formatCodes the format of each field, null means text for all of them
+     * @return
+     */
+    public LocoRowDescription withFormatCodes(int[] formatCodes) {
+        List<LocoField> result = new ArrayList<>(this.numberOfFields);
+        for (int i = 0; i < this.numberOfFields; i++) {
+            result.add(this.fields.get(i).withFormatCode(formatCodes == null ? 0 : formatCodes[i]));
+        }
+        // Same names in the same positions, so the same index
+        return new LocoRowDescription(result, this.nameIndex);
+    }
+
+    private int[] buildNameIndex() {
+        int capacity = Integer.highestOneBit(Math.max(this.numberOfFields, 1) * 2 - 1) << 1;
+        int[] index = new int[capacity];
+        int mask = capacity - 1;
+        for (int position = 0; position < this.numberOfFields; position++) {
+            String name = this.fields.get(position).getName();
+            int slot = hashIgnoreCase(name) & mask;
+            while (index[slot] != 0) {
+                if (this.fields.get(index[slot] - 1).getName().equalsIgnoreCase(name)) {
+                    // Two columns with the same name (SELECT a.id, b.id...), like other drivers the first one wins
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (index[slot] == 0) {
+                index[slot] = position + 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * A hash of the name that ignores case, consistent with {@link String#equalsIgnoreCase(String)} for the names
+     * that matter in practice. The bits are spread so names that differ in their last char do not end up in
+     * neighbouring slots.
+     */
+    private static int hashIgnoreCase(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Finds the position of the column with the given name. As JDBC requires, the name is case insensitive.
+     * @param name
+     * @return the position of the field, starting at zero, or -1 if there is no column with that name
+     */
+    public int findColumn(String name) {
+        int mask = this.nameIndex.length - 1;
+        int slot = hashIgnoreCase(name) & mask;
+        int entry;
+        while ((entry = this.nameIndex[slot]) != 0) {
+            if (this.fields.get(entry - 1).getName().equalsIgnoreCase(name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
     }
 
+    /**
+     * @param name
+     * @return the field with the given name (case insensitive) or null if there is none
+     */
     public LocoField getFieldByName(String name) {
-        return this.fields.stream().filter(t -> t.getName().equals(name)).findFirst().get();
+        int position = this.findColumn(name);
+        return position == -1 ? null : this.fields.get(position);
     }
 
     public LocoField getFieldByPosition(int position) {
@@ -0,0 +1,22 @@
+package org.moriano.locopostgres;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Gets the rows of a query sent with {@link LocoConnection#queryAsync(String, java.util.List, LocoRowHandler)} as
+ * they arrive, so a big result never needs to be in memory at once.
+ *
+ * The handler runs on the I/O thread of the connection (see {@link LocoEventLoop}), which serves many other
+ * connections too: it must be quick, must not block and must not use the connection.
+ */
+@FunctionalInterface
+public interface LocoRowHandler {
+
+    /**
+     * Called for each row, in order
+     * @param row a result set positioned on the row. Only its getters can be used, and only until this method returns
+     * @throws SQLException to fail the query, the rest of its rows are then skipped
+     */
+    void onRow(ResultSet row) throws SQLException;
+}
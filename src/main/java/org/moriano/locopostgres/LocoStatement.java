@@ -10,20 +10,42 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
 /**
  * The {@link Statement} implementation for LocoPostgres.
+ *
+ * Queries are sent with the simple query protocol, except when a fetch size or a maximum number of rows is set. Only
+ * the Execute packet of the extended protocol can limit how many rows the server sends, so in that case the query
+ * goes through an unnamed Parse instead, see {@link #executeWithLimits(String)}. The extended protocol does not
+ * allow several commands in a single query, so those should not be combined with a fetch size.
+ *
+ * When the connection uses cursors (see {@link LocoProperty#USE_CURSOR_FETCH}) queries that return rows are declared
+ * as a cursor and their rows fetched in batches instead, all of it through the simple query protocol, see
+ * {@link LocoCursor}.
  */
 public class LocoStatement implements Statement {
 
     private static final Logger log = LoggerFactory.getLogger(LocoStatement.class);
     private LocoNetwork locoNetwork;
     private final LocoConnection locoConnection;
+
+    /**
+     * What {@link #getConnection()} returns, the connection the user created the statement from. Usually the
+     * locoConnection itself, for a pooled connection the handle on it, see {@link LocoPooledConnection}.
+     */
+    private final Connection owner;
+
     public LocoStatement(LocoNetwork locoNetwork, LocoConnection locoConnection) {
+        this(locoNetwork, locoConnection, locoConnection);
+    }
+
+    public LocoStatement(LocoNetwork locoNetwork, LocoConnection locoConnection, Connection owner) {
         this.locoNetwork = locoNetwork;
         this.locoConnection = locoConnection;
+        this.owner = owner;
     }
     private ResultSet locoResultSet;
 
@@ -34,6 +56,21 @@ public class LocoStatement implements Statement {
      */
     private List<String> sqlCommands = new ArrayList<>();
 
+    /**
+     * How many commands of a batch we send before reading the results of the ones before, see {@link #executeBatch()}
+     */
+    private static final int BATCH_WINDOW = 256;
+
+    /**
+     * How many rows are fetched from the server at a time, zero means all of them in one go
+     */
+    private int fetchSize = 0;
+
+    /**
+     * The maximum number of rows a result set can have, zero means no limit
+     */
+    private int maxRows = 0;
+
     @Override
     public long getLargeUpdateCount() throws SQLException {
         return 0;
@@ -41,8 +78,15 @@ public class LocoStatement implements Statement {
 
     @Override
     public ResultSet executeQuery(String s) throws SQLException {
-        Packet packet = Packet.query(s);
-        this.locoNetwork.sendPacketToServer(packet);
+        this.prepareForExecution();
+        if (this.locoConnection.isUseCursorFetch() && LocoCursor.canDeclare(s)) {
+            return this.executeWithCursor(s);
+        }
+        if (this.fetchSize > 0 || this.maxRows > 0) {
+            return this.executeWithLimits(s);
+        }
+        this.locoNetwork.getPacketWriter().writeQuery(s);
+        this.locoNetwork.flush();
         Packet serverPacket = this.locoNetwork.readUntilPacketTypes(Set.of(PacketType.BACKEND_ROW_DESCRIPTION, PacketType.BACKEND_READY_FOR_QUERY));
         if (serverPacket.getPacketType() == PacketType.BACKEND_ROW_DESCRIPTION) {
             Packet rowDescription = serverPacket;
@@ -55,6 +99,75 @@ public class LocoStatement implements Statement {
 
     }
 
+    /**
+     * Executing a statement closes its previous result set, and whatever other result set is still reading from the
+     * connection has to make room for us
+     */
+    private void prepareForExecution() throws SQLException {
+        if (this.locoResultSet != null) {
+            this.locoResultSet.close();
+            this.locoResultSet = null;
+        }
+        this.locoNetwork.releaseActiveResultSet();
+    }
+
+    /**
+     * Declares the query as a cursor and fetches its first batch of rows, all in a single round trip. The result set
+     * fetches the rest as it needs them.
+     */
+    private ResultSet executeWithCursor(String sql) throws SQLException {
+        LocoCursor cursor = new LocoCursor(this.locoNetwork.nextCursorName(), !this.locoNetwork.isInTransaction(),
+                this.fetchSize, this.locoConnection.getCursorFetchBatchBytes());
+        this.locoNetwork.getPacketWriter().writeQuery(cursor.declareQuery(sql, this.maxRows));
+        this.locoNetwork.flush();
+
+        Packet rowDescription;
+        try {
+            rowDescription = this.locoNetwork.readUntilPacketType(PacketType.BACKEND_ROW_DESCRIPTION);
+        } catch (SQLException e) {
+            cursor.abort(this.locoNetwork);
+            throw e;
+        }
+        LocoResultSet result = new LocoResultSet(this.locoNetwork, new LocoRowDescription(rowDescription), cursor,
+                this.maxRows);
+        this.locoResultSet = result;
+        return result;
+    }
+
+    /**
+     * Executes the query through the extended protocol, so the Execute packet can limit the rows. With a fetch size
+     * the rows come from a named portal a few at a time, see {@link LocoResultSet}.
+     */
+    private ResultSet executeWithLimits(String sql) throws SQLException {
+        String portalName = this.fetchSize > 0 ? this.locoNetwork.nextPortalName() : null;
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        packetWriter.writeParse(sql, null);
+        packetWriter.writeBind(portalName, null, null, null);
+        packetWriter.writeDescribe('P', portalName);
+        if (portalName != null) {
+            int firstFetch = this.maxRows > 0 ? Math.min(this.fetchSize, this.maxRows) : this.fetchSize;
+            packetWriter.writeExecute(portalName, firstFetch);
+            this.locoNetwork.flushWithoutSync();
+        } else {
+            packetWriter.writeExecute(null, this.maxRows);
+            packetWriter.writeSync();
+            this.locoNetwork.flush();
+        }
+
+        Packet description = this.locoNetwork.readUntilPacketTypes(
+                Set.of(PacketType.BACKEND_ROW_DESCRIPTION, PacketType.BACKEND_NO_DATA));
+        if (description.getPacketType() == PacketType.BACKEND_NO_DATA) {
+            this.locoNetwork.sync();
+            this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+            return LocoResultSet.emptyResultSet();
+        }
+        LocoRowDescription locoRowDescription = new LocoRowDescription(description);
+        LocoResultSet result = new LocoResultSet(this.locoNetwork, locoRowDescription, portalName, this.fetchSize,
+                this.maxRows);
+        this.locoResultSet = result;
+        return result;
+    }
+
     @Override
     public int executeUpdate(String s) throws SQLException {
         return 0;
@@ -77,12 +190,15 @@ public class LocoStatement implements Statement {
 
     @Override
     public int getMaxRows() throws SQLException {
-        return 0;
+        return this.maxRows;
     }
 
     @Override
     public void setMaxRows(int i) throws SQLException {
-
+        if (i < 0) {
+            throw new SQLException("The maximum number of rows must be zero or positive, it was " + i);
+        }
+        this.maxRows = i;
     }
 
     @Override
@@ -158,8 +274,9 @@ public class LocoStatement implements Statement {
      */
     @Override
     public boolean execute(String s) throws SQLException {
-        Packet packet = Packet.query(s);
-        this.locoNetwork.sendPacketToServer(packet);
+        this.prepareForExecution();
+        this.locoNetwork.getPacketWriter().writeQuery(s);
+        this.locoNetwork.flush();
         Packet serverPacket = this.locoNetwork.readUntilPacketTypes(Set.of(PacketType.BACKEND_ROW_DESCRIPTION, PacketType.BACKEND_READY_FOR_QUERY));
         if (serverPacket.getPacketType() == PacketType.BACKEND_ROW_DESCRIPTION) {
             boolean result = true;
@@ -200,12 +317,15 @@ public class LocoStatement implements Statement {
 
     @Override
     public void setFetchSize(int i) throws SQLException {
-
+        if (i < 0) {
+            throw new SQLException("The fetch size must be zero or positive, it was " + i);
+        }
+        this.fetchSize = i;
     }
 
     @Override
     public int getFetchSize() throws SQLException {
-        return 0;
+        return this.fetchSize;
     }
 
     @Override
@@ -228,30 +348,154 @@ public class LocoStatement implements Statement {
         this.sqlCommands.clear();
     }
 
+    /**
+     * Executes every command of the batch in a single pipeline.
+     *
+     * Each command goes in a Query packet of its own, so the results that come back (one or more COMMAND_COMPLETE,
+     * then a READY_FOR_QUERY) belong to exactly one command, even when it holds several statements or none at all.
+     * The packets are coalesced in the send buffer and written 64KiB at a time, we do not wait for the result of a
+     * command before sending the next one.
+     *
+     * As with prepared batches, every BATCH_WINDOW commands we read the results of the window before, otherwise the
+     * server could block writing results nobody reads while we block writing commands it does not read. Neither
+     * the packets nor the results of the whole batch are ever in memory at once, a batch of a million commands
+     * needs no more memory than one of a hundred (besides the update counts).
+     *
+     * Separate Query packets are separate implicit transactions, so unless the session is already in a transaction a
+     * batch of several commands runs between a BEGIN and a COMMIT of its own: if a command fails, none of them is
+     * applied. After a failure we stop sending commands, the ones already sent fail too as the transaction is
+     * aborted, and we throw a BatchUpdateException with the update counts of the commands before the failed one.
+     *
+     * The update count of a command is the number of rows its statements inserted, updated or deleted, zero for
+     * anything else (a CREATE TABLE, a SELECT...).
+     * @return the update count of each command
+     * @throws SQLException
+     */
     @Override
     public int[] executeBatch() throws SQLException {
-        Packet multipleQueryPacket = Packet.query(this.sqlCommands);
-        this.locoNetwork.sendPacketToServer(multipleQueryPacket);
+        this.prepareForExecution();
+        int commands = this.sqlCommands.size();
+        int[] updateCounts = new int[commands];
+        boolean ownsTransaction = commands > 1 && !this.locoNetwork.isInTransaction();
+        PacketWriter packetWriter = this.locoNetwork.getPacketWriter();
+        int sent = 0;
+        int received = 0;
+        SQLException failure = null;
+        int failedCommand = -1;
+        // The result of our BEGIN comes before the ones of the commands
+        boolean beginPending = ownsTransaction;
+        try {
+            if (ownsTransaction) {
+                packetWriter.writeQuery("BEGIN");
+            }
+            while (sent < commands && failure == null) {
+                String sql = this.sqlCommands.get(sent);
+                packetWriter.writeQuery(sql);
+                sent++;
+                /*
+                A COPY FROM STDIN takes whatever the server reads next as its data, so nothing can be queued behind
+                it: we wait for its results (a failure, see readBatchResult) before sending anything else
+                 */
+                boolean mayBeCopy = mayBeCopy(sql);
+                if (mayBeCopy || sent % BATCH_WINDOW == 0) {
+                    this.locoNetwork.flush();
+                    if (beginPending) {
+                        this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+                        beginPending = false;
+                    }
+                    int window = mayBeCopy ? 0 : BATCH_WINDOW;
+                    while (sent - received > window && failure == null) {
+                        try {
+                            updateCounts[received] = this.readBatchResult();
+                        } catch (SQLException e) {
+                            failure = e;
+                            failedCommand = received;
+                        }
+                        received++;
+                    }
+                } else {
+                    this.locoNetwork.flushIfNeeded();
+                }
+            }
+            this.locoNetwork.flush();
+            if (beginPending) {
+                this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+            }
+            while (received < sent) {
+                try {
+                    updateCounts[received] = this.readBatchResult();
+                } catch (SQLException e) {
+                    if (failure == null) {
+                        failure = e;
+                        failedCommand = received;
+                    }
+                }
+                received++;
+            }
+            if (ownsTransaction) {
+                packetWriter.writeQuery(failure == null ? "COMMIT" : "ROLLBACK");
+                this.locoNetwork.flush();
+                try {
+                    this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY);
+                } catch (SQLException e) {
+                    // A deferred constraint, for instance, fails on COMMIT, after every command ran
+                    if (failure == null) {
+                        failure = e;
+                        failedCommand = commands;
+                    }
+                }
+            }
+        } finally {
+            this.sqlCommands.clear();
+        }
+        if (failure != null) {
+            throw new BatchUpdateException(failure.getMessage(), failure.getSQLState(), failure.getErrorCode(),
+                    Arrays.copyOf(updateCounts, failedCommand), failure);
+        }
+        return updateCounts;
+    }
 
-        /*
-        Need to keep reading until we have a ready for query result.
-         */
-        List<Packet> receivedPackets = new ArrayList<>();
-        this.locoNetwork.readUntilPacketType(PacketType.BACKEND_READY_FOR_QUERY, Set.of(PacketType.BACKEND_COMMAND_COMPLETE), receivedPackets);
-        int[] results = new int[this.sqlCommands.size()];
-        for (int i = 0; i< receivedPackets.size(); i++) {
-            Packet receivedPacket = receivedPackets.get(i);
-            CommandComplete commandComplete = CommandComplete.fromCommandCompletePacket(receivedPacket);
-            results[i] = commandComplete.getDeletedRows() + commandComplete.getInsertedRows() + commandComplete.getUpdatedRows();
+    /**
+     * Whether the command may hold a COPY, a false positive only costs a round trip
+     */
+    private static boolean mayBeCopy(String sql) {
+        for (int i = 0; i + 4 <= sql.length(); i++) {
+            if (sql.regionMatches(true, i, "COPY", 0, 4)) {
+                return true;
+            }
         }
-        this.sqlCommands.clear();
+        return false;
+    }
 
-        return results;
+    /**
+     * Reads the results of the next command of a batch, up to its READY_FOR_QUERY. If the command failed the server
+     * error is raised.
+     * @return the number of rows inserted, updated or deleted by the statements of the command
+     * @throws SQLException
+     */
+    private int readBatchResult() throws SQLException {
+        int rows = 0;
+        while (true) {
+            Packet serverPacket = this.locoNetwork.readFromServer();
+            PacketType packetType = serverPacket.getPacketType();
+            if (packetType == PacketType.BACKEND_READY_FOR_QUERY) {
+                return rows;
+            } else if (packetType == PacketType.BACKEND_COMMAND_COMPLETE) {
+                rows += CommandComplete.fromCommandCompletePacket(serverPacket).getAffectedRows();
+            } else if (packetType == PacketType.BACKEND_ERROR_RESPONSE) {
+                this.locoNetwork.raiseServerError(serverPacket);
+            } else if (packetType == PacketType.BACKEND_COPY_IN_RESPONSE) {
+                // The server would wait forever for data we do not have
+                this.locoNetwork.getPacketWriter().writeCopyFail("COPY FROM STDIN is not supported in a batch");
+                this.locoNetwork.flush();
+            }
+            // Anything else (the rows of a SELECT, the data of a COPY TO STDOUT...) is skipped
+        }
     }
 
     @Override
     public Connection getConnection() throws SQLException {
-        return this.locoConnection;
+        return this.owner;
     }
 
     @Override
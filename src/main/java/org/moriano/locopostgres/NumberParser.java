@@ -0,0 +1,347 @@
+package org.moriano.locopostgres;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Parses the text representation of numbers straight from the bytes the server sent.
+ *
+ * Postgres sends numbers in text format as plain ascii, for example 42, -7 or 7500.50. Rather than building a String
+ * (or a char[]) for every single value just to hand it to Integer.parseInt or new BigDecimal, these parsers walk the
+ * bytes in place, see {@link LocoRow#getBuffer()}. They only fall back to the JDK parsers, which do allocate, for
+ * values that are rare in practice: integers with decimals, doubles with too many digits and the like.
+ *
+ * Values that are not numbers, or do not fit in the requested type, are reported with a SQLException, like the
+ * official driver does.
+ */
+public class NumberParser {
+
+    /**
+     * Powers of ten that can be represented exactly as a double
+     */
+    private static final double[] DOUBLE_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Powers of ten that can be represented exactly as a float
+     */
+    private static final float[] FLOAT_POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    /**
+     * The biggest integer a double can hold without losing precision, 2^53
+     */
+    private static final long MAX_EXACT_DOUBLE_MANTISSA = 1L << 53;
+
+    /**
+     * The biggest integer a float can hold without losing precision, 2^24
+     */
+    private static final long MAX_EXACT_FLOAT_MANTISSA = 1L << 24;
+
+    /**
+     * The number of digits any unscaled value of a BigDecimal can have while still fitting in a long
+     */
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private NumberParser() {
+    }
+
+    public static byte parseByte(ByteBuffer buffer, int offset, int length) throws SQLException {
+        return (byte) parseInteger(buffer, offset, length, Byte.MIN_VALUE, Byte.MAX_VALUE, "byte");
+    }
+
+    public static short parseShort(ByteBuffer buffer, int offset, int length) throws SQLException {
+        return (short) parseInteger(buffer, offset, length, Short.MIN_VALUE, Short.MAX_VALUE, "short");
+    }
+
+    public static int parseInt(ByteBuffer buffer, int offset, int length) throws SQLException {
+        return (int) parseInteger(buffer, offset, length, Integer.MIN_VALUE, Integer.MAX_VALUE, "int");
+    }
+
+    public static long parseLong(ByteBuffer buffer, int offset, int length) throws SQLException {
+        return parseInteger(buffer, offset, length, Long.MIN_VALUE, Long.MAX_VALUE, "long");
+    }
+
+    /**
+     * Parses an integer in the range [min, max].
+     *
+     * The value is accumulated as a negative number, as the negative range of a long is one bigger than the positive
+     * one, that way Long.MIN_VALUE can be parsed too. Overflow is checked before each digit is added.
+     *
+     * Values with decimals (like a numeric column read with getInt) are truncated, as the official driver does.
+     */
+    private static long parseInteger(ByteBuffer buffer, int offset, int length, long min, long max, String type)
+            throws SQLException {
+        int idx = offset;
+        int end = offset + length;
+        while (idx < end && buffer.get(idx) == ' ') {
+            idx++;
+        }
+        while (end > idx && buffer.get(end - 1) == ' ') {
+            end--;
+        }
+
+        boolean negative = false;
+        if (idx < end && (buffer.get(idx) == '-' || buffer.get(idx) == '+')) {
+            negative = buffer.get(idx) == '-';
+            idx++;
+        }
+        if (idx == end) {
+            throw badValue(buffer, offset, length, type);
+        }
+
+        long limit = negative ? min : -max;
+        long multiplyLimit = limit / 10;
+        long result = 0;
+        for (; idx < end; idx++) {
+            int digit = buffer.get(idx) - '0';
+            if (digit < 0 || digit > 9) {
+                // Not a plain integer, maybe it has decimals or an exponent
+                return parseIntegerFromDecimal(buffer, offset, length, min, max, type);
+            }
+            if (result < multiplyLimit) {
+                throw badValue(buffer, offset, length, type);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw badValue(buffer, offset, length, type);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static long parseIntegerFromDecimal(ByteBuffer buffer, int offset, int length, long min, long max,
+                                                String type) throws SQLException {
+        BigDecimal truncated;
+        try {
+            truncated = new BigDecimal(asString(buffer, offset, length).trim()).setScale(0, RoundingMode.DOWN);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw badValue(buffer, offset, length, type);
+        }
+        if (truncated.compareTo(BigDecimal.valueOf(min)) < 0 || truncated.compareTo(BigDecimal.valueOf(max)) > 0) {
+            throw badValue(buffer, offset, length, type);
+        }
+        return truncated.longValue();
+    }
+
+    /**
+     * Parses a double.
+     *
+     * When the digits of the number fit exactly in a double and the power of ten is small enough to be exact too, a
+     * single multiplication or division gives the correctly rounded result (this is the fast path described by
+     * Clinger in "How to read floating point numbers accurately"). That covers nearly every value we get from a
+     * database. Anything else goes to Double.parseDouble.
+     */
+    public static double parseDouble(ByteBuffer buffer, int offset, int length) throws SQLException {
+        int idx = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (idx < end && (buffer.get(idx) == '-' || buffer.get(idx) == '+')) {
+            negative = buffer.get(idx) == '-';
+            idx++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean seenDigit = false;
+        boolean seenDot = false;
+        boolean fastPath = idx < end;
+        for (; idx < end && fastPath; idx++) {
+            byte current = buffer.get(idx);
+            if (current >= '0' && current <= '9') {
+                seenDigit = true;
+                if (mantissa != 0 || current != '0') {
+                    // Leading zeros do not count as digits
+                    digits++;
+                }
+                if (digits > 15) {
+                    fastPath = false;
+                } else {
+                    mantissa = mantissa * 10 + (current - '0');
+                }
+                if (seenDot) {
+                    exponent--;
+                }
+            } else if (current == '.' && !seenDot) {
+                seenDot = true;
+            } else if ((current == 'e' || current == 'E') && seenDigit) {
+                int parsedExponent = parseSmallExponent(buffer, idx + 1, end);
+                if (parsedExponent == Integer.MIN_VALUE) {
+                    fastPath = false;
+                } else {
+                    exponent += parsedExponent;
+                    idx = end - 1;
+                }
+            } else {
+                fastPath = false;
+            }
+        }
+
+        if (fastPath && seenDigit && mantissa < MAX_EXACT_DOUBLE_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double result = (double) mantissa;
+            if (exponent < 0) {
+                result = result / DOUBLE_POWERS_OF_TEN[-exponent];
+            } else {
+                result = result * DOUBLE_POWERS_OF_TEN[exponent];
+            }
+            return negative ? -result : result;
+        }
+
+        try {
+            return Double.parseDouble(asString(buffer, offset, length));
+        } catch (NumberFormatException e) {
+            throw badValue(buffer, offset, length, "double");
+        }
+    }
+
+    /**
+     * Parses a float, using the same fast path as {@link #parseDouble} but with the limits of a float, note that
+     * simply casting the result of parseDouble could round twice and give a different result.
+     */
+    public static float parseFloat(ByteBuffer buffer, int offset, int length) throws SQLException {
+        int idx = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (idx < end && (buffer.get(idx) == '-' || buffer.get(idx) == '+')) {
+            negative = buffer.get(idx) == '-';
+            idx++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenDot = false;
+        boolean fastPath = idx < end;
+        for (; idx < end && fastPath; idx++) {
+            byte current = buffer.get(idx);
+            if (current >= '0' && current <= '9') {
+                seenDigit = true;
+                mantissa = mantissa * 10 + (current - '0');
+                if (mantissa >= MAX_EXACT_FLOAT_MANTISSA) {
+                    fastPath = false;
+                }
+                if (seenDot) {
+                    exponent--;
+                }
+            } else if (current == '.' && !seenDot) {
+                seenDot = true;
+            } else if ((current == 'e' || current == 'E') && seenDigit) {
+                int parsedExponent = parseSmallExponent(buffer, idx + 1, end);
+                if (parsedExponent == Integer.MIN_VALUE) {
+                    fastPath = false;
+                } else {
+                    exponent += parsedExponent;
+                    idx = end - 1;
+                }
+            } else {
+                fastPath = false;
+            }
+        }
+
+        if (fastPath && seenDigit && exponent >= -10 && exponent <= 10) {
+            float result = (float) mantissa;
+            if (exponent < 0) {
+                result = result / FLOAT_POWERS_OF_TEN[-exponent];
+            } else {
+                result = result * FLOAT_POWERS_OF_TEN[exponent];
+            }
+            return negative ? -result : result;
+        }
+
+        try {
+            return Float.parseFloat(asString(buffer, offset, length));
+        } catch (NumberFormatException e) {
+            throw badValue(buffer, offset, length, "float");
+        }
+    }
+
+    /**
+     * Parses a BigDecimal. When the digits fit in a long (which is the case for nearly every money amount) the
+     * BigDecimal is built from the unscaled value and the scale, without going through a String.
+     */
+    public static BigDecimal parseBigDecimal(ByteBuffer buffer, int offset, int length) throws SQLException {
+        int idx = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (idx < end && (buffer.get(idx) == '-' || buffer.get(idx) == '+')) {
+            negative = buffer.get(idx) == '-';
+            idx++;
+        }
+
+        long unscaled = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean seenDot = false;
+        boolean fastPath = idx < end;
+        for (; idx < end && fastPath; idx++) {
+            byte current = buffer.get(idx);
+            if (current >= '0' && current <= '9') {
+                digits++;
+                unscaled = unscaled * 10 + (current - '0');
+                if (seenDot) {
+                    scale++;
+                }
+            } else if (current == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                fastPath = false;
+            }
+        }
+
+        if (fastPath && digits > 0 && digits <= MAX_LONG_DIGITS) {
+            return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+        }
+
+        try {
+            return new BigDecimal(asString(buffer, offset, length).trim());
+        } catch (NumberFormatException e) {
+            throw badValue(buffer, offset, length, "BigDecimal");
+        }
+    }
+
+    /**
+     * Parses the digits of an exponent, from start to the end of the value. Returns Integer.MIN_VALUE if the exponent
+     * is not a plain small number, so the caller can take the slow path.
+     */
+    private static int parseSmallExponent(ByteBuffer buffer, int start, int end) {
+        int idx = start;
+        boolean negative = false;
+        if (idx < end && (buffer.get(idx) == '-' || buffer.get(idx) == '+')) {
+            negative = buffer.get(idx) == '-';
+            idx++;
+        }
+        if (idx == end || end - idx > 3) {
+            return Integer.MIN_VALUE;
+        }
+        int result = 0;
+        for (; idx < end; idx++) {
+            int digit = buffer.get(idx) - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.MIN_VALUE;
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    private static String asString(ByteBuffer buffer, int offset, int length) {
+        byte[] raw = new byte[length];
+        for (int i = 0; i < length; i++) {
+            raw[i] = buffer.get(offset + i);
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static SQLException badValue(ByteBuffer buffer, int offset, int length, String type) {
+        return new SQLException("The column cannot be represented as " + type + ", value was " +
+                asString(buffer, offset, length));
+    }
+}
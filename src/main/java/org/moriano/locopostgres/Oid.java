@@ -0,0 +1,114 @@
+package org.moriano.locopostgres;
+
+import java.sql.Types;
+
+/**
+ * The object ids of the postgres data types the driver knows about.
+ *
+ * Every column in a BACKEND_ROW_DESCRIPTION packet comes with the object id of its type (see
+ * {@link LocoField#getObjectId()}), the values here come from the pg_type catalog:
+ *
+ * SELECT oid, typname FROM pg_type
+ */
+public class Oid {
+
+    public static final int UNSPECIFIED = 0;
+    public static final int BOOL = 16;
+    public static final int BYTEA = 17;
+    public static final int INT8 = 20;
+    public static final int INT2 = 21;
+    public static final int INT4 = 23;
+    public static final int TEXT = 25;
+    public static final int FLOAT4 = 700;
+    public static final int FLOAT8 = 701;
+    public static final int BPCHAR = 1042;
+    public static final int VARCHAR = 1043;
+    public static final int DATE = 1082;
+    public static final int TIME = 1083;
+    public static final int TIMESTAMP = 1114;
+    public static final int TIMESTAMPTZ = 1184;
+    public static final int NUMERIC = 1700;
+    public static final int UUID = 2950;
+
+    private Oid() {
+    }
+
+    /**
+     * The type to declare for a parameter set to null with the given {@link java.sql.Types} constant. Types we do
+     * not know about are left unspecified, the server then infers them from the query.
+     * @param sqlType
+     * @return
+     */
+    public static int fromSqlType(int sqlType) {
+        switch (sqlType) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOL;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+                return INT2;
+            case Types.INTEGER:
+                return INT4;
+            case Types.BIGINT:
+                return INT8;
+            case Types.REAL:
+                return FLOAT4;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return FLOAT8;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return NUMERIC;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return VARCHAR;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return TIMESTAMPTZ;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return BYTEA;
+            default:
+                return UNSPECIFIED;
+        }
+    }
+
+    /**
+     * Whether {@link BinaryDecoder} can decode values of this type in binary format. For these types the binary
+     * format is both smaller and cheaper to decode than the text one, so the extended protocol asks for it.
+     *
+     * Floats are not among them: the server prints them with the shortest digits that read back as the value only
+     * since version 12 and only if extra_float_digits is above zero, otherwise with 15 (6 for a float4) significant
+     * digits. A getString on a binary float could not tell which the session would have printed, so the same
+     * statement would read 0.3 on its first (text) execution and 0.30000000000000004 on the next ones.
+     * @param oid
+     * @return
+     */
+    public static boolean hasBinaryDecoder(int oid) {
+        switch (oid) {
+            case BOOL:
+            case BYTEA:
+            case INT8:
+            case INT2:
+            case INT4:
+            case DATE:
+            case TIMESTAMP:
+            case TIMESTAMPTZ:
+            case NUMERIC:
+            case UUID:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
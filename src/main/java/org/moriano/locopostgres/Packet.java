@@ -1,6 +1,6 @@
 package org.moriano.locopostgres;
 
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -14,31 +14,68 @@ import java.util.List;
  * Each packet contains an Array of bytes and an field indicating the
  * type of the packet that it is.
  *
- *
+ * Packets read from the server are usually a VIEW over the receive buffer of {@link LocoNetwork}, that is, they
+ * reference the region [offset, offset + length) of a buffer that gets reused for the following packets. Such a
+ * packet is only valid until the next packet is read from the same connection. Whoever needs to keep a packet
+ * around for longer must call {@link #detach()} first.
  */
 public class Packet {
 
     private PacketType packetType;
+
+    /**
+     * The buffer holding the bytes of this packet, the packet starts at {@link #offset} and spans {@link #length}
+     * bytes, the first one being the id byte (when the packet type has one).
+     */
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    /**
+     * A copy of the bytes of this packet as a standalone array, created lazily as most packets never need it.
+     */
     private byte[] packetContents;
 
 
     public Packet(PacketType packetType, byte[] packetContents) {
         this.packetType = packetType;
         this.packetContents = packetContents;
+        this.buffer = ByteBuffer.wrap(packetContents);
+        this.offset = 0;
+        this.length = packetContents.length;
+    }
+
+    private Packet(PacketType packetType, ByteBuffer buffer, int offset, int length) {
+        this.packetType = packetType;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
     }
 
     public static Packet fromBytes(byte[] rawBytes) {
-        char idChar = ByteUtil.asChar(rawBytes[0]);
+        return new Packet(identifyBackendPacket(ByteBuffer.wrap(rawBytes), 0, rawBytes.length), rawBytes);
+    }
+
+    /**
+     * Builds a packet that is a view over the region [offset, offset + length) of the given buffer. No bytes are
+     * copied, so the packet is only valid while that region of the buffer is not overwritten.
+     */
+    public static Packet fromBuffer(ByteBuffer buffer, int offset, int length) {
+        return new Packet(identifyBackendPacket(buffer, offset, length), buffer, offset, length);
+    }
+
+    private static PacketType identifyBackendPacket(ByteBuffer buffer, int offset, int length) {
+        byte idByte = buffer.get(offset);
         PacketType packetType = null;
 
-        if (idChar == 'R') {
+        if (idByte == 'R') {
             /*
             Remember packet has
             1 byte to id it
             4 bytes to know the actual size
             4 bytes with an int that tells us which kind of authentication we need to use
              */
-            int firstInt = ByteUtil.getInt32(new byte[]{rawBytes[5], rawBytes[6], rawBytes[7], rawBytes[8]});
+            int firstInt = buffer.getInt(offset + 5);
             if (firstInt == 0) {
                 packetType = PacketType.BACKEND_AUTHENTICATION_OK;
             } else if (firstInt == 2) {
@@ -63,13 +100,26 @@ public class Packet {
                 packetType = PacketType.BACKEND_AUTHENTICATION_SASL_FINAL;
             }
         } else {
-            packetType = PacketType.backendPacketTypeFromByte(rawBytes[0]);
+            packetType = PacketType.backendPacketTypeFromByte(idByte);
         }
         if (packetType == null) {
-            throw new RuntimeException("Could not identify packet " + ByteUtil.prettyPrint(rawBytes));
+            throw new RuntimeException("Could not identify packet " +
+                    ByteUtil.prettyPrint(copyOf(buffer, offset, length)));
         }
 
-        return new Packet(packetType, rawBytes);
+        return packetType;
+    }
+
+    private static byte[] copyOf(ByteBuffer buffer, int offset, int length) {
+        byte[] result = new byte[length];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, result, 0, length);
+        } else {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset);
+            duplicate.get(result);
+        }
+        return result;
     }
 
     /**
@@ -80,28 +130,19 @@ public class Packet {
      * @return
      */
     public static Packet startupMessage(String user, String database) {
-        byte[] protocolVersion = ByteUtil.asBytes(196608);
-
-        byte[] userParam = ByteUtil.asBytes("user");
-        byte[] userValue = ByteUtil.asBytes(user);
-
-        byte[] packetSoFar = ByteUtil.concat(protocolVersion,
-                userParam, new byte[]{0x00}, userValue, new byte[]{0x00});
-
+        PacketWriter packetWriter = new PacketWriter(64);
+        packetWriter.startMessage();
+        packetWriter.writeInt32(196608); // protocol version
+        packetWriter.writeString("user");
+        packetWriter.writeString(user);
         if (database != null) {
-            byte[] dbParam = ByteUtil.asBytes("database");
-            byte[] dbValue = ByteUtil.asBytes(database);
-
-            packetSoFar = ByteUtil.concat(packetSoFar,
-                    dbParam, new byte[]{0x00}, dbValue, new byte[]{0x00});
+            packetWriter.writeString("database");
+            packetWriter.writeString(database);
         }
+        packetWriter.writeByte(0);
+        packetWriter.endMessage();
 
-        packetSoFar = ByteUtil.concat(packetSoFar, new byte[]{0x00});
-
-        int packetSize = packetSoFar.length + 4; //We need to include the first int32 as part of packet size
-        byte[] finalPacket = ByteUtil.concat(ByteUtil.asBytes(packetSize), packetSoFar);
-
-        return new Packet(PacketType.FRONTEND_STARTUP_MESSAGE, finalPacket);
+        return new Packet(PacketType.FRONTEND_STARTUP_MESSAGE, packetWriter.toByteArray());
     }
 
     /**
@@ -122,8 +163,13 @@ public class Packet {
         int32 processId
         int32 secretkey
          */
-        byte[] rawValues = ByteUtil.concat(ByteUtil.asBytes(16), ByteUtil.asBytes(80877102), ByteUtil.asBytes(processId), ByteUtil.asBytes(secretKey));
-        return new Packet(PacketType.FRONTEND_CANCEL_REQUEST, rawValues);
+        PacketWriter packetWriter = new PacketWriter(16);
+        packetWriter.startMessage();
+        packetWriter.writeInt32(80877102);
+        packetWriter.writeInt32(processId);
+        packetWriter.writeInt32(secretKey);
+        packetWriter.endMessage();
+        return new Packet(PacketType.FRONTEND_CANCEL_REQUEST, packetWriter.toByteArray());
     }
 
     /**
@@ -132,12 +178,12 @@ public class Packet {
      * @return
      */
     public static Packet passwordMessage(byte[] password) {
-        byte[] byteId = ByteUtil.asBytes("p");
-        byte[] packetSize = ByteUtil.asBytes(password.length + 5);
-
-        byte[] result = ByteUtil.concat(byteId, packetSize, password, new byte[]{0x00});
-        return new Packet(PacketType.FRONTEND_PASSWORD_MESSAGE, result);
-
+        PacketWriter packetWriter = new PacketWriter(password.length + 6);
+        packetWriter.startMessage((byte) 'p');
+        packetWriter.writeBytes(password);
+        packetWriter.writeByte(0);
+        packetWriter.endMessage();
+        return new Packet(PacketType.FRONTEND_PASSWORD_MESSAGE, packetWriter.toByteArray());
     }
 
     /**
@@ -146,45 +192,9 @@ public class Packet {
      * @return
      */
     public static Packet query(String sql) {
-        byte[] sqlAsBytes = ByteUtil.concat(sql.getBytes(), new byte[]{0x00});
-        byte[] sizeAsBytes = ByteUtil.asBytes(sqlAsBytes.length + 4);
-        byte[] result = ByteUtil.concat(ByteUtil.asBytes("Q"), sizeAsBytes, sqlAsBytes);
-        return new Packet(PacketType.FRONTEND_QUERY,
-                result);
-
-    }
-
-    /**
-     * Prepares a simple protocol query packet that contains multiple statements.
-     *
-     * Unlike simple query messages, each of the statemens must be separated by ';'
-     *
-     * The end of the packet must be signaled by a 0x00 byte. Notice that in this packet we
-     * do NOT separate each of the statements using 0x00, that is only used to signify the end
-     * of the packet. Each of the statements is separated by ';'
-     * @param sqls
-     * @return
-     */
-    public static Packet query(List<String> sqls) {
-        int totalSize = 4; // The total size must include an int32
-        byte[] sqlsAsBytes = new byte[]{};
-        for (String sql : sqls) {
-            totalSize += sql.length();
-
-            if (sql.charAt(sql.length()-1) != ';') {
-                totalSize += 1;
-                sqlsAsBytes = ByteUtil.concat(sqlsAsBytes, sql.getBytes(Charset.defaultCharset()), new byte[]{";".getBytes()[0]});
-            } else {
-                sqlsAsBytes = ByteUtil.concat(sqlsAsBytes, sql.getBytes(Charset.defaultCharset()));
-            }
-        }
-        sqlsAsBytes = ByteUtil.concat(sqlsAsBytes, new byte[]{0x00});
-        totalSize += 1;
-
-
-        byte[] result = ByteUtil.concat(ByteUtil.asBytes("Q"), ByteUtil.asBytes(totalSize), sqlsAsBytes);
-        return new Packet(PacketType.FRONTEND_QUERY, result);
-
+        PacketWriter packetWriter = new PacketWriter(sql.length() + 6);
+        packetWriter.writeQuery(sql);
+        return new Packet(PacketType.FRONTEND_QUERY, packetWriter.toByteArray());
     }
 
     /**
@@ -256,16 +266,16 @@ public class Packet {
 
 
 
-        byte[] idByte = ByteUtil.asBytes("p");
-
-        byte[] mechanismAsBytes = ByteUtil.concat(saslAuthMechanism.getBytes(), new byte[]{0x00});
         byte[] initialResponse = "n,,n=*,r=random".getBytes();
 
-        byte[] sizeAsBytes = ByteUtil.asBytes(mechanismAsBytes.length + 4 + 4 + initialResponse.length);
+        PacketWriter packetWriter = new PacketWriter(64);
+        packetWriter.startMessage((byte) 'p');
+        packetWriter.writeString(saslAuthMechanism);
+        packetWriter.writeInt32(initialResponse.length);
+        packetWriter.writeBytes(initialResponse);
+        packetWriter.endMessage();
 
-        byte[] result = ByteUtil.concat(idByte, sizeAsBytes, mechanismAsBytes, ByteUtil.asBytes(initialResponse.length), initialResponse);
-
-        return new Packet(PacketType.FRONTEND_SASL_INITIAL_RESPONSE, result);
+        return new Packet(PacketType.FRONTEND_SASL_INITIAL_RESPONSE, packetWriter.toByteArray());
 
     }
 
@@ -276,35 +286,20 @@ public class Packet {
      * @return
      */
     public static Packet parse(String sql, String statementName) {
-        /*
-        Structure
-
-        Id byte is "P"
-        int32 with message size
-        String with name of the destination portal, empty string is the default portal
-        String the query to be parsed
-        Int16 number of parameter data types specified (can be zero)
-        Then for each parameter
-            int32 object id of the parameter type. Zero means unspecified.
-        */
-        byte[] sqlAsBytes = ByteUtil.concat(sql.getBytes(), new byte[]{0x00});
-        int size = sqlAsBytes.length + 4 + 2; // string length, plus packet length, plus int16 for param data types
-        byte[] result;
-        byte[] paramDataTypes = ByteUtil.asBytesInt16(0);
-        if (statementName == null) {
-            size += 1; // no matter what, we need to send the 0x00 byte for empty string
-        } else {
-            size = statementName.getBytes().length + 1;
-        }
-        byte[] sizeAsBytes = ByteUtil.asBytes(size);
-        if (statementName !=null) {
-            byte[] statementNameAsBytes = ByteUtil.concat(statementName.getBytes(), new byte[]{0x00});
-            result = ByteUtil.concat(ByteUtil.asBytes("P"), sizeAsBytes, statementNameAsBytes, sqlAsBytes, paramDataTypes);
-        } else {
-            result = ByteUtil.concat(ByteUtil.asBytes("P"), sizeAsBytes, new byte[]{0x00}, sqlAsBytes, paramDataTypes);
-        }
+        return parse(sql, statementName, null);
+    }
 
-        return new Packet(PacketType.FRONTEND_PARSE, result);
+    /**
+     * Prepares a Parse message declaring the types of the parameters of the query.
+     * @param sql
+     * @param statementName
+     * @param parameterTypes the object id of the type of each parameter, see {@link Oid}
+     * @return
+     */
+    public static Packet parse(String sql, String statementName, int[] parameterTypes) {
+        PacketWriter packetWriter = new PacketWriter(sql.length() + 16);
+        packetWriter.writeParse(sql, statementName, parameterTypes);
+        return new Packet(PacketType.FRONTEND_PARSE, packetWriter.toByteArray());
     }
 
     /**
@@ -312,19 +307,9 @@ public class Packet {
      * @return
      */
     public static Packet describeStatement(String name) {
-        /*
-        ID byte is 'D'
-        int32 with the size
-        1 byte to indicate whether we want to describe a statement 'S' or a portal 'P'
-        String to indicate the name of the portal or statement to describe
-         */
-        byte[] nameAsBytes = ByteUtil.getZeroByteTerminatedString(name);
-        return new Packet(PacketType.FRONTEND_DESCRIBE,
-                ByteUtil.concat(ByteUtil.asBytes("D"),
-                        ByteUtil.asBytes(4+nameAsBytes.length+1),
-                        new byte[]{'S'},
-                        nameAsBytes
-                ));
+        PacketWriter packetWriter = new PacketWriter(16);
+        packetWriter.writeDescribe('S', name);
+        return new Packet(PacketType.FRONTEND_DESCRIBE, packetWriter.toByteArray());
     }
 
     /**
@@ -332,11 +317,20 @@ public class Packet {
      * @return
      */
     public static Packet sync() {
-        /*
-        ID byte is 'S'
-        int32 with the length of the packet, always 4
-         */
-        return new Packet(PacketType.FRONTEND_SYNC, ByteUtil.concat(ByteUtil.asBytes("S"), ByteUtil.asBytes(4)));
+        PacketWriter packetWriter = new PacketWriter(5);
+        packetWriter.writeSync();
+        return new Packet(PacketType.FRONTEND_SYNC, packetWriter.toByteArray());
+    }
+
+    /**
+     * Creates a flush packet, useful in the extended protocol. It asks the server to send whatever it has pending
+     * without the transaction implications of a sync.
+     * @return
+     */
+    public static Packet flush() {
+        PacketWriter packetWriter = new PacketWriter(5);
+        packetWriter.writeFlush();
+        return new Packet(PacketType.FRONTEND_FLUSH, packetWriter.toByteArray());
     }
 
     /**
@@ -344,19 +338,9 @@ public class Packet {
      * @return
      */
     public static Packet describePortal(String name) {
-        /*
-        ID byte is 'D'
-        int32 with the size
-        1 byte to indicate whether we want to describe a statement 'S' or a portal 'P'
-        String to indicate the name of the portal or statement to describe
-         */
-        byte[] nameAsBytes = ByteUtil.getZeroByteTerminatedString(name);
-        return new Packet(PacketType.FRONTEND_DESCRIBE,
-                ByteUtil.concat(ByteUtil.asBytes("D"),
-                        ByteUtil.asBytes(4+nameAsBytes.length+1),
-                        new byte[]{'P'},
-                        nameAsBytes
-                        ));
+        PacketWriter packetWriter = new PacketWriter(16);
+        packetWriter.writeDescribe('P', name);
+        return new Packet(PacketType.FRONTEND_DESCRIBE, packetWriter.toByteArray());
     }
 
     /**
@@ -366,46 +350,9 @@ public class Packet {
      * @return
      */
     public static Packet bind(String destinationPortal, String sourcePreparedStatement, int paramPosition, byte[] value) {
-        /*
-        Structure
-
-        Id byte is "B"
-        int32 with length of packet
-        String with destination portal (empty string selects the unnamed portal)
-        String name of the source prepared statement (empty string selects the unnamed prepared statement)
-        int16 the number of parameter format codes that follow. This can be zero to denote that all parameters use
-                the default format (text). This is denoted as 'C' later
-        int16[C] The parameter format codes, can be zero (text) or one (binary)
-        int16 the number of parameters that follow (could be zero). This must match the number of parameters required
-                byte the query
-        Next, fhe following pair of fields appear for each parameter
-
-        int32 lenght of the parameter value in bytes, can be zero. -1 means NULL
-        Byte(n) The value of the parameter in the format indicated by the associated format code. n is the above length
-
-        After the LAST parameter, the following fields must appear
-        int16 the number of result-column format codes that follow (denoted R below). This can be zero to indicate
-        that there are no result columns or that the result coliumns must use the default format (text)
-
-        int16[R] the result column format codes. They can be zero (text) or one (binary)
-
-         */
-        int size = 4; // int32 indicating the size of message itself
-
-        byte[] destinationPortalAsBytes = ByteUtil.getZeroByteTerminatedString(destinationPortal);
-        byte[] sourcePreparedStamentAsBytes = ByteUtil.getZeroByteTerminatedString(sourcePreparedStatement);
-        byte[] parameterFormatCodes = ByteUtil.asBytesInt16(0); // TODO Moriano add support for multiple params
-        byte[] parameterValues = ByteUtil.asBytesInt16(0); // TODO MORIANO
-        byte[] resultColumnFormatCodes = ByteUtil.asBytesInt16(0); // TODO MORIANO
-
-        size += destinationPortalAsBytes.length + sourcePreparedStamentAsBytes.length + parameterFormatCodes.length +
-                parameterValues.length + resultColumnFormatCodes.length;
-
-        byte[] result = ByteUtil.concat(ByteUtil.asBytes("B"), ByteUtil.asBytes(size), destinationPortalAsBytes,
-                sourcePreparedStamentAsBytes, parameterFormatCodes, parameterValues, resultColumnFormatCodes);
-
-        return new Packet(PacketType.FRONTEND_BIND, result);
-
+        PacketWriter packetWriter = new PacketWriter(32);
+        packetWriter.writeBind(destinationPortal, sourcePreparedStatement, null, null);
+        return new Packet(PacketType.FRONTEND_BIND, packetWriter.toByteArray());
     }
 
     /**
@@ -414,29 +361,20 @@ public class Packet {
      * @return
      */
     public static Packet execute(String portalName) {
-        /*
-        Structure
-
-        Id byte is "E"
-        int32 with size of packet
-        String with name of the portal to execute (empty string is the default portal)
-        int32 max number of rows to return, zero means no limit
-         */
-        int size = 4;
-        byte[] portalNameInBytes;
-        if (portalName == null) {
-            size++;
-            portalNameInBytes = new byte[]{0x00};
-        } else {
-            size += portalName.getBytes().length + 1;
-            portalNameInBytes = ByteUtil.concat(portalName.getBytes(), new byte[]{0x00});
-        }
-        size += 4;
-
+        return execute(portalName, 0);
+    }
 
-        byte[] result = ByteUtil.concat(ByteUtil.asBytes("E"), ByteUtil.asBytes(size),
-                portalNameInBytes, ByteUtil.asBytes(0));
-        return new Packet(PacketType.FRONTEND_EXECUTE, result);
+    /**
+     * Generates an Execute packet that returns at most maxRows rows, after them the server sends
+     * BACKEND_PORTAL_SUSPENDED and the portal can be executed again to get the next ones.
+     * @param portalName
+     * @param maxRows the maximum number of rows to return, zero means all of them
+     * @return
+     */
+    public static Packet execute(String portalName, int maxRows) {
+        PacketWriter packetWriter = new PacketWriter(16);
+        packetWriter.writeExecute(portalName, maxRows);
+        return new Packet(PacketType.FRONTEND_EXECUTE, packetWriter.toByteArray());
     }
 
     /**
@@ -454,10 +392,10 @@ public class Packet {
      * @return
      */
     public static Packet terminate() {
-        byte[] byteId = ByteUtil.asBytes("X");
-        byte[] packetSize = ByteUtil.asBytes(4);
-        byte[] contents = ByteUtil.concat(byteId, packetSize);
-        return new Packet(PacketType.FRONTEND_TERMINATE, contents);
+        PacketWriter packetWriter = new PacketWriter(5);
+        packetWriter.startMessage((byte) 'X');
+        packetWriter.endMessage();
+        return new Packet(PacketType.FRONTEND_TERMINATE, packetWriter.toByteArray());
     }
 
     public PacketType getPacketType() {
@@ -465,10 +403,56 @@ public class Packet {
     }
 
 
+    /**
+     * The full packet as an array of bytes, starting by the id byte. For packets that are a view over a buffer this
+     * copies the bytes the first time it is called, hot paths should use {@link #getBuffer()} and
+     * {@link #getOffset()} instead.
+     * @return
+     */
     public byte[] getPacketContents() {
+        if (this.packetContents == null) {
+            this.packetContents = copyOf(this.buffer, this.offset, this.length);
+        }
         return packetContents;
     }
 
+    /**
+     * The buffer holding this packet. Notice that the buffer may contain other packets too, only the region
+     * starting at {@link #getOffset()} and spanning {@link #getLength()} bytes belongs to this packet.
+     * @return
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * The position in {@link #getBuffer()} where this packet (that is, its id byte) starts
+     * @return
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * The total size of this packet, including the id byte and the int32 with the length
+     * @return
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a packet that owns a copy of its bytes, so it remains valid after more packets are read from the
+     * server. Packets that already own their bytes are returned as they are.
+     * @return
+     */
+    public Packet detach() {
+        if (this.buffer.hasArray() && this.buffer.array() == this.packetContents) {
+            return this;
+        }
+        return new Packet(this.packetType, this.getPacketContents());
+    }
+
 
     /**
      * Assuming that this is a BACKEND_KEY_DATA packet, extract it.
@@ -487,8 +471,8 @@ public class Packet {
         int32 with secret key
          */
 
-        int processId = ByteUtil.getInt32(Arrays.copyOfRange(this.packetContents, 5, 9));
-        int secretKey = ByteUtil.getInt32(Arrays.copyOfRange(this.packetContents, 9, 13));
+        int processId = this.buffer.getInt(this.offset + 5);
+        int secretKey = this.buffer.getInt(this.offset + 9);
         return new BackendKeyData(processId, secretKey);
     }
 
@@ -509,7 +493,8 @@ public class Packet {
         String (terminated by 0x00 with the value
          */
 
-        List<String> strings = ByteUtil.asStrings(Arrays.copyOfRange(this.packetContents, 5, this.packetContents.length));
+        byte[] contents = this.getPacketContents();
+        List<String> strings = ByteUtil.asStrings(Arrays.copyOfRange(contents, 5, contents.length));
         // we expect EXACTLY two values here, otherwise fail
         if (strings.size() != 2) {
             throw new RuntimeException("Issues processing packet " + this + " we expected two params but got " + strings.size());
@@ -517,6 +502,31 @@ public class Packet {
         return new ParameterStatus(strings.get(0), strings.get(1));
     }
 
+    /**
+     * Assuming that this is a BACKEND_PARAMETER_DESCRIPTION packet, extract the object id of the type of each
+     * parameter, see {@link Oid}
+     * @return
+     */
+    public int[] getParameterTypes() {
+        if (this.packetType != PacketType.BACKEND_PARAMETER_DESCRIPTION) {
+            throw new RuntimeException("You cannot get parameter types from this packet " + this);
+        }
+        /*
+        Packet parameter description looks like
+
+        1st byte to indicate type
+        int32 with the length
+        int16 with the number of parameters
+        int32 with the object id of the type of each parameter
+         */
+        int count = this.buffer.getShort(this.offset + 5) & 0xFFFF;
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = this.buffer.getInt(this.offset + 7 + i * 4);
+        }
+        return result;
+    }
+
     /**
      * A human readable representation of the packet. This is very useful for human inspection in the logs.
      * Particularly useful for studying the protocol or debugging issues.
@@ -525,7 +535,7 @@ public class Packet {
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder("\n---------PACKET TYPE '"+this.packetType+"' STARTS------------\n\n");
-        result.append(ByteUtil.prettyPrint(this.packetContents));
+        result.append(ByteUtil.prettyPrint(this.getPacketContents()));
         result.append("\n---------PACKET TYPE '"+this.packetType+"' ENDS------------\n");
         return result.toString();
 
@@ -36,7 +36,7 @@ public enum PacketType {
     BACKEND_EMPTY_QUERY_RESPONSE(FrontendOrBackend.BACKEND, 'I'),
     BACKEND_ERROR_RESPONSE(FrontendOrBackend.BACKEND, 'E'),
     FRONTEND_EXECUTE(FrontendOrBackend.FRONTED, 'E'),
-    FRONTEND_FLUSH(FrontendOrBackend.FRONTED, 'F'),
+    FRONTEND_FLUSH(FrontendOrBackend.FRONTED, 'H'),
     FRONTEND_FUNCTION_CALL(FrontendOrBackend.FRONTED, 'F'),
     BACKEND_FUNCTION_CALL_RESPONSE(FrontendOrBackend.BACKEND, 'V'),
     FRONTEND_GSSENC_REQUEST(FrontendOrBackend.FRONTED, null),
@@ -78,6 +78,21 @@ public enum PacketType {
      */
     private Character identificationChar;
 
+    /**
+     * Backend packet types indexed by their identification byte. Every single packet read from the server needs
+     * this lookup, so we avoid going through {@link #values()} (which copies the array on every call).
+     */
+    private static final PacketType[] BACKEND_PACKET_TYPES_BY_BYTE = new PacketType[256];
+
+    static {
+        for (PacketType packetType : values()) {
+            if (packetType.frontendOrBackend == FrontendOrBackend.BACKEND &&
+                    BACKEND_PACKET_TYPES_BY_BYTE[packetType.identificationByte & 0xFF] == null) {
+                BACKEND_PACKET_TYPES_BY_BYTE[packetType.identificationByte & 0xFF] = packetType;
+            }
+        }
+    }
+
     PacketType(FrontendOrBackend frontendOrBackend, Character identificationChar) {
         this.frontendOrBackend = frontendOrBackend;
 
@@ -98,18 +113,12 @@ public enum PacketType {
     }
 
     public static PacketType backendPacketTypeFromByte(byte byteId) {
-        for(PacketType packetType : values()) {
-            if (packetType.frontendOrBackend == FrontendOrBackend.BACKEND &&
-            byteId == packetType.identificationByte) {
-                return packetType;
-            }
-        }
-        return null;
+        return BACKEND_PACKET_TYPES_BY_BYTE[byteId & 0xFF];
     }
 
     public static PacketType frontendPacketTypeFromByte(byte byteId) {
         for(PacketType packetType : values()) {
-            if (packetType.frontendOrBackend == FrontendOrBackend.FRONTED &&
+            if (packetType.frontendOrBackend == FrontendOrBackend.FRONTED && packetType.identificationByte != null &&
                     byteId == packetType.identificationByte) {
                 return packetType;
             }
@@ -0,0 +1,562 @@
+package org.moriano.locopostgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes frontend packets straight into a reusable array of bytes.
+ *
+ * Building a packet with {@link ByteUtil#concat} means allocating an array for every single field and then copying
+ * all of them into yet another array. The PacketWriter instead keeps one buffer (normally one per connection, see
+ * {@link LocoNetwork#getPacketWriter()}) and writes each field where it belongs. As the length of a packet is only
+ * known once all its fields are written, {@link #startMessage(byte)} leaves room for the int32 with the length and
+ * {@link #endMessage()} goes back and fills it in.
+ *
+ * The write methods for each packet type of the protocol live here too, see for instance {@link #writeQuery}. The
+ * factories in {@link Packet} use them, so there is a single place where the format of each packet is defined.
+ */
+public class PacketWriter {
+
+    private byte[] buffer;
+    private int position = 0;
+
+    /**
+     * Where the int32 with the length of the packet currently being written is, -1 when no packet is being written
+     */
+    private int lengthPosition = -1;
+
+    /**
+     * Strings are encoded with the same encoder over and over, encoders are expensive to create
+     */
+    private final CharsetEncoder utf8Encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * A ByteBuffer wrapping {@link #buffer}, used to hand the buffer to the encoder. Created again when the buffer
+     * grows.
+     */
+    private ByteBuffer encoderTarget;
+
+    /**
+     * How many SYNC and simple QUERY packets were written so far, each one is answered by a READY_FOR_QUERY
+     */
+    private long syncPoints = 0;
+
+    public PacketWriter(int initialSize) {
+        this.buffer = new byte[initialSize];
+        this.encoderTarget = ByteBuffer.wrap(this.buffer);
+    }
+
+    /**
+     * How many SYNC and simple QUERY packets were written so far
+     * @return
+     */
+    public long getSyncPoints() {
+        return syncPoints;
+    }
+
+    /**
+     * Counts a SYNC or simple QUERY packet written as raw bytes, see {@link #getSyncPoints()}
+     */
+    void countSyncPoint() {
+        this.syncPoints++;
+    }
+
+    /**
+     * Starts a packet with the given id byte, leaving room for its length
+     */
+    public PacketWriter startMessage(byte id) {
+        this.ensureCapacity(5);
+        this.buffer[this.position++] = id;
+        return this.startMessage();
+    }
+
+    /**
+     * Starts a packet that has no id byte (like the startup or cancel request packets), leaving room for its length
+     */
+    public PacketWriter startMessage() {
+        this.ensureCapacity(4);
+        this.lengthPosition = this.position;
+        this.position += 4;
+        return this;
+    }
+
+    /**
+     * Finishes the current packet by writing its length, which includes the int32 of the length itself but not the
+     * id byte
+     * @return the length written
+     */
+    public int endMessage() {
+        int length = this.position - this.lengthPosition;
+        this.writeInt32At(this.lengthPosition, length);
+        this.lengthPosition = -1;
+        return length;
+    }
+
+    public PacketWriter writeByte(int value) {
+        this.ensureCapacity(1);
+        this.buffer[this.position++] = (byte) value;
+        return this;
+    }
+
+    public PacketWriter writeInt16(int value) {
+        this.ensureCapacity(2);
+        this.writeInt16At(this.position, value);
+        this.position += 2;
+        return this;
+    }
+
+    public PacketWriter writeInt32(int value) {
+        this.ensureCapacity(4);
+        this.writeInt32At(this.position, value);
+        this.position += 4;
+        return this;
+    }
+
+    public PacketWriter writeInt64(long value) {
+        this.ensureCapacity(8);
+        this.writeInt32At(this.position, (int) (value >>> 32));
+        this.writeInt32At(this.position + 4, (int) value);
+        this.position += 8;
+        return this;
+    }
+
+    public PacketWriter writeBytes(byte[] values) {
+        return this.writeBytes(values, 0, values.length);
+    }
+
+    public PacketWriter writeBytes(byte[] values, int offset, int length) {
+        this.ensureCapacity(length);
+        System.arraycopy(values, offset, this.buffer, this.position, length);
+        this.position += length;
+        return this;
+    }
+
+    /**
+     * Writes a string terminated by the zero byte, as the protocol expects. A null string is written as an empty
+     * one.
+     */
+    public PacketWriter writeString(String value) {
+        if (value != null) {
+            this.writeUtf8(value);
+        }
+        return this.writeByte(0);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the given characters, without any terminator.
+     *
+     * Most of what we send (sql, statement names...) is plain ascii, which is copied char by char. The encoder is
+     * only used from the first non ascii character onwards.
+     * @return the number of bytes written
+     */
+    public int writeUtf8(CharSequence value) {
+        int start = this.position;
+        int length = value.length();
+        this.ensureCapacity(length);
+
+        int idx = 0;
+        while (idx < length) {
+            char c = value.charAt(idx);
+            if (c >= 0x80) {
+                break;
+            }
+            this.buffer[this.position++] = (byte) c;
+            idx++;
+        }
+
+        if (idx < length) {
+            // A char never takes more than 3 bytes in UTF-8 (surrogate pairs take 4 bytes, but for 2 chars)
+            this.ensureCapacity((length - idx) * 3);
+            CharBuffer chars = CharBuffer.wrap(value, idx, length);
+            this.encoderTarget.limit(this.buffer.length);
+            this.encoderTarget.position(this.position);
+            this.utf8Encoder.reset();
+            this.utf8Encoder.encode(chars, this.encoderTarget, true);
+            this.utf8Encoder.flush(this.encoderTarget);
+            this.position = this.encoderTarget.position();
+        }
+        return this.position - start;
+    }
+
+    public void writeInt16At(int offset, int value) {
+        this.buffer[offset] = (byte) (value >>> 8);
+        this.buffer[offset + 1] = (byte) value;
+    }
+
+    public void writeInt32At(int offset, int value) {
+        this.buffer[offset] = (byte) (value >>> 24);
+        this.buffer[offset + 1] = (byte) (value >>> 16);
+        this.buffer[offset + 2] = (byte) (value >>> 8);
+        this.buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Writes a simple protocol query packet
+     */
+    public PacketWriter writeQuery(String sql) {
+        /*
+        Id byte is 'Q'
+        int32 with the size
+        String with the query
+         */
+        this.startMessage((byte) 'Q');
+        this.writeString(sql);
+        this.endMessage();
+        this.syncPoints++;
+        return this;
+    }
+
+    /**
+     * Writes a Parse packet with no parameter types, used in the extended protocol mode
+     */
+    public PacketWriter writeParse(String sql, String statementName) {
+        return this.writeParse(sql, statementName, null);
+    }
+
+    /**
+     * Writes a Parse packet, used in the extended protocol mode
+     *
+     * @param parameterTypes the object id of the type of each parameter, see {@link Oid}. Null when the query has
+     *                       no parameters.
+     */
+    public PacketWriter writeParse(String sql, String statementName, int[] parameterTypes) {
+        /*
+        Structure
+
+        Id byte is "P"
+        int32 with message size
+        String with name of the destination prepared statement, empty string is the unnamed statement
+        String the query to be parsed
+        Int16 number of parameter data types specified (can be zero)
+        Then for each parameter
+            int32 object id of the parameter type. Zero means unspecified.
+        */
+        this.startMessage((byte) 'P');
+        this.writeString(statementName);
+        this.writeString(sql);
+        if (parameterTypes == null) {
+            this.writeInt16(0);
+        } else {
+            this.writeInt16(parameterTypes.length);
+            for (int parameterType : parameterTypes) {
+                this.writeInt32(parameterType);
+            }
+        }
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes a Bind packet, used in the extended protocol mode
+     *
+     * @param parameters the values of the parameters, null when the query has no parameters
+     * @param resultFormatCodes the format of each result column, zero for text and one for binary. Null means text
+     *                          for all of them.
+     */
+    public PacketWriter writeBind(String destinationPortal, String sourcePreparedStatement, LocoParameters parameters,
+                                  int[] resultFormatCodes) {
+        /*
+        Structure
+
+        Id byte is "B"
+        int32 with length of packet
+        String with destination portal (empty string selects the unnamed portal)
+        String name of the source prepared statement (empty string selects the unnamed prepared statement)
+        int16 the number of parameter format codes that follow. This can be zero to denote that all parameters use
+                the default format (text). This is denoted as 'C' later
+        int16[C] The parameter format codes, can be zero (text) or one (binary)
+        int16 the number of parameters that follow (could be zero). This must match the number of parameters required
+                byte the query
+        Next, fhe following pair of fields appear for each parameter
+
+        int32 lenght of the parameter value in bytes, can be zero. -1 means NULL
+        Byte(n) The value of the parameter in the format indicated by the associated format code. n is the above length
+
+        After the LAST parameter, the following fields must appear
+        int16 the number of result-column format codes that follow (denoted R below). This can be zero to indicate
+        that there are no result columns or that the result coliumns must use the default format (text)
+
+        int16[R] the result column format codes. They can be zero (text) or one (binary)
+         */
+        this.startMessage((byte) 'B');
+        this.writeString(destinationPortal);
+        this.writeString(sourcePreparedStatement);
+        if (parameters == null) {
+            this.writeInt16(0);
+            this.writeInt16(0);
+        } else {
+            parameters.writeFormatCodes(this);
+            parameters.writeValues(this);
+        }
+        this.writeResultFormatCodes(resultFormatCodes);
+        this.endMessage();
+        return this;
+    }
+
+    private void writeResultFormatCodes(int[] resultFormatCodes) {
+        if (resultFormatCodes == null) {
+            this.writeInt16(0);
+            return;
+        }
+        boolean allBinary = true;
+        for (int formatCode : resultFormatCodes) {
+            allBinary &= formatCode == 1;
+        }
+        if (allBinary) {
+            // A single format code applies to every column
+            this.writeInt16(1);
+            this.writeInt16(1);
+            return;
+        }
+        this.writeInt16(resultFormatCodes.length);
+        for (int formatCode : resultFormatCodes) {
+            this.writeInt16(formatCode);
+        }
+    }
+
+    /**
+     * Writes a Describe packet, the type is 'S' to describe a prepared statement or 'P' to describe a portal
+     */
+    public PacketWriter writeDescribe(char type, String name) {
+        /*
+        ID byte is 'D'
+        int32 with the size
+        1 byte to indicate whether we want to describe a statement 'S' or a portal 'P'
+        String to indicate the name of the portal or statement to describe
+         */
+        this.startMessage((byte) 'D');
+        this.writeByte(type);
+        this.writeString(name);
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes a Close packet, the type is 'S' to close a prepared statement or 'P' to close a portal
+     */
+    public PacketWriter writeClose(char type, String name) {
+        /*
+        ID byte is 'C'
+        int32 with the size
+        1 byte to indicate whether we want to close a statement 'S' or a portal 'P'
+        String to indicate the name of the portal or statement to close
+         */
+        this.startMessage((byte) 'C');
+        this.writeByte(type);
+        this.writeString(name);
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes an Execute packet, used in the extended protocol mode
+     */
+    public PacketWriter writeExecute(String portalName, int maxRows) {
+        /*
+        Structure
+
+        Id byte is "E"
+        int32 with size of packet
+        String with name of the portal to execute (empty string is the default portal)
+        int32 max number of rows to return, zero means no limit
+         */
+        this.startMessage((byte) 'E');
+        this.writeString(portalName);
+        this.writeInt32(maxRows);
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes a Sync packet, the end of an extended protocol round trip
+     */
+    public PacketWriter writeSync() {
+        /*
+        ID byte is 'S'
+        int32 with the length of the packet, always 4
+         */
+        this.startMessage((byte) 'S');
+        this.endMessage();
+        this.syncPoints++;
+        return this;
+    }
+
+    /**
+     * Writes a Flush packet, which asks the server to send whatever it has pending
+     */
+    public PacketWriter writeFlush() {
+        /*
+        ID byte is 'H'
+        int32 with the length of the packet, always 4
+         */
+        this.startMessage((byte) 'H');
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes a CopyData packet with the given bytes, part of the data sent to a COPY FROM STDIN
+     */
+    public PacketWriter writeCopyData(byte[] data, int offset, int length) {
+        /*
+        ID byte is 'd'
+        int32 with the size
+        The data itself. CopyData packets do not need to match rows, the server joins them
+         */
+        this.startMessage((byte) 'd');
+        this.writeBytes(data, offset, length);
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes a CopyData packet with up to maxBytes read from the given stream, straight into our buffer. Blocks until
+     * maxBytes are read or the stream ends.
+     * @return the number of bytes read, -1 (and nothing written) if the stream had already ended
+     */
+    public int writeCopyData(InputStream input, int maxBytes) throws IOException {
+        this.startMessage((byte) 'd');
+        this.ensureCapacity(maxBytes);
+        int read;
+        try {
+            read = input.readNBytes(this.buffer, this.position, maxBytes);
+        } catch (IOException | RuntimeException e) {
+            this.discardMessage();
+            throw e;
+        }
+        return this.endCopyData(read);
+    }
+
+    /**
+     * Writes a CopyData packet with up to maxBytes read from the given channel, straight into our buffer. The
+     * channel must be in blocking mode, reads until maxBytes are read or the channel ends.
+     * @return the number of bytes read, -1 (and nothing written) if the channel had already ended
+     */
+    public int writeCopyData(ReadableByteChannel input, int maxBytes) throws IOException {
+        this.startMessage((byte) 'd');
+        this.ensureCapacity(maxBytes);
+        ByteBuffer target = ByteBuffer.wrap(this.buffer, this.position, maxBytes);
+        try {
+            while (target.hasRemaining() && input.read(target) >= 0) {
+                // Keep reading until the packet is full or the channel ends
+            }
+        } catch (IOException | RuntimeException e) {
+            this.discardMessage();
+            throw e;
+        }
+        return this.endCopyData(target.position() - this.position);
+    }
+
+    /**
+     * Writes a CopyData packet with the UTF-8 bytes of the given characters
+     */
+    public PacketWriter writeCopyData(CharSequence data) {
+        this.startMessage((byte) 'd');
+        this.writeUtf8(data);
+        this.endMessage();
+        return this;
+    }
+
+    private int endCopyData(int read) {
+        if (read <= 0) {
+            // Nothing was read, forget the packet we started
+            this.discardMessage();
+            return -1;
+        }
+        this.position += read;
+        this.endMessage();
+        return read;
+    }
+
+    /**
+     * Forgets the packet started with {@link #startMessage(byte)}, as if it had never been written
+     */
+    private void discardMessage() {
+        this.position = this.lengthPosition - 1;
+        this.lengthPosition = -1;
+    }
+
+    /**
+     * Writes a CopyDone packet, telling the server all the data of a COPY FROM STDIN was sent
+     */
+    public PacketWriter writeCopyDone() {
+        /*
+        ID byte is 'c'
+        int32 with the length of the packet, always 4
+         */
+        this.startMessage((byte) 'c');
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * Writes a CopyFail packet, which makes the server abort a COPY FROM STDIN with the given message as the error
+     */
+    public PacketWriter writeCopyFail(String message) {
+        /*
+        ID byte is 'f'
+        int32 with the size
+        String with the reason of the failure
+         */
+        this.startMessage((byte) 'f');
+        this.writeString(message);
+        this.endMessage();
+        return this;
+    }
+
+    /**
+     * The number of bytes written so far
+     */
+    public int position() {
+        return position;
+    }
+
+    /**
+     * The buffer where packets are written, only [0, position()) contains meaningful data
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * A copy of everything written so far
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[this.position];
+        System.arraycopy(this.buffer, 0, result, 0, this.position);
+        return result;
+    }
+
+    /**
+     * Discards everything written so far. If the buffer grew beyond maxRetainedSize it is replaced by a smaller one,
+     * so a one-off huge packet does not pin memory for the lifetime of the connection.
+     */
+    public void clear(int maxRetainedSize) {
+        this.position = 0;
+        this.lengthPosition = -1;
+        if (this.buffer.length > maxRetainedSize) {
+            this.buffer = new byte[maxRetainedSize];
+            this.encoderTarget = ByteBuffer.wrap(this.buffer);
+        }
+    }
+
+    private void ensureCapacity(int extraBytes) {
+        int required = this.position + extraBytes;
+        if (required <= this.buffer.length) {
+            return;
+        }
+        int newSize = Math.max(this.buffer.length * 2, required);
+        byte[] newBuffer = new byte[newSize];
+        System.arraycopy(this.buffer, 0, newBuffer, 0, this.position);
+        this.buffer = newBuffer;
+        this.encoderTarget = ByteBuffer.wrap(this.buffer);
+    }
+}
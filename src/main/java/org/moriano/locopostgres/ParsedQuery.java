@@ -0,0 +1,576 @@
+package org.moriano.locopostgres;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A query written with JDBC placeholders (?) rewritten into the placeholders postgres understands ($1, $2...).
+ *
+ * JDBC numbers parameters by their position, postgres wants them numbered explicitly, so
+ *
+ * SELECT * FROM users WHERE name = ? AND age > ?
+ *
+ * becomes
+ *
+ * SELECT * FROM users WHERE name = $1 AND age > $2
+ *
+ * Question marks inside string literals ('...', E'...'), quoted identifiers ("..."), dollar quoted strings
+ * ($$...$$ or $tag$...$tag$) and comments are left untouched. Two question marks in a row (??) are the JDBC way of
+ * writing a literal question mark, useful for the json operators like ?| or ?&, so they become a single ?.
+ *
+ * Applications run the same few queries over and over, so rewritten queries are kept in a small LRU cache keyed by
+ * the original sql, see {@link #parse(String)}.
+ *
+ * We also find out whether the query is a single row INSERT ... VALUES (...) holding all the parameters, which
+ * batches can fold into multi row inserts, see {@link #getMultiRowSql(int)}, or even run as a COPY, see
+ * {@link #getCopySql()}.
+ */
+public final class ParsedQuery {
+
+    /**
+     * How many rewritten queries we keep around
+     */
+    private static final int CACHE_SIZE = 256;
+
+    private static final Map<String, ParsedQuery> CACHE = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParsedQuery> eldest) {
+            return this.size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Multi row inserts have a power of two rows, see {@link #getMultiRowSql(int)}, this is one slot for each
+     */
+    private static final int MAX_MULTI_ROW_SQLS = 31;
+
+    private final String originalSql;
+    private final String sql;
+    private final int parameterCount;
+
+    /**
+     * For a single row INSERT ... VALUES (...) holding all the parameters, the sql up to the VALUES tuple and the
+     * text of the tuple between its parameters ("(", ", ", ")" for (?, ?)). Null for any other query.
+     */
+    private final String insertPrefix;
+    private final String[] valuesSegments;
+
+    /**
+     * The multi row versions of this insert built so far, indexed by the power of two of their number of rows
+     */
+    private final String[] multiRowSqls = new String[MAX_MULTI_ROW_SQLS];
+
+    /**
+     * For an INSERT INTO t (a, b) VALUES ($1, $2), the equivalent COPY t (a, b) FROM STDIN (FORMAT binary). Null for
+     * any other query.
+     */
+    private final String copySql;
+
+    /**
+     * The table of {@link #copySql}, as written in the insert
+     */
+    private final String copyTable;
+
+    /**
+     * The columns of {@link #copySql}, named the way the server names them
+     */
+    private final String[] copyColumns;
+
+    private ParsedQuery(String originalSql, String sql, int parameterCount) {
+        this.originalSql = originalSql;
+        this.sql = sql;
+        this.parameterCount = parameterCount;
+
+        int[] tuple = parameterCount > 0 ? findInsertValues(sql) : null;
+        if (tuple == null) {
+            this.insertPrefix = null;
+            this.valuesSegments = null;
+        } else {
+            this.insertPrefix = sql.substring(0, tuple[0]);
+            this.valuesSegments = splitAtParameters(sql.substring(tuple[0], tuple[1]), parameterCount);
+        }
+        String[] copyTarget = this.insertPrefix == null ? null : copyTarget(this.insertPrefix, this.valuesSegments);
+        this.copyTable = copyTarget == null ? null : copyTarget[0];
+        this.copyColumns = copyTarget == null ? null : Arrays.copyOfRange(copyTarget, 2, copyTarget.length);
+        this.copySql = copyTarget == null ? null :
+                "COPY " + copyTarget[0] + " " + copyTarget[1] + " FROM STDIN (FORMAT binary)";
+    }
+
+    /**
+     * Rewrites the given query, or returns the cached rewrite if we have seen it before
+     * @param originalSql
+     * @return
+     */
+    public static ParsedQuery parse(String originalSql) {
+        synchronized (CACHE) {
+            ParsedQuery cached = CACHE.get(originalSql);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ParsedQuery parsedQuery = rewrite(originalSql);
+        synchronized (CACHE) {
+            CACHE.put(originalSql, parsedQuery);
+        }
+        return parsedQuery;
+    }
+
+    private static ParsedQuery rewrite(String originalSql) {
+        StringBuilder result = new StringBuilder(originalSql.length() + 16);
+        int parameterCount = 0;
+        int length = originalSql.length();
+        int idx = 0;
+        while (idx < length) {
+            if (originalSql.charAt(idx) == '?') {
+                if (idx + 1 < length && originalSql.charAt(idx + 1) == '?') {
+                    result.append('?');
+                    idx += 2;
+                } else {
+                    result.append('$').append(++parameterCount);
+                    idx++;
+                }
+                continue;
+            }
+            // Quoted text and comments are copied whole, whatever question marks they have
+            int end = skipToken(originalSql, idx);
+            result.append(originalSql, idx, end);
+            idx = end;
+        }
+        return new ParsedQuery(originalSql, result.toString(), parameterCount);
+    }
+
+    /**
+     * Returns the position right after the closing quote of the quoted text starting at start. A doubled quote is
+     * an escaped quote, not the end.
+     */
+    private static int skipQuoted(String sql, int start, char quote, boolean backslashEscapes) {
+        int idx = start + 1;
+        while (idx < sql.length()) {
+            char current = sql.charAt(idx);
+            if (backslashEscapes && current == '\\') {
+                idx += 2;
+                continue;
+            }
+            if (current == quote) {
+                if (idx + 1 < sql.length() && sql.charAt(idx + 1) == quote) {
+                    idx += 2;
+                    continue;
+                }
+                return idx + 1;
+            }
+            idx++;
+        }
+        return sql.length();
+    }
+
+    /**
+     * Skips a dollar quoted string like $$text$$ or $tag$text$tag$. A $ that does not start one (like in $1 or
+     * in an identifier such as my$table) is skipped on its own.
+     */
+    private static int skipDollarQuoted(String sql, int start) {
+        if (start > 0 && Character.isJavaIdentifierPart(sql.charAt(start - 1))) {
+            return start + 1;
+        }
+        int tagEnd = start + 1;
+        while (tagEnd < sql.length() && sql.charAt(tagEnd) != '$') {
+            char current = sql.charAt(tagEnd);
+            if (!Character.isJavaIdentifierPart(current) || current == '$' ||
+                    (tagEnd == start + 1 && Character.isDigit(current))) {
+                return start + 1;
+            }
+            tagEnd++;
+        }
+        if (tagEnd >= sql.length()) {
+            return start + 1;
+        }
+        String tag = sql.substring(start, tagEnd + 1);
+        int closing = sql.indexOf(tag, tagEnd + 1);
+        return closing == -1 ? sql.length() : closing + tag.length();
+    }
+
+    private static int skipLineComment(String sql, int start) {
+        int end = sql.indexOf('\n', start);
+        return end == -1 ? sql.length() : end + 1;
+    }
+
+    /**
+     * Skips a block comment, which in postgres can be nested
+     */
+    private static int skipBlockComment(String sql, int start) {
+        int depth = 0;
+        int idx = start;
+        while (idx < sql.length()) {
+            if (sql.startsWith("/*", idx)) {
+                depth++;
+                idx += 2;
+            } else if (sql.startsWith("*/", idx)) {
+                depth--;
+                idx += 2;
+                if (depth == 0) {
+                    return idx;
+                }
+            } else {
+                idx++;
+            }
+        }
+        return sql.length();
+    }
+
+    /**
+     * Finds the VALUES tuple of a query like INSERT INTO t (a, b) VALUES ($1, $2), which must be the last thing in
+     * the query (but for a semicolon) and hold every parameter. Anything else, like several tuples, an INSERT ...
+     * SELECT, an ON CONFLICT or a RETURNING clause, cannot simply be repeated for more rows.
+     * @return the start and end of the tuple, parentheses included, or null if the query is not such an insert
+     */
+    private static int[] findInsertValues(String sql) {
+        int idx = skipWhitespaceAndComments(sql, 0);
+        if (!startsWithKeyword(sql, idx, "INSERT")) {
+            return null;
+        }
+        int depth = 0;
+        int tupleStart = -1;
+        int tupleEnd = -1;
+        while (idx < sql.length()) {
+            char current = sql.charAt(idx);
+            int end = skipToken(sql, idx);
+            if (end != idx + 1 || current == '-' || current == '/') {
+                // Quoted text or a comment
+                if (tupleEnd != -1 && current != '-' && current != '/') {
+                    return null;
+                }
+                idx = end;
+                continue;
+            }
+            if (tupleEnd != -1) {
+                if (!Character.isWhitespace(current) && current != ';') {
+                    return null;
+                }
+            } else if (current == '(') {
+                if (depth == 0 && tupleStart == -2) {
+                    tupleStart = idx;
+                }
+                depth++;
+            } else if (current == ')') {
+                depth--;
+                if (depth == 0 && tupleStart >= 0) {
+                    tupleEnd = idx + 1;
+                }
+            } else if (depth == 0 && tupleStart == -1 && startsWithKeyword(sql, idx, "VALUES") &&
+                    (idx == 0 || !Character.isJavaIdentifierPart(sql.charAt(idx - 1)))) {
+                tupleStart = -2;
+                idx += "VALUES".length();
+                continue;
+            } else if (depth == 0 && tupleStart == -2 && !Character.isWhitespace(current)) {
+                return null;
+            }
+            idx++;
+        }
+        if (tupleEnd == -1) {
+            return null;
+        }
+        // Every parameter must be inside the tuple, $1 to $n in order as they are numbered by position
+        int parametersInTuple = 0;
+        for (int i = tupleStart; i < tupleEnd; i = skipToken(sql, i)) {
+            if (sql.charAt(i) == '$' && i + 1 < tupleEnd && Character.isDigit(sql.charAt(i + 1))) {
+                parametersInTuple++;
+            }
+        }
+        int parametersInQuery = 0;
+        for (int i = 0; i < sql.length(); i = skipToken(sql, i)) {
+            if (sql.charAt(i) == '$' && i + 1 < sql.length() && Character.isDigit(sql.charAt(i + 1))) {
+                parametersInQuery++;
+            }
+        }
+        return parametersInTuple == parametersInQuery ? new int[]{tupleStart, tupleEnd} : null;
+    }
+
+    /**
+     * The position after the token starting at idx: the whole of a quoted text or a comment, a single char for
+     * anything else
+     */
+    static int skipToken(String sql, int idx) {
+        char current = sql.charAt(idx);
+        int length = sql.length();
+        switch (current) {
+            case '\'':
+                // E'...' strings allow backslash escapes, regular ones do not. An E ending a word (LIKE'...') is
+                // not the prefix of one
+                boolean escapes = idx > 0 && (sql.charAt(idx - 1) == 'E' || sql.charAt(idx - 1) == 'e') &&
+                        (idx == 1 || !Character.isJavaIdentifierPart(sql.charAt(idx - 2)));
+                return skipQuoted(sql, idx, '\'', escapes);
+            case '"':
+                return skipQuoted(sql, idx, '"', false);
+            case '$':
+                return skipDollarQuoted(sql, idx);
+            case '-':
+                return idx + 1 < length && sql.charAt(idx + 1) == '-' ? skipLineComment(sql, idx) : idx + 1;
+            case '/':
+                return idx + 1 < length && sql.charAt(idx + 1) == '*' ? skipBlockComment(sql, idx) : idx + 1;
+            default:
+                return idx + 1;
+        }
+    }
+
+    /**
+     * The position of the first char from idx on that is neither whitespace nor part of a comment
+     */
+    static int skipWhitespaceAndComments(String sql, int idx) {
+        while (idx < sql.length()) {
+            if (Character.isWhitespace(sql.charAt(idx))) {
+                idx++;
+            } else if (sql.startsWith("--", idx)) {
+                idx = skipLineComment(sql, idx);
+            } else if (sql.startsWith("/*", idx)) {
+                idx = skipBlockComment(sql, idx);
+            } else {
+                break;
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * Whether the given keyword, in any case, is at idx and is a whole word there
+     */
+    static boolean startsWithKeyword(String sql, int idx, String keyword) {
+        int end = idx + keyword.length();
+        return sql.regionMatches(true, idx, keyword, 0, keyword.length()) &&
+                (end == sql.length() || !Character.isJavaIdentifierPart(sql.charAt(end)));
+    }
+
+    /**
+     * Splits a tuple like ($1, lower($2)) into the text around its parameters: "(", ", lower(", "))"
+     */
+    private static String[] splitAtParameters(String tuple, int parameterCount) {
+        String[] result = new String[parameterCount + 1];
+        int segment = 0;
+        int segmentStart = 0;
+        int idx = 0;
+        while (idx < tuple.length()) {
+            if (tuple.charAt(idx) == '$' && idx + 1 < tuple.length() && Character.isDigit(tuple.charAt(idx + 1))) {
+                result[segment++] = tuple.substring(segmentStart, idx);
+                idx++;
+                while (idx < tuple.length() && Character.isDigit(tuple.charAt(idx))) {
+                    idx++;
+                }
+                segmentStart = idx;
+            } else {
+                idx = skipToken(tuple, idx);
+            }
+        }
+        result[segment] = tuple.substring(segmentStart);
+        return result;
+    }
+
+    /**
+     * The COPY that does the same as an insert whose tuple is nothing but the parameters, one per column of an
+     * explicit column list:
+     *
+     * INSERT INTO public.t (a, b) VALUES ($1, $2)  becomes  COPY public.t (a, b) FROM STDIN (FORMAT binary)
+     *
+     * An alias, an OVERRIDING clause, a missing column list, anything but plain names in it (a field or an array
+     * element) or any expression in the tuple (even a cast) and the insert is not a plain copy of the values.
+     * @param insertPrefix the insert up to its VALUES tuple
+     * @param valuesSegments the text of the tuple around its parameters, see {@link #splitAtParameters(String, int)}
+     * @return the table and the column list of the COPY, followed by the name of each column as the server knows it,
+     * or null if there is none
+     */
+    private static String[] copyTarget(String insertPrefix, String[] valuesSegments) {
+        if (!valuesSegments[0].trim().equals("(") || !valuesSegments[valuesSegments.length - 1].trim().equals(")")) {
+            return null;
+        }
+        for (int i = 1; i < valuesSegments.length - 1; i++) {
+            if (!valuesSegments[i].trim().equals(",")) {
+                return null;
+            }
+        }
+        int idx = skipWhitespaceAndComments(insertPrefix, 0) + "INSERT".length();
+        idx = skipWhitespaceAndComments(insertPrefix, idx);
+        if (!startsWithKeyword(insertPrefix, idx, "INTO")) {
+            return null;
+        }
+        idx = skipWhitespaceAndComments(insertPrefix, idx + "INTO".length());
+
+        // The table, maybe with its schema, and maybe quoted
+        int tableStart = idx;
+        while (idx < insertPrefix.length()) {
+            char current = insertPrefix.charAt(idx);
+            if (current == '"') {
+                idx = skipQuoted(insertPrefix, idx, '"', false);
+            } else if (Character.isJavaIdentifierPart(current) || current == '.') {
+                idx++;
+            } else {
+                break;
+            }
+        }
+        String table = insertPrefix.substring(tableStart, idx);
+        idx = skipWhitespaceAndComments(insertPrefix, idx);
+        if (table.isEmpty() || idx == insertPrefix.length() || insertPrefix.charAt(idx) != '(') {
+            return null;
+        }
+
+        // The column list, which must have a column for each parameter, each of them a plain name
+        int columnsStart = idx;
+        String[] result = new String[valuesSegments.length + 1];
+        result[0] = table;
+        int columns = 0;
+        do {
+            idx = skipWhitespaceAndComments(insertPrefix, idx + 1);
+            int nameEnd = columnNameEnd(insertPrefix, idx);
+            if (nameEnd == idx || columns == valuesSegments.length - 1) {
+                return null;
+            }
+            result[2 + columns++] = columnName(insertPrefix.substring(idx, nameEnd));
+            idx = skipWhitespaceAndComments(insertPrefix, nameEnd);
+        } while (idx < insertPrefix.length() && insertPrefix.charAt(idx) == ',');
+        if (idx == insertPrefix.length() || insertPrefix.charAt(idx) != ')' || columns != valuesSegments.length - 1) {
+            return null;
+        }
+        result[1] = insertPrefix.substring(columnsStart, idx + 1);
+        idx = skipWhitespaceAndComments(insertPrefix, idx + 1);
+        if (!startsWithKeyword(insertPrefix, idx, "VALUES") ||
+                skipWhitespaceAndComments(insertPrefix, idx + "VALUES".length()) != insertPrefix.length()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the position right after the column name starting at start: a quoted name, or a run of identifier
+     * characters. The position itself when there is no name there, or the quoted one is never closed.
+     */
+    private static int columnNameEnd(String sql, int start) {
+        if (start == sql.length()) {
+            return start;
+        }
+        if (sql.charAt(start) == '"') {
+            int end = skipQuoted(sql, start, '"', false);
+            return end > start + 2 && sql.charAt(end - 1) == '"' ? end : start;
+        }
+        int idx = start;
+        while (idx < sql.length() && Character.isJavaIdentifierPart(sql.charAt(idx))) {
+            idx++;
+        }
+        return idx;
+    }
+
+    /**
+     * The name the server gives the column written like this: a quoted name as it is inside the quotes, anything
+     * else folded to lower case. Like the server we only fold the ASCII letters.
+     */
+    private static String columnName(String written) {
+        if (written.charAt(0) == '"') {
+            return written.substring(1, written.length() - 1).replace("\"\"", "\"");
+        }
+        char[] name = written.toCharArray();
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] >= 'A' && name[i] <= 'Z') {
+                name[i] += 'a' - 'A';
+            }
+        }
+        return new String(name);
+    }
+
+    /**
+     * Whether this is a single row INSERT ... VALUES (...) that {@link #getMultiRowSql(int)} can repeat for several
+     * rows
+     * @return
+     */
+    public boolean isMultiRowInsertCompatible() {
+        return this.insertPrefix != null;
+    }
+
+    /**
+     * This insert with its VALUES tuple repeated for the given number of rows, the parameters of the n-th row being
+     * the ones of the original tuple shifted by n times the number of parameters:
+     *
+     * INSERT INTO t (a, b) VALUES ($1, $2), ($3, $4), ($5, $6)
+     *
+     * The number of rows must be a power of two, so a query only ever has a handful of multi row versions, and they
+     * are built only once. Each version is a different statement for the server, few of them means its plans stay
+     * cached.
+     * @param rows a power of two
+     * @return
+     */
+    public String getMultiRowSql(int rows) {
+        int slot = Integer.numberOfTrailingZeros(rows);
+        String result = this.multiRowSqls[slot];
+        if (result == null) {
+            StringBuilder builder = new StringBuilder(this.insertPrefix.length() +
+                    rows * (this.sql.length() - this.insertPrefix.length() + 2 * this.parameterCount));
+            builder.append(this.insertPrefix);
+            for (int row = 0; row < rows; row++) {
+                if (row > 0) {
+                    builder.append(", ");
+                }
+                builder.append(this.valuesSegments[0]);
+                for (int parameter = 1; parameter <= this.parameterCount; parameter++) {
+                    builder.append('$').append(row * this.parameterCount + parameter)
+                            .append(this.valuesSegments[parameter]);
+                }
+            }
+            result = builder.toString();
+            // Strings are immutable, at worst two threads build the same one
+            this.multiRowSqls[slot] = result;
+        }
+        return result;
+    }
+
+    /**
+     * The COPY ... FROM STDIN (FORMAT binary) that loads the same rows as this insert, where the n-th column gets the
+     * value of $n. Only for inserts that do nothing but copy their parameters into the columns of a table, see
+     * {@link #copyTarget(String, String[])}.
+     * @return the COPY, or null if this query is not such an insert
+     */
+    public String getCopySql() {
+        return copySql;
+    }
+
+    /**
+     * The table the rows of {@link #getCopySql()} go to, as written in the insert: maybe with its schema, maybe
+     * quoted
+     * @return the table, or null if this query is not such an insert
+     */
+    public String getCopyTable() {
+        return copyTable;
+    }
+
+    /**
+     * The columns the rows of {@link #getCopySql()} go to, in the order of the parameters, with the names the server
+     * gives them: unquoted names in lower case, quoted ones as they are
+     * @return the columns, or null if this query is not such an insert
+     */
+    public String[] getCopyColumns() {
+        return copyColumns;
+    }
+
+    /**
+     * Whether this is a COPY. Once the server answers it with a CopyInResponse it only takes COPY packets until the
+     * COPY ends, so a COPY cannot be pipelined behind other queries blindly, see {@link AsyncDispatcher}.
+     * @return
+     */
+    public boolean isCopy() {
+        return startsWithKeyword(this.sql, skipWhitespaceAndComments(this.sql, 0), "COPY");
+    }
+
+    /**
+     * The query as the user wrote it
+     * @return
+     */
+    public String getOriginalSql() {
+        return originalSql;
+    }
+
+    /**
+     * The query with $n placeholders, ready to be sent in a Parse packet
+     * @return
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+}
@@ -0,0 +1,94 @@
+package org.moriano.locopostgres;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A physical connection of a {@link LocoDataSource}, as kept in its {@link ConnectionBag}.
+ *
+ * Who gets to use the connection is decided by compare and set on its state alone, so borrowing it never takes a
+ * lock: a free entry can be seen by many threads at once (in the shared list of the bag, in the thread local list of
+ * the last thread that used it, handed off to a waiting thread) and only the one whose compare and set succeeds gets
+ * it. The housekeeper removes idle entries the same way, so it never removes one a thread just borrowed.
+ */
+final class PoolEntry {
+
+    static final int STATE_NOT_IN_USE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_REMOVED = -1;
+
+    private final LocoConnection connection;
+    private final AtomicInteger state;
+
+    private final long createdAt;
+
+    /**
+     * How long the connection can be used before it is retired, 0 for ever
+     */
+    private final long lifetimeNanos;
+
+    /**
+     * When the connection was last given back to the pool, or created, in System.nanoTime() terms
+     */
+    private volatile long lastAccessed;
+
+    /**
+     * @param connection
+     * @param state {@link #STATE_IN_USE} for a connection created for a thread that is going to use it right away,
+     *              {@link #STATE_NOT_IN_USE} otherwise
+     * @param lifetimeNanos how long the connection can be used, 0 for ever
+     */
+    PoolEntry(LocoConnection connection, int state, long lifetimeNanos) {
+        this.connection = connection;
+        this.state = new AtomicInteger(state);
+        this.lifetimeNanos = lifetimeNanos;
+        this.createdAt = System.nanoTime();
+        this.lastAccessed = this.createdAt;
+    }
+
+    LocoConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Takes the entry if it is free
+     * @return whether the current thread got it
+     */
+    boolean take() {
+        return this.state.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE);
+    }
+
+    /**
+     * Frees the entry, only called by the thread that took it
+     */
+    void release() {
+        this.lastAccessed = System.nanoTime();
+        this.state.set(STATE_NOT_IN_USE);
+    }
+
+    /**
+     * Marks a free entry as removed, so nobody can take it anymore
+     * @return whether it was free, otherwise it was left alone
+     */
+    boolean reserveForRemoval() {
+        return this.state.compareAndSet(STATE_NOT_IN_USE, STATE_REMOVED);
+    }
+
+    /**
+     * Marks the entry as removed, only called by the thread that took it
+     */
+    void markRemoved() {
+        this.state.set(STATE_REMOVED);
+    }
+
+    boolean isNotInUse() {
+        return this.state.get() == STATE_NOT_IN_USE;
+    }
+
+    boolean isExpired(long now) {
+        return this.lifetimeNanos > 0 && now - this.createdAt >= this.lifetimeNanos;
+    }
+
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+}
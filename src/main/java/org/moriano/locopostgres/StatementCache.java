@@ -0,0 +1,221 @@
+package org.moriano.locopostgres;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The server side prepared statements of a connection, keyed by their sql (and the types of their parameters).
+ *
+ * Sending a Parse packet makes the server parse, analyze and (for the first few executions at least) plan the query
+ * all over again. By giving each distinct query a name the first time we see it, later executions on the same
+ * connection only need Bind and Execute, even if they come from a different PreparedStatement object, which is what
+ * happens with most code that calls prepareStatement inside a loop or a method.
+ *
+ * The server keeps every named statement in memory until it is closed or the connection ends, so the cache is
+ * bounded both by the number of statements and by an estimate of the memory they take on the server. When either
+ * bound is exceeded the least recently used statements are evicted, and a Close packet for each of them is queued
+ * in the {@link PacketWriter} of the connection. It travels to the server with the next round trip, there is no need
+ * to wait for it, see {@link LocoNetwork#closeStatement(String)}.
+ *
+ * The estimate is based on the length of the query, the parse and plan trees the server keeps are roughly
+ * proportional to it. It is by no means exact, its purpose is to keep a few huge queries (think of an IN list with
+ * thousands of values) from pinning lots of memory on the server.
+ *
+ * A cache with a maximum of zero statements disables server side prepared statements altogether, every execution
+ * then parses the query again using the unnamed statement.
+ */
+public class StatementCache {
+
+    /**
+     * Fixed overhead we assume for every statement, plus this many bytes per character of the query
+     */
+    private static final long STATEMENT_OVERHEAD_BYTES = 1024;
+    private static final long BYTES_PER_QUERY_CHAR = 8;
+
+    private final LocoNetwork locoNetwork;
+    private final int maxStatements;
+    private final long maxEstimatedSize;
+
+    /**
+     * In access order, so the first entry is always the least recently used one
+     */
+    private final LinkedHashMap<Key, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long estimatedSize = 0;
+    private int nextStatementId = 1;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public StatementCache(LocoNetwork locoNetwork, int maxStatements, long maxEstimatedSize) {
+        this.locoNetwork = locoNetwork;
+        this.maxStatements = maxStatements;
+        this.maxEstimatedSize = maxEstimatedSize;
+    }
+
+    public boolean isEnabled() {
+        return this.maxStatements > 0;
+    }
+
+    /**
+     * Returns the prepared statement for the given sql and parameter types, creating (but not parsing) a new one if
+     * we have none. Returns null if the cache is disabled.
+     * @param sql
+     * @param parameterTypes
+     * @return
+     * @throws SQLException
+     */
+    public CachedStatement get(String sql, int[] parameterTypes) throws SQLException {
+        if (!this.isEnabled()) {
+            return null;
+        }
+        Key key = new Key(sql, parameterTypes);
+        CachedStatement cachedStatement = this.statements.get(key);
+        if (cachedStatement != null) {
+            this.hits++;
+            return cachedStatement;
+        }
+
+        this.misses++;
+        long size = STATEMENT_OVERHEAD_BYTES + BYTES_PER_QUERY_CHAR * sql.length();
+        cachedStatement = new CachedStatement("S_" + this.nextStatementId++, sql, parameterTypes, size);
+        // The key we looked up with holds the array of the caller, which can change, keep our own copy
+        this.statements.put(new Key(sql, cachedStatement.getParameterTypes()), cachedStatement);
+        this.estimatedSize += size;
+        this.evictIfNeeded(cachedStatement);
+        return cachedStatement;
+    }
+
+    /**
+     * Marks the given statement as the most recently used one. This is what {@link #get} does, but without
+     * looking the statement up, for callers that already hold it.
+     * @param cachedStatement
+     */
+    public void touch(CachedStatement cachedStatement) {
+        this.hits++;
+        this.statements.get(new Key(cachedStatement.getSql(), cachedStatement.getParameterTypes()));
+    }
+
+    /**
+     * Removes the given statement from the cache and queues a Close packet for it. Used when an execution failed
+     * and we cannot be sure the server still has the statement the way we prepared it. Closing a statement that
+     * does not exist is not an error.
+     * @param cachedStatement
+     * @throws SQLException
+     */
+    public void invalidate(CachedStatement cachedStatement) throws SQLException {
+        if (!cachedStatement.isLive()) {
+            return;
+        }
+        this.statements.remove(new Key(cachedStatement.getSql(), cachedStatement.getParameterTypes()));
+        this.close(cachedStatement);
+    }
+
+    private void evictIfNeeded(CachedStatement justAdded) throws SQLException {
+        Iterator<CachedStatement> leastRecentlyUsed = this.statements.values().iterator();
+        while ((this.statements.size() > this.maxStatements || this.estimatedSize > this.maxEstimatedSize) &&
+                leastRecentlyUsed.hasNext()) {
+            CachedStatement eldest = leastRecentlyUsed.next();
+            if (eldest == justAdded) {
+                // Even if it is too big on its own, the statement we are about to use stays
+                continue;
+            }
+            leastRecentlyUsed.remove();
+            this.evictions++;
+            this.close(eldest);
+        }
+    }
+
+    private void close(CachedStatement cachedStatement) throws SQLException {
+        this.estimatedSize -= cachedStatement.getEstimatedSize();
+        cachedStatement.markEvicted();
+        if (cachedStatement.isParsed()) {
+            this.locoNetwork.closeStatement(cachedStatement.getName());
+        }
+    }
+
+    public int size() {
+        return this.statements.size();
+    }
+
+    /**
+     * The estimated memory used in the server by the statements in the cache
+     * @return
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public int getMaxStatements() {
+        return maxStatements;
+    }
+
+    public long getMaxEstimatedSize() {
+        return maxEstimatedSize;
+    }
+
+    /**
+     * How many executions found their statement already prepared
+     * @return
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * How many executions had to prepare a new statement
+     * @return
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * How many statements were closed to make room for others
+     * @return
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCache{" +
+                "statements=" + this.statements.size() +
+                ", estimatedSize=" + estimatedSize +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final int[] parameterTypes;
+        private final int hash;
+
+        private Key(String sql, int[] parameterTypes) {
+            this.sql = sql;
+            this.parameterTypes = parameterTypes;
+            this.hash = 31 * sql.hashCode() + Arrays.hashCode(parameterTypes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return this.hash == that.hash && this.sql.equals(that.sql) &&
+                    Arrays.equals(this.parameterTypes, that.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
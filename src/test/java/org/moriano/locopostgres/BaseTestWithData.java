@@ -11,6 +11,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Properties;
 
@@ -126,6 +127,20 @@ public abstract class BaseTestWithData {
         return locoConnection;
     }
 
+    /**
+     * A new LocoDriver connection to the same database as {@link #getLocoConnection()}, with some extra properties.
+     * The caller closes it.
+     */
+    public Connection openLocoConnection(Properties extraProperties) throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", USER);
+        props.setProperty("password", PASSWORD);
+        props.setProperty("database", DB_NAME);
+        props.putAll(extraProperties);
+        String locoUrl = locoContainer.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        return DriverManager.getConnection(locoUrl, props);
+    }
+
     public String getUser() {
         return USER;
     }
@@ -12,11 +12,25 @@ import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * A class to test connections.
@@ -92,6 +106,283 @@ public class LocoConnectionTest {
         this.basicAuthenticationTest(postgresScramSHA256);
     }
 
+    /**
+     * Tests the SocketChannel transport, with more rows than fit in the receive buffer and a value bigger than it
+     */
+    @Test
+    public void channelTransport() throws SQLException {
+        props.setProperty(LocoProperty.TRANSPORT.getName(), "channel");
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        try (Connection locoConnection = DriverManager.getConnection(locoUrl, props)) {
+            ResultSet resultSet = locoConnection.createStatement().executeQuery(
+                    "SELECT g, repeat('x', g) FROM generate_series(1, 2000) g");
+            int rows = 0;
+            while (resultSet.next()) {
+                rows++;
+                assertEquals(rows, resultSet.getInt(1));
+                assertEquals(rows, resultSet.getString(2).length());
+            }
+            assertEquals(2000, rows);
+
+            resultSet = locoConnection.createStatement().executeQuery("SELECT repeat('y', 1000000)");
+            resultSet.next();
+            assertEquals(1000000, resultSet.getString(1).length());
+        }
+    }
+
+    /**
+     * Tests the event loop transport, with several connections sharing its I/O threads
+     */
+    @Test
+    public void selectorTransport() throws SQLException {
+        props.setProperty(LocoProperty.TRANSPORT.getName(), "selector");
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                connections.add(DriverManager.getConnection(locoUrl, props));
+            }
+            for (int i = 0; i < connections.size(); i++) {
+                ResultSet resultSet = connections.get(i).createStatement().executeQuery("SELECT " + i);
+                resultSet.next();
+                assertEquals(i, resultSet.getInt(1));
+            }
+
+            // Far more than the inbound buffer of the connection, the event loop has to stop and resume reading
+            ResultSet resultSet = connections.get(0).createStatement().executeQuery(
+                    "SELECT g, repeat('x', g) FROM generate_series(1, 2000) g");
+            int rows = 0;
+            while (resultSet.next()) {
+                rows++;
+                assertEquals(rows, resultSet.getInt(1));
+                assertEquals(rows, resultSet.getString(2).length());
+            }
+            assertEquals(2000, rows);
+
+            resultSet = connections.get(1).createStatement().executeQuery("SELECT repeat('y', 1000000)");
+            resultSet.next();
+            assertEquals(1000000, resultSet.getString(1).length());
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Tests asynchronous queries: many in flight at once, an error that only fails its own query, rows streamed to a
+     * handler and a regular JDBC call in between
+     */
+    @Test
+    public void queryAsync() throws Exception {
+        props.setProperty(LocoProperty.TRANSPORT.getName(), "selector");
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        try (LocoConnection locoConnection = (LocoConnection) DriverManager.getConnection(locoUrl, props)) {
+            List<CompletableFuture<LocoAsyncResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                futures.add(locoConnection.queryAsync("SELECT ?::int * 2, ?::text", i, "row " + i));
+            }
+            CompletableFuture<LocoAsyncResult> failed = locoConnection.queryAsync("SELECT 1/0");
+            CompletableFuture<LocoAsyncResult> afterFailure = locoConnection.queryAsync("SELECT 'still fine'");
+
+            for (int i = 0; i < futures.size(); i++) {
+                ResultSet resultSet = futures.get(i).get().getResultSet();
+                assertTrue(resultSet.next());
+                assertEquals(i * 2, resultSet.getInt(1));
+                assertEquals("row " + i, resultSet.getString(2));
+            }
+            ExecutionException error = assertThrows(ExecutionException.class, failed::get);
+            assertEquals("22012", ((SQLException) error.getCause()).getSQLState());
+            ResultSet resultSet = afterFailure.get().getResultSet();
+            assertTrue(resultSet.next());
+            assertEquals("still fine", resultSet.getString(1));
+
+            long[] sum = new long[1];
+            LocoAsyncResult streamed = locoConnection.queryAsync("SELECT g FROM generate_series(1, 100000) g",
+                    Collections.emptyList(), row -> sum[0] += row.getLong(1)).get();
+            assertNull(streamed.getResultSet());
+            assertEquals(100000L, streamed.getRowCount());
+            assertEquals(100000L * 100001 / 2, sum[0]);
+
+            CompletableFuture<LocoAsyncResult> pending = locoConnection.queryAsync("SELECT 42");
+            resultSet = locoConnection.createStatement().executeQuery("SELECT 43");
+            resultSet.next();
+            assertEquals(43, resultSet.getInt(1));
+            resultSet = pending.get().getResultSet();
+            resultSet.next();
+            assertEquals(42, resultSet.getInt(1));
+        }
+    }
+
+    /**
+     * Tests the multiplexed mode: many threads running queries on one connection, every one of them gets its own
+     * results and errors
+     */
+    @Test
+    public void multiplexed() throws Exception {
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try (LocoConnection locoConnection = (LocoConnection) DriverManager.getConnection(locoUrl, props)) {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 16; thread++) {
+                int id = thread;
+                futures.add(executor.submit(() -> {
+                    int done = 0;
+                    for (int i = 0; i < 100; i++) {
+                        if (i == 50) {
+                            SQLException error = assertThrows(SQLException.class,
+                                    () -> locoConnection.query("SELECT 1/0"));
+                            assertEquals("22012", error.getSQLState());
+                        }
+                        ResultSet resultSet = locoConnection.query("SELECT ?::int, ?::text", i, "thread " + id)
+                                .getResultSet();
+                        assertTrue(resultSet.next());
+                        assertEquals(i, resultSet.getInt(1));
+                        assertEquals("thread " + id, resultSet.getString(2));
+                        done++;
+                    }
+                    return done;
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(100, (int) future.get());
+            }
+
+            ResultSet resultSet = locoConnection.createStatement().executeQuery("SELECT 'regular'");
+            assertTrue(resultSet.next());
+            assertEquals("regular", resultSet.getString(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests one thread using the regular JDBC methods while others run multiplexed queries on the same connection,
+     * neither gets the answers of the other
+     */
+    @Test
+    public void multiplexedWithJdbc() throws Exception {
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        ExecutorService executor = Executors.newFixedThreadPool(9);
+        try (LocoConnection locoConnection = (LocoConnection) DriverManager.getConnection(locoUrl, props)) {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                int id = thread;
+                futures.add(executor.submit(() -> {
+                    int done = 0;
+                    for (int i = 0; i < 200; i++) {
+                        ResultSet resultSet = locoConnection.query("SELECT ?::int", id * 1000 + i).getResultSet();
+                        assertTrue(resultSet.next());
+                        assertEquals(id * 1000 + i, resultSet.getInt(1));
+                        done++;
+                    }
+                    return done;
+                }));
+            }
+            Future<Integer> jdbc = executor.submit(() -> {
+                int done = 0;
+                for (int i = 0; i < 100; i++) {
+                    PreparedStatement preparedStatement =
+                            locoConnection.prepareStatement("SELECT g, ?::int FROM generate_series(1, 300) g");
+                    preparedStatement.setInt(1, i);
+                    preparedStatement.setFetchSize(10);
+                    ResultSet resultSet = preparedStatement.executeQuery();
+                    int rows = 0;
+                    while (resultSet.next()) {
+                        rows++;
+                        assertEquals(rows, resultSet.getInt(1));
+                        assertEquals(i, resultSet.getInt(2));
+                    }
+                    assertEquals(300, rows);
+
+                    resultSet = locoConnection.createStatement().executeQuery("SELECT 'jdbc ' || " + i);
+                    assertTrue(resultSet.next());
+                    assertEquals("jdbc " + i, resultSet.getString(1));
+                    done++;
+                }
+                return done;
+            });
+            for (Future<Integer> future : futures) {
+                assertEquals(200, (int) future.get());
+            }
+            assertEquals(100, (int) jdbc.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that isValid gives up after its timeout when the connection does not answer, busy with a query of
+     * another thread here, and that the connection is closed then
+     */
+    @Test
+    public void isValidTimeout() throws Exception {
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LocoConnection locoConnection = (LocoConnection) DriverManager.getConnection(locoUrl, props)) {
+            assertTrue(locoConnection.isValid(1));
+
+            Future<?> slow = executor.submit(() -> locoConnection.query("SELECT pg_sleep(10)"));
+            Thread.sleep(200);
+            long start = System.nanoTime();
+            assertFalse(locoConnection.isValid(1));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertTrue(locoConnection.isClosed());
+            assertThrows(ExecutionException.class, slow::get);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests the pipeline mode: results in order, and an error that skips the rest of the queries up to the sync
+     * point, and only those
+     */
+    @Test
+    public void pipeline() throws SQLException {
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        try (LocoConnection locoConnection = (LocoConnection) DriverManager.getConnection(locoUrl, props)) {
+            try (LocoPipeline pipeline = locoConnection.pipeline()) {
+                for (int i = 0; i < 50; i++) {
+                    pipeline.execute("SELECT ?::int + 1", i);
+                }
+                pipeline.execute("SELECT 1/0");
+                pipeline.execute("SELECT 'skipped'");
+                pipeline.sync();
+                pipeline.execute("SELECT 'after the sync point'");
+                pipeline.sync();
+
+                for (int i = 0; i < 50; i++) {
+                    ResultSet resultSet = pipeline.getResult().getResultSet();
+                    assertTrue(resultSet.next());
+                    assertEquals(i + 1, resultSet.getInt(1));
+                }
+                SQLException error = assertThrows(SQLException.class, pipeline::getResult);
+                assertEquals("22012", error.getSQLState());
+                error = assertThrows(SQLException.class, pipeline::getResult);
+                assertEquals("25P02", error.getSQLState());
+                ResultSet resultSet = pipeline.getResult().getResultSet();
+                assertTrue(resultSet.next());
+                assertEquals("after the sync point", resultSet.getString(1));
+                assertNull(pipeline.getResult());
+
+                assertThrows(SQLException.class, () -> locoConnection.createStatement().executeQuery("SELECT 1"));
+                // Left unread, closing the pipeline takes care of it
+                pipeline.execute("SELECT 2");
+            }
+            ResultSet resultSet = locoConnection.createStatement().executeQuery("SELECT 3");
+            assertTrue(resultSet.next());
+            assertEquals(3, resultSet.getInt(1));
+        }
+    }
+
+    @Test
+    public void unknownTransport() {
+        props.setProperty(LocoProperty.TRANSPORT.getName(), "carrier-pigeon");
+        String locoUrl = postgresClearText.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        assertThrows(SQLException.class, () -> DriverManager.getConnection(locoUrl, props));
+    }
+
     private void basicAuthenticationTest(PostgresTestContainer container) throws SQLException {
         String locoUrl = container.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
         Connection locoConnection  = DriverManager.getConnection(locoUrl, props);
@@ -0,0 +1,262 @@
+package org.moriano.locopostgres;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.moriano.locopostgres.container.PostgresAuthMethod;
+import org.moriano.locopostgres.container.PostgresTestContainer;
+import org.postgresql.PGConnection;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The unit test for LocoCopyManager.
+ *
+ * As with other tests we will run two PostgreSQL containers and will connect to one using the official Postgres
+ * driver and the other one with LocoPostgres. We assume that the official Postgres driver is correct and use it
+ * as a model of what LocoPostgres should return
+ */
+@Testcontainers
+public class LocoCopyManagerTest {
+
+    private static final String USER = "someUser";
+    private static final String PASSWORD = "somePassword";
+    private static final String DB_NAME = "someDB";
+
+    private static final String CREATE_TABLE = "CREATE TABLE copy_test(id int PRIMARY KEY, description text)";
+
+    Properties props = new Properties();
+
+    /**
+     * The connection used by the LocoPostgres driver
+     */
+    private LocoConnection locoConnection = null;
+
+    /**
+     * The connectin used by the official postgres driver
+     */
+    private Connection postgresConnection = null;
+
+    /**
+     * The container used by LocoPostgres driver clear password auth
+     */
+    @Container
+    private static final PostgresTestContainer locoContainer =
+            new PostgresTestContainer("postgres:17.2", DB_NAME, USER, PASSWORD, PostgresAuthMethod.PASSWORD);
+
+    /**
+     * The container used by the postgres official driver
+     */
+    @Container
+    private static final PostgresTestContainer postgresContainer =
+            new PostgresTestContainer("postgres:17.2", DB_NAME, USER, PASSWORD, PostgresAuthMethod.PASSWORD);
+
+    @BeforeEach
+    public void setup() throws Exception {
+        Class.forName("org.moriano.locopostgres.LocoDriver");
+
+        props.setProperty("user", USER);
+        props.setProperty("password", PASSWORD);
+        props.setProperty("database", DB_NAME);
+        props.setProperty("ssl", "false");
+        props.setProperty("sslmode", "disable");
+
+        DriverManager.registerDriver(new LocoDriver());
+
+        postgresConnection = DriverManager.getConnection(postgresContainer.getJdbcUrl(), props);
+        String locoUrl = locoContainer.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        locoConnection = (LocoConnection) DriverManager.getConnection(locoUrl, props);
+
+        locoConnection.createStatement().execute("DROP TABLE IF EXISTS copy_test");
+        locoConnection.createStatement().execute(CREATE_TABLE);
+        postgresConnection.createStatement().execute("DROP TABLE IF EXISTS copy_test");
+        postgresConnection.createStatement().execute(CREATE_TABLE);
+    }
+
+    @AfterEach
+    public void cleanUp() throws Exception {
+        locoConnection.close();
+        postgresConnection.close();
+    }
+
+    @Test
+    public void copyIn_fromInputStream() throws Exception {
+        /*
+        Big enough to take many CopyData packets
+         */
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            data.append(i).append("\tdescription ").append(i).append('\n');
+        }
+        byte[] bytes = data.toString().getBytes(StandardCharsets.UTF_8);
+        String sql = "COPY copy_test FROM STDIN";
+
+        long postgresRows = postgresConnection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn(sql, new ByteArrayInputStream(bytes));
+        long locoRows = locoConnection.getCopyManager().copyIn(sql, new ByteArrayInputStream(bytes));
+
+        assertEquals(postgresRows, locoRows);
+        assertEquals(readTable(postgresConnection), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyIn_fromReader() throws Exception {
+        String data = "1,\"\u00f1and\u00fa\"\n2,\"emoji \ud83d\ude00\"\n3,\n";
+        String sql = "COPY copy_test FROM STDIN (FORMAT csv)";
+
+        long postgresRows = postgresConnection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn(sql, new StringReader(data));
+        long locoRows = locoConnection.getCopyManager().copyIn(sql, new StringReader(data));
+
+        assertEquals(postgresRows, locoRows);
+        assertEquals(readTable(postgresConnection), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyIn_badData() throws Exception {
+        /*
+        The duplicated key fails the whole COPY, and the connection can still be used afterwards
+         */
+        byte[] bytes = "1\tone\n1\tagain\n".getBytes(StandardCharsets.UTF_8);
+        SQLException exception = assertThrows(SQLException.class, () ->
+                locoConnection.getCopyManager().copyIn("COPY copy_test FROM STDIN", new ByteArrayInputStream(bytes)));
+
+        assertEquals("23505", exception.getSQLState());
+        assertEquals(new ArrayList<>(), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyIn_failingInput() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("The input is broken");
+            }
+        };
+        IOException exception = assertThrows(IOException.class, () ->
+                locoConnection.getCopyManager().copyIn("COPY copy_test FROM STDIN", failing));
+
+        assertEquals("The input is broken", exception.getMessage());
+        assertEquals(new ArrayList<>(), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyIn_notACopy() throws Exception {
+        assertThrows(SQLException.class, () ->
+                locoConnection.getCopyManager().copyIn("SELECT 1", new ByteArrayInputStream(new byte[0])));
+        assertEquals(new ArrayList<>(), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyOut_toOutputStream() throws Exception {
+        /*
+        Rows wider than the receive buffer arrive in pieces
+         */
+        String sql = "COPY (SELECT g, repeat('x', g * 1000) FROM generate_series(1, 200) g) TO STDOUT (FORMAT csv)";
+        ByteArrayOutputStream postgresData = new ByteArrayOutputStream();
+        ByteArrayOutputStream locoData = new ByteArrayOutputStream();
+
+        long postgresRows = postgresConnection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, postgresData);
+        long locoRows = locoConnection.getCopyManager().copyOut(sql, locoData);
+
+        assertEquals(postgresRows, locoRows);
+        assertArrayEquals(postgresData.toByteArray(), locoData.toByteArray());
+    }
+
+    @Test
+    public void copyOut_withNotices() throws Exception {
+        /*
+        The function raises a notice for some of the rows, those arrive between the CopyData packets and must not end
+        the COPY
+         */
+        String function = "CREATE OR REPLACE FUNCTION copy_notice(i int) RETURNS int AS $$ " +
+                "BEGIN IF i % 10 = 0 THEN RAISE NOTICE 'row %', i; END IF; RETURN i; END $$ LANGUAGE plpgsql";
+        locoConnection.createStatement().execute(function);
+        postgresConnection.createStatement().execute(function);
+        String sql = "COPY (SELECT copy_notice(g) FROM generate_series(1, 100) g) TO STDOUT";
+        ByteArrayOutputStream postgresData = new ByteArrayOutputStream();
+        ByteArrayOutputStream locoData = new ByteArrayOutputStream();
+
+        long postgresRows = postgresConnection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, postgresData);
+        long locoRows = locoConnection.getCopyManager().copyOut(sql, locoData);
+
+        assertEquals(100, locoRows);
+        assertEquals(postgresRows, locoRows);
+        assertArrayEquals(postgresData.toByteArray(), locoData.toByteArray());
+    }
+
+    @Test
+    public void copyOut_failingTarget() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("The target is broken");
+            }
+        };
+        IOException exception = assertThrows(IOException.class, () -> locoConnection.getCopyManager()
+                .copyOut("COPY (SELECT g FROM generate_series(1, 100000) g) TO STDOUT", failing));
+
+        assertEquals("The target is broken", exception.getMessage());
+        assertEquals(new ArrayList<>(), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyInBinary() throws Exception {
+        StringBuilder data = new StringBuilder();
+        try (BinaryCopyWriter writer = locoConnection.getCopyManager()
+                .copyInBinary("COPY copy_test FROM STDIN (FORMAT binary)")) {
+            for (int i = 0; i < 50_000; i++) {
+                String description = i % 10 == 0 ? null : "description " + i;
+                writer.startRow(2);
+                writer.writeInt(i);
+                writer.writeString(description);
+                data.append(i).append('\t').append(description == null ? "\\N" : description).append('\n');
+            }
+            assertEquals(50_000, writer.finish());
+        }
+        postgresConnection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn("COPY copy_test FROM STDIN", new StringReader(data.toString()));
+
+        assertEquals(readTable(postgresConnection), readTable(locoConnection));
+    }
+
+    @Test
+    public void copyInBinary_cancelled() throws Exception {
+        try (BinaryCopyWriter writer = locoConnection.getCopyManager()
+                .copyInBinary("COPY copy_test FROM STDIN (FORMAT binary)")) {
+            writer.startRow(2);
+            writer.writeInt(1);
+            writer.writeString("never copied");
+        }
+        assertEquals(new ArrayList<>(), readTable(locoConnection));
+    }
+
+    private List<String> readTable(Connection connection) throws SQLException {
+        List<String> result = new ArrayList<>();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT id, description FROM copy_test ORDER BY id");
+        while (resultSet.next()) {
+            result.add(resultSet.getInt(1) + "|" + resultSet.getString(2));
+        }
+        statement.close();
+        return result;
+    }
+}
@@ -0,0 +1,194 @@
+package org.moriano.locopostgres;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.moriano.locopostgres.container.PostgresAuthMethod;
+import org.moriano.locopostgres.container.PostgresTestContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The unit test for LocoDataSource, the connection pool
+ */
+@Testcontainers
+public class LocoDataSourceTest {
+
+    private static final String USER = "someUser";
+    private static final String PASSWORD = "somePassword";
+    private static final String DB_NAME = "someDB";
+
+    Properties props = new Properties();
+
+    /**
+     * The container used by LocoPostgres driver clear password auth
+     */
+    @Container
+    private static final PostgresTestContainer locoContainer =
+            new PostgresTestContainer("postgres:17.2", DB_NAME, USER, PASSWORD, PostgresAuthMethod.PASSWORD);
+
+    @BeforeEach
+    public void setup() {
+        props.setProperty("user", USER);
+        props.setProperty("password", PASSWORD);
+        props.setProperty("database", DB_NAME);
+    }
+
+    private LocoDataSource dataSource(int maximumPoolSize, int minimumIdle) {
+        LocoDataSource dataSource = new LocoDataSource();
+        dataSource.setUrl(locoContainer.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql"));
+        dataSource.setProperties(props);
+        dataSource.setMaximumPoolSize(maximumPoolSize);
+        dataSource.setMinimumIdle(minimumIdle);
+        return dataSource;
+    }
+
+    private int backendPid(Connection connection) throws SQLException {
+        ResultSet resultSet = connection.createStatement().executeQuery("SELECT pg_backend_pid()");
+        resultSet.next();
+        return resultSet.getInt(1);
+    }
+
+    /**
+     * Tests that the pool opens its connections at startup and that a thread gets back the one it used last
+     */
+    @Test
+    public void prefillAndReuse() throws SQLException {
+        try (LocoDataSource dataSource = this.dataSource(4, 4)) {
+            dataSource.start();
+            assertEquals(4, dataSource.getTotalConnections());
+            assertEquals(4, dataSource.getIdleConnections());
+
+            int pid;
+            try (Connection connection = dataSource.getConnection()) {
+                pid = this.backendPid(connection);
+                assertEquals(3, dataSource.getIdleConnections());
+            }
+            Connection connection = dataSource.getConnection();
+            assertEquals(pid, this.backendPid(connection));
+            connection.close();
+            assertTrue(connection.isClosed());
+            assertThrows(SQLException.class, connection::createStatement);
+            assertEquals(4, dataSource.getTotalConnections());
+        }
+    }
+
+    /**
+     * Tests that a transaction left open is rolled back when the connection goes back to the pool
+     */
+    @Test
+    public void openTransactionRolledBack() throws SQLException {
+        try (LocoDataSource dataSource = this.dataSource(1, 1)) {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.createStatement().execute("CREATE TABLE pool_test (id int)");
+                connection.createStatement().execute("BEGIN");
+                connection.createStatement().execute("INSERT INTO pool_test VALUES (1)");
+            }
+            try (Connection connection = dataSource.getConnection()) {
+                ResultSet resultSet = connection.createStatement().executeQuery("SELECT count(*) FROM pool_test");
+                resultSet.next();
+                assertEquals(0, resultSet.getInt(1));
+            }
+        }
+    }
+
+    /**
+     * Tests that a result set left half read is closed when the connection goes back to the pool. Its rows are skipped,
+     * keeping them in memory would take far more than the heap of the tests.
+     */
+    @Test
+    public void unreadResultSetClosed() throws SQLException {
+        try (LocoDataSource dataSource = this.dataSource(1, 1)) {
+            try (Connection connection = dataSource.getConnection()) {
+                ResultSet resultSet = connection.createStatement().executeQuery(
+                        "SELECT g, repeat('x', 1000) FROM generate_series(1, 5000000) g");
+                assertTrue(resultSet.next());
+            }
+            try (Connection connection = dataSource.getConnection()) {
+                ResultSet resultSet = connection.createStatement().executeQuery("SELECT 'next user'");
+                assertTrue(resultSet.next());
+                assertEquals("next user", resultSet.getString(1));
+            }
+        }
+    }
+
+    /**
+     * Tests that statements give the pooled handle as their connection, so closing it gives the connection back to the
+     * pool, and that a connection closed through unwrap is not given to the next user
+     */
+    @Test
+    public void statementConnectionIsTheHandle() throws SQLException {
+        try (LocoDataSource dataSource = this.dataSource(1, 1)) {
+            Connection connection = dataSource.getConnection();
+            int pid = this.backendPid(connection);
+            assertSame(connection, connection.createStatement().getConnection());
+            assertSame(connection, connection.prepareStatement("SELECT 1").getConnection());
+            connection.createStatement().getConnection().close();
+            assertTrue(connection.isClosed());
+            assertEquals(1, dataSource.getIdleConnections());
+
+            connection = dataSource.getConnection();
+            assertEquals(pid, this.backendPid(connection));
+            connection.unwrap(LocoConnection.class).close();
+            connection.close();
+
+            try (Connection next = dataSource.getConnection()) {
+                assertFalse(next.unwrap(LocoConnection.class).isClosed());
+                assertNotEquals(pid, this.backendPid(next));
+            }
+        }
+    }
+
+    /**
+     * Tests many threads sharing a few connections, and the timeout when none becomes free
+     */
+    @Test
+    public void concurrentBorrowing() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try (LocoDataSource dataSource = this.dataSource(4, 1)) {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 16; thread++) {
+                int id = thread;
+                futures.add(executor.submit(() -> {
+                    int sum = 0;
+                    for (int i = 0; i < 100; i++) {
+                        try (Connection connection = dataSource.getConnection()) {
+                            ResultSet resultSet = connection.createStatement().executeQuery("SELECT " + id);
+                            resultSet.next();
+                            sum += resultSet.getInt(1);
+                        }
+                        assertTrue(dataSource.getTotalConnections() <= 4);
+                    }
+                    return sum;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i * 100, (int) futures.get(i).get());
+            }
+
+            dataSource.setConnectionTimeoutMillis(100);
+            List<Connection> connections = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                connections.add(dataSource.getConnection());
+            }
+            assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -4,11 +4,31 @@ import org.junit.jupiter.api.Test;
 import org.moriano.locopostgres.model.SampleData;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -39,20 +59,670 @@ public class LocoPreparedStatementTest extends BaseTestWithData {
         }
     }
 
+    @Test
+    public void testPreparedStatementExecutedTwice() throws Exception {
+        /*
+        The second execution asks for binary results, they should still look the same as the text ones
+         */
+        String sql = "SELECT * FROM sample_data ORDER BY id";
+
+        ResultSet postgresResultSet = this.getPostgresConnection().prepareStatement(sql).executeQuery();
+        int columns = postgresResultSet.getMetaData().getColumnCount();
+
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        locoStatement.executeQuery().close();
+        ResultSet locoResultSet = locoStatement.executeQuery();
+
+        while (postgresResultSet.next()) {
+            assertTrue(locoResultSet.next());
+            for (int i = 1; i <= columns; i++) {
+                assertEquals(postgresResultSet.getString(i), locoResultSet.getString(i), "Column " + i);
+            }
+        }
+        assertFalse(locoResultSet.next());
+    }
+
+
+
+    @Test
+    public void testPreparedStatementInvalidQuery() throws Exception {
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement("SELEC * FROM sample_data");
+        SQLException exception = assertThrows(SQLException.class, locoStatement::executeQuery);
+        assertEquals("42601", exception.getSQLState());
+
+        // The connection is still usable after the error
+        ResultSet locoResultSet = this.getLocoConnection().prepareStatement("SELECT 1").executeQuery();
+        assertTrue(locoResultSet.next());
+        assertEquals(1, locoResultSet.getInt(1));
+    }
+
+    @Test
+    public void testPreparedStatementSingleParameter() throws Exception {
+        String sql = "SELECT * FROM sample_data WHERE smallint_col = ?";
+
+        PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+        postgresStatement.setShort(1, (short) 1);
+        List<SampleData> postgresResults = SampleData.fromResultSet(postgresStatement.executeQuery());
+
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        locoStatement.setShort(1, (short) 1);
+        List<SampleData> locoResults = SampleData.fromResultSet(locoStatement.executeQuery());
+
+        assertFalse(locoResults.isEmpty());
+        assertEquals(postgresResults, locoResults);
+    }
+
+    @Test
+    public void testPreparedStatementMultipleParameters() throws Exception {
+        String sql = "SELECT * FROM sample_data WHERE integer_col >= ? AND varchar_col <> ? AND boolean_col = ? " +
+                "AND date_col > ? AND text_col <> '?' ORDER BY id";
+
+        PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        for (PreparedStatement statement : List.of(postgresStatement, locoStatement)) {
+            statement.setInt(1, 0);
+            statement.setString(2, "nope");
+            statement.setBoolean(3, true);
+            statement.setDate(4, Date.valueOf("2000-01-01"));
+        }
+
+        List<SampleData> postgresResults = SampleData.fromResultSet(postgresStatement.executeQuery());
+        List<SampleData> locoResults = SampleData.fromResultSet(locoStatement.executeQuery());
+
+        assertEquals(postgresResults, locoResults);
+    }
+
+    @Test
+    public void testPreparedStatementQuoteAfterWordEndingInE() throws Exception {
+        /*
+        The quote right after LIKE starts a plain string, its backslash escapes nothing, so the string ends there and
+        the placeholder after it is rewritten. The one in the E'...' string is not.
+         */
+        String sql = "SELECT * FROM sample_data WHERE text_col NOT LIKE'C:\\' ESCAPE '' AND id = ? " +
+                "AND text_col <> E'\\'?' ORDER BY id";
+        assertEquals("SELECT * FROM sample_data WHERE text_col NOT LIKE'C:\\' ESCAPE '' AND id = $1 " +
+                "AND text_col <> E'\\'?' ORDER BY id", ParsedQuery.parse(sql).getSql());
+
+        PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        for (PreparedStatement statement : List.of(postgresStatement, locoStatement)) {
+            statement.setInt(1, 1);
+        }
+        assertEquals(SampleData.fromResultSet(postgresStatement.executeQuery()),
+                SampleData.fromResultSet(locoStatement.executeQuery()));
+    }
+
+    @Test
+    public void testPreparedStatementUpdateCount() throws Exception {
+        String sql = "UPDATE sample_data SET text_col = ? WHERE id <= ?";
+
+        PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+        postgresStatement.setString(1, "updated");
+        postgresStatement.setInt(2, 2);
+
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        locoStatement.setString(1, "updated");
+        locoStatement.setInt(2, 2);
+
+        assertEquals(postgresStatement.executeUpdate(), locoStatement.executeUpdate());
+    }
+
+    @Test
+    public void testPreparedStatementMissingParameter() throws Exception {
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement("SELECT * FROM sample_data WHERE id = ?");
+        assertThrows(SQLException.class, locoStatement::executeQuery);
+    }
+
+    @Test
+    public void testPreparedStatementIsParsedOnce() throws Exception {
+        String sql = "SELECT * FROM sample_data WHERE id = ?";
+        StatementCache statementCache = this.getLocoConnection().unwrap(LocoConnection.class).getStatementCache();
+        long misses = statementCache.getMisses();
+        long hits = statementCache.getHits();
+
+        for (int i = 0; i < 3; i++) {
+            PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+            postgresStatement.setInt(1, 1);
+            List<SampleData> postgresResults = SampleData.fromResultSet(postgresStatement.executeQuery());
+
+            PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+            locoStatement.setInt(1, 1);
+            List<SampleData> locoResults = SampleData.fromResultSet(locoStatement.executeQuery());
+
+            assertEquals(postgresResults, locoResults);
+        }
+
+        assertEquals(misses + 1, statementCache.getMisses());
+        assertEquals(hits + 2, statementCache.getHits());
+    }
+
+    @Test
+    public void testCachedStatementSkipsDescribe() throws Exception {
+        /*
+        Only the first execution asks the server to describe the result, the next ones reuse the description we keep,
+        the very same object
+         */
+        String sql = "SELECT * FROM sample_data ORDER BY id";
+        StatementCache statementCache = this.getLocoConnection().unwrap(LocoConnection.class).getStatementCache();
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        List<SampleData> firstResults = SampleData.fromResultSet(locoStatement.executeQuery());
+        CachedStatement cachedStatement = statementCache.get(sql, new int[0]);
+        assertTrue(cachedStatement.isDescribed());
+        LocoRowDescription rowDescription = cachedStatement.getRowDescription();
+
+        ResultSet postgresResultSet = this.getPostgresConnection().prepareStatement(sql).executeQuery();
+        ResultSet locoResultSet = locoStatement.executeQuery();
+        assertSame(rowDescription, cachedStatement.getRowDescription());
+        assertEquals(SampleData.fromResultSet(postgresResultSet), SampleData.fromResultSet(locoResultSet));
+        assertEquals(firstResults, SampleData.fromResultSet(locoStatement.executeQuery()));
+    }
+
+    @Test
+    public void testCachedStatementFormatsFollowDateTimeSettings() throws Exception {
+        /*
+        Dates and timestamps are only requested in binary with the ISO date style, and timestamps with time zone
+        only if Java knows the time zone of the session. The formats of a cached statement are chosen again whenever
+        either changes, so its values read the same as the text the server sends to a plain Statement. The official
+        driver refuses any date style but ISO, so the plain Statement is the model here.
+         */
+        String sql = "SELECT date '2024-01-31', timestamp '2024-01-31 13:45:00.5', " +
+                "timestamptz '2024-01-31 13:45:00+00', 1.5::numeric";
+        Connection locoConnection = this.getLocoConnection();
+        StatementCache statementCache = locoConnection.unwrap(LocoConnection.class).getStatementCache();
+        PreparedStatement locoStatement = locoConnection.prepareStatement(sql);
+        locoStatement.executeQuery().close();
+        CachedStatement cachedStatement = statementCache.get(sql, new int[0]);
+        assertArrayEquals(new int[]{1, 1, 1, 1}, cachedStatement.getResultFormatCodes());
+
+        try {
+            Map<String, int[]> expectedFormats = new LinkedHashMap<>();
+            expectedFormats.put("SET DateStyle = 'SQL, DMY'", new int[]{0, 0, 0, 1});
+            expectedFormats.put("SET TIME ZONE '<+03>-03'", new int[]{0, 0, 0, 1});
+            expectedFormats.put("SET DateStyle = 'ISO, MDY'", new int[]{1, 1, 0, 1});
+            expectedFormats.put("SET TIME ZONE 'Europe/Madrid'", new int[]{1, 1, 1, 1});
+            expectedFormats.put("SET DateStyle = 'German'", new int[]{0, 0, 0, 1});
+            for (Map.Entry<String, int[]> entry : expectedFormats.entrySet()) {
+                locoConnection.createStatement().execute(entry.getKey());
+                assertEquals(readStrings(locoConnection.createStatement().executeQuery(sql)),
+                        readStrings(locoStatement.executeQuery()));
+                assertArrayEquals(entry.getValue(), cachedStatement.getResultFormatCodes());
+            }
+        } finally {
+            locoConnection.createStatement().execute("RESET DateStyle");
+            locoConnection.createStatement().execute("RESET TIME ZONE");
+        }
+    }
+
+    @Test
+    public void testPreparedStatementFloatsAsText() throws Exception {
+        /*
+        Floats stay in text from the second execution on too, so getString reads what the session prints: the
+        shortest digits that read back as the same value by default, fewer of them with extra_float_digits at zero
+        or below. The first execution and the next ones must agree either way.
+         */
+        String sql = "SELECT d, f FROM (VALUES (5e-324::float8, 1e-45::float4), (1e23, 5.19608339e17), " +
+                "(1.7976931348623157e308, -80093376), (2.2250738585072014e-308, 3.4028235e38), (0.1, 0.1), " +
+                "(0.1 + 0.2, 0.3), (1e15, 1.17549435e-38), (1e16, 16777217), (-2.5e-310, 1e7)) v(d, f) " +
+                "UNION ALL SELECT 1 / g::float8 * 10 ^ (g % 60 - 30), (g * 1.37e-5)::float4 " +
+                "FROM generate_series(1, 5000) g";
+        Connection locoConnection = this.getLocoConnection();
+        for (String extraFloatDigits : List.of("1", "0", "-3")) {
+            locoConnection.createStatement().execute("SET extra_float_digits = " + extraFloatDigits);
+            List<String> text = new ArrayList<>();
+            ResultSet textResultSet = locoConnection.createStatement().executeQuery(sql);
+            while (textResultSet.next()) {
+                text.add(textResultSet.getString(1) + " " + textResultSet.getString(2));
+            }
+
+            PreparedStatement locoStatement = locoConnection.prepareStatement(sql);
+            for (int execution = 0; execution < 2; execution++) {
+                List<String> prepared = new ArrayList<>();
+                ResultSet preparedResultSet = locoStatement.executeQuery();
+                while (preparedResultSet.next()) {
+                    prepared.add(preparedResultSet.getString(1) + " " + preparedResultSet.getString(2));
+                }
+                assertEquals(text, prepared);
+            }
+            locoStatement.close();
+        }
+        locoConnection.createStatement().execute("RESET extra_float_digits");
+    }
+
+    @Test
+    public void testPreparedStatementTypedGetters() throws Exception {
+        /*
+        The same values read in text (the first execution) and in binary (the next one), in a time zone with an
+        offset of minutes and for a date where it was one of seconds
+         */
+        String sql = "SELECT date '2024-01-31', timestamp '2024-01-31 13:45:00.123456', " +
+                "timestamptz '2024-01-31 13:45:00.5+00', timestamptz '1850-06-01 12:00:00+00', " +
+                "'a0eebc99-9c0b-4ef8-bb6d-6bb9bd380a11'::uuid, 1::int2, 2, 3::int8, 1.5::float4, 2.5::float8, " +
+                "1.25::numeric, true, null::timestamp";
+        for (Connection connection : List.of(this.getPostgresConnection(), this.getLocoConnection())) {
+            connection.createStatement().execute("SET TIME ZONE 'Asia/Kolkata'");
+        }
+        try {
+            PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+            List<Object> expected = readTyped(postgresStatement.executeQuery());
+            PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+            assertEquals(expected, readTyped(locoStatement.executeQuery()));
+            assertEquals(expected, readTyped(locoStatement.executeQuery()));
+        } finally {
+            this.getLocoConnection().createStatement().execute("RESET TIME ZONE");
+            this.getPostgresConnection().createStatement().execute("RESET TIME ZONE");
+        }
+    }
+
+    @Test
+    public void testStatementCacheEvictsLeastRecentlyUsed() throws Exception {
+        /*
+        With room for three statements the fourth one evicts the least recently used, which is the second since the
+        first one was executed again. The evicted statement is closed on the server too, and preparing it again
+        evicts the third one.
+         */
+        Properties cacheProperties = new Properties();
+        cacheProperties.setProperty(LocoProperty.PREPARED_STATEMENT_CACHE_QUERIES.getName(), "3");
+        try (Connection cacheConnection = this.openLocoConnection(cacheProperties)) {
+            StatementCache statementCache = cacheConnection.unwrap(LocoConnection.class).getStatementCache();
+            for (String sql : List.of("SELECT 1", "SELECT 2", "SELECT 3", "SELECT 1", "SELECT 4")) {
+                cacheConnection.prepareStatement(sql).executeQuery().close();
+            }
+
+            assertEquals(3, statementCache.size());
+            assertEquals(1, statementCache.getEvictions());
+            assertEquals(4, statementCache.getMisses());
+            assertEquals(List.of("SELECT 1", "SELECT 3", "SELECT 4"), readPreparedStatements(cacheConnection));
 
+            cacheConnection.prepareStatement("SELECT 2").executeQuery().close();
+            assertEquals(5, statementCache.getMisses());
+            assertEquals(List.of("SELECT 1", "SELECT 2", "SELECT 4"), readPreparedStatements(cacheConnection));
+        }
+    }
+
+    @Test
+    public void testStatementCacheEvictsBySize() throws Exception {
+        /*
+        Each of these queries is estimated at about 800KiB, two of them do not fit in 1MiB although the cache has
+        room for plenty of statements
+         */
+        String padding = "x".repeat(100_000);
+        Properties cacheProperties = new Properties();
+        cacheProperties.setProperty(LocoProperty.PREPARED_STATEMENT_CACHE_SIZE_MIB.getName(), "1");
+        try (Connection cacheConnection = this.openLocoConnection(cacheProperties)) {
+            StatementCache statementCache = cacheConnection.unwrap(LocoConnection.class).getStatementCache();
+            cacheConnection.prepareStatement("SELECT 1 /* " + padding + " */").executeQuery().close();
+            cacheConnection.prepareStatement("SELECT 2 /* " + padding + " */").executeQuery().close();
+
+            assertEquals(1, statementCache.size());
+            assertEquals(1, statementCache.getEvictions());
+            assertTrue(statementCache.getEstimatedSize() <= statementCache.getMaxEstimatedSize());
+            assertEquals(List.of("SELECT 2 /* " + padding + " */"), readPreparedStatements(cacheConnection));
+        }
+    }
+
+    @Test
+    public void testStatementCacheEvictionInFailedBatch() throws Exception {
+        /*
+        With room for a single statement, each multi row insert of the rewritten batch evicts the previous one. The
+        first insert fails, so the server skips the Close of the eviction that follows it, which has to be sent
+        again, otherwise the statement would stay on the server until the connection ends.
+         */
+        Properties cacheProperties = new Properties();
+        cacheProperties.setProperty(LocoProperty.PREPARED_STATEMENT_CACHE_QUERIES.getName(), "1");
+        cacheProperties.setProperty(LocoProperty.REWRITE_BATCHED_INSERTS.getName(), "true");
+        try (Connection cacheConnection = this.openLocoConnection(cacheProperties)) {
+            cacheConnection.createStatement().execute("CREATE TABLE batch_evict (id int PRIMARY KEY)");
+            PreparedStatement failing = cacheConnection.prepareStatement("INSERT INTO batch_evict (id) VALUES (?)");
+            for (int i = 0; i < 300; i++) {
+                failing.setInt(1, i == 5 ? 4 : i);
+                failing.addBatch();
+            }
+            BatchUpdateException exception = assertThrows(BatchUpdateException.class, failing::executeBatch);
+            assertEquals("23505", exception.getSQLState());
+
+            assertEquals(List.of(), readPreparedStatements(cacheConnection));
+        }
+    }
+
+    @Test
+    public void testPreparedStatementFetchSize() throws Exception {
+        /*
+        A fetch size smaller than the result makes the driver execute the portal several times
+         */
+        String sql = "SELECT * FROM sample_data ORDER BY id";
+
+        List<SampleData> postgresResults = SampleData.fromResultSet(
+                this.getPostgresConnection().prepareStatement(sql).executeQuery());
+
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        locoStatement.setFetchSize(1);
+        List<SampleData> locoResults = SampleData.fromResultSet(locoStatement.executeQuery());
+
+        assertEquals(postgresResults, locoResults);
+    }
+
+    @Test
+    public void testPreparedStatementMaxRows() throws Exception {
+        String sql = "SELECT * FROM sample_data ORDER BY id";
+
+        PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+        postgresStatement.setMaxRows(1);
+        List<SampleData> postgresResults = SampleData.fromResultSet(postgresStatement.executeQuery());
+
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        locoStatement.setMaxRows(1);
+        List<SampleData> locoResults = SampleData.fromResultSet(locoStatement.executeQuery());
+
+        assertEquals(1, locoResults.size());
+        assertEquals(postgresResults, locoResults);
+    }
+
+    @Test
+    public void testPreparedStatementBatch() throws Exception {
+        /*
+        More entries than fit in a window of the pipeline, some of them with a null
+         */
+        String sql = "UPDATE sample_data SET text_col = ? WHERE id = ? OR id = ?";
+        PreparedStatement postgresStatement = this.getPostgresConnection().prepareStatement(sql);
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(sql);
+        for (int i = 0; i < 1000; i++) {
+            for (PreparedStatement statement : List.of(postgresStatement, locoStatement)) {
+                if (i % 3 == 0) {
+                    statement.setNull(1, Types.VARCHAR);
+                } else {
+                    statement.setString(1, "batch " + i);
+                }
+                statement.setInt(2, i);
+                statement.setInt(3, i + 1);
+                statement.addBatch();
+            }
+        }
+        assertArrayEquals(postgresStatement.executeBatch(), locoStatement.executeBatch());
+
+        String query = "SELECT * FROM sample_data ORDER BY id";
+        List<SampleData> postgresResults = SampleData.fromResultSet(
+                this.getPostgresConnection().prepareStatement(query).executeQuery());
+        List<SampleData> locoResults = SampleData.fromResultSet(
+                this.getLocoConnection().prepareStatement(query).executeQuery());
+        assertEquals(postgresResults, locoResults);
+    }
+
+    @Test
+    public void testPreparedStatementBatchFailure() throws Exception {
+        /*
+        The failed entry aborts the whole batch, and the statement can still be used afterwards
+         */
+        PreparedStatement locoStatement = this.getLocoConnection().prepareStatement(
+                "UPDATE sample_data SET integer_col = integer_col / ? WHERE id = 1");
+        for (int i = 5; i >= -5; i--) {
+            locoStatement.setInt(1, i);
+            locoStatement.addBatch();
+        }
+        BatchUpdateException exception = assertThrows(BatchUpdateException.class, locoStatement::executeBatch);
+        assertEquals("22012", exception.getSQLState());
+        assertEquals(5, exception.getUpdateCounts().length);
+
+        locoStatement.setInt(1, 1);
+        locoStatement.addBatch();
+        assertArrayEquals(new int[]{1}, locoStatement.executeBatch());
+    }
+
+    @Test
+    public void testPreparedStatementBatchRewritten() throws Exception {
+        /*
+        The entries are folded into multi row inserts of up to 256 rows, the ones with a null (a different type for
+        the second parameter) separately from the rest. The failing batch goes as 256 + 32 + 8 + 4 rows, and the
+        entries of the failed insert get no update count
+         */
+        String sql = "INSERT INTO batch_rewrite (id, name) VALUES (?, ?)";
+        Properties rewriteProperties = new Properties();
+        rewriteProperties.setProperty(LocoProperty.REWRITE_BATCHED_INSERTS.getName(), "true");
+        try (Connection rewriteConnection = this.openLocoConnection(rewriteProperties)) {
+            for (Connection connection : List.of(this.getPostgresConnection(), rewriteConnection)) {
+                connection.createStatement().execute("CREATE TABLE batch_rewrite (id int PRIMARY KEY, name text)");
+                PreparedStatement statement = connection.prepareStatement(sql);
+                for (int i = 0; i < 1000; i++) {
+                    statement.setInt(1, i);
+                    if (i >= 500 && i < 510) {
+                        statement.setNull(2, Types.OTHER);
+                    } else {
+                        statement.setString(2, "row " + i);
+                    }
+                    statement.addBatch();
+                }
+                int[] updateCounts = statement.executeBatch();
+                assertEquals(1000, updateCounts.length);
+                if (connection == rewriteConnection) {
+                    int[] expected = new int[1000];
+                    Arrays.fill(expected, 1);
+                    assertArrayEquals(expected, updateCounts);
+                }
+            }
 
-//    @Test
-//    public void testPreparedStatementInvalidQuery() {
-//
-//    }
-//
-//    @Test
-//    public void testPreparedStatementSingleParameter() {
-//
-//    }
-//
-//    @Test
-//    public void testPreparedStatementMultipleParameters() {
-//
-//    }
-}
\ No newline at end of file
+            String query = "SELECT id, name FROM batch_rewrite ORDER BY id";
+            assertEquals(readRows(this.getPostgresConnection().prepareStatement(query).executeQuery()),
+                    readRows(rewriteConnection.prepareStatement(query).executeQuery()));
+
+            PreparedStatement failing = rewriteConnection.prepareStatement(sql);
+            for (int i = 0; i < 300; i++) {
+                failing.setInt(1, i == 299 ? 5 : 1000 + i);
+                failing.setString(2, "dup");
+                failing.addBatch();
+            }
+            BatchUpdateException exception = assertThrows(BatchUpdateException.class, failing::executeBatch);
+            assertEquals("23505", exception.getSQLState());
+            assertEquals(296, exception.getUpdateCounts().length);
+        }
+    }
+
+    @Test
+    public void testPreparedStatementBatchAsCopy() throws Exception {
+        /*
+        Past the threshold the batch is loaded with a COPY, which must leave the same rows as the inserts, nulls and
+        widened types (an int for a bigint column) included. A failed COPY loads nothing.
+         */
+        String sql = "INSERT INTO batch_copy (id, name, amount) VALUES (?, ?, ?)";
+        Properties copyProperties = new Properties();
+        copyProperties.setProperty(LocoProperty.BATCH_COPY_THRESHOLD.getName(), "100");
+        try (Connection copyConnection = this.openLocoConnection(copyProperties)) {
+            for (Connection connection : List.of(this.getPostgresConnection(), copyConnection)) {
+                connection.createStatement().execute(
+                        "CREATE TABLE batch_copy (id bigint PRIMARY KEY, name varchar(20), amount numeric(10, 2))");
+                PreparedStatement statement = connection.prepareStatement(sql);
+                for (int i = 0; i < 1000; i++) {
+                    statement.setInt(1, i);
+                    if (i % 10 == 0) {
+                        statement.setNull(2, Types.VARCHAR);
+                    } else {
+                        statement.setString(2, "row " + i);
+                    }
+                    statement.setBigDecimal(3, new BigDecimal(i).movePointLeft(2));
+                    statement.addBatch();
+                }
+                assertEquals(1000, statement.executeBatch().length);
+            }
+
+            String query = "SELECT id, name FROM batch_copy ORDER BY id";
+            assertEquals(readRows(this.getPostgresConnection().prepareStatement(query).executeQuery()),
+                    readRows(copyConnection.prepareStatement(query).executeQuery()));
+
+            PreparedStatement failing = copyConnection.prepareStatement(sql);
+            for (int i = 0; i < 200; i++) {
+                failing.setInt(1, i == 199 ? 5 : 1000 + i);
+                failing.setString(2, "dup");
+                failing.setNull(3, Types.NUMERIC);
+                failing.addBatch();
+            }
+            BatchUpdateException exception = assertThrows(BatchUpdateException.class, failing::executeBatch);
+            assertEquals("23505", exception.getSQLState());
+            ResultSet count = copyConnection.prepareStatement("SELECT count(*) FROM batch_copy").executeQuery();
+            assertTrue(count.next());
+            assertEquals(1000, count.getInt(1));
+        }
+    }
+
+    @Test
+    public void testPreparedStatementBatchAsCopyNotATable() throws Exception {
+        /*
+        A COPY cannot load a view, and skips the rules of a table, so those batches run as inserts even past the
+        threshold, inside a transaction too
+         */
+        Properties copyProperties = new Properties();
+        copyProperties.setProperty(LocoProperty.BATCH_COPY_THRESHOLD.getName(), "10");
+        try (Connection copyConnection = this.openLocoConnection(copyProperties)) {
+            Statement statement = copyConnection.createStatement();
+            statement.execute("CREATE TABLE copy_target (id int, name text)");
+            statement.execute("CREATE VIEW copy_target_view AS SELECT * FROM copy_target");
+            statement.execute("CREATE TABLE copy_target_log (id int)");
+            statement.execute("CREATE RULE copy_target_rule AS ON INSERT TO copy_target " +
+                    "DO ALSO INSERT INTO copy_target_log VALUES (NEW.id)");
+
+            copyConnection.setAutoCommit(false);
+            for (String table : List.of("copy_target_view", "copy_target")) {
+                PreparedStatement insert = copyConnection.prepareStatement(
+                        "INSERT INTO " + table + " (id, name) VALUES (?, ?)");
+                for (int i = 0; i < 100; i++) {
+                    insert.setInt(1, i);
+                    insert.setString(2, "row " + i);
+                    insert.addBatch();
+                }
+                assertEquals(100, insert.executeBatch().length);
+            }
+            copyConnection.commit();
+            copyConnection.setAutoCommit(true);
+
+            ResultSet counts = statement.executeQuery(
+                    "SELECT (SELECT count(*) FROM copy_target), (SELECT count(*) FROM copy_target_log)");
+            assertTrue(counts.next());
+            assertEquals(200, counts.getInt(1));
+            assertEquals(200, counts.getInt(2));
+        }
+    }
+
+    @Test
+    public void testPreparedStatementBatchAsCopyRowLevelSecurity() throws Exception {
+        /*
+        A COPY refuses a table with row level security, for a user it applies to. The batch runs as inserts, which
+        the policy checks, inside a transaction too
+         */
+        Properties copyProperties = new Properties();
+        copyProperties.setProperty(LocoProperty.BATCH_COPY_THRESHOLD.getName(), "10");
+        try (Connection copyConnection = this.openLocoConnection(copyProperties)) {
+            Statement statement = copyConnection.createStatement();
+            statement.execute("CREATE TABLE copy_secured (id int, name text)");
+            statement.execute("ALTER TABLE copy_secured ENABLE ROW LEVEL SECURITY");
+            statement.execute("CREATE POLICY copy_secured_policy ON copy_secured USING (true) WITH CHECK (id < 1000)");
+            statement.execute("CREATE ROLE copy_secured_role");
+            statement.execute("GRANT SELECT, INSERT ON copy_secured TO copy_secured_role");
+
+            copyConnection.setAutoCommit(false);
+            statement.execute("SET ROLE copy_secured_role");
+            PreparedStatement insert = copyConnection.prepareStatement(
+                    "INSERT INTO copy_secured (id, name) VALUES (?, ?)");
+            for (int i = 0; i < 100; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, "row " + i);
+                insert.addBatch();
+            }
+            assertEquals(100, insert.executeBatch().length);
+            statement.execute("RESET ROLE");
+            copyConnection.commit();
+            copyConnection.setAutoCommit(true);
+
+            ResultSet count = statement.executeQuery("SELECT count(*) FROM copy_secured");
+            assertTrue(count.next());
+            assertEquals(100, count.getInt(1));
+        }
+    }
+
+    @Test
+    public void testPreparedStatementBatchAsCopyIdentityAlways() throws Exception {
+        /*
+        A COPY writes the value given for a GENERATED ALWAYS identity column, an insert rejects it. A batch giving
+        one runs as inserts and fails like them, a batch leaving it to the server still goes as a COPY
+         */
+        Properties copyProperties = new Properties();
+        copyProperties.setProperty(LocoProperty.BATCH_COPY_THRESHOLD.getName(), "10");
+        try (Connection copyConnection = this.openLocoConnection(copyProperties)) {
+            Statement statement = copyConnection.createStatement();
+            statement.execute("CREATE TABLE copy_identity (id int GENERATED ALWAYS AS IDENTITY, \"Name\" text)");
+
+            PreparedStatement withIdentity = copyConnection.prepareStatement(
+                    "INSERT INTO copy_identity (ID, \"Name\") VALUES (?, ?)");
+            PreparedStatement withoutIdentity = copyConnection.prepareStatement(
+                    "INSERT INTO copy_identity (\"Name\") VALUES (?)");
+            for (int i = 0; i < 100; i++) {
+                withIdentity.setInt(1, i);
+                withIdentity.setString(2, "row " + i);
+                withIdentity.addBatch();
+                withoutIdentity.setString(1, "row " + i);
+                withoutIdentity.addBatch();
+            }
+            BatchUpdateException exception = assertThrows(BatchUpdateException.class, withIdentity::executeBatch);
+            assertEquals("428C9", exception.getSQLState());
+            assertEquals(100, withoutIdentity.executeBatch().length);
+
+            ResultSet identities = statement.executeQuery("SELECT count(*), min(id), max(id) FROM copy_identity");
+            assertTrue(identities.next());
+            assertEquals(100, identities.getInt(1));
+            assertEquals(1, identities.getInt(2));
+            assertEquals(100, identities.getInt(3));
+        }
+    }
+
+    /**
+     * The first row through getObject, followed by the dates and timestamps through the other getters
+     */
+    private List<Object> readTyped(ResultSet resultSet) throws SQLException {
+        List<Object> result = new ArrayList<>();
+        assertTrue(resultSet.next());
+        for (int i = 1; i <= 13; i++) {
+            result.add(resultSet.getObject(i));
+        }
+        for (int i = 1; i <= 4; i++) {
+            result.add(resultSet.getTimestamp(i));
+        }
+        result.add(resultSet.getObject(1, LocalDate.class));
+        result.add(resultSet.getObject(2, LocalDateTime.class));
+        result.add(resultSet.getObject(3, OffsetDateTime.class));
+        result.add(resultSet.getObject(4, OffsetDateTime.class));
+        result.add(resultSet.getObject(5, UUID.class));
+        resultSet.close();
+        return result;
+    }
+
+    /**
+     * The values of the four columns of each row as strings
+     */
+    private List<String> readStrings(ResultSet resultSet) throws SQLException {
+        List<String> result = new ArrayList<>();
+        while (resultSet.next()) {
+            for (int i = 1; i <= 4; i++) {
+                result.add(resultSet.getString(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The sql of the statements prepared in the server for the given connection. A plain Statement is not prepared,
+     * so it does not show up.
+     */
+    private List<String> readPreparedStatements(Connection connection) throws SQLException {
+        List<String> result = new ArrayList<>();
+        ResultSet resultSet = connection.createStatement().executeQuery(
+                "SELECT statement FROM pg_prepared_statements ORDER BY statement");
+        while (resultSet.next()) {
+            result.add(resultSet.getString(1));
+        }
+        return result;
+    }
+
+    private List<String> readRows(ResultSet resultSet) throws SQLException {
+        List<String> result = new ArrayList<>();
+        while (resultSet.next()) {
+            result.add(resultSet.getInt(1) + " " + resultSet.getString(2));
+        }
+        return result;
+    }
+}
@@ -14,8 +14,10 @@ import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.sql.*;
+import java.util.List;
 import java.util.Properties;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -207,6 +209,25 @@ public class LocoResultSetTest {
         assertTrue(sameResults, "Results did not match, check logs for details");
     }
 
+    @Test
+    public void getStringViaNameIgnoresCase() throws Exception {
+        ResultSet postgresResultSet = this.buildResultSet(postgresConnection, this.ordersSQL);
+        ResultSet locoResultSet = this.buildResultSet(locoConnection, this.ordersSQL);
+        MyFunction getString = (ResultSet rs) -> rs.getString("O_Comment");
+        boolean sameResults = this.resultSetComparator.compareResultSets(postgresResultSet, locoResultSet, getString);
+        assertTrue(sameResults, "Results did not match, check logs for details");
+    }
+
+    @Test
+    public void findColumn() throws Exception {
+        ResultSet postgresResultSet = this.buildResultSet(postgresConnection, this.ordersSQL);
+        ResultSet locoResultSet = this.buildResultSet(locoConnection, this.ordersSQL);
+        MyFunction findColumn = (ResultSet rs) -> rs.findColumn("o_shippriority") * 100 + rs.findColumn("O_ORDERKEY");
+        boolean sameResults = this.resultSetComparator.compareResultSets(postgresResultSet, locoResultSet, findColumn);
+        assertTrue(sameResults, "Results did not match, check logs for details");
+        assertThrows(SQLException.class, () -> locoResultSet.findColumn("no_such_column"));
+    }
+
     @Test
     public void getIntViaPosition() throws Exception {
         ResultSet postgresResultSet = this.buildResultSet(postgresConnection, this.ordersSQL);
@@ -216,7 +237,7 @@ public class LocoResultSetTest {
         assertTrue(sameResults, "Results did not match, check logs for details");
     }
 
-    // TODO moriano fix @Test
+    @Test
     public void getShortViaName() throws Exception {
         ResultSet postgresResultSet = this.buildResultSet(postgresConnection, this.ordersSQL);
         ResultSet locoResultSet = this.buildResultSet(locoConnection, this.ordersSQL);
@@ -225,7 +246,7 @@ public class LocoResultSetTest {
         assertTrue(sameResults, "Results did not match, check logs for details");
     }
 
-    // TODO moriano fix @Test
+    @Test
     public void getShortViaPosition() throws Exception {
         ResultSet postgresResultSet = this.buildResultSet(postgresConnection, this.ordersSQL);
         ResultSet locoResultSet = this.buildResultSet(locoConnection, this.ordersSQL);
@@ -299,6 +320,46 @@ public class LocoResultSetTest {
     }
 
 
+    @Test
+    public void getNegativeNumbers() throws Exception {
+        String sql = "SELECT -o_custkey AS negative_key, -o_totalprice AS negative_price FROM orders ORDER BY o_orderkey";
+        ResultSet postgresResultSet = this.buildResultSet(postgresConnection, sql);
+        ResultSet locoResultSet = this.buildResultSet(locoConnection, sql);
+        MyFunction getNumbers = (ResultSet rs) -> List.of(rs.getShort(1), rs.getInt(1), rs.getLong(1),
+                rs.getFloat(2), rs.getDouble(2), rs.getBigDecimal(2));
+        boolean sameResults = this.resultSetComparator.compareResultSets(postgresResultSet, locoResultSet, getNumbers);
+        assertTrue(sameResults, "Results did not match, check logs for details");
+    }
+
+    @Test
+    public void wasNull() throws Exception {
+        String sql = "SELECT NULL::int AS nothing, o_shippriority FROM orders ORDER BY o_orderkey LIMIT 3";
+        ResultSet postgresResultSet = this.buildResultSet(postgresConnection, sql);
+        ResultSet locoResultSet = this.buildResultSet(locoConnection, sql);
+        MyFunction wasNull = (ResultSet rs) -> {
+            rs.getInt(1);
+            boolean firstWasNull = rs.wasNull();
+            rs.getInt(2);
+            return List.of(firstWasNull, rs.wasNull());
+        };
+        boolean sameResults = this.resultSetComparator.compareResultSets(postgresResultSet, locoResultSet, wasNull);
+        assertTrue(sameResults, "Results did not match, check logs for details");
+    }
+
+    /**
+     * Runs several queries one after the other on the same connection, each of them must get its own rows
+     */
+    @Test
+    public void consecutiveQueries() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            ResultSet postgresResultSet = this.buildResultSet(postgresConnection, this.ordersSQL);
+            ResultSet locoResultSet = this.buildResultSet(locoConnection, this.ordersSQL);
+            MyFunction getString = (ResultSet rs) -> rs.getString("o_comment");
+            boolean sameResults = this.resultSetComparator.compareResultSets(postgresResultSet, locoResultSet, getString);
+            assertTrue(sameResults, "Results did not match, check logs for details");
+        }
+    }
+
     private ResultSet buildResultSet(Connection connection, String sql) throws SQLException {
         Statement statement = connection.createStatement();
         ResultSet resultSet = statement.executeQuery(sql);
@@ -8,9 +8,14 @@ import org.moriano.locopostgres.container.PostgresTestContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -122,5 +127,101 @@ public class LocoStatementTest {
         assertArrayEquals(locoResult, postgresResult);
     }
 
+    @Test
+    public void executeBatch_manyCommands() throws Exception {
+        /*
+        More commands than fit in a window of the pipeline, mixing DDL and DML
+         */
+        for (Statement statement : List.of(locoStatement, postgresStatement)) {
+            statement.addBatch("CREATE TABLE batch_commands (id int PRIMARY KEY, name text)");
+            for (int i = 0; i < 1000; i++) {
+                statement.addBatch("INSERT INTO batch_commands VALUES (" + i + ", 'name " + i + "')");
+            }
+            statement.addBatch("UPDATE batch_commands SET name = 'updated' WHERE id < 10");
+            statement.addBatch("DELETE FROM batch_commands WHERE id >= 990");
+        }
+        assertArrayEquals(postgresStatement.executeBatch(), locoStatement.executeBatch());
+    }
+
+    @Test
+    public void executeBatch_failure() throws Exception {
+        /*
+        The failed command aborts the whole batch, and the statement can still be used afterwards
+         */
+        locoStatement.execute("CREATE TABLE batch_failure (id int PRIMARY KEY)");
+        for (int i = 0; i < 500; i++) {
+            locoStatement.addBatch("INSERT INTO batch_failure VALUES (" + (i == 400 ? 1 : i) + ")");
+        }
+        BatchUpdateException exception = assertThrows(BatchUpdateException.class, locoStatement::executeBatch);
+        assertEquals("23505", exception.getSQLState());
+        assertEquals(400, exception.getUpdateCounts().length);
+
+        locoStatement.addBatch("INSERT INTO batch_failure VALUES (1)");
+        locoStatement.addBatch("INSERT INTO batch_failure VALUES (2)");
+        assertArrayEquals(new int[]{1, 1}, locoStatement.executeBatch());
+        assertEquals(List.of(1, 2), readInts(locoStatement.executeQuery("SELECT id FROM batch_failure ORDER BY id")));
+    }
 
+    @Test
+    public void executeQuery_withCursorFetch() throws Exception {
+        /*
+        A fetch size smaller than the result makes the cursor FETCH several times
+         */
+        Properties cursorProps = new Properties();
+        cursorProps.putAll(props);
+        cursorProps.setProperty(LocoProperty.USE_CURSOR_FETCH.getName(), "true");
+        String locoUrl = locoContainer.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+        String sql = "SELECT g FROM generate_series(1, 1000) g ORDER BY g";
+
+        try (Connection cursorConnection = DriverManager.getConnection(locoUrl, cursorProps)) {
+            Statement cursorStatement = cursorConnection.createStatement();
+            cursorStatement.setFetchSize(100);
+            postgresStatement.setFetchSize(100);
+            assertEquals(readInts(postgresStatement.executeQuery(sql)), readInts(cursorStatement.executeQuery(sql)));
+
+            cursorStatement.setMaxRows(150);
+            postgresStatement.setMaxRows(150);
+            assertEquals(readInts(postgresStatement.executeQuery(sql)), readInts(cursorStatement.executeQuery(sql)));
+        }
+    }
+
+    @Test
+    public void executeQuery_withCursorFetchWriting() throws Exception {
+        /*
+        A data modifying WITH and a SELECT INTO cannot be declared as a cursor, they run the usual way
+         */
+        Properties cursorProps = new Properties();
+        cursorProps.putAll(props);
+        cursorProps.setProperty(LocoProperty.USE_CURSOR_FETCH.getName(), "true");
+        String locoUrl = locoContainer.getJdbcUrl().replace("jdbc:postgresql", "jdbc:loco:postgresql");
+
+        try (Connection cursorConnection = DriverManager.getConnection(locoUrl, cursorProps)) {
+            Statement cursorStatement = cursorConnection.createStatement();
+            cursorStatement.setFetchSize(2);
+            cursorStatement.execute("CREATE TABLE cursor_rows AS SELECT g AS id FROM generate_series(1, 10) g");
+
+            assertFalse(LocoCursor.canDeclare(
+                    "WITH d AS (DELETE FROM cursor_rows WHERE id <= 3 RETURNING id) SELECT id FROM d ORDER BY id"));
+            assertEquals(List.of(1, 2, 3), readInts(cursorStatement.executeQuery(
+                    "WITH d AS (DELETE FROM cursor_rows WHERE id <= 3 RETURNING id) SELECT id FROM d ORDER BY id")));
+
+            assertFalse(LocoCursor.canDeclare("SELECT id INTO cursor_copy FROM cursor_rows"));
+            cursorStatement.executeQuery("SELECT id INTO cursor_copy FROM cursor_rows").close();
+            assertEquals(List.of(7), readInts(cursorStatement.executeQuery("SELECT count(*) FROM cursor_copy")));
+
+            // The keywords only count outside of quoted text and comments, nested ones included
+            String sql = "/* a /* nested */ comment */ SELECT id, 'insert into' /* update */ FROM cursor_rows " +
+                    "ORDER BY id";
+            assertTrue(LocoCursor.canDeclare(sql));
+            assertEquals(List.of(4, 5, 6, 7, 8, 9, 10), readInts(cursorStatement.executeQuery(sql)));
+        }
+    }
+
+    private List<Integer> readInts(ResultSet resultSet) throws SQLException {
+        List<Integer> result = new ArrayList<>();
+        while (resultSet.next()) {
+            result.add(resultSet.getInt(1));
+        }
+        return result;
+    }
 }